@@ -0,0 +1,164 @@
+package net.grlewis.wifithermocouple;
+
+import android.util.Log;
+
+import static net.grlewis.wifithermocouple.Constants.DEBUG;
+
+/*
+ * Chooses how long to wait before the next temperature poll, instead of a fixed TEMP_UPDATE_SECONDS.
+ *
+ * Polls fast (minIntervalMillis, ~1 s) when something is happening:
+ *     --the temperature is changing quickly (e.g. recovering after the lid was opened)
+ *     --the PID error is large (on its own this only gets to about the old 5 s rate: during warm-up
+ *       the error is huge for half an hour but the output is pinned at 100% anyway)
+ *     --the fan was just switched on or off after staying put for a while (the PID's normal on/off
+ *       cycling within each period doesn't count, or we'd never slow down)
+ * and backs off toward maxIntervalMillis when the pit is sitting flat. Between the two the interval
+ * is interpolated geometrically by "urgency", the largest of those three signals scaled to 0..1
+ * (so urgency 0.5 is sqrt( min * max ), not the midpoint).
+ * Shortening takes effect immediately; lengthening grows by at most BACKOFF_FACTOR per poll so one
+ * quiet reading doesn't throw away the fast rate.
+ *
+ * The interval is also capped so there are always at least minSamplesPerMinute readings, which
+ * keeps the PID's derivative term (difference between successive readings) meaningful.
+ *
+ * Feed it every reading with recordReading() and fan changes with outputToggled(); hand it to
+ * DevicePoller.setIntervalPolicy(). All times are the readings' own (device response) timestamps.
+ *
+ */
+
+class AdaptivePollInterval implements DevicePoller.IntervalPolicy {
+
+    private static final String TAG = AdaptivePollInterval.class.getSimpleName();
+
+    private static final float BACKOFF_FACTOR = 1.5f;  // max growth of the interval from one poll to the next
+    private static final float MAX_ERROR_URGENCY = 0.5f;  // error alone polls no faster than sqrt( min * max )
+
+    private final long minIntervalMillis;
+    private final long maxIntervalMillis;
+    private float fastSlopeDegPerMin;     // |dT/dt| at which we poll as fast as possible
+    private float fastErrorDeg;           // |setpoint - temp| at which error urgency tops out (at MAX_ERROR_URGENCY)
+    private long toggleHoldMillis;        // how long to stay fast after the fan switches
+    private long toggleQuietMillis;       // the fan must have been steady this long for a switch to count
+    private int minSamplesPerMinute;
+
+    // state, all guarded by 'this'
+    private float lastTemp = Float.NaN;
+    private long lastReadingMillis;
+    private float slopeDegPerMin;         // smoothed rate of change
+    private float lastError = Float.NaN;
+    private long lastToggleMillis = Long.MIN_VALUE;   // last switch that counted
+    private long previousSwitchMillis = Long.MIN_VALUE;  // last switch of any kind
+    private long currentIntervalMillis;
+
+    // counters
+    private long firstReadingMillis;
+    private long samples;
+    private long fastPolls;               // intervals chosen at the minimum
+
+
+    // constructor
+    AdaptivePollInterval( long minIntervalMillis, long maxIntervalMillis ) {
+        if( minIntervalMillis <= 0L || maxIntervalMillis < minIntervalMillis )
+            throw new IllegalArgumentException( "need 0 < min <= max interval" );
+        this.minIntervalMillis = minIntervalMillis;
+        this.maxIntervalMillis = maxIntervalMillis;
+        fastSlopeDegPerMin = Constants.POLL_FAST_SLOPE_DEG_PER_MIN;
+        fastErrorDeg = Constants.POLL_FAST_ERROR_DEG;
+        toggleHoldMillis = Constants.POLL_TOGGLE_HOLD_SECS * 1000L;
+        toggleQuietMillis = Constants.POLL_TOGGLE_QUIET_SECS * 1000L;
+        minSamplesPerMinute = Constants.POLL_MIN_SAMPLES_PER_MIN;
+        currentIntervalMillis = minIntervalMillis;  // start fast until we know what's going on
+    }
+
+    // constructor with the defaults for temperature polling
+    AdaptivePollInterval( ) {
+        this( Constants.POLL_MIN_INTERVAL_SECS * 1000L, Constants.POLL_MAX_INTERVAL_SECS * 1000L );
+    }
+
+
+    // setters return the policy so you can chain
+    synchronized AdaptivePollInterval setFastSlope( float degPerMin ) {
+        fastSlopeDegPerMin = degPerMin;
+        return this;
+    }
+
+    synchronized AdaptivePollInterval setFastError( float deg ) {
+        fastErrorDeg = deg;
+        return this;
+    }
+
+    synchronized AdaptivePollInterval setToggleHoldMillis( long millis ) {
+        toggleHoldMillis = millis;
+        return this;
+    }
+
+    synchronized AdaptivePollInterval setMinSamplesPerMinute( int samplesPerMinute ) {
+        if( samplesPerMinute < 1 ) throw new IllegalArgumentException( "need at least 1 sample per minute" );
+        minSamplesPerMinute = samplesPerMinute;
+        return this;
+    }
+
+
+    // a new reading (setpoint null if not set)
+    synchronized void recordReading( float temp, long atMillis, Float setPoint ) {
+        if( Float.isNaN( temp ) ) return;  // a bad reading tells us nothing
+        if( samples++ == 0L ) firstReadingMillis = atMillis;
+        if( !Float.isNaN( lastTemp ) && atMillis > lastReadingMillis ) {
+            float slope = ( temp - lastTemp ) * 60000f / ( atMillis - lastReadingMillis );
+            slopeDegPerMin = 0.5f * slopeDegPerMin + 0.5f * slope;  // light smoothing so one noisy reading doesn't dominate
+        }
+        lastTemp = temp;
+        lastReadingMillis = atMillis;
+        lastError = setPoint == null? Float.NaN : setPoint - temp;
+    }
+
+    // the fan was switched on or off
+    synchronized void outputToggled( long atMillis ) {
+        if( previousSwitchMillis == Long.MIN_VALUE || atMillis - previousSwitchMillis >= toggleQuietMillis )
+            lastToggleMillis = atMillis;
+        previousSwitchMillis = atMillis;
+    }
+
+
+    // how long until the next poll
+    @Override
+    public synchronized long nextIntervalMillis( ) {
+        float urgency = Math.abs( slopeDegPerMin ) / fastSlopeDegPerMin;
+        if( !Float.isNaN( lastError ) )
+            urgency = Math.max( urgency, Math.min( MAX_ERROR_URGENCY, Math.abs( lastError ) / fastErrorDeg * MAX_ERROR_URGENCY ) );
+        if( lastToggleMillis != Long.MIN_VALUE && lastReadingMillis - lastToggleMillis < toggleHoldMillis ) urgency = 1f;  // (includes no reading since)
+        urgency = Math.min( 1f, urgency );
+
+        long densityCap = 60000L / minSamplesPerMinute;
+        long target = Math.min( densityCap,
+                Math.round( maxIntervalMillis * Math.pow( (double) minIntervalMillis / maxIntervalMillis, urgency ) ) );
+        target = Math.max( minIntervalMillis, target );
+
+        long next = target <= currentIntervalMillis? target  // speed up right away
+                : Math.min( target, (long) ( currentIntervalMillis * BACKOFF_FACTOR ) );  // slow down gradually
+        if( next == minIntervalMillis ) fastPolls++;
+        if( DEBUG && next != currentIntervalMillis ) Log.d( TAG, "poll interval now " + next + " ms (urgency " + urgency + ")" );
+        currentIntervalMillis = next;
+        return next;
+    }
+
+
+    // diagnostics
+    synchronized long getCurrentIntervalMillis( ) { return currentIntervalMillis; }
+    synchronized long getSampleCount( ) { return samples; }
+    synchronized long getFastPollCount( ) { return fastPolls; }
+    synchronized float getSlopeDegPerMin( ) { return slopeDegPerMin; }
+
+    // samples per minute actually achieved since the first reading
+    synchronized float getEffectiveSamplesPerMinute( ) {
+        long span = lastReadingMillis - firstReadingMillis;
+        return span <= 0L? 0f : ( samples - 1 ) * 60000f / span;
+    }
+
+    @Override
+    public synchronized String toString( ) {
+        return "AdaptivePollInterval: " + currentIntervalMillis + " ms, " + samples + " samples, "
+                + getEffectiveSamplesPerMinute() + " samples/min";
+    }
+}
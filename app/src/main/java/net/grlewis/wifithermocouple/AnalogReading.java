@@ -0,0 +1,19 @@
+package net.grlewis.wifithermocouple;
+
+import java.util.UUID;
+
+// analog/in: the control knob setting (0.0-1.0 volts)
+final class AnalogReading extends DeviceReading {
+    
+    final float volts;
+    
+    AnalogReading( float volts, UUID requestUUID, long sentAtMillis, long receivedAtMillis ) {
+        super( requestUUID, sentAtMillis, receivedAtMillis );
+        this.volts = volts;
+    }
+    
+    @Override
+    public String toString( ) {
+        return "AnalogReading " + volts + "V (request " + requestUUID + ")";
+    }
+}
@@ -8,17 +8,15 @@ import java.net.URL;
 import io.reactivex.Single;
 import io.reactivex.SingleEmitter;
 import io.reactivex.SingleOnSubscribe;
-import io.reactivex.disposables.Disposable;
 
 import java.io.IOException;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
 import android.arch.core.util.Function;
 
-import io.reactivex.functions.Cancellable;
 import okhttp3.Call;
 import okhttp3.Callback;
 import okhttp3.OkHttpClient;
-import okhttp3.Request;
 import okhttp3.Response;
 
 import static net.grlewis.wifithermocouple.Constants.DEBUG;
@@ -67,18 +65,17 @@ public class AsyncHTTPRequester {  // based on AsyncJSONGetter (now back-porting
     private final Single<Response> httpRequest;
     private URL theURL;           // mutable
     private final OkHttpClient client;
-    private UUID requestUUID;     // mutable
-    private int successes;
-    private int failures;
+    private volatile UUID requestUUID;      // the fixed UUID, or the last one the supplier issued (each request keeps its own)
+    private final AtomicInteger successes;  // shared by every subscription, so atomic
+    private final AtomicInteger failures;
     
-    private Call savedCall;       // new stuff to implement Disposable
-    private boolean disposed;
-    private Disposable disposable;
-    private Cancellable cancellable;  // NEW
     private HTTPRequesterOnSubscribe requesterOnSubscribe;  // NEW
     
     private Function<URL,UUID> uuidSupplier;  // non-null means use it
     
+    private DeviceRequestScheduler deviceScheduler;             // non-null means queue requests through it
+    private DeviceRequestScheduler.RequestClass requestClass;
+    
     
     // Internal class to implement SingleOnSubscribe [and its sole method, void subscribe( SingleEmitter )],
     // which is passed to Single.create( <something that implements SingleOnSubscribe> ) [this is the only form of Single.create()]
@@ -111,71 +108,71 @@ public class AsyncHTTPRequester {  // based on AsyncJSONGetter (now back-porting
             if( DEBUG ) Log.d( TAG, "Is this a subscribe retry? emitter class is " + emitter.getClass().getName() );  // FIXME: remove
             
             if( emitter == null ) throw new NullPointerException( TAG + " Can't subscribe with a null SingleEmitter" );
+            final UUID thisRequestUUID;
             if( uuidSupplier != null ) {
-                requestUUID = uuidSupplier.apply( theURL ); // generate a custom UUID if available
+                thisRequestUUID = uuidSupplier.apply( theURL ); // generate a custom UUID if available
             } else {    // UUIDSupplier is null
-                if( DEBUG ) Log.d( TAG, "HTTPRequester subscribing with null uuidSupplier; UUID is " + requestUUID.toString() );
+                thisRequestUUID = requestUUID;
+                if( DEBUG ) Log.d( TAG, "HTTPRequester subscribing with null uuidSupplier; UUID is " + thisRequestUUID.toString() );
             }
+            requestUUID = thisRequestUUID;  // only for getRequestUUID(); the request itself uses its context
             
-            Request request = new Request.Builder( )
-                    .url( theURL )
-                    .tag( UUID.class, requestUUID )
-                    .build( );
-            disposed = false;
-            savedCall = client.newCall( request );
-            //emitter.setDisposable( disposable );       // is there a default implementation if you use lambdas?
-            emitter.setCancellable( cancellable );       // NEW
-            if( DEBUG ) Log.d( TAG, "About to enqueue HTTP request UUID " + requestUUID.toString()
+            final RequestContext context = new RequestContext( client, thisRequestUUID, theURL, "HTTP" );
+            emitter.setCancellable( context );  // disposing cancels only this subscription's call
+            if( DEBUG ) Log.d( TAG, "About to enqueue HTTP request UUID " + context.uuid.toString()
                     + " from Supplier " + ((SerialUUIDSupplier)uuidSupplier).getName() );  // FIXME: remove cast when debugged );
             
-            savedCall.enqueue( new Callback( ) {
+            context.call.enqueue( new Callback( ) {
                 // Note callback is made after the response headers are ready. Reading the response body may still block.
                 
                 @Override
                 // Called when the request could not be executed due to cancellation, a connectivity problem or timeout.
                 // Because networks can fail during an exchange, it is possible that the remote server accepted the request before the failure.
                 public void onFailure( @NonNull Call call, @NonNull IOException e ) {
-                    failures++;
+                    context.finished();
+                    failures.incrementAndGet();
                     // TODO:  should we set disposed here? Maybe not--retries should be possible, right?
                     // tryOnError() returns false if sequence has been cancelled by downstream, or otherwise terminated
                     if( !emitter.tryOnError( new IOException( TAG + ": onFailure Callback while starting HTTP request with UUID: "
-                            + requestUUID.toString() + ": " + e.getMessage(), e ) ) ) {
-                        if( DEBUG ) Log.d( TAG, "HTTP request UUID " + requestUUID.toString()
+                            + context.uuid.toString() + ": " + e.getMessage(), e ) ) ) {
+                        if( DEBUG ) Log.d( TAG, "HTTP request UUID " + context.uuid.toString()
                                 + " canceled before failure received" );
                     } else {  // Throwable was emitted because sequence still alive
                         //disposed = true;  // TODO: right? Error disposes? Maybe not? Retries should be possible? But Observer cancels on onError()?
                         if( DEBUG ) Log.d( TAG, "onFailure callback for request UUID "
-                                + requestUUID.toString() + "signaled IOException: " + e.getMessage() );
+                                + context.uuid.toString() + "signaled IOException: " + e.getMessage() );
                     }
                 }
                 
                 @Override
                 // called when the server returns a (presumably well-formed) response (which may not be a success)
                 public void onResponse( @NonNull Call call, @NonNull Response response ) {
+                    context.finished();
                     if( !emitter.isDisposed() ) {  // perhaps the request was canceled before response received?
                         if ( !response.isSuccessful( ) ) {  // evidently "successful" just means we got an intelligible response
-                            emitter.onError( new IOException( TAG + ": HTTP request UUID " + requestUUID.toString()
+                            emitter.onError( new IOException( TAG + ": HTTP request UUID " + context.uuid.toString()
                                     + " failed with HTTP status: " + response.message( ) ) );
-                            if( DEBUG) Log.d( TAG, "HTTP request UUID " + requestUUID.toString()
+                            if( DEBUG) Log.d( TAG, "HTTP request UUID " + context.uuid.toString()
                                     + " failed with HTTP status: " + response.message( ) );
                             //disposed = true;  // TODO: right?
-                            failures++;
+                            failures.incrementAndGet();
                         } else {  // successful response
                             if ( response.code( ) != 200 ) {  // response was not "OK"
-                                failures++;
-                                Log.d( TAG, "HTTP request UUID " + requestUUID.toString()
+                                Log.d( TAG, "HTTP request UUID " + context.uuid.toString()
                                         + " response code was not 200 (OK); was : " + response.code( ) );
-                                emitter.onError( new IOException( "HTTP request UUID " + requestUUID.toString()
+                                emitter.onError( new IOException( "HTTP request UUID " + context.uuid.toString()
                                         + " failed with response code: " + response.code( ) ) );
                                 //disposed = true;  // TODO: right?
-                                failures++;
+                                failures.incrementAndGet();
                             } else {  // HTTP response OK
-                                successes++;
+                                successes.incrementAndGet();
+                                if( DEBUG ) Log.d( TAG, "HTTP request UUID " + context.uuid.toString()
+                                        + " completed in " + context.getElapsedMillis() + " ms" );
                                 emitter.onSuccess( response );
                             }
                         }  // else successful response
                     } else {  // emitter has been disposed TODO: neither success nor failure, right?
-                        if( DEBUG ) Log.d( TAG, "HTTP request UUID " + requestUUID.toString()
+                        if( DEBUG ) Log.d( TAG, "HTTP request UUID " + context.uuid.toString()
                                 + " subscription disposed before response received?  Emitter disposed? " + emitter.isDisposed() );
                     }
                     response.close();  // always do this
@@ -197,32 +194,11 @@ public class AsyncHTTPRequester {  // based on AsyncJSONGetter (now back-porting
         theURL = targetURL;
         requestUUID = requestID;
         uuidSupplier = null;                // set if supplied
-        successes = failures = 0;
+        successes = new AtomicInteger( );
+        failures = new AtomicInteger( );
         client = httpClient == null?        // if passed httpClient is null
                 new OkHttpClient( ) :       // create a new default client; if not
                 httpClient;                 // use the supplied one
-        disposable = new Disposable() {     // TODO: eliminate
-            @Override
-            public void dispose() {
-                if( !savedCall.isExecuted() ) savedCall.cancel();  // TODO: 'if' seems to have fixed crash (but why is .dispose() getting called twice for some requests?
-                disposed = true;
-                if( DEBUG ) Log.d( TAG, ".dispose() called for HTTP request ID " + requestUUID.toString()
-                        + " to URL " + theURL.toString() + "; savedCall executed? " + savedCall.isExecuted() );  // FIXME:
-            }
-            @Override
-            public boolean isDisposed() {
-                if( DEBUG ) Log.d( TAG, ".isDisposed() returning " + disposed + " for HTTP request ID " + requestUUID.toString() );
-                return disposed;
-            }
-        };  // disposable
-        cancellable = new Cancellable( ) {  // NEW try this?
-            @Override
-            public void cancel( ) throws Exception {
-                if( !savedCall.isExecuted() ) savedCall.cancel();
-                if( DEBUG ) Log.d( TAG, ".cancel() called for HTTP request ID " + requestUUID.toString()
-                        + " to URL " + theURL.toString() + "; savedCall executed? " + savedCall.isExecuted() );  // FIXME:
-            }
-        };  // cancellable
     }  // primary constructor
     
     
@@ -253,7 +229,17 @@ public class AsyncHTTPRequester {  // based on AsyncJSONGetter (now back-porting
     
     // after getting the Requester instance, subscribe to this to send the request. It emits Response
     public Single<Response> request( ) {
-        return httpRequest /*.subscribeOn( Schedulers.io( ) )*/;  // probably don't need the Schedulers.io bit (OkHttp3 manages?)
+        return deviceScheduler == null?
+                httpRequest /*.subscribeOn( Schedulers.io( ) )*/ :  // probably don't need the Schedulers.io bit (OkHttp3 manages?)
+                deviceScheduler.schedule( requestClass, httpRequest );
+    }
+    
+    
+    // route every request through a device scheduler with the given priority class: returns the requester so you can chain
+    public AsyncHTTPRequester schedule( DeviceRequestScheduler scheduler, DeviceRequestScheduler.RequestClass priority ) {
+        deviceScheduler = scheduler;
+        requestClass = priority;
+        return this;
     }
     
     
@@ -272,8 +258,8 @@ public class AsyncHTTPRequester {  // based on AsyncJSONGetter (now back-porting
     public UUID getRequestUUID( ) { return requestUUID; }
     public URL getURL( ) { return theURL; }
     
-    public int getSuccessCount() { return successes; }
-    public int getFailureCount() { return failures; }
+    public int getSuccessCount() { return successes.get(); }
+    public int getFailureCount() { return failures.get(); }
     
 }
 
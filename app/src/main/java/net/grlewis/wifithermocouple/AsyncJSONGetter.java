@@ -12,17 +12,18 @@ import java.net.URL;
 import io.reactivex.Single;
 import io.reactivex.SingleEmitter;
 import io.reactivex.SingleOnSubscribe;
-import io.reactivex.disposables.Disposable;
-import io.reactivex.functions.Cancellable;
 import okhttp3.Headers;
 import okhttp3.ResponseBody;
 import java.io.IOException;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import okhttp3.Call;
 import okhttp3.Callback;
 import okhttp3.OkHttpClient;
-import okhttp3.Request;
 import okhttp3.Response;
 
 import static net.grlewis.wifithermocouple.Constants.DEBUG;
@@ -71,19 +72,81 @@ public class AsyncJSONGetter {  // updating from GlucometerApp version to use Rx
     private final Single<JSONObject> getJSON;
     private URL theURL;  // mutable
     private final OkHttpClient client;  // created if not passed
-    private UUID requestUUID;     // to identify the request that produced result (copied from HTTP Requester)
-    private int successes;
-    private int failures;
+    private volatile UUID requestUUID;      // the fixed UUID, or the last one the supplier issued (each request keeps its own)
+    private final AtomicInteger successes;  // shared by every subscription, so atomic
+    private final AtomicInteger failures;
     
-    private Call savedCall;       // new stuff to implement Disposable
-    private boolean disposed;
-    private Disposable disposable;
-    private Cancellable cancellable;  // NEW
-    private JSONGetterOnSubscribe requesterOnSubscribe;  // NEW
+    private JSONGetterOnSubscribe<JSONObject> requesterOnSubscribe;  // NEW
     
     private Function<URL,UUID> uuidSupplier;  // non-null means use it
     
-    class JSONGetterOnSubscribe implements SingleOnSubscribe<JSONObject> {
+    private DeviceRequestScheduler deviceScheduler;             // non-null means queue requests through it
+    private DeviceRequestScheduler.RequestClass requestClass;
+    
+    // NEW: opt-in sharing of requests between subscribers (off by default, so every subscribe() goes to the device)
+    private volatile boolean singleFlight;       // concurrent subscribers share one in-flight call
+    private volatile long freshnessWindowNanos;  // serve the last value if it's younger than this (0 = never)
+    private final SharedFetch<JSONObject> jsonFetch;
+    private final ConcurrentHashMap<ResponseDecoder<?>, SharedFetch<?>> typedFetches;
+    private final AtomicLong cacheHits;          // served from the freshness window
+    private final AtomicLong cacheMisses;        // had to go to the device
+    private final AtomicLong coalesced;          // joined a call that was already in flight
+    
+    
+    // NEW: one of these per decoder: hands out either a fresh cached value, the call already in flight, or a new call
+    private final class SharedFetch<T> {
+        
+        private final Single<T> request;   // unscheduled; scheduling is applied per call in case schedule() came later
+        private final Single<T> fetch;     // what subscribers get
+        private T lastValue;               // all guarded by 'this'
+        private long lastValueNanos;
+        private Single<T> inFlight;
+        
+        SharedFetch( Single<T> request ) {
+            this.request = request;
+            fetch = Single.defer( this::nextSource );
+        }
+        
+        private synchronized Single<T> nextSource( ) {
+            Single<T> call = scheduled( request );
+            long window = freshnessWindowNanos;
+            boolean share = singleFlight;
+            if( !share && window == 0L ) return call;  // the old behavior
+            
+            if( window > 0L && lastValue != null && System.nanoTime() - lastValueNanos <= window ) {
+                cacheHits.incrementAndGet();
+                return Single.just( lastValue );
+            }
+            if( share && inFlight != null ) {
+                coalesced.incrementAndGet();
+                return inFlight;
+            }
+            cacheMisses.incrementAndGet();
+            Single<T> recorded = call.doOnEvent( this::completed );
+            if( !share ) return recorded;
+            // note the shared call runs to completion (or its own deadline) even if every subscriber disposes
+            inFlight = recorded.cache();
+            return inFlight;
+        }
+        
+        private synchronized void completed( T value, Throwable error ) {
+            if( value != null ) {
+                lastValue = value;
+                lastValueNanos = System.nanoTime();
+            }
+            inFlight = null;  // next subscriber starts a new call
+        }
+    }  // SharedFetch
+    
+    
+    // decodes the response body with the supplied ResponseDecoder (JSONObject for get(), typed readings for getAs())
+    class JSONGetterOnSubscribe<T> implements SingleOnSubscribe<T> {
+        
+        private final ResponseDecoder<T> decoder;
+        
+        JSONGetterOnSubscribe( ResponseDecoder<T> responseDecoder ) {
+            decoder = responseDecoder;
+        }
         
         // conversion to RxJava2 says must implement subscribe(SingleEmitter<T>)
         //
@@ -97,29 +160,26 @@ public class AsyncJSONGetter {  // updating from GlucometerApp version to use Rx
         @Override  // define what happens when you subscribe to the Single being created, supplying a SingleEmitter
         // Note that Emitter adds setCancellable(), setDisposable(), isDisposed() and tryOnError() to the basic Observer
         // subscribe() returns void, not a Disposable
-        public void subscribe( final SingleEmitter<JSONObject> emitter ) throws Exception {
+        public void subscribe( final SingleEmitter<T> emitter ) throws Exception {
     
             if( DEBUG ) Log.d( TAG, "Is this a subscribe retry? emitter class is " + emitter.getClass().getName() );  // FIXME: remove
             
             if( emitter == null ) throw new NullPointerException( TAG + "Can't subscribe with a null SingleEmitter" );
+            final UUID thisRequestUUID;
             if( uuidSupplier != null ) {
-                requestUUID = uuidSupplier.apply( theURL ); // generate a custom UUID if available
+                thisRequestUUID = uuidSupplier.apply( theURL ); // generate a custom UUID if available
             } else {    // UUIDSupplier is null
-                if( DEBUG ) Log.d( TAG, "JSONGetter subscribing with null uuidSupplier; UUID is " + requestUUID.toString() );
+                thisRequestUUID = requestUUID;
+                if( DEBUG ) Log.d( TAG, "JSONGetter subscribing with null uuidSupplier; UUID is " + thisRequestUUID.toString() );
             }
+            requestUUID = thisRequestUUID;  // only for getRequestUUID(); the request itself uses its context
             
-            Request request = new Request.Builder( )
-                    .url( theURL )
-                    .tag( UUID.class, requestUUID )
-                    .build( );
-            disposed = false;
-            savedCall = client.newCall( request );
-            //emitter.setDisposable( disposable );       // is there a default implementation if you use lambdas?
-            emitter.setCancellable( cancellable );       // NEW
-            if( DEBUG ) Log.d( TAG, "About to enqueue JSON request UUID " + requestUUID.toString()
+            final RequestContext context = new RequestContext( client, thisRequestUUID, theURL, "JSON" );
+            emitter.setCancellable( context );  // disposing cancels only this subscription's call
+            if( DEBUG ) Log.d( TAG, "About to enqueue JSON request UUID " + context.uuid.toString()
             + " from Supplier " + ((SerialUUIDSupplier)uuidSupplier).getName() );  // FIXME: remove cast when debugged
             
-            savedCall.enqueue( new Callback( ) {
+            context.call.enqueue( new Callback( ) {
                 // Note callback is made after the response headers are ready. Reading the response body may still block.
                 // Note a Single can only have onSuccess() and onError() outcomes. Both should dispose the subscription, right?
                 // This should mean our Disposable is called on every request, no?
@@ -130,70 +190,76 @@ public class AsyncJSONGetter {  // updating from GlucometerApp version to use Rx
                 // Because networks can fail during an exchange, it is possible that the remote server accepted the request before the failure.
                 // does emitter call the Disposabale we gave it here? Seems likely
                 public void onFailure( @NonNull Call call, @NonNull IOException e ) {
-                    failures++;
+                    context.finished();
+                    failures.incrementAndGet();
                     // tryOnError() returns true if the error was signaled,
                     // false if sequence has been cancelled by downstream, or otherwise terminated
                     // (meaning that the downstream is not able to accept further events)
                     if( !emitter.tryOnError( new IOException( TAG + ": onFailure Callback while starting JSON request with UUID: "
-                            + requestUUID.toString() + ": " + e.getMessage(), e ) ) ) {
-                        if( DEBUG ) Log.d( TAG, "JSON request UUID " + requestUUID.toString()
+                            + context.uuid.toString() + ": " + e.getMessage(), e ) ) ) {
+                        if( DEBUG ) Log.d( TAG, "JSON request UUID " + context.uuid.toString()
                                 + " canceled before failure received" );
                     } else {  // Throwable was emitted because sequence still alive
                         //disposed = true;  // TODO: right? Error disposes?
                         if( DEBUG ) Log.d( TAG, "onFailure callback for request UUID "
-                                + requestUUID.toString() + "signaled IOException: " + e.getMessage() );
+                                + context.uuid.toString() + "signaled IOException: " + e.getMessage() );
                     }
                 }
                 
                 @Override
                 // called when the server returns a (presumably well-formed) response (which may not be a success)
                 public void onResponse( @NonNull Call call, @NonNull Response response ) {
+                    context.finished();
                     if( !emitter.isDisposed() ) {  // perhaps the request was canceled before response received?
                         if ( !response.isSuccessful( ) ) {
-                            emitter.onError( new IOException( TAG + ": JSON request UUID " + requestUUID.toString()
+                            emitter.onError( new IOException( TAG + ": JSON request UUID " + context.uuid.toString()
                                     + " failed with HTTP status: " + response.message( ) ) );
-                            if( DEBUG) Log.d( TAG, "JSON request UUID " + requestUUID.toString()
+                            if( DEBUG) Log.d( TAG, "JSON request UUID " + context.uuid.toString()
                                     + " failed with HTTP status: " + response.message( ) );
                             //disposed = true;  // TODO: right? maybe not--leave it to our Disposable?
-                            failures++;
+                            failures.incrementAndGet();
                         } else {  // successful response
                             try {
                                 ResponseBody responseBody = response.body( );
                                 Headers headers = response.headers( );
                                 
                                 String contentType;
-                                JSONObject returnedJSON = null;
+                                T decoded = null;
                                 
                                 if ( (contentType = headers.get( "Content-type" )).equalsIgnoreCase( "application/json" ) ) {
                                     try /*( response )*/ {  // FIXME: apparent bug, "try with resources not supported"
-                                        returnedJSON = new JSONObject( responseBody.string( ) );
-                                        returnedJSON.put( "RequestUUID", requestUUID.toString() );  // add the request UUID
+                                        decoded = decoder.decode( responseBody.source( ), response, context.uuid );  // reads straight from the stream
                                     } catch ( JSONException j ) {
                                         emitter.onError( new JSONException( TAG + ": Invalid JSON returned from fetch (request UUID "
-                                                + requestUUID.toString() + "): " + j.getMessage( ) ) );
+                                                + context.uuid.toString() + "): " + j.getMessage( ) ) );
                                         if( DEBUG ) Log.d( TAG, "Invalid JSON returned from fetch (request UUID "
-                                                + requestUUID.toString() + "): " + j.getMessage( ) );
+                                                + context.uuid.toString() + "): " + j.getMessage( ) );
+                                        failures.incrementAndGet();
+                                    }
+                                    if( decoded != null ) {  // no second signal after an invalid JSON error
+                                        if( DEBUG ) Log.d( TAG, "JSON request UUID " + context.uuid.toString()
+                                                + " completed in " + context.getElapsedMillis() + " ms" );
+                                        emitter.onSuccess( decoded );  // Pay dirt!
+                                        successes.incrementAndGet();
                                     }
-                                    emitter.onSuccess( returnedJSON );  // Pay dirt!
-                                    successes++;
                                 } else {  // content type not JSON (or missing header, I guess)
                                     emitter.onError( new JSONException(
                                             TAG + ": Returned content type header (request UUID "
-                                                    + requestUUID.toString() + ") is not JSON but " + contentType ) );
+                                                    + context.uuid.toString() + ") is not JSON but " + contentType ) );
                                     if( DEBUG ) Log.d( TAG, "Returned content type header (request UUID "
-                                            + requestUUID.toString() + ") is not JSON  but " + contentType );
-                                    failures++;
+                                            + context.uuid.toString() + ") is not JSON  but " + contentType );
+                                    failures.incrementAndGet();
                                 }
                             } catch ( IOException e ) {
                                 emitter.onError( new IOException( TAG + ": Error fetching JSON from URL "
-                                        + theURL.toString( ) + " (request UUID: " + requestUUID.toString() + ") ", e ) );
-                                if( DEBUG ) Log.d( TAG, "Error fetching JSON from URL " + theURL.toString( )
-                                        + " (request UUID: " + requestUUID.toString() + ") ", e );
-                                failures++;
+                                        + context.url.toString( ) + " (request UUID: " + context.uuid.toString() + ") ", e ) );
+                                if( DEBUG ) Log.d( TAG, "Error fetching JSON from URL " + context.url.toString( )
+                                        + " (request UUID: " + context.uuid.toString() + ") ", e );
+                                failures.incrementAndGet();
                             }
                         }  // else successful response
                     } else {  // emitter has been disposed (TODO: not a success or a failure?)
-                        if( DEBUG ) Log.d( TAG, "JSON request UUID " + requestUUID.toString()
+                        if( DEBUG ) Log.d( TAG, "JSON request UUID " + context.uuid.toString()
                                 + " subscription disposed before response received?  Emitter disposed? " + emitter.isDisposed() );
                     }
                     response.close();  // always do this
@@ -267,37 +333,21 @@ public class AsyncJSONGetter {  // updating from GlucometerApp version to use Rx
     // constructors
     
     public AsyncJSONGetter( URL jsonURL, OkHttpClient httpClient, UUID requestID ) {
-        requesterOnSubscribe = new JSONGetterOnSubscribe();  // NEW
+        requesterOnSubscribe = new JSONGetterOnSubscribe<>( DeviceResponseCodec.JSON_OBJECT );  // NEW
         getJSON = Single.create( requesterOnSubscribe );
+        jsonFetch = new SharedFetch<>( getJSON );
+        typedFetches = new ConcurrentHashMap<>( );
+        cacheHits = new AtomicLong( );
+        cacheMisses = new AtomicLong( );
+        coalesced = new AtomicLong( );
         theURL = jsonURL;
         requestUUID = requestID;
         uuidSupplier = null;
-        successes = failures = 0;
+        successes = new AtomicInteger( );
+        failures = new AtomicInteger( );
         client = httpClient == null?            // and passed httpClient is also null
                 new OkHttpClient( ) :           // create a new default client; if passed httpClient is not null
                 httpClient;                     // use it
-        disposable = new Disposable() {  // TODO: eliminate (?)
-            @Override
-            public void dispose() {
-                if( !savedCall.isExecuted() ) savedCall.cancel();  // TODO: this seems to have fixed crash (but why is .dispose() getting called twice for some requests?
-                disposed = true;
-                if( DEBUG ) Log.d( TAG, ".dispose() called for JSON request ID " + requestUUID.toString()
-                        + " to URL " + theURL.toString() + "; savedCall executed? " + savedCall.isExecuted() );
-            }
-            @Override
-            public boolean isDisposed() {
-                if( DEBUG ) Log.d( TAG, ".isDisposed() returning " + disposed + " for JSON request ID " + requestUUID.toString() );
-                return disposed;
-            }
-        };  // disposable
-        cancellable = new Cancellable( ) {  // NEW try this?
-            @Override
-            public void cancel( ) throws Exception {
-                if( !savedCall.isExecuted() ) savedCall.cancel();
-                if( DEBUG ) Log.d( TAG, ".cancel() called for JSON request ID " + requestUUID.toString()
-                        + " to URL " + theURL.toString() + "; savedCall executed? " + savedCall.isExecuted() );  // FIXME:
-            }
-        };  // cancellable
     }  // primary constructor
     
     
@@ -327,7 +377,50 @@ public class AsyncJSONGetter {  // updating from GlucometerApp version to use Rx
     
     // after getting the JSON Getter instance, subscribe to this to do the request. It emits JSON
     public Single<JSONObject> get( ) {
-        return getJSON;  // OkHttp3 manages its own threads, I think
+        return jsonFetch.fetch;  // OkHttp3 manages its own threads, I think
+    }
+    
+    
+    // NEW: typed version of get() that decodes the response with the supplied decoder (see DeviceResponseCodec)
+    // all callers using the same decoder share its single-flight call and cached value
+    @SuppressWarnings( "unchecked" )  // the map only ever pairs a ResponseDecoder<T> with a SharedFetch<T>
+    public <T> Single<T> getAs( ResponseDecoder<T> decoder ) {
+        SharedFetch<T> typedFetch = (SharedFetch<T>) typedFetches.get( decoder );
+        if( typedFetch == null ) {
+            SharedFetch<T> newFetch = new SharedFetch<>( Single.create( new JSONGetterOnSubscribe<>( decoder ) ) );
+            typedFetch = (SharedFetch<T>) typedFetches.putIfAbsent( decoder, newFetch );
+            if( typedFetch == null ) typedFetch = newFetch;
+        }
+        return typedFetch.fetch;
+    }
+    
+    
+    // apply the device scheduler, if any
+    private <T> Single<T> scheduled( Single<T> request ) {
+        return deviceScheduler == null?
+                request :
+                deviceScheduler.schedule( requestClass, request );
+    }
+    
+    
+    // NEW: opt in to sharing one in-flight call among concurrent subscribers: returns the getter so you can chain
+    public AsyncJSONGetter setSingleFlight( boolean enabled ) {
+        singleFlight = enabled;
+        return this;
+    }
+    
+    // NEW: serve a value up to this old without asking the device (0 turns it off): returns the getter so you can chain
+    public AsyncJSONGetter setFreshnessWindow( long window, TimeUnit unit ) {
+        freshnessWindowNanos = unit.toNanos( window );
+        return this;
+    }
+    
+    
+    // route every request through a device scheduler with the given priority class: returns the getter so you can chain
+    public AsyncJSONGetter schedule( DeviceRequestScheduler scheduler, DeviceRequestScheduler.RequestClass priority ) {
+        deviceScheduler = scheduler;
+        requestClass = priority;
+        return this;
     }
     
     
@@ -345,8 +438,13 @@ public class AsyncJSONGetter {  // updating from GlucometerApp version to use Rx
     public UUID getRequestUUID( ) { return requestUUID; }
     public URL getURL( ) { return theURL; }
     
-    public int getSuccessCount() { return successes; }
-    public int getFailureCount() { return failures; }
+    public int getSuccessCount() { return successes.get(); }
+    public int getFailureCount() { return failures.get(); }
+    
+    // only counted while single-flight or the freshness window is on
+    public long getCacheHitCount() { return cacheHits.get(); }
+    public long getCacheMissCount() { return cacheMisses.get(); }
+    public long getCoalescedCount() { return coalesced.get(); }
     
 }
 
@@ -3,8 +3,23 @@ package net.grlewis.wifithermocouple;
 import android.os.Handler;
 import android.util.Log;
 
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.reactivex.Completable;
+import io.reactivex.Scheduler;
+import io.reactivex.android.schedulers.AndroidSchedulers;
+import io.reactivex.disposables.Disposable;
+
 import static net.grlewis.wifithermocouple.Constants.DEBUG;
 import static net.grlewis.wifithermocouple.Constants.DEFAULT_SETPOINT;
+import static net.grlewis.wifithermocouple.Constants.FAN_DC_MAX_FAILURES;
+import static net.grlewis.wifithermocouple.Constants.FAN_DC_MIN_CHANGE_PCT;
+import static net.grlewis.wifithermocouple.Constants.FAN_DC_REFRESH_SECS;
+import static net.grlewis.wifithermocouple.Constants.PID_MAX_CATCH_UP_TICKS;
+import static net.grlewis.wifithermocouple.Constants.PID_SAMPLE_MIN_CHANGE_MILLIS;
+import static net.grlewis.wifithermocouple.Constants.PID_SAMPLE_STALE_PERIODS;
+import static net.grlewis.wifithermocouple.Constants.PREWARM_LEAD_MILLIS;
 
 class BBQController implements PIDController {
     
@@ -12,6 +27,7 @@ class BBQController implements PIDController {
     
     private final ThermocoupleApp appInstance;
     private final PIDState pidState;
+    private final FanActuator fan;  // the device this controls
     private GraphActivity graphActivityRef;
     
     // PID parameters & variables are in pidState
@@ -24,23 +40,82 @@ class BBQController implements PIDController {
     private boolean crossedSetpoint;
     private boolean crossIncreasing;  // do we look for temperature rising or falling through setpoint?
     
-    private Handler pidHandler;
+    // the loop and the fan commands are scheduled on this, and it's the clock for the loop's dt:
+    // the PID Looper in the app (with a monotonic now()), a TestScheduler for a simulated cook in virtual time
+    private final Scheduler pidScheduler;
+    private Scheduler.Worker pidWorker;  // disposing it cancels everything pending (like Handler.removeCallbacksAndMessages)
     final PIDLoopRunnable pidLoopRunnable;
+    final PidKernel pidKernel;  // the arithmetic; this class adapts it to PIDState & the device
+    
+    // what the loop does when an iteration runs so late that the next one is already due
+    enum OverrunPolicy {
+        SKIP,       // drop the missed ticks and carry on at the next one on the timeline (dt covers the gap)
+        CATCH_UP    // run the missed ticks immediately, back to back (at most PID_MAX_CATCH_UP_TICKS; the rest are skipped)
+    }
+    private volatile OverrunPolicy overrunPolicy = OverrunPolicy.SKIP;
+    private final RequestMetrics.LatencyHistogram loopLateness = new RequestMetrics.LatencyHistogram( );  // us behind the timeline
+    private final AtomicLong missedTicks = new AtomicLong( );
+    
+    // what runs a PID evaluation
+    enum LoopTrigger {
+        TIMER,     // the loop, once a period, on the last sample that came in (up to a poll interval old)
+        SAMPLE     // each valid sample as it arrives, dt from the sample timestamps; the loop still starts each fan period,
+                   // and evaluates on its own if no sample has come for PID_SAMPLE_STALE_PERIODS
+    }
+    private volatile LoopTrigger loopTrigger = LoopTrigger.TIMER;
+    private final AtomicLong sampleEvaluations = new AtomicLong( );
+    
+    // how the PID output reaches the fan
+    enum FanMode {
+        ON_OFF,              // fan/on at the start of each period and fan/off pct% into it: two requests per period
+        DEVICE_DUTY_CYCLE    // pct handed to the device's own timer, sent only when it changes
+    }
+    private volatile FanMode fanMode;
+    private int sentDutyPercent = -1;  // last duty cycle sent to the device (-1 = none: send it)
+    private int sentCycleSecs;
+    private long sentDutyAtMillis;
+    private int dutyCycleFailures;     // consecutive
+    
+    // ON_OFF: the current period's on-window, so a sample-triggered evaluation can move its end
+    private long periodStartMillis = PIDLoopRunnable.NOT_YET;  // when the loop started it (NOT_YET: no period yet)
+    private long onAtMillis = PIDLoopRunnable.NOT_YET;         // the last fan/on
+    private long offAtMillis = PIDLoopRunnable.NOT_YET;        // the last (or next) fan/off; Long.MAX_VALUE: on for the whole period
+    private Disposable pendingOff;                             // that fan/off while it's still to come
+    
+    private RelayAutoTuner autoTuner;  // non-null while auto-tuning (the relay has the fan instead of the PID)
+    private boolean relayCommanded;    // the fan state last sent for the relay
+    private RelayAutoTuner.Result autoTuneResult;  // from the last successful auto-tune
+    private RelayAutoTuner.Rule autoTuneRule = RelayAutoTuner.Rule.NO_OVERSHOOT;  // how a result becomes gains
     
     
-    // constructor that makes a new Handler
+    // constructor for the app's primary device that makes a new Handler
     BBQController( ) {
         this( new Handler( ) );
     }
     
-    // constructor that allows supplying a Handler
+    // constructor for the app's primary device that allows supplying a Handler
     BBQController( Handler newHandler ) {
-        appInstance = ThermocoupleApp.getSoleInstance();
-        pidState = appInstance.pidState;
-        graphActivityRef = appInstance.graphActivity;  // TODO: need?
-        pidHandler = newHandler;
+        this( ThermocoupleApp.getSoleInstance().pidState, ThermocoupleApp.getSoleInstance().wifiCommunicator, newHandler );
+    }
+    
+    // constructor for any device (each needs its own Handler, because start() & stop() flush all its callbacks)
+    BBQController( PIDState pidState, WiFiCommunicator wifiCommunicator, Handler newHandler ) {
+        this( pidState, wifiCommunicator, new MonotonicScheduler( AndroidSchedulers.from( newHandler.getLooper() ) ) );
+    }
+    
+    // constructor for any fan and Scheduler (e.g. a simulated smoker in virtual time)
+    BBQController( PIDState pidState, FanActuator fan, Scheduler scheduler ) {
+        appInstance = ThermocoupleApp.getSoleInstance();  // (null in a JVM test)
+        this.pidState = pidState;
+        this.fan = fan;
+        graphActivityRef = appInstance == null? null : appInstance.graphActivity;  // TODO: need?
+        pidScheduler = scheduler;
+        pidWorker = scheduler.createWorker();
+        fanMode = FanMode.ON_OFF;  // DEVICE_DUTY_CYCLE is opt-in (setFanMode()) until the firmware's timer is confirmed to behave
         pidLoopRunnable = new PIDLoopRunnable( );
         pidState.set( DEFAULT_SETPOINT );  // need some defined setpoint or won't start
+        pidKernel = new PidKernel( pidState.getGain(), pidState.getPropCoeff(), pidState.getIntCoeff(),
+                pidState.getDiffCoeff(), TimeUnit.MILLISECONDS.toNanos( getPeriodMs() ) );
         
         minTemp = previousMin =  999F;  // marker values for tracking
         maxTemp = previousMax = -999F;
@@ -59,12 +134,14 @@ class BBQController implements PIDController {
     
     @Override  // OK
     public synchronized void set( Float setPoint ) {  // set it null to indicate uninitialized?
-        pidState.setPublishChanges( false );  // temporarily turn off publishing
-        pidState.set( setPoint );             // when we change setpoint,
-        pidState.setIntClamped( true );       // start clamped
-        pidState.setIntAccum( 0f );           // with no integral term
-        pidState.setPublishChanges( true );   // re-enable publishing
-        pidState.setReset( false );           // and trigger publishing
+        cancelAutoTune();  // it was tuning for the old one
+        pidState.edit()
+                .setSetPoint( setPoint )      // when we change setpoint,
+                .setIntClamped( true )        // start clamped
+                .setIntAccum( 0f )            // with no integral term
+                .setReset( false )
+                .commit();                    // one notification for all of it
+        pidKernel.reset( true );
         // we have a new setpoint; update tracking
         resetHiLoTracking();
     }
@@ -77,30 +154,36 @@ class BBQController implements PIDController {
     
     @Override  // TODO: does it make sense to be able to stop, and start with same values?  (see: restart())   OK
     public synchronized boolean start( ) {  // return false if setpoint hasn't been set
-        pidHandler.removeCallbacksAndMessages( null );  // cancel any pending loop run (flush everything)
+        cancelPending();  // cancel any pending loop run (flush everything)
         if ( pidState.getSetPoint() == null /*|| pidState.isReset()*/ || pidState.getPeriodSecs() == null ) {  // TODO: other conditions
             stop();
             if( DEBUG ) Log.d( TAG, "Can't start PID" );
             return false;
         }
-        pidState.setPublishChanges( false );
-        pidState.setEnabled( true );
-        pidState.setReset( false );
-        pidState.setIntClamped( true );
-        pidState.setIntAccum( 0f );
-        pidState.setPublishChanges( true );
-        pidState.setPreviousVariableValue( pidState.getCurrentVariableValue() );  // TODO: right?
-        pidHandler.post( pidLoopRunnable );  // start the loop TODO: anything else needed before we start?
+        pidState.edit()
+                .setEnabled( true )
+                .setReset( false )
+                .setIntClamped( true )
+                .setIntAccum( 0f )
+                .updatePreviousVariableValue()  // TODO: right?
+                .commit();
+        pidKernel.reset( true ).primeSample( pidState.getCurrentVariableValue() );
+        pidLoopRunnable.restartTiming();  // first iteration gets a nominal period
+        post( pidLoopRunnable, 0L );  // start the loop TODO: anything else needed before we start?
         if( DEBUG ) Log.d( TAG, "start() completed successfully" );
         return true;
     }
     
     @Override  // OK
     public synchronized boolean stop( ) {
-        pidHandler.removeCallbacksAndMessages( null );  // cancel any pending loop run (flush everything)
-        appInstance.wifiCommunicator.fanControlWithWarning( false ).subscribe( );  // fan off
+        cancelAutoTune();
+        cancelPending();  // cancel any pending loop run (flush everything)
+        disableDeviceTimer( "stop()" )  // the device's timer off, in case it was on, then the fan off
+                .andThen( Completable.defer( ( ) -> fan.setFan( false ) ) )
+                .subscribe( ( ) -> { },
+                        fanOffErr -> { if( DEBUG ) Log.d( TAG, "Error turning fan off in stop(): " + fanOffErr.getMessage() ); } );
         pidState.setEnabled( false );
-        pidHandler.post( pidLoopRunnable );  // loop keeps running TODO: does it need to? (tempGetter is recording data)
+        post( pidLoopRunnable, 0L );  // loop keeps running TODO: does it need to? (tempGetter is recording data)
         return true;
     }
     
@@ -124,12 +207,13 @@ class BBQController implements PIDController {
     
     @Override  // OK
     public synchronized boolean reset( ) {
-        pidState.setPublishChanges( false );
-        pidState.setReset( true );
-        pidState.set( null );  // null the setpoint
-        pidState.setIntClamped( false );
-        pidState.setPublishChanges( true );
-        pidState.setIntAccum( 0f );
+        pidState.edit()
+                .setReset( true )
+                .setSetPoint( null )  // null the setpoint
+                .setIntClamped( false )
+                .setIntAccum( 0f )
+                .commit();
+        pidKernel.reset( false );
         return stop();
     }
     
@@ -141,6 +225,7 @@ class BBQController implements PIDController {
     @Override
     public void setClamped( boolean clamped ) {
         pidState.setIntClamped( clamped );
+        pidKernel.setClamped( clamped );
     }
     @Override
     public boolean isClamped( ) {
@@ -181,19 +266,32 @@ class BBQController implements PIDController {
             }
         }
         
+        if( autoTuner != null ) autoTuneSample( value );
     }
     public Float getCurrentVariableValue() { return pidState.getCurrentVariableValue(); }
     
+    // a fresh reading from the device, timestamped when it answered: the current value and, with the SAMPLE
+    // trigger and a valid reading, a PID evaluation on the loop's thread right away
+    public void onSample( float value, long sampleMillis ) {
+        setCurrentVariableValue( value );
+        if( loopTrigger == LoopTrigger.SAMPLE && !Float.isNaN( value ) )
+            post( ( ) -> pidLoopRunnable.runOnSample( value, sampleMillis ), 0L );
+    }
+    
     // state of controlled output
     
     
     @Override
     @SuppressWarnings( "CheckResult" )  // warning that result of 'subscribe' is not used
     public void setOutputOn( boolean outputState ) {
-        appInstance.wifiCommunicator.fanControlWithWarning( outputState )
+        fan.setFan( outputState )
                 .retry( 3L )
                 .subscribe(
-                        response -> pidState.setOutputOn( outputState ),
+                        ( ) -> {
+                            if( !Boolean.valueOf( outputState ).equals( pidState.outputIsOn() ) )  // e.g. poll temp faster while the pit responds
+                                fan.outputChanged( outputState, pidScheduler.now( TimeUnit.MILLISECONDS ) );
+                            pidState.setOutputOn( outputState );
+                        },
                         fanSwitchErr -> { if( DEBUG ) Log.d( TAG, "Error trying to setOutputOn: " + outputState
                                 + "; " + fanSwitchErr.getMessage() ); }
                 );
@@ -275,6 +373,238 @@ class BBQController implements PIDController {
     // END OF INTERFACE IMPLEMENTATION  \\
     
     // Additional functionality not part of the PIDController interface
+    
+    // scheduling on pidScheduler (what used to be pidHandler.post() & .postDelayed())
+    private synchronized Disposable post( Runnable runnable, long delayMs ) {
+        return pidWorker.schedule( runnable, delayMs, TimeUnit.MILLISECONDS );
+    }
+    
+    private synchronized void postNanos( Runnable runnable, long delayNanos ) {
+        pidWorker.schedule( runnable, delayNanos, TimeUnit.NANOSECONDS );
+    }
+    
+    
+    // LOOP TIMING
+    
+    public void setOverrunPolicy( OverrunPolicy policy ) { overrunPolicy = policy; }
+    public OverrunPolicy getOverrunPolicy( ) { return overrunPolicy; }
+    
+    // how late iterations ran against their timeline, in microseconds (percentileMicros( 0.99 ) etc.)
+    RequestMetrics.LatencyHistogram getLoopLateness( ) { return loopLateness; }
+    long getMissedTickCount( ) { return missedTicks.get(); }
+    int getIterationCount( ) { return pidLoopRunnable.iteration; }
+    
+    public void setLoopTrigger( LoopTrigger trigger ) { loopTrigger = trigger; }
+    public LoopTrigger getLoopTrigger( ) { return loopTrigger; }
+    long getSampleEvaluationCount( ) { return sampleEvaluations.get(); }
+    
+    private synchronized void cancelPending( ) {
+        pidWorker.dispose();
+        pidWorker = pidScheduler.createWorker();
+        pidLoopRunnable.nextTickNanos = PIDLoopRunnable.NOT_YET;  // the loop is re-posted: start a new timeline
+        pidLoopRunnable.nextIsCatchUp = false;
+        sentDutyPercent = -1;  // whatever comes next, don't assume the device's timer setting
+        periodStartMillis = PIDLoopRunnable.NOT_YET;
+        pendingOff = null;
+    }
+    
+    
+    // FAN ACTUATION
+    
+    // returns false if the fan can't do that
+    public synchronized boolean setFanMode( FanMode mode ) {
+        if( mode == FanMode.DEVICE_DUTY_CYCLE && !fan.supportsDutyCycle() ) return false;
+        fanMode = mode;
+        sentDutyPercent = -1;
+        dutyCycleFailures = 0;
+        return true;
+    }
+    public FanMode getFanMode( ) { return fanMode; }
+    
+    // ON_OFF: fan on now and off after outputPercent of the period (from the loop's thread)
+    private synchronized void timeProportion( float outputPercent ) {
+        long now = pidScheduler.now( TimeUnit.MILLISECONDS );
+        boolean wasOn = offAtMillis > now;  // (on for the whole of the last period)
+        periodStartMillis = now;
+        if( pendingOff != null ) pendingOff.dispose();  // (past, unless this period started early or retimePeriod() moved it)
+        pendingOff = null;
+        if ( outputPercent >= getMinOutPctg( ) ) {  // want to enable output
+            post( () -> setOutputOn( true ), 0L );
+            if( !wasOn ) onAtMillis = now;
+            offAtMillis = Long.MAX_VALUE;
+            if ( outputPercent < (100f - getMinOutPctg()) ) { // schedule a turnoff unless close to 100%
+                long offDelayMs = (long) ( getPeriodMs( ) * outputPercent / 100f);
+                offAtMillis = now + offDelayMs;
+                pendingOff = post( () -> setOutputOn( false ), offDelayMs );  // delay time
+                pidLoopRunnable.prewarmBefore( offDelayMs );
+            }
+        } else {  // outputPercent < MIN_OUTPUT_PCT -- turn fan off just to be safe
+            post( () -> setOutputOn( false ), 0L );
+            if( wasOn ) offAtMillis = now;
+        }
+    }
+    
+    // ON_OFF with the SAMPLE trigger: move the end of this period's on-window to where the new output puts it;
+    // the fan stays on at least PID_SAMPLE_MIN_CHANGE_MILLIS, and only comes back on (until the new end)
+    // if it has been off that long and there's at least that much of the window left
+    private synchronized void retimePeriod( float outputPercent, long periodMs ) {
+        if( periodStartMillis == PIDLoopRunnable.NOT_YET ) return;  // the loop hasn't started a period yet
+        long now = pidScheduler.now( TimeUnit.MILLISECONDS );
+        float minOut = getMinOutPctg();
+        long offAt = outputPercent < minOut? periodStartMillis
+                : outputPercent >= 100f - minOut? Long.MAX_VALUE
+                : periodStartMillis + (long) ( periodMs * outputPercent / 100f );
+        if( offAtMillis > now ) {  // on: just move the fan/off
+            scheduleOff( Math.max( offAt, onAtMillis + PID_SAMPLE_MIN_CHANGE_MILLIS ), now );
+        } else if( offAt > now && offAt - now >= PID_SAMPLE_MIN_CHANGE_MILLIS
+                && ( offAtMillis == PIDLoopRunnable.NOT_YET || now - offAtMillis >= PID_SAMPLE_MIN_CHANGE_MILLIS ) ) {
+            post( () -> setOutputOn( true ), 0L );
+            onAtMillis = now;
+            scheduleOff( offAt, now );
+        }
+    }
+    
+    private void scheduleOff( long offAt, long now ) {
+        if( offAt == offAtMillis ) return;
+        if( pendingOff != null ) pendingOff.dispose();
+        offAtMillis = offAt;
+        pendingOff = offAt == Long.MAX_VALUE? null : post( () -> setOutputOn( false ), Math.max( 0L, offAt - now ) );
+    }
+    
+    // DEVICE_DUTY_CYCLE: same rounding to full off/on as ON_OFF; small changes are held back, but the
+    // setting is resent every FAN_DC_REFRESH_SECS
+    @SuppressWarnings( "CheckResult" )
+    private synchronized void setDutyCycle( float outputPercent, long periodMs ) {
+        float minOut = getMinOutPctg();
+        int percent = outputPercent < minOut? 0 : outputPercent >= 100f - minOut? 100 : Math.round( outputPercent );
+        int cycleSecs = (int) Math.max( 1L, Math.round( periodMs / 1000d ) );
+        long now = pidScheduler.now( TimeUnit.MILLISECONDS );
+        boolean send = sentDutyPercent < 0 || cycleSecs != sentCycleSecs
+                || now - sentDutyAtMillis >= FAN_DC_REFRESH_SECS * 1000L
+                || ( percent != sentDutyPercent && ( Math.abs( percent - sentDutyPercent ) >= FAN_DC_MIN_CHANGE_PCT
+                        || percent == 0 || percent == 100 ) );
+        if( !send ) return;
+        
+        int previous = sentDutyPercent;
+        sentDutyPercent = percent;
+        sentCycleSecs = cycleSecs;
+        sentDutyAtMillis = now;
+        fan.setDutyCycle( percent, cycleSecs ).subscribe(
+                ( ) -> dutyCycleSent( percent, previous ),
+                dcError -> dutyCycleFailed( outputPercent, dcError ) );
+    }
+    
+    private synchronized void dutyCycleSent( int percent, int previous ) {
+        dutyCycleFailures = 0;
+        if( percent != previous ) fan.outputChanged( percent > 0, pidScheduler.now( TimeUnit.MILLISECONDS ) );
+        pidState.setOutputOn( percent > 0 );
+    }
+    
+    // fall back to on/off for this period, and for good if the device keeps refusing (either way with the
+    // device's timer stopped first: the requests that failed may have left an old setting running)
+    @SuppressWarnings( "CheckResult" )
+    private synchronized void dutyCycleFailed( float outputPercent, Throwable dcError ) {
+        sentDutyPercent = -1;
+        if( ++dutyCycleFailures >= FAN_DC_MAX_FAILURES && fanMode == FanMode.DEVICE_DUTY_CYCLE ) {
+            fanMode = FanMode.ON_OFF;
+            if( DEBUG ) Log.d( TAG, "Duty cycle control failed " + dutyCycleFailures + " times; using on/off" );
+        }
+        if( DEBUG ) Log.d( TAG, "Duty cycle request failed: " + dcError.getMessage() );
+        disableDeviceTimer( "fallback to on/off" ).subscribe( ( ) -> {
+            if( isRunning() && !isAutoTuning() ) post( () -> timeProportion( outputPercent ), 0L );
+        } );
+    }
+    
+    // fan/dcdisable, completing (logged) even if the device refuses it: whatever comes next still has to run
+    private Completable disableDeviceTimer( String why ) {
+        return fan.disableDutyCycle()
+                .doOnError( dcError -> { if( DEBUG ) Log.d( TAG, "Couldn't stop the device's timer (" + why + "): " + dcError.getMessage() ); } )
+                .onErrorComplete();
+    }
+    
+    // SAMPLE trigger: the new output goes out now rather than at the start of the next period, but no
+    // change more often than PID_SAMPLE_MIN_CHANGE_MILLIS (the duty cycle) or shorter than it (on/off)
+    private synchronized void applySampleOutput( float outputPercent, long periodMs ) {
+        if( fanMode == FanMode.DEVICE_DUTY_CYCLE ) {
+            if( sentDutyPercent < 0 || pidScheduler.now( TimeUnit.MILLISECONDS ) - sentDutyAtMillis >= PID_SAMPLE_MIN_CHANGE_MILLIS )
+                setDutyCycle( outputPercent, periodMs );
+        } else {
+            retimePeriod( outputPercent, periodMs );
+        }
+    }
+    
+    // AUTO-TUNE: a relay experiment around the setpoint (see RelayAutoTuner), then PID with the coefficients it found
+    
+    // return false if setpoint hasn't been set (or the PID can't start)
+    @SuppressWarnings( "CheckResult" )
+    public synchronized boolean startAutoTune( ) {
+        Float setPoint = getSetpoint();
+        if( setPoint == null ) return false;
+        if( !isRunning() && !start() ) return false;
+        autoTuner = new RelayAutoTuner( setPoint );
+        disableDeviceTimer( "auto-tune" ).subscribe();  // the relay's fan/on & fan/off have the fan (queued ahead of them)
+        sentDutyPercent = -1;
+        relayCommanded = !( getCurrentVariableValue() < setPoint );  // so the first sample sends its command
+        autoTuneSample( getCurrentVariableValue() );
+        if( DEBUG ) Log.d( TAG, "Auto-tune started at setpoint " + setPoint );
+        return true;
+    }
+    
+    public synchronized boolean isAutoTuning( ) {
+        return autoTuner != null;
+    }
+    
+    // back to PID with the coefficients it had
+    public synchronized void cancelAutoTune( ) {
+        if( autoTuner != null && DEBUG ) Log.d( TAG, "Auto-tune cancelled: " + autoTuner );
+        autoTuner = null;
+    }
+    
+    public synchronized RelayAutoTuner.Result getAutoTuneResult( ) { return autoTuneResult; }  // null if none yet
+    
+    public synchronized void setAutoTuneRule( RelayAutoTuner.Rule rule ) { autoTuneRule = rule; }
+    
+    private void autoTuneSample( float value ) {  // (from synchronized methods)
+        boolean on = autoTuner.sample( value, pidScheduler.now( TimeUnit.MILLISECONDS ) );
+        if( autoTuner.isFinished() ) {
+            finishAutoTune();
+        } else if( on != relayCommanded ) {
+            relayCommanded = on;
+            post( () -> setOutputOn( on ), 0L );
+        }
+    }
+    
+    // apply what the relay found, through the same setters the UI uses, and hand over to the PID without a bump
+    private void finishAutoTune( ) {
+        RelayAutoTuner tuner = autoTuner;
+        autoTuner = null;
+        RelayAutoTuner.Result result = tuner.getResult();
+        if( result == null ) {
+            if( DEBUG ) Log.d( TAG, "Auto-tune failed, keeping the old coefficients: " + tuner );
+            return;  // the loop goes back to PID control on its next iteration
+        }
+        autoTuneResult = result;
+        float gain = getGain();
+        float periodSecs = getPeriodMs() / 1000f;
+        setPropCoeff( result.propCoeff( autoTuneRule, gain ) );
+        setIntCoeff( result.intCoeff( autoTuneRule, gain, periodSecs ) );
+        setDiffCoeff( result.diffCoeff( autoTuneRule, gain, periodSecs ) );
+        
+        // bumpless transfer: preload the integral so the first PID output is the duty that held the setpoint
+        float current = getCurrentVariableValue();
+        float intAccum = result.meanDutyPct / gain - getPropCoeff() * ( tuner.getSetPoint() - current );
+        pidState.edit()
+                .setIntAccum( intAccum )
+                .setIntClamped( false )
+                .commit();
+        pidKernel.setIntAccum( intAccum ).primeSample( current );
+        cancelPending();  // drop any relay command still pending, and run the PID now
+        pidLoopRunnable.restartTiming();
+        post( pidLoopRunnable, 0L );
+        if( DEBUG ) Log.d( TAG, "Auto-tune finished: " + result + "; now " + pidKernel );
+    }
+    
+    
     public Float getControlSetting( ) {  // read the analog in voltage (knob): 0.0-1.0 volts
         return pidState.getAnalogInVolts();
     }
@@ -287,8 +617,14 @@ class BBQController implements PIDController {
         final String TAG = PIDLoopRunnable.class.getSimpleName();
         int iteration;  // holds > 600 years of 10-second cycles
         
-        float error, proportionalTerm, integralTerm, differentialTerm, outputPercent;
-        boolean clamped;
+        static final long NOT_YET = Long.MIN_VALUE;
+        long lastRunNanos = NOT_YET;   // the kernel's last step, either trigger (NOT_YET = first since start())
+        private long lastSampleMillis = NOT_YET;     // timestamp of the sample it was (NOT_YET: the timer's, or none yet)
+        private long lastSampleRunNanos = NOT_YET;   // when that sample was evaluated
+        long nextTickNanos = NOT_YET;  // when this run was due on the fixed-rate timeline (NOT_YET: anchor it here)
+        boolean nextIsCatchUp;         // CATCH_UP: the next run is for a tick already overdue (it won't step the kernel)
+        private long timelinePeriodNanos;
+        float outputPercent;
         
         public void run() {  // seems to always run on the correct thread
             
@@ -301,49 +637,104 @@ class BBQController implements PIDController {
             
             // schedule next loop run
             // in Service implementation, maybe let it run all the time but only operate the heater if enabled.
-            pidHandler.postDelayed( this, Math.round( pidState.getPeriodSecs() * 1000d ) );  // rounding double returns long  TODO: getPeriodSecs?
-            
+            long periodMs = Math.round( pidState.getPeriodSecs() * 1000d );  // rounding double returns long  TODO: getPeriodSecs?
+            long now = pidScheduler.now( TimeUnit.NANOSECONDS );
+            boolean catchUp = nextIsCatchUp;  // (before scheduleNext() decides it for the next run)
+            long delayNanos = scheduleNext( now, TimeUnit.MILLISECONDS.toNanos( periodMs ) );
+            if( fanMode == FanMode.ON_OFF ) prewarmBefore( TimeUnit.NANOSECONDS.toMillis( delayNanos ) );  // next iteration's command (duty cycle changes are rare)
             
-            error = getError();  // odd choice of error sign  ('BBQController.this' isn't really needed)
-            proportionalTerm = error * getPropCoeff();
-            integralTerm = pidState.getIntAccum();  // TODO: .getIntAccum?
-            if( !pidState.intIsClamped() ) {        // TODO: ?
-                integralTerm += error * getIntCoeff();
+            // with the SAMPLE trigger the samples have been evaluating; unless they've stopped coming, this run only
+            // starts the next fan period with the latest output
+            boolean sampleDriven = loopTrigger == LoopTrigger.SAMPLE && lastSampleRunNanos != NOT_YET
+                    && now - lastSampleRunNanos < PID_SAMPLE_STALE_PERIODS * TimeUnit.MILLISECONDS.toNanos( periodMs );
+            // a catch-up run only starts its fan period: the late run before it already integrated the whole gap
+            if( !sampleDriven && !catchUp ) {
+                long dtNanos = lastRunNanos == NOT_YET? TimeUnit.MILLISECONDS.toNanos( periodMs ) : now - lastRunNanos;
+                evaluate( pidState.getCurrentVariableValue(), dtNanos, periodMs, now );
+                lastSampleMillis = NOT_YET;  // the next sample's dt is from this step
             }
-            { pidState.setPublishChanges( false );
-                pidState.setIntAccum( integralTerm );  // FIXME: does this take care of int accum not updating?
-                pidState.setPublishChanges( true ); }
-            differentialTerm = ( getCurrentVariableValue() - pidState.getPreviousVariableValue() )  // TODO: ?
-                    * getDiffCoeff();
-            pidState.updatePreviousVariableValue();  // set Previous value equal to Current value (doesn't publish)  // TODO: ?
-            //pidState.setPreviousVariableValue( pidState.getCurrentVariableValue() );  // FIXME: was crashing (do to publishing, somehow)
-            
-            outputPercent = getGain() * (proportionalTerm + integralTerm - differentialTerm);
-            
-            // clamped if output is out of range and the integral term and error have the same sign
-            clamped = (outputPercent > 100f || outputPercent < 0f) && ( (integralTerm * error) > 0f );
-            pidState.setIntClamped( clamped );
-            
-            outputPercent = outputPercent < 0f? 0f : outputPercent;
-            outputPercent = outputPercent > 100f? 100f : outputPercent;
-            setDutyCyclePercent( outputPercent );
             
             // actually do output control only if PID is enabled and % is > minimum that we act on
-            if( isRunning() ) {
-                if ( outputPercent >= getMinOutPctg( ) ) {  // want to enable output
-                    pidHandler.post( () -> setOutputOn( true ) );
-                    if ( outputPercent < (100f - getMinOutPctg()) ) { // schedule a turnoff unless close to 100%
-                        pidHandler.postDelayed( () -> setOutputOn( false ),
-                                (long) ( getPeriodMs( ) * outputPercent / 100f) );  // delay time
-                    }
-                } else {  // outputPercent < MIN_OUTPUT_PCT -- turn fan off just to be safe
-                    pidHandler.post( () -> setOutputOn( false ) );
-                }
+            if( isRunning() && !isAutoTuning() ) {  // (while auto-tuning the relay has the fan)
+                if( fanMode == FanMode.ON_OFF ) timeProportion( outputPercent );
+                else if( !sampleDriven ) setDutyCycle( outputPercent, periodMs );  // (the samples send their own)
             }  // if PID is enabled
             
-            if( DEBUG ) Log.d( TAG, "Exiting PID Control Loop with outputPercent = " + outputPercent
-                    + ", error = " + error + ", integral term = " + integralTerm );
+            if( DEBUG ) Log.d( TAG, "Exiting PID Control Loop: " + pidKernel );
         }  // .run()
+        
+        // SAMPLE trigger: one evaluation per valid sample, dt from the sample timestamps (posted by onSample())
+        void runOnSample( float value, long sampleMillis ) {
+            if( loopTrigger != LoopTrigger.SAMPLE ) return;  // switched back since it was posted
+            long periodMs = Math.round( pidState.getPeriodSecs() * 1000d );
+            long periodNanos = TimeUnit.MILLISECONDS.toNanos( periodMs );
+            long now = pidScheduler.now( TimeUnit.NANOSECONDS );
+            long dtNanos = lastRunNanos != NOT_YET? now - lastRunNanos : periodNanos;
+            if( lastSampleMillis != NOT_YET ) {
+                // the stamps are the wall clock's: if they disagree with ours by more than a period the time was
+                // changed between the samples, and our gap is the real one
+                long sampleGapNanos = TimeUnit.MILLISECONDS.toNanos( sampleMillis - lastSampleMillis );
+                long runGapNanos = now - lastSampleRunNanos;
+                if( Math.abs( sampleGapNanos - runGapNanos ) > periodNanos ) dtNanos = runGapNanos;
+                else if( sampleGapNanos <= 0L ) return;  // a repeat, or out of order
+                else dtNanos = sampleGapNanos;
+            }
+            evaluate( value, dtNanos, periodMs, now );
+            lastSampleMillis = sampleMillis;
+            lastSampleRunNanos = now;
+            sampleEvaluations.incrementAndGet();
+            if( isRunning() && !isAutoTuning() ) applySampleOutput( outputPercent, periodMs );
+            if( DEBUG ) Log.d( TAG, "PID evaluated on sample " + value + ": " + pidKernel );
+        }
+        
+        // the kernel does the arithmetic on primitives (with the real dt); pick up any parameter changes first
+        private void evaluate( float value, long dtNanos, long periodMs, long now ) {
+            lastRunNanos = now;
+            Float setPoint = pidState.getSetPoint();
+            pidKernel.setGains( pidState.getGain(), pidState.getPropCoeff(), pidState.getIntCoeff(), pidState.getDiffCoeff() )
+                    .setPeriodNanos( TimeUnit.MILLISECONDS.toNanos( periodMs ) )
+                    .setSetPoint( setPoint == null? Float.NaN : setPoint );
+            outputPercent = pidKernel.step( value, dtNanos );
+            
+            // one publish for the whole iteration
+            pidState.recordIteration( pidKernel.getIntAccum(), pidKernel.isClamped(), outputPercent );
+        }
+        
+        // after start() or an auto-tune: the next step (either trigger) gets a nominal period
+        void restartTiming( ) {
+            lastRunNanos = lastSampleMillis = lastSampleRunNanos = NOT_YET;
+        }
+        
+        // fixed-rate: the next run is due one period after this one was due (not after it actually ran),
+        // so a late run doesn't push every later one back; records the lateness and posts the next run
+        private long scheduleNext( long now, long periodNanos ) {
+            if( nextTickNanos == NOT_YET || periodNanos != timelinePeriodNanos
+                    || now < nextTickNanos - periodNanos ) {  // (re)anchor the timeline here (the last: a clock that went back)
+                nextTickNanos = now;
+                timelinePeriodNanos = periodNanos;
+            }
+            loopLateness.record( Math.max( 0L, now - nextTickNanos ) / 1000L );
+            long next = nextTickNanos + periodNanos;
+            if( next <= now ) {  // overran: the next tick (or more) is already due
+                long overdue = ( now - next ) / periodNanos + 1;
+                long skip = overrunPolicy == OverrunPolicy.SKIP? overdue : Math.max( 0L, overdue - PID_MAX_CATCH_UP_TICKS );
+                next += skip * periodNanos;
+                missedTicks.addAndGet( skip );
+                if( DEBUG && skip > 0L ) Log.d( TAG, "PID loop overran; skipped " + skip + " iterations" );
+            }
+            nextTickNanos = next;
+            nextIsCatchUp = next <= now;
+            long delayNanos = Math.max( 0L, next - now );
+            postNanos( this, delayNanos );
+            return delayNanos;
+        }
+        
+        // make sure there's a live connection PREWARM_LEAD_MILLIS before a command due in delayMs
+        // (too soon to bother if the command is within the lead time; the prewarmer skips it if still warm)
+        void prewarmBefore( long delayMs ) {
+            if( delayMs > PREWARM_LEAD_MILLIS )
+                post( fan::prepare, delayMs - PREWARM_LEAD_MILLIS );
+        }
     }  // PID loop Runnable
     
 }
@@ -0,0 +1,126 @@
+package net.grlewis.wifithermocouple;
+
+import android.util.Log;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.reactivex.Scheduler;
+import io.reactivex.schedulers.Schedulers;
+import okhttp3.Dns;
+
+import static net.grlewis.wifithermocouple.Constants.DEBUG;
+
+/*
+ * OkHttp Dns that remembers each device's address so requests don't wait on the system resolver.
+ *
+ * The first lookup of a host blocks on the upstream resolver as usual. After that the cached address
+ * is always returned immediately; once it's older than the refresh interval, a background lookup
+ * replaces it (one at a time per host). If a refresh fails the old address is kept, since a box on
+ * the LAN rarely moves and an mDNS/router hiccup shouldn't stop the fan commands.
+ *
+ * usage: new OkHttpClient.Builder().dns( new CachingDns( Dns.SYSTEM, 60L, TimeUnit.SECONDS ) )
+ *
+ */
+
+class CachingDns implements Dns {
+    
+    private static final String TAG = CachingDns.class.getSimpleName();
+    
+    private final Dns upstream;
+    private final long refreshNanos;
+    private final Scheduler refreshScheduler;
+    private final ConcurrentHashMap<String, Entry> cache;
+    
+    private final AtomicLong hits;
+    private final AtomicLong misses;           // blocking lookups
+    private final AtomicLong refreshes;        // background lookups that succeeded
+    private final AtomicLong refreshFailures;  // ...that failed (old address kept)
+    
+    
+    private static final class Entry {
+        final List<InetAddress> addresses;
+        final long resolvedNanos;
+        volatile boolean refreshing;
+        
+        Entry( List<InetAddress> addresses, long resolvedNanos ) {
+            this.addresses = addresses;
+            this.resolvedNanos = resolvedNanos;
+        }
+    }
+    
+    
+    // constructor
+    CachingDns( Dns upstream, long refreshInterval, TimeUnit unit, Scheduler refreshScheduler ) {
+        this.upstream = upstream;
+        this.refreshNanos = unit.toNanos( refreshInterval );
+        this.refreshScheduler = refreshScheduler;
+        cache = new ConcurrentHashMap<>( );
+        hits = new AtomicLong( );
+        misses = new AtomicLong( );
+        refreshes = new AtomicLong( );
+        refreshFailures = new AtomicLong( );
+    }
+    
+    // constructor that refreshes on the io() Scheduler
+    CachingDns( Dns upstream, long refreshInterval, TimeUnit unit ) {
+        this( upstream, refreshInterval, unit, Schedulers.io() );
+    }
+    
+    
+    @Override
+    public List<InetAddress> lookup( String hostname ) throws UnknownHostException {
+        Entry entry = cache.get( hostname );
+        if( entry == null ) {
+            misses.incrementAndGet();
+            List<InetAddress> addresses = upstream.lookup( hostname );  // throws if unknown (nothing cached)
+            cache.put( hostname, new Entry( addresses, System.nanoTime() ) );
+            return addresses;
+        }
+        hits.incrementAndGet();
+        if( System.nanoTime() - entry.resolvedNanos > refreshNanos ) refreshInBackground( hostname, entry );
+        return entry.addresses;
+    }
+    
+    private void refreshInBackground( String hostname, Entry stale ) {
+        synchronized( stale ) {
+            if( stale.refreshing ) return;
+            stale.refreshing = true;
+        }
+        refreshScheduler.scheduleDirect( ( ) -> {
+            try {
+                List<InetAddress> addresses = upstream.lookup( hostname );
+                cache.replace( hostname, stale, new Entry( addresses, System.nanoTime() ) );
+                refreshes.incrementAndGet();
+            } catch( UnknownHostException | RuntimeException e ) {
+                refreshFailures.incrementAndGet();
+                stale.refreshing = false;  // try again on a later lookup
+                if( DEBUG ) Log.d( TAG, "refresh of " + hostname + " failed; keeping " + stale.addresses + ": " + e );
+            }
+        } );
+    }
+    
+    // resolve now (e.g. at startup) so the first request doesn't have to
+    void prefetch( String hostname ) {
+        refreshScheduler.scheduleDirect( ( ) -> {
+            try {
+                lookup( hostname );
+            } catch( UnknownHostException e ) {
+                if( DEBUG ) Log.d( TAG, "prefetch of " + hostname + " failed: " + e );
+            }
+        } );
+    }
+    
+    void evict( String hostname ) { cache.remove( hostname ); }
+    
+    
+    // diagnostics
+    long getHitCount( ) { return hits.get(); }
+    long getMissCount( ) { return misses.get(); }
+    long getRefreshCount( ) { return refreshes.get(); }
+    long getRefreshFailureCount( ) { return refreshFailures.get(); }
+}
@@ -0,0 +1,85 @@
+package net.grlewis.wifithermocouple;
+
+import android.util.Log;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import okhttp3.OkHttpClient;
+
+import static net.grlewis.wifithermocouple.Constants.DEBUG;
+import static net.grlewis.wifithermocouple.Constants.PREWARM_IDLE_MILLIS;
+import static net.grlewis.wifithermocouple.Constants.PREWARM_UPPER_HALF;
+import static net.grlewis.wifithermocouple.DeviceRequestScheduler.RequestClass.FAN_CONTROL;
+
+/*
+ * Makes sure there's a live connection to a device just before a fan command is due, so the command
+ * doesn't pay for a TCP connect (and DNS, if CachingDns hasn't seen the host yet) on the critical path.
+ *
+ * prewarm() does nothing until a response from the device has left its connection open: if the
+ * firmware closes every connection ("Connection: close") there's nothing to keep warm, and a warm-up
+ * would only be one more request competing with the fan command it's meant to speed up. After that it
+ * does nothing if a keep-alive connection was used within PREWARM_IDLE_MILLIS (ConnectionTimingListener
+ * tracks both) or a warm-up is already in flight; otherwise it sends a cheap GET of time/CurrentSeconds
+ * at fan control priority and leaves the connection in OkHttp's pool.
+ * BBQController's PID loop calls it PREWARM_LEAD_MILLIS ahead of each scheduled setOutputOn().
+ *
+ */
+
+class ConnectionPrewarmer {
+    
+    private static final String TAG = ConnectionPrewarmer.class.getSimpleName();
+    
+    private final String name;
+    private final AsyncHTTPRequester warmer;
+    private final ConnectionTimingListener.Stats hostStats;
+    private final long idleNanos;
+    private final AtomicBoolean warming;
+    
+    private final AtomicLong requested;  // calls to prewarm()
+    private final AtomicLong sent;       // warm-up requests actually sent
+    private final AtomicLong failed;
+    
+    
+    // constructor
+    ConnectionPrewarmer( DeviceEndpoint endpoint, OkHttpClient client, ConnectionTimingListener.Stats hostStats,
+                         DeviceRequestScheduler deviceScheduler ) {
+        name = endpoint.name;
+        warmer = new AsyncHTTPRequester( endpoint.currentSecondsURL, client,
+                new SerialUUIDSupplier( PREWARM_UPPER_HALF, "Prewarmer" ) )                               // 0x9000
+                .schedule( deviceScheduler, FAN_CONTROL );  // it's on the fan command's critical path
+        this.hostStats = hostStats;
+        idleNanos = TimeUnit.MILLISECONDS.toNanos( PREWARM_IDLE_MILLIS );
+        warming = new AtomicBoolean( );
+        requested = new AtomicLong( );
+        sent = new AtomicLong( );
+        failed = new AtomicLong( );
+    }
+    
+    
+    // make sure there's a fresh connection (returns at once; the warm-up, if any, is asynchronous)
+    @SuppressWarnings( "CheckResult" )
+    void prewarm( ) {
+        requested.incrementAndGet();
+        if( !hostStats.keepsAlive() ) return;             // nothing would stay warm
+        if( hostStats.usedWithin( idleNanos ) ) return;   // still warm
+        if( !warming.compareAndSet( false, true ) ) return;  // already on it
+        sent.incrementAndGet();
+        warmer.request()
+                .doFinally( ( ) -> warming.set( false ) )
+                .subscribe(
+                        response -> response.close(),  // body is tiny; closing returns the connection to the pool
+                        warmErr -> {
+                            failed.incrementAndGet();
+                            if( DEBUG ) Log.d( TAG, name + ": warm-up failed: " + warmErr.getMessage() );
+                        }
+                );
+    }
+    
+    
+    // diagnostics
+    long getRequestedCount( ) { return requested.get(); }
+    long getSentCount( ) { return sent.get(); }
+    long getFailedCount( ) { return failed.get(); }
+}
@@ -0,0 +1,232 @@
+package net.grlewis.wifithermocouple;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import okhttp3.Call;
+import okhttp3.Connection;
+import okhttp3.EventListener;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+
+/*
+ * OkHttp EventListener that measures where a request's time goes, per device (host:port):
+ *     --DNS lookup time
+ *     --TCP connect time (only for calls that had to open a connection)
+ *     --time to first byte: request headers sent -> response headers received
+ *     --how many calls reused a pooled connection vs. opened a new one
+ *     --when a response last left a keep-alive connection in the pool (for ConnectionPrewarmer)
+ * so the effect of CachingDns and ConnectionPrewarmer can be measured (against the real box or
+ * FakeThermocoupleDevice).
+ *
+ * Install the factory on the OkHttpClient: .eventListenerFactory( timing.factory )
+ * If constructed with a RequestMetrics, each finished call's phases also go into its histograms.
+ * A new listener is made per call, so only the per-device totals are shared.
+ *
+ */
+
+class ConnectionTimingListener {
+    
+    // totals for one device
+    static final class Stats {
+        final AtomicLong calls = new AtomicLong( );
+        final AtomicLong failedCalls = new AtomicLong( );
+        final AtomicLong newConnections = new AtomicLong( );
+        final AtomicLong reusedConnections = new AtomicLong( );
+        final AtomicLong dnsNanos = new AtomicLong( );
+        final AtomicLong connectNanos = new AtomicLong( );
+        final AtomicLong maxConnectNanos = new AtomicLong( );
+        final AtomicLong firstByteCount = new AtomicLong( );
+        final AtomicLong firstByteNanos = new AtomicLong( );
+        final AtomicLong maxFirstByteNanos = new AtomicLong( );
+        final AtomicLong lastKeepAliveNanos = new AtomicLong( Long.MIN_VALUE );  // last response that left its connection open
+        
+        // has a keep-alive connection to this device been used within the window?
+        boolean usedWithin( long windowNanos ) {
+            long last = lastKeepAliveNanos.get();
+            return last != Long.MIN_VALUE && System.nanoTime() - last < windowNanos;
+        }
+        
+        // has this device ever left a connection open? (the firmware may close every one)
+        boolean keepsAlive( ) {
+            return lastKeepAliveNanos.get() != Long.MIN_VALUE;
+        }
+        
+        double getMeanConnectMillis( ) {
+            long n = newConnections.get();
+            return n == 0L? 0d : connectNanos.get() / 1e6d / n;
+        }
+        double getMeanFirstByteMillis( ) {
+            long n = firstByteCount.get();
+            return n == 0L? 0d : firstByteNanos.get() / 1e6d / n;
+        }
+        double getMeanDnsMillis( ) {
+            long n = calls.get();
+            return n == 0L? 0d : dnsNanos.get() / 1e6d / n;
+        }
+        
+        @Override
+        public String toString( ) {
+            return calls.get() + " calls (" + failedCalls.get() + " failed), " + newConnections.get() + " new / "
+                    + reusedConnections.get() + " reused connections; mean dns " + (float) getMeanDnsMillis()
+                    + " ms, connect " + (float) getMeanConnectMillis() + " ms (max " + maxConnectNanos.get() / 1000000L
+                    + "), first byte " + (float) getMeanFirstByteMillis() + " ms (max " + maxFirstByteNanos.get() / 1000000L + ")";
+        }
+    }
+    
+    private final Map<String, Stats> byHost = new ConcurrentHashMap<>( );
+    private final RequestMetrics metrics;  // per request class histograms (may be null)
+    
+    final EventListener.Factory factory;
+    
+    
+    // constructor that also feeds every finished call to a RequestMetrics
+    ConnectionTimingListener( RequestMetrics metrics ) {
+        this.metrics = metrics;
+        factory = call -> new CallTimer(
+                statsFor( call.request().url().host() + ":" + call.request().url().port() ), metrics );
+    }
+    
+    ConnectionTimingListener( ) {
+        this( null );
+    }
+    
+    
+    Stats statsFor( String hostAndPort ) {  // see DeviceEndpoint.getHostAndPort()
+        Stats stats = byHost.get( hostAndPort );
+        if( stats == null ) {
+            Stats newStats = new Stats( );
+            stats = byHost.putIfAbsent( hostAndPort, newStats );
+            if( stats == null ) stats = newStats;
+        }
+        return stats;
+    }
+    
+    void reset( ) { byHost.clear(); }
+    
+    @Override
+    public String toString( ) {
+        return "ConnectionTimingListener " + byHost;
+    }
+    
+    
+    // one per call (OkHttp calls these from whichever thread is running the call, but never concurrently)
+    private static final class CallTimer extends EventListener {
+        
+        private final Stats stats;
+        private final RequestMetrics metrics;
+        private final long[] phaseNanos;  // for metrics, indexed by RequestMetrics.Phase; -1 if not reached
+        private long callStart;
+        private long dnsStart;
+        private long connectStart;
+        private long requestHeadersStart;
+        private long requestEnd;
+        private boolean connected;  // opened its own connection
+        
+        CallTimer( Stats stats, RequestMetrics metrics ) {
+            this.stats = stats;
+            this.metrics = metrics;
+            phaseNanos = new long[RequestMetrics.Phase.values().length];
+            Arrays.fill( phaseNanos, -1L );
+        }
+        
+        @Override
+        public void callStart( Call call ) {
+            callStart = System.nanoTime();
+            stats.calls.incrementAndGet();
+        }
+        
+        @Override
+        public void dnsStart( Call call, String domainName ) {
+            dnsStart = System.nanoTime();
+        }
+        
+        @Override
+        public void dnsEnd( Call call, String domainName, List<InetAddress> inetAddressList ) {
+            long elapsed = System.nanoTime() - dnsStart;
+            stats.dnsNanos.addAndGet( elapsed );
+            phaseNanos[RequestMetrics.Phase.DNS.ordinal()] = elapsed;
+        }
+        
+        @Override
+        public void connectStart( Call call, InetSocketAddress inetSocketAddress, Proxy proxy ) {
+            connectStart = System.nanoTime();
+        }
+        
+        @Override
+        public void connectEnd( Call call, InetSocketAddress inetSocketAddress, Proxy proxy, Protocol protocol ) {
+            long elapsed = System.nanoTime() - connectStart;
+            connected = true;
+            stats.newConnections.incrementAndGet();
+            stats.connectNanos.addAndGet( elapsed );
+            stats.maxConnectNanos.accumulateAndGet( elapsed, Math::max );
+            phaseNanos[RequestMetrics.Phase.CONNECT.ordinal()] = elapsed;
+        }
+        
+        @Override
+        public void connectionAcquired( Call call, Connection connection ) {
+            if( !connected ) stats.reusedConnections.incrementAndGet();
+        }
+        
+        @Override
+        public void requestHeadersStart( Call call ) {
+            requestHeadersStart = System.nanoTime();
+        }
+        
+        @Override
+        public void requestHeadersEnd( Call call, Request request ) {
+            requestWritten();
+        }
+        
+        @Override
+        public void requestBodyEnd( Call call, long byteCount ) {  // (only if there is one)
+            requestWritten();
+        }
+        
+        private void requestWritten( ) {
+            requestEnd = System.nanoTime();
+            phaseNanos[RequestMetrics.Phase.SEND.ordinal()] = requestEnd - requestHeadersStart;
+        }
+        
+        @Override
+        public void responseHeadersEnd( Call call, Response response ) {  // (responseHeadersStart comes before the read blocks)
+            long now = System.nanoTime();
+            long elapsed = now - requestHeadersStart;
+            stats.firstByteCount.incrementAndGet();
+            stats.firstByteNanos.addAndGet( elapsed );
+            stats.maxFirstByteNanos.accumulateAndGet( elapsed, Math::max );
+            phaseNanos[RequestMetrics.Phase.FIRST_BYTE.ordinal()] = now - requestEnd;
+            if( !"close".equalsIgnoreCase( response.header( "Connection" ) ) )
+                stats.lastKeepAliveNanos.set( now );
+        }
+        
+        @Override
+        public void callEnd( Call call ) {
+            finished( call, null );
+        }
+        
+        @Override
+        public void callFailed( Call call, IOException ioe ) {
+            stats.failedCalls.incrementAndGet();
+            finished( call, ioe );
+        }
+        
+        private void finished( Call call, IOException failure ) {
+            if( metrics == null ) return;
+            phaseNanos[RequestMetrics.Phase.TOTAL.ordinal()] = System.nanoTime() - callStart;
+            metrics.record( call.request().tag( UUID.class ), phaseNanos, failure != null,
+                    failure instanceof InterruptedIOException && !call.isCanceled(),  // socket timeouts
+                    failure != null && call.isCanceled() );
+        }
+    }
+}
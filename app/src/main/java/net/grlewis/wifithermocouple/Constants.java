@@ -16,6 +16,8 @@ import java.net.URL;
 *     0x5000: fan control
 *     0x6000: watchdog status
 *     0x7000: analog read
+*     0x8000: device info
+*     0x9000: connection pre-warmer
 *
 * */
 
@@ -25,29 +27,30 @@ final class Constants {
     
     final static boolean DEBUG = true;
     
-    // URLs to control the device
-    
-    private static final String urlRoot = "http://wifitempsensor.lan/";
-    
-    private static final String resetDefaults = "defaults";
-    private static final String tempF = "temperature/F";
-    private static final String tempC = "temperature/C";
-    private static final String blueLedOn = "blueled/on";
-    private static final String blueLedOff = "blueled/off";
-    private static final String fanOn = "fan/on";
-    private static final String fanOff = "fan/off";
-    private static final String fanDc = "fan/dc";
-    private static final String setFanDc = "fan/?dc=";
-    private static final String setFanCl = "fan/?cl=";
-    private static final String disableFanDc = "fan/dcdisable";
-    private static final String enableFanDc = "fan/dcenable";
-    private static final String currentSeconds = "time/CurrentSeconds";
-    private static final String enableWatchdog = "time/watchdogenable";
-    private static final String disableWatchdog = "time/watchdogdisable";
-    private static final String watchdogStatus = "time/watchdogstatus";
-    private static final String resetWatchdog = "time/watchdogreset";
-    private static final String readAnalog = "analog/in";
-    private static final String getInfo = "info";
+    // URLs to control the device: paths are relative to a device root (see DeviceEndpoint);
+    // the *_URL values below are for the default device
+    
+    static final String DEFAULT_DEVICE_ROOT = "http://wifitempsensor.lan/";
+    
+    static final String RESET_DEFAULTS_PATH = "defaults";
+    static final String TEMP_F_PATH = "temperature/F";
+    static final String TEMP_C_PATH = "temperature/C";
+    static final String BLUE_LED_ON_PATH = "blueled/on";
+    static final String BLUE_LED_OFF_PATH = "blueled/off";
+    static final String FAN_ON_PATH = "fan/on";
+    static final String FAN_OFF_PATH = "fan/off";
+    static final String FAN_DC_PATH = "fan/dc";
+    static final String FAN_SET_DC_PATH = "fan/?dc=";
+    static final String FAN_SET_CL_PATH = "fan/?cl=";
+    static final String FAN_DISABLE_DC_PATH = "fan/dcdisable";
+    static final String FAN_ENABLE_DC_PATH = "fan/dcenable";
+    static final String CURRENT_SECONDS_PATH = "time/CurrentSeconds";
+    static final String ENABLE_WD_PATH = "time/watchdogenable";
+    static final String DISABLE_WD_PATH = "time/watchdogdisable";
+    static final String WD_STATUS_PATH = "time/watchdogstatus";
+    static final String RESET_WD_PATH = "time/watchdogreset";
+    static final String READ_ANALOG_PATH = "analog/in";
+    static final String GET_INFO_PATH = "info";
     
     static JSONObject DEFAULT_TEMP_F;
     
@@ -76,25 +79,25 @@ final class Constants {
         
         try {  // need this to handle the possible MalformedURLException
             
-            RESET_DEFAULTS_URL  = new URL( urlRoot + resetDefaults );
-            TEMP_F_URL          = new URL( urlRoot + tempF );
-            TEMP_C_URL          = new URL( urlRoot + tempC );
-            BLUE_LED_ON_URL     = new URL( urlRoot + blueLedOn );
-            BLUE_LED_OFF_URL    = new URL( urlRoot + blueLedOff );
-            FAN_ON_URL          = new URL( urlRoot + fanOn );
-            FAN_OFF_URL         = new URL( urlRoot + fanOff );
-            FAN_DC_URL          = new URL( urlRoot + fanDc );
-            FAN_SET_DC_URL      = new URL( urlRoot + setFanDc );
-            FAN_SET_CL_URL      = new URL( urlRoot + setFanCl );
-            FAN_DISABLE_DC_URL  = new URL( urlRoot + disableFanDc );
-            FAN_ENABLE_DC_URL   = new URL( urlRoot + enableFanDc );
-            CURRENT_SECONDS_URL = new URL( urlRoot + currentSeconds );
-            ENABLE_WD_URL       = new URL( urlRoot + enableWatchdog );
-            DISABLE_WD_URL      = new URL( urlRoot + disableWatchdog );
-            WD_STATUS_URL       = new URL( urlRoot + watchdogStatus );  // JSON whether it's enabled and has expired
-            RESET_WD_URL        = new URL( urlRoot + resetWatchdog );   // HTTP to feed the timer
-            READ_ANALOG_URL     = new URL( urlRoot + readAnalog );
-            GET_INFO_URL        = new URL( urlRoot + getInfo );
+            RESET_DEFAULTS_URL  = new URL( DEFAULT_DEVICE_ROOT + RESET_DEFAULTS_PATH );
+            TEMP_F_URL          = new URL( DEFAULT_DEVICE_ROOT + TEMP_F_PATH );
+            TEMP_C_URL          = new URL( DEFAULT_DEVICE_ROOT + TEMP_C_PATH );
+            BLUE_LED_ON_URL     = new URL( DEFAULT_DEVICE_ROOT + BLUE_LED_ON_PATH );
+            BLUE_LED_OFF_URL    = new URL( DEFAULT_DEVICE_ROOT + BLUE_LED_OFF_PATH );
+            FAN_ON_URL          = new URL( DEFAULT_DEVICE_ROOT + FAN_ON_PATH );
+            FAN_OFF_URL         = new URL( DEFAULT_DEVICE_ROOT + FAN_OFF_PATH );
+            FAN_DC_URL          = new URL( DEFAULT_DEVICE_ROOT + FAN_DC_PATH );
+            FAN_SET_DC_URL      = new URL( DEFAULT_DEVICE_ROOT + FAN_SET_DC_PATH );
+            FAN_SET_CL_URL      = new URL( DEFAULT_DEVICE_ROOT + FAN_SET_CL_PATH );
+            FAN_DISABLE_DC_URL  = new URL( DEFAULT_DEVICE_ROOT + FAN_DISABLE_DC_PATH );
+            FAN_ENABLE_DC_URL   = new URL( DEFAULT_DEVICE_ROOT + FAN_ENABLE_DC_PATH );
+            CURRENT_SECONDS_URL = new URL( DEFAULT_DEVICE_ROOT + CURRENT_SECONDS_PATH );
+            ENABLE_WD_URL       = new URL( DEFAULT_DEVICE_ROOT + ENABLE_WD_PATH );
+            DISABLE_WD_URL      = new URL( DEFAULT_DEVICE_ROOT + DISABLE_WD_PATH );
+            WD_STATUS_URL       = new URL( DEFAULT_DEVICE_ROOT + WD_STATUS_PATH );  // JSON whether it's enabled and has expired
+            RESET_WD_URL        = new URL( DEFAULT_DEVICE_ROOT + RESET_WD_PATH );   // HTTP to feed the timer
+            READ_ANALOG_URL     = new URL( DEFAULT_DEVICE_ROOT + READ_ANALOG_PATH );
+            GET_INFO_URL        = new URL( DEFAULT_DEVICE_ROOT + GET_INFO_PATH );
     
             DEFAULT_TEMP_F = new JSONObject( "{\"TempF\":-999}" );
     
@@ -109,14 +112,81 @@ final class Constants {
     
     
     static final int TEMP_UPDATE_SECONDS = 5;       // seconds between temp polling (can be different from PID period)
-    static final int HISTORY_MINUTES = 60;          // how many minutes of temp history to buffer
-    final static int HISTORY_BUFFER_SIZE = 60/TEMP_UPDATE_SECONDS * HISTORY_MINUTES;  // should == 720
+    static final long TEMP_FRESHNESS_MILLIS = 500L; // a temp reading this recent is reused instead of asking the device again
+    static final int HISTORY_MINUTES = 12 * 60;     // how many minutes of temp history to buffer (at TEMP_UPDATE_SECONDS; faster polls fill it sooner)
+    final static int HISTORY_BUFFER_SIZE = 60/TEMP_UPDATE_SECONDS * HISTORY_MINUTES;  // should == 8640 (a TempHistoryBuffer: ~24 bytes each)
     
     static final int WATCHDOG_CHECK_SECONDS = 60;   // time between checks of enabled/expired JSON, if enabled
     static final int WATCHDOG_RESET_SECONDS = 40;
     static final int FAN_CONTROL_TIMEOUT_SECS = 5;  // can't wait around for fan commands TODO: was 2 too short?
     static final int ANALOG_IN_UPDATE_SECS = 1;
     
+    // DeviceRequestScheduler limits (the firmware only handles one socket at a time)
+    static final int DEVICE_MAX_IN_FLIGHT = 1;             // concurrent requests to one device
+    static final float DEVICE_REQUESTS_PER_SEC = 4f;       // token bucket refill rate (fan control is exempt)
+    static final int DEVICE_REQUEST_BURST = 4;             // token bucket capacity
+    static final int WATCHDOG_REQUEST_DEADLINE_SECS = 10;  // queue + round trip limit for watchdog requests
+    
+    // DevicePoller defaults (the tick deadline defaults to the poll period)
+    static final int POLL_MAX_IN_FLIGHT = 1;               // a tick is skipped while this many earlier ticks are outstanding
+    static final int POLL_RETRIES_PER_TICK = 2;            // resubscriptions of a failed request within one tick
+    
+    // connection management (see CachingDns, ConnectionPrewarmer)
+    static final long DNS_REFRESH_SECS = 60L;              // cached device addresses are refreshed in the background after this
+    static final long PREWARM_LEAD_MILLIS = 1500L;         // how long before a scheduled fan command to make sure we're connected
+    static final long PREWARM_IDLE_MILLIS = 4000L;         // a keep-alive connection used this recently is assumed still open
+    static final long UI_UPDATE_CONFLATE_MILLIS = 250L;    // GraphActivity redraws PID state at most this often
+    static final long METRICS_PUBLISH_SECS = 60L;          // how often WiFiCommunicator.metricsUpdater emits request latency percentiles
+    
+    // AdaptivePollInterval (temperature polling rate follows how much is going on)
+    static final int POLL_MIN_INTERVAL_SECS = 1;           // fastest: lid just opened, big error, fan just switched
+    static final int POLL_MAX_INTERVAL_SECS = 30;          // slowest: steady state (but see POLL_MIN_SAMPLES_PER_MIN)
+    static final int POLL_MIN_SAMPLES_PER_MIN = 3;         // density floor for the PID derivative term (caps interval at 20 s)
+    static final float POLL_FAST_SLOPE_DEG_PER_MIN = 10f;  // rate of change that gets the fastest polling (lid recovery)
+    static final float POLL_FAST_ERROR_DEG = 25f;          // PID error that gets the fastest error-driven polling (~5 s)
+    static final int POLL_TOGGLE_HOLD_SECS = 20;           // stay fast this long after the fan switches
+    static final int POLL_TOGGLE_QUIET_SECS = 60;          // ...if it had been steady this long (so normal PID cycling doesn't count)
+    
+    // PID loop timeline (see BBQController.OverrunPolicy)
+    static final int PID_MAX_CATCH_UP_TICKS = 3;           // CATCH_UP runs at most this many overdue iterations back to back
+    
+    // sample-triggered PID evaluation (see BBQController.LoopTrigger)
+    static final long PID_SAMPLE_MIN_CHANGE_MILLIS = 5000L;  // the fan isn't switched, or its duty cycle changed, more often than this
+    static final int PID_SAMPLE_STALE_PERIODS = 2;           // no sample for this many periods: the loop evaluates on its own again
+    
+    // TempFilter (thermocouple readings on their way to the controller)
+    static final float FILTER_MAX_JUMP_DEG = 15f;            // a reading further than this from the last good one...
+    static final float FILTER_MAX_SLEW_DEG_PER_SEC = 2f;     // ...plus this per second since is dropped as implausible...
+    static final int FILTER_JUMP_CONFIRM_SAMPLES = 3;        // ...unless this many in a row are (the lid really was opened)
+    static final int FILTER_MEDIAN_SAMPLES = 3;              // median of this many good readings: single spikes vanish
+    static final float FILTER_TAU_SECS = 5f;                 // EMA time constant
+    static final float FILTER_KALMAN_PROCESS_VAR = 0.05f;    // deg^2 per second the pit temperature wanders
+    static final float FILTER_KALMAN_MEASUREMENT_VAR = 1f;   // deg^2 of thermocouple/ADC noise
+    
+    // CookLog (durable per-device history, so a service restart doesn't lose the cook)
+    static final int COOKLOG_CHUNK_RECORDS = 8192;          // the log file is mapped (and grows) this many records at a time
+    static final long COOKLOG_SYNC_SECS = 30L;              // force() to storage at least this often (a power cut loses at most this)
+    static final int COOKLOG_MAX_RECORDS = 48 * 3600;       // then roll over to a new log (48 h at 1 s polls; ~8 MB)
+    static final long COOKLOG_NEW_COOK_GAP_MINS = 60L;      // a log last written longer ago than this is a finished cook: start a new one
+    
+    // TempRollups
+    static final int[] ROLLUP_TIER_MINUTES = { 1, 5, 15 };  // bucket widths above the raw history's TEMP_UPDATE_SECONDS
+    static final int ROLLUP_BUCKETS = 24 * 60;              // per tier: a day of 1 min, 5 days of 5 min, 15 days of 15 min
+    
+    // CookArchive (finished cooks, compressed)
+    static final int ARCHIVE_BLOCK_POINTS = 1024;           // points per independently decodable block (~85 min at 5 s)
+    static final int ARCHIVE_QUANTUM_BITS = 6;              // floats are stored to 1/64 (degree or %)
+    
+    // fan actuation through the device's own duty-cycle timer (fan/?dc=, fan/?cl=, fan/dcenable)
+    static final int FAN_DC_MIN_CHANGE_PCT = 2;            // smaller changes in PID output aren't sent...
+    static final long FAN_DC_REFRESH_SECS = 300L;          // ...unless the setting is this old (e.g. the device restarted)
+    static final int FAN_DC_MAX_FAILURES = 3;              // consecutive failures before falling back to on/off for good
+    
+    // RelayAutoTuner (relay experiment around the setpoint to find the PID coefficients)
+    static final float AUTOTUNE_HYSTERESIS_DEG = 2f;       // relay switches this far either side of the setpoint (noise margin)
+    static final int AUTOTUNE_CYCLES = 3;                  // oscillations averaged (after one discarded for startup)
+    static final long AUTOTUNE_TIMEOUT_MINS = 240L;        // give up (and keep the old coefficients) after this long
+    
     static final String SOFTWARE_VERSION = "0.9";
     static final String HARDWARE_VERSION = "0.9";
     
@@ -138,6 +208,8 @@ final class Constants {
     static final long FAN_CONTROL_UPPER_HALF     = 0x5000;
     static final long WATCHDOG_STATUS_UPPER_HALF = 0x6000;
     static final long ANALOG_READ_UPPER_HALF     = 0x7000;
+    static final long DEVICE_INFO_UPPER_HALF     = 0x8000;
+    static final long PREWARM_UPPER_HALF         = 0x9000;
     
     static final int SERVICE_NOTIFICATION_ID = 8266;  // unique id for ongoing background notification TODO: used?
     
@@ -0,0 +1,422 @@
+package net.grlewis.wifithermocouple;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static net.grlewis.wifithermocouple.Constants.ARCHIVE_BLOCK_POINTS;
+import static net.grlewis.wifithermocouple.Constants.ARCHIVE_QUANTUM_BITS;
+
+/*
+ * Compact archive of a finished cook: the timestamp, raw and filtered temperature, setpoint and duty %
+ * of every reading, compressed Gorilla-style (Pelkonen et al., VLDB 2015) so old cooks don't pile up
+ * on the phone at CookLog's 48 bytes a reading.
+ *
+ * Points are grouped into blocks of ARCHIVE_BLOCK_POINTS, each encoded on its own (column by column)
+ * so any block can be decoded without the ones before it:
+ *     --timestamps: the first in full, then delta-of-delta in a variable-length code ('0' when the
+ *       poll interval didn't change, 7, 9 or 12 bits for the usual network jitter)
+ *     --floats: the first in full, then each XORed with the one before: '0' if it's the same (the
+ *       setpoint, mostly), else just the bits that changed, reusing the previous window when they fit
+ * Floats are first rounded to 1/2^ARCHIVE_QUANTUM_BITS (1/64 degree or %, far finer than the
+ * thermocouple's 0.25 C steps) so their low mantissa bits are zero and XOR well; NaN is kept as it is.
+ * Timestamps are exact.
+ *
+ * File (DataOutputStream, big-endian): header (MAGIC, VERSION, block points, quantum bits); blocks
+ * (int points, int payload bytes, payload); index (per block: first and last millis, points, offset);
+ * trailer (long index offset, int blocks, MAGIC). The Writer streams blocks out as they fill; the
+ * Reader finds a block by time through the index.
+ *
+ * usage:
+ *     try( CookArchive.Writer writer = new CookArchive.Writer( new FileOutputStream( file ) ) ) {
+ *         writer.append( millis, raw, filtered, setPoint, dutyPct );
+ *     }
+ *     CookArchive.Reader reader = CookArchive.Reader.open( file );
+ *     CookArchive.Block block = reader.newBlock();
+ *     reader.readBlock( reader.findBlock( millis ), block );
+ *
+ */
+
+class CookArchive {
+
+    private static final int MAGIC = 0x434B4152;           // "CKAR"
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 16;
+    private static final int TRAILER_BYTES = 16;
+    private static final int INDEX_ENTRY_BYTES = 28;
+    static final int COLUMNS = 5;                          // millis, raw, filtered, setPoint, dutyPct
+    private static final float QUANTUM = 1 << ARCHIVE_QUANTUM_BITS;
+
+    // archive a cook log (CookLog.archive() does, before each new cook); returns the archive's size in bytes
+    static long write( CookLog log, File file ) throws IOException {
+        CookLog.Record record = new CookLog.Record( );
+        Writer writer = new Writer( new FileOutputStream( file ) );
+        try {
+            for( long n = 0L; log.read( n, record ); n++ ) {
+                writer.append( record.millis, record.raw, record.filtered, record.setPoint, record.dutyPct );
+            }
+        } finally {
+            writer.close();  // (writes the index and trailer)
+        }
+        return writer.getBytesWritten();
+    }
+
+    // to the grid the floats are stored on
+    static float quantize( float value ) {
+        if( Float.isNaN( value ) || Math.abs( value ) >= 1e6f ) return value;  // (and infinities)
+        return Math.round( value * QUANTUM ) / QUANTUM;
+    }
+
+
+    // a block of points, one array per column (reused)
+    static final class Block {
+        final long[] millis;
+        final float[] raw;
+        final float[] filtered;
+        final float[] setPoint;
+        final float[] dutyPct;
+        int size;
+
+        Block( int capacity ) {
+            millis = new long[capacity];
+            raw = new float[capacity];
+            filtered = new float[capacity];
+            setPoint = new float[capacity];
+            dutyPct = new float[capacity];
+        }
+
+        private float[] column( int c ) {
+            return c == 1? raw : c == 2? filtered : c == 3? setPoint : dutyPct;
+        }
+    }
+
+
+    // ENCODER: appends points, writing each block as it fills and the index on close()
+    static final class Writer implements Closeable {
+
+        private final DataOutputStream out;
+        private final Block pending = new Block( ARCHIVE_BLOCK_POINTS );
+        private final BitWriter bits = new BitWriter( );
+        private long offset;                               // bytes written so far
+        private long[] index = new long[4 * 16];           // per block: first millis, last millis, points, offset
+        private int blocks;
+        private long points;
+        private final long[] columnBits = new long[COLUMNS];
+        private boolean closed;
+
+        Writer( OutputStream stream ) throws IOException {
+            out = new DataOutputStream( new BufferedOutputStream( stream ) );
+            out.writeInt( MAGIC );
+            out.writeInt( VERSION );
+            out.writeInt( ARCHIVE_BLOCK_POINTS );
+            out.writeInt( ARCHIVE_QUANTUM_BITS );
+            offset = HEADER_BYTES;
+        }
+
+        void append( long millis, float raw, float filtered, float setPoint, float dutyPct ) throws IOException {
+            if( closed ) throw new IOException( "archive closed" );
+            int n = pending.size++;
+            pending.millis[n] = millis;
+            pending.raw[n] = quantize( raw );
+            pending.filtered[n] = quantize( filtered );
+            pending.setPoint[n] = quantize( setPoint );
+            pending.dutyPct[n] = quantize( dutyPct );
+            points++;
+            if( pending.size == ARCHIVE_BLOCK_POINTS ) writeBlock();
+        }
+
+        private void writeBlock( ) throws IOException {
+            int size = pending.size;
+            bits.reset();
+            encodeMillis( bits, pending.millis, size );
+            columnBits[0] += bits.bitLength();
+            for( int c = 1; c < COLUMNS; c++ ) {
+                long before = bits.bitLength();
+                encodeFloats( bits, pending.column( c ), size );
+                columnBits[c] += bits.bitLength() - before;
+            }
+            int payload = bits.finish();
+            if( blocks * 4 == index.length ) index = Arrays.copyOf( index, index.length * 2 );
+            index[blocks * 4] = pending.millis[0];
+            index[blocks * 4 + 1] = pending.millis[size - 1];
+            index[blocks * 4 + 2] = size;
+            index[blocks * 4 + 3] = offset;
+            blocks++;
+            out.writeInt( size );
+            out.writeInt( payload );
+            out.write( bits.bytes, 0, payload );
+            offset += 8 + payload;
+            pending.size = 0;
+        }
+
+        @Override
+        public void close( ) throws IOException {
+            if( closed ) return;
+            closed = true;
+            try {
+                if( pending.size > 0 ) writeBlock();
+                long indexOffset = offset;
+                for( int b = 0; b < blocks; b++ ) {
+                    out.writeLong( index[b * 4] );
+                    out.writeLong( index[b * 4 + 1] );
+                    out.writeInt( (int) index[b * 4 + 2] );
+                    out.writeLong( index[b * 4 + 3] );
+                }
+                out.writeLong( indexOffset );
+                out.writeInt( blocks );
+                out.writeInt( MAGIC );
+                offset += (long) blocks * INDEX_ENTRY_BYTES + TRAILER_BYTES;
+            } finally {
+                out.close();
+            }
+        }
+
+        long getBytesWritten( ) { return offset; }
+        long getPointCount( ) { return points; }
+        long getColumnBits( int column ) { return columnBits[column]; }  // payload bits so far, by column
+    }
+
+
+    // DECODER: any block, by number or by time
+    static final class Reader implements Closeable {
+
+        private final RandomAccessFile file;
+        private final int blockPoints;
+        private final long[] firstMillis;
+        private final long[] lastMillis;
+        private final int[] points;
+        private final long[] offsets;
+        private byte[] payload = new byte[0];
+        private final BitReader bits = new BitReader( );
+
+        private Reader( RandomAccessFile file ) throws IOException {
+            this.file = file;
+            if( file.length() < HEADER_BYTES + TRAILER_BYTES ) throw new IOException( "not a cook archive" );
+            file.seek( 0L );
+            if( file.readInt() != MAGIC || file.readInt() != VERSION ) throw new IOException( "not a cook archive" );
+            blockPoints = file.readInt();
+            file.seek( file.length() - TRAILER_BYTES );
+            long indexOffset = file.readLong();
+            int blocks = file.readInt();
+            if( file.readInt() != MAGIC ) throw new IOException( "cook archive incomplete (not closed?)" );
+            firstMillis = new long[blocks];
+            lastMillis = new long[blocks];
+            points = new int[blocks];
+            offsets = new long[blocks];
+            byte[] index = new byte[blocks * INDEX_ENTRY_BYTES];
+            file.seek( indexOffset );
+            file.readFully( index );
+            ByteBuffer entries = ByteBuffer.wrap( index );
+            for( int b = 0; b < blocks; b++ ) {
+                firstMillis[b] = entries.getLong();
+                lastMillis[b] = entries.getLong();
+                points[b] = entries.getInt();
+                offsets[b] = entries.getLong();
+            }
+        }
+
+        static Reader open( File file ) throws IOException {
+            RandomAccessFile randomAccessFile = new RandomAccessFile( file, "r" );
+            try {
+                return new Reader( randomAccessFile );
+            } catch( IOException e ) {
+                randomAccessFile.close();
+                throw e;
+            }
+        }
+
+        Block newBlock( ) { return new Block( blockPoints ); }
+        int getBlockCount( ) { return offsets.length; }
+        long getPointCount( ) {
+            long total = 0L;
+            for( int count : points ) total += count;
+            return total;
+        }
+        long getFirstMillis( int block ) { return firstMillis[block]; }
+        long getLastMillis( int block ) { return lastMillis[block]; }
+
+        // the block holding the reading at (or the first after) millis; getBlockCount() if there's none
+        int findBlock( long millis ) {
+            int low = 0, high = lastMillis.length;
+            while( low < high ) {  // first block whose last reading isn't before millis
+                int mid = ( low + high ) >>> 1;
+                if( lastMillis[mid] < millis ) low = mid + 1;
+                else high = mid;
+            }
+            return low;
+        }
+
+        void readBlock( int block, Block into ) throws IOException {
+            file.seek( offsets[block] );
+            int size = file.readInt();
+            int bytes = file.readInt();
+            if( payload.length < bytes + 8 ) payload = new byte[bytes + 8];  // (slack: BitReader reads 8 bytes at a time)
+            file.readFully( payload, 0, bytes );
+            decode( payload, size, into );
+        }
+
+        // decode a payload already in memory (also what readBlock() does); it needs 8 bytes' slack at the end
+        void decode( byte[] payload, int size, Block into ) {
+            bits.reset( payload );
+            decodeMillis( bits, into.millis, size );
+            for( int c = 1; c < COLUMNS; c++ ) decodeFloats( bits, into.column( c ), size );
+            into.size = size;
+        }
+
+        @Override
+        public void close( ) throws IOException {
+            file.close();
+        }
+    }
+
+
+    // TIMESTAMPS: delta-of-delta
+
+    private static void encodeMillis( BitWriter out, long[] millis, int size ) {
+        out.writeLong( millis[0] );
+        long previousDelta = 0L;
+        for( int i = 1; i < size; i++ ) {
+            long delta = millis[i] - millis[i - 1];
+            long dod = delta - previousDelta;
+            previousDelta = delta;
+            if( dod == 0L ) out.write( 0L, 1 );
+            else if( dod >= -63L && dod <= 64L ) out.write( 0b10L << 7 | ( dod + 63L ), 9 );
+            else if( dod >= -255L && dod <= 256L ) out.write( 0b110L << 9 | ( dod + 255L ), 12 );
+            else if( dod >= -2047L && dod <= 2048L ) out.write( 0b1110L << 12 | ( dod + 2047L ), 16 );
+            else {
+                out.write( 0b1111L, 4 );
+                out.writeLong( dod );
+            }
+        }
+    }
+
+    private static void decodeMillis( BitReader in, long[] millis, int size ) {
+        long previous = millis[0] = in.readLong();
+        long delta = 0L;
+        for( int i = 1; i < size; i++ ) {
+            if( in.read( 1 ) != 0L ) {
+                if( in.read( 1 ) == 0L ) delta += in.read( 7 ) - 63L;
+                else if( in.read( 1 ) == 0L ) delta += in.read( 9 ) - 255L;
+                else if( in.read( 1 ) == 0L ) delta += in.read( 12 ) - 2047L;
+                else delta += in.readLong();
+            }
+            previous = millis[i] = previous + delta;
+        }
+    }
+
+
+    // FLOATS: XOR with the previous value
+
+    private static void encodeFloats( BitWriter out, float[] values, int size ) {
+        int previous = Float.floatToRawIntBits( values[0] );
+        out.write( previous & 0xFFFFFFFFL, 32 );
+        int leading = -1, trailing = 0;  // the current window (none yet)
+        for( int i = 1; i < size; i++ ) {
+            int bits = Float.floatToRawIntBits( values[i] );
+            int xor = bits ^ previous;
+            previous = bits;
+            if( xor == 0 ) {
+                out.write( 0L, 1 );
+                continue;
+            }
+            int lead = Integer.numberOfLeadingZeros( xor );
+            int trail = Integer.numberOfTrailingZeros( xor );
+            if( leading >= 0 && lead >= leading && trail >= trailing ) {  // fits the window: '10' and the window's bits
+                int length = 32 - leading - trailing;
+                out.write( 0b10L, 2 );
+                out.write( ( xor >>> trailing ) & ( 0xFFFFFFFFL >>> ( 32 - length ) ), length );
+            } else {  // '11', 5 bits of leading zeros, 5 of length - 1, the bits
+                int length = 32 - lead - trail;
+                out.write( 0b11L << 10 | (long) lead << 5 | ( length - 1 ), 12 );
+                out.write( ( xor >>> trail ) & ( 0xFFFFFFFFL >>> ( 32 - length ) ), length );
+                leading = lead;
+                trailing = trail;
+            }
+        }
+    }
+
+    private static void decodeFloats( BitReader in, float[] values, int size ) {
+        int previous = (int) in.read( 32 );
+        values[0] = Float.intBitsToFloat( previous );
+        int leading = 0, trailing = 0;
+        for( int i = 1; i < size; i++ ) {
+            if( in.read( 1 ) != 0L ) {
+                if( in.read( 1 ) != 0L ) {
+                    int header = (int) in.read( 10 );
+                    leading = header >>> 5;
+                    trailing = 32 - leading - ( ( header & 0x1F ) + 1 );
+                }
+                previous ^= (int) in.read( 32 - leading - trailing ) << trailing;
+            }
+            values[i] = Float.intBitsToFloat( previous );
+        }
+    }
+
+
+    // BITS, most significant first
+
+    private static final class BitWriter {
+        byte[] bytes = new byte[1024];
+        private int size;                                  // whole bytes written
+        private long accumulator;                          // bits not yet in bytes (fewer than 8 between writes)
+        private int pending;
+
+        void reset( ) {
+            size = pending = 0;
+            accumulator = 0L;
+        }
+
+        // the low n bits of value (n <= 56)
+        void write( long value, int n ) {
+            accumulator = accumulator << n | ( value & ( -1L >>> ( 64 - n ) ) );
+            pending += n;
+            if( size + 8 > bytes.length ) bytes = Arrays.copyOf( bytes, bytes.length * 2 );
+            while( pending >= 8 ) {
+                pending -= 8;
+                bytes[size++] = (byte) ( accumulator >>> pending );
+            }
+        }
+
+        void writeLong( long value ) {
+            write( value >>> 32, 32 );
+            write( value, 32 );
+        }
+
+        long bitLength( ) { return size * 8L + pending; }
+
+        // pad to a whole byte; returns the bytes
+        int finish( ) {
+            if( pending > 0 ) write( 0L, 8 - pending );
+            return size;
+        }
+    }
+
+    private static final class BitReader {
+        private ByteBuffer buffer;
+        private long position;                             // in bits
+
+        void reset( byte[] bytes ) {
+            buffer = ByteBuffer.wrap( bytes );             // (big-endian)
+            position = 0L;
+        }
+
+        // the next n bits (1 <= n <= 56)
+        long read( int n ) {
+            long word = buffer.getLong( (int) ( position >>> 3 ) );
+            long value = ( word << ( position & 7 ) ) >>> ( 64 - n );
+            position += n;
+            return value;
+        }
+
+        long readLong( ) {
+            return read( 32 ) << 32 | read( 32 );
+        }
+    }
+}
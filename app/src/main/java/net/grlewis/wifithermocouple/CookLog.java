@@ -0,0 +1,272 @@
+package net.grlewis.wifithermocouple;
+
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import static net.grlewis.wifithermocouple.Constants.COOKLOG_CHUNK_RECORDS;
+import static net.grlewis.wifithermocouple.Constants.COOKLOG_MAX_RECORDS;
+import static net.grlewis.wifithermocouple.Constants.COOKLOG_SYNC_SECS;
+import static net.grlewis.wifithermocouple.Constants.DEBUG;
+
+/*
+ * Durable append-only log of a cook, one fixed-size binary record per temperature reading, so a service
+ * restart (START_STICKY) or process death doesn't lose the history: on start SmokerDevice reopens the
+ * log, refills its TempHistoryBuffer from the tail and rebuilds its TempRollups from the whole of it.
+ *
+ * File: a HEADER_BYTES header (magic, version, record size) then RECORD_BYTES records, little-endian:
+ *      0  long   timestamp (ms, when the device answered)
+ *      8  float  raw temp          12  float  filtered temp (NaN: dropped by the filter)
+ *     16  float  setpoint          20  float  duty %
+ *     24  float  P term            28  float  I term            32  float  D term
+ *     36  int    flags (FAN_ON)    40  int    check (hash of bytes 0-39)    44  int  (reserved, 0)
+ *
+ * Writes go through a MappedByteBuffer a chunk (COOKLOG_CHUNK_RECORDS) at a time; the file grows a chunk
+ * at a time, zero-filled. A write to the mapping is in the page cache as soon as it's made, so process
+ * death loses nothing; force() every COOKLOG_SYNC_SECS of record time (and on close) bounds what a power
+ * cut or kernel crash can lose. A record that was only partly written then fails its check.
+ *
+ * Opening scans for the end: records are valid from the start up to the first zero or failed check
+ * (~1 ms per 10,000 records). At COOKLOG_MAX_RECORDS the log rolls over to a new cook. Every new cook,
+ * rollover or not, first compresses the old one into <name>-<first reading's millis>.cka beside the log
+ * (see CookArchive), then keeps it as <name>.prev until the next one.
+ *
+ * Not thread-safe except through its synchronized methods; SmokerDevice appends from its temperature
+ * subscription.
+ *
+ * usage:
+ *     CookLog log = CookLog.open( new File( dir, "cook-smoker.log" ) );
+ *     log.recoverInto( history );
+ *     log.append( millis, raw, filtered, setPoint, duty, fanOn, p, i, d );
+ *     log.close();
+ *
+ */
+
+class CookLog implements Closeable {
+
+    private static final String TAG = CookLog.class.getSimpleName();
+    static final int HEADER_BYTES = 16;
+    static final int RECORD_BYTES = 48;
+    static final int FAN_ON = 1;                           // flags
+    private static final int MAGIC = 0x434B4C47;           // "CKLG"
+    private static final int VERSION = 1;
+    private static final long CHUNK_BYTES = (long) COOKLOG_CHUNK_RECORDS * RECORD_BYTES;
+
+    private final File file;
+    private RandomAccessFile randomAccessFile;
+    private FileChannel channel;
+    private MappedByteBuffer map;                          // the chunk holding the next record
+    private long mapStart;                                 // its file offset
+    private MappedByteBuffer readMap;                      // an older chunk being read (see read())
+    private long readMapStart = -1L;
+    private long records;                                  // valid records in the file
+    private long lastMillis;                               // timestamp of the last one (0 if empty)
+    private long syncedAtMillis;                           // record time of the last force()
+    private boolean dirty;
+
+
+    // one record, read back (reused by the reader)
+    static final class Record {
+        long millis;
+        float raw;
+        float filtered;
+        float setPoint;
+        float dutyPct;
+        float p;
+        float i;
+        float d;
+        boolean fanOn;
+    }
+
+
+    private CookLog( File file ) {
+        this.file = file;
+    }
+
+    // open (creating it if need be) and find the end of what's there
+    static CookLog open( File file ) throws IOException {
+        CookLog log = new CookLog( file );
+        log.openFile();
+        return log;
+    }
+
+    private void openFile( ) throws IOException {
+        randomAccessFile = new RandomAccessFile( file, "rw" );
+        channel = randomAccessFile.getChannel();
+        if( channel.size() < HEADER_BYTES || !headerIsValid() ) {  // new (or not ours): start it
+            channel.truncate( 0L );
+            map = channel.map( FileChannel.MapMode.READ_WRITE, 0L, HEADER_BYTES );
+            map.order( ByteOrder.LITTLE_ENDIAN );
+            map.putInt( 0, MAGIC ).putInt( 4, VERSION ).putInt( 8, RECORD_BYTES );
+            map.force();
+        }
+        records = 0L;
+        lastMillis = 0L;
+        long fileRecords = ( channel.size() - HEADER_BYTES ) / RECORD_BYTES;
+        for( long chunk = 0L; chunk * COOKLOG_CHUNK_RECORDS < Math.max( 1L, fileRecords ); chunk++ ) {
+            mapChunk( chunk );
+            int valid = 0;
+            while( valid < COOKLOG_CHUNK_RECORDS && recordIsValid( valid * RECORD_BYTES ) ) valid++;
+            records += valid;
+            if( valid > 0 ) lastMillis = map.getLong( ( valid - 1 ) * RECORD_BYTES );
+            if( valid < COOKLOG_CHUNK_RECORDS ) break;
+        }
+        mapChunk( records / COOKLOG_CHUNK_RECORDS );  // where the next one goes
+        syncedAtMillis = lastMillis;
+    }
+
+    private boolean headerIsValid( ) throws IOException {
+        MappedByteBuffer header = channel.map( FileChannel.MapMode.READ_ONLY, 0L, HEADER_BYTES );
+        header.order( ByteOrder.LITTLE_ENDIAN );
+        return header.getInt( 0 ) == MAGIC && header.getInt( 4 ) == VERSION && header.getInt( 8 ) == RECORD_BYTES;
+    }
+
+    private void mapChunk( long chunk ) throws IOException {
+        if( map != null && dirty ) map.force();
+        dirty = false;
+        mapStart = HEADER_BYTES + chunk * CHUNK_BYTES;
+        map = channel.map( FileChannel.MapMode.READ_WRITE, mapStart, CHUNK_BYTES );  // (grows the file)
+        map.order( ByteOrder.LITTLE_ENDIAN );
+    }
+
+
+    // WRITING
+
+    synchronized void append( long millis, float raw, float filtered, float setPoint, float dutyPct, boolean fanOn,
+                              float p, float i, float d ) throws IOException {
+        if( channel == null ) throw new IOException( "cook log closed" );
+        if( records >= COOKLOG_MAX_RECORDS ) startNewCook();
+        int at = (int) ( records % COOKLOG_CHUNK_RECORDS ) * RECORD_BYTES;
+        if( at == 0 && records > 0L ) mapChunk( records / COOKLOG_CHUNK_RECORDS );  // this chunk is full
+        map.putLong( at, millis )
+                .putFloat( at + 8, raw ).putFloat( at + 12, filtered )
+                .putFloat( at + 16, setPoint ).putFloat( at + 20, dutyPct )
+                .putFloat( at + 24, p ).putFloat( at + 28, i ).putFloat( at + 32, d )
+                .putInt( at + 36, fanOn? FAN_ON : 0 )
+                .putInt( at + 44, 0 );
+        map.putInt( at + 40, check( at ) );  // last: a record cut short fails it
+        records++;
+        lastMillis = millis;
+        dirty = true;
+        if( millis - syncedAtMillis >= COOKLOG_SYNC_SECS * 1000L || millis < syncedAtMillis ) sync();  // (or the clock went back)
+    }
+
+    // make everything written so far durable (it already survives the process dying)
+    synchronized void sync( ) {
+        if( map == null ) return;
+        if( dirty ) map.force();
+        dirty = false;
+        syncedAtMillis = lastMillis;
+    }
+
+    // archive the current log, keep it as <name>.prev and start an empty one
+    synchronized void startNewCook( ) throws IOException {
+        try {
+            File archive = archive();
+            if( DEBUG && archive != null ) Log.d( TAG, "archived " + this + " to " + archive.getName() + ", "
+                    + archive.length() + " bytes" );
+        } catch( IOException e ) {  // the log itself is still kept as .prev
+            if( DEBUG ) Log.d( TAG, "couldn't archive " + this + ": " + e.getMessage() );
+        }
+        close();
+        records = 0L;
+        File previous = new File( file.getPath() + ".prev" );
+        if( previous.exists() && !previous.delete() ) throw new IOException( "can't delete " + previous );
+        if( !file.renameTo( previous ) ) throw new IOException( "can't rename " + file );
+        openFile();
+    }
+
+    // compress this cook into <name>-<first reading's millis>.cka beside the log; null if it's empty
+    synchronized File archive( ) throws IOException {
+        Record first = new Record( );
+        if( !read( 0L, first ) ) return null;
+        File archive = new File( file.getParentFile(), file.getName().replaceFirst( "\\.log$", "" ) + "-" + first.millis + ".cka" );
+        CookArchive.write( this, archive );
+        return archive;
+    }
+
+    @Override
+    public synchronized void close( ) throws IOException {
+        if( channel == null ) return;
+        sync();
+        map = readMap = null;  // (the mappings go when they're collected; the file stays valid either way)
+        readMapStart = -1L;
+        channel.close();
+        randomAccessFile.close();
+        channel = null;
+    }
+
+
+    // READING
+
+    synchronized long size( ) { return records; }
+    synchronized long getLastMillis( ) { return lastMillis; }  // 0 if empty
+    File getFile( ) { return file; }
+
+    // record n (0 = oldest); returns false if there's no such record
+    synchronized boolean read( long n, Record into ) throws IOException {
+        if( n < 0L || n >= records ) return false;
+        long chunkStart = HEADER_BYTES + ( n / COOKLOG_CHUNK_RECORDS ) * CHUNK_BYTES;
+        if( chunkStart != mapStart && chunkStart != readMapStart ) {  // (kept for the next read: they're usually in order)
+            readMap = channel.map( FileChannel.MapMode.READ_ONLY, chunkStart, CHUNK_BYTES );
+            readMap.order( ByteOrder.LITTLE_ENDIAN );
+            readMapStart = chunkStart;
+        }
+        MappedByteBuffer chunk = chunkStart == mapStart? map : readMap;
+        int at = (int) ( n % COOKLOG_CHUNK_RECORDS ) * RECORD_BYTES;
+        into.millis = chunk.getLong( at );
+        into.raw = chunk.getFloat( at + 8 );
+        into.filtered = chunk.getFloat( at + 12 );
+        into.setPoint = chunk.getFloat( at + 16 );
+        into.dutyPct = chunk.getFloat( at + 20 );
+        into.p = chunk.getFloat( at + 24 );
+        into.i = chunk.getFloat( at + 28 );
+        into.d = chunk.getFloat( at + 32 );
+        into.fanOn = ( chunk.getInt( at + 36 ) & FAN_ON ) != 0;
+        return true;
+    }
+
+    // refill a history from the tail of the log (as much of it as the history holds); returns how many records
+    synchronized int recoverInto( TempHistoryBuffer history ) throws IOException {
+        return recoverInto( history, null );
+    }
+
+    // ...and rebuild rollups (if not null) from the whole log
+    synchronized int recoverInto( TempHistoryBuffer history, TempRollups rollups ) throws IOException {
+        long from = Math.max( 0L, records - history.capacity() );
+        Record record = new Record( );
+        for( long n = rollups == null? from : 0L; n < records; n++ ) {
+            read( n, record );
+            if( rollups != null ) rollups.add( record.millis, record.filtered );
+            if( n >= from ) history.add( record.millis, record.raw, record.filtered, record.dutyPct, record.setPoint );
+        }
+        return (int) ( records - from );
+    }
+
+
+    // a record is there if it has a timestamp and its check matches
+    private boolean recordIsValid( int at ) {
+        return map.getLong( at ) != 0L && map.getInt( at + 40 ) == check( at );
+    }
+
+    // FNV-1a over the record's first ten ints (allocation-free; CRC32 over a ByteBuffer needs API 26)
+    private int check( int at ) {
+        int hash = 0x811C9DC5;
+        for( int offset = 0; offset < 40; offset += 4 ) {
+            hash ^= map.getInt( at + offset );
+            hash *= 0x01000193;
+        }
+        return hash == 0? 1 : hash;  // never 0, so zero-fill never passes
+    }
+
+    @Override
+    public synchronized String toString( ) {
+        return "CookLog " + file.getName() + ": " + records + " records, last at " + lastMillis;
+    }
+}
@@ -0,0 +1,108 @@
+package net.grlewis.wifithermocouple;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.Arrays;
+
+/*
+ * A recorded cook: pit temperature, fan output and setpoint at each sample, in parallel primitive arrays.
+ *
+ * What PlantFitter fits a SmokerPlantModel to, and what GainOptimizer takes its scenario from
+ * (starting temperature, setpoint, length). Samples needn't be evenly spaced (the poll interval adapts).
+ * fanDuty is the output in force from that sample until the next (0..1; on/off is just 0 or 1).
+ *
+ * Stored as CSV, one sample per line:
+ *     millis,tempF,fanDuty,setPoint
+ *
+ */
+
+class CookTrace {
+
+    private long[] millis;
+    private float[] temps;
+    private float[] fanDuties;
+    private float[] setPoints;
+    private int size;
+
+
+    // constructor
+    CookTrace( int initialCapacity ) {
+        millis = new long[Math.max( 16, initialCapacity )];
+        temps = new float[millis.length];
+        fanDuties = new float[millis.length];
+        setPoints = new float[millis.length];
+    }
+
+    CookTrace( ) {
+        this( 1024 );
+    }
+
+
+    // samples must be added in time order
+    CookTrace add( long atMillis, float temp, float fanDuty, float setPoint ) {
+        if( size > 0 && atMillis < millis[size - 1] ) throw new IllegalArgumentException( "samples out of order" );
+        if( size == millis.length ) {
+            int capacity = size * 2;
+            millis = Arrays.copyOf( millis, capacity );
+            temps = Arrays.copyOf( temps, capacity );
+            fanDuties = Arrays.copyOf( fanDuties, capacity );
+            setPoints = Arrays.copyOf( setPoints, capacity );
+        }
+        millis[size] = atMillis;
+        temps[size] = temp;
+        fanDuties[size] = fanDuty;
+        setPoints[size] = setPoint;
+        size++;
+        return this;
+    }
+
+
+    int size( ) { return size; }
+    long getMillis( int i ) { return millis[i]; }
+    float getTemp( int i ) { return temps[i]; }
+    float getFanDuty( int i ) { return fanDuties[i]; }
+    float getSetPoint( int i ) { return setPoints[i]; }
+
+    double getDurationSecs( ) {
+        return size < 2? 0d : ( millis[size - 1] - millis[0] ) / 1000d;
+    }
+
+    // the setpoint most of the cook was run at (the last one set; NaN if none)
+    float getFinalSetPoint( ) {
+        for( int i = size - 1; i >= 0; i-- ) if( !Float.isNaN( setPoints[i] ) ) return setPoints[i];
+        return Float.NaN;
+    }
+
+
+    void writeCsv( Writer writer ) throws IOException {
+        for( int i = 0; i < size; i++ ) {
+            writer.write( millis[i] + "," + temps[i] + "," + fanDuties[i] + "," + setPoints[i] + "\n" );
+        }
+        writer.flush();
+    }
+
+    static CookTrace readCsv( Reader reader ) throws IOException {
+        CookTrace trace = new CookTrace( );
+        BufferedReader lines = new BufferedReader( reader );
+        String line;
+        while( ( line = lines.readLine() ) != null ) {
+            if( line.isEmpty() || !Character.isDigit( line.charAt( 0 ) ) ) continue;  // blank or header
+            String[] fields = line.split( "," );
+            if( fields.length < 4 ) throw new IOException( "bad trace line: " + line );
+            try {
+                trace.add( Long.parseLong( fields[0].trim() ), Float.parseFloat( fields[1].trim() ),
+                        Float.parseFloat( fields[2].trim() ), Float.parseFloat( fields[3].trim() ) );
+            } catch( NumberFormatException e ) {
+                throw new IOException( "bad trace line: " + line, e );
+            }
+        }
+        return trace;
+    }
+
+    @Override
+    public String toString( ) {
+        return "CookTrace: " + size + " samples over " + (float) getDurationSecs() + " s";
+    }
+}
@@ -0,0 +1,91 @@
+package net.grlewis.wifithermocouple;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+
+import static net.grlewis.wifithermocouple.Constants.*;
+
+/*
+ * Where one thermocouple box lives: a name and a root URL, plus every endpoint URL resolved against it.
+ *
+ * The paths are the ones in Constants; the default device is still http://wifitempsensor.lan/,
+ * but any other root (another box, a different port, the fake device in tests) can be given at runtime.
+ * Immutable, so it can be handed to any thread.
+ *
+ * usage: new DeviceEndpoint( "Offset smoker", "http://192.168.1.23/" )
+ *
+ */
+
+final class DeviceEndpoint {
+    
+    final String name;
+    final URL root;
+    
+    final URL resetDefaultsURL;
+    final URL tempFURL;
+    final URL tempCURL;
+    final URL blueLedOnURL;
+    final URL blueLedOffURL;
+    final URL fanOnURL;
+    final URL fanOffURL;
+    final URL fanDcURL;
+    final URL fanSetDcURL;        // append the duty cycle %
+    final URL fanSetClURL;        // append the cycle length in seconds
+    final URL fanDisableDcURL;
+    final URL fanEnableDcURL;
+    final URL currentSecondsURL;
+    final URL enableWdURL;
+    final URL disableWdURL;
+    final URL wdStatusURL;
+    final URL resetWdURL;
+    final URL readAnalogURL;
+    final URL getInfoURL;
+    
+    
+    // constructor
+    DeviceEndpoint( String name, String rootURL ) throws MalformedURLException {
+        this.name = name;
+        root = new URL( rootURL.endsWith( "/" )? rootURL : rootURL + "/" );
+        resetDefaultsURL  = resolve( RESET_DEFAULTS_PATH );
+        tempFURL          = resolve( TEMP_F_PATH );
+        tempCURL          = resolve( TEMP_C_PATH );
+        blueLedOnURL      = resolve( BLUE_LED_ON_PATH );
+        blueLedOffURL     = resolve( BLUE_LED_OFF_PATH );
+        fanOnURL          = resolve( FAN_ON_PATH );
+        fanOffURL         = resolve( FAN_OFF_PATH );
+        fanDcURL          = resolve( FAN_DC_PATH );
+        fanSetDcURL       = resolve( FAN_SET_DC_PATH );
+        fanSetClURL       = resolve( FAN_SET_CL_PATH );
+        fanDisableDcURL   = resolve( FAN_DISABLE_DC_PATH );
+        fanEnableDcURL    = resolve( FAN_ENABLE_DC_PATH );
+        currentSecondsURL = resolve( CURRENT_SECONDS_PATH );
+        enableWdURL       = resolve( ENABLE_WD_PATH );
+        disableWdURL      = resolve( DISABLE_WD_PATH );
+        wdStatusURL       = resolve( WD_STATUS_PATH );
+        resetWdURL        = resolve( RESET_WD_PATH );
+        readAnalogURL     = resolve( READ_ANALOG_PATH );
+        getInfoURL        = resolve( GET_INFO_PATH );
+    }
+    
+    // the box the app has always talked to
+    static DeviceEndpoint defaultDevice( ) {
+        try {
+            return new DeviceEndpoint( "wifitempsensor", DEFAULT_DEVICE_ROOT );
+        } catch( MalformedURLException m ) {
+            throw new IllegalStateException( "bad DEFAULT_DEVICE_ROOT " + DEFAULT_DEVICE_ROOT, m );
+        }
+    }
+    
+    
+    private URL resolve( String path ) throws MalformedURLException {
+        return new URL( root, path );
+    }
+    
+    String getHost( ) { return root.getHost(); }
+    String getHostAndPort( ) { return root.getHost() + ":" + ( root.getPort() == -1? root.getDefaultPort() : root.getPort() ); }
+    
+    @Override
+    public String toString( ) {
+        return name + " (" + root + ")";
+    }
+}
@@ -0,0 +1,23 @@
+package net.grlewis.wifithermocouple;
+
+import java.util.UUID;
+
+// info: model and hardware/software versions reported by the device (null if not reported)
+final class DeviceInfo extends DeviceReading {
+    
+    final String model;
+    final String hwVersion;
+    final String swVersion;
+    
+    DeviceInfo( String model, String hwVersion, String swVersion, UUID requestUUID, long sentAtMillis, long receivedAtMillis ) {
+        super( requestUUID, sentAtMillis, receivedAtMillis );
+        this.model = model;
+        this.hwVersion = hwVersion;
+        this.swVersion = swVersion;
+    }
+    
+    @Override
+    public String toString( ) {
+        return "DeviceInfo " + model + " HW " + hwVersion + " SW " + swVersion + " (request " + requestUUID + ")";
+    }
+}
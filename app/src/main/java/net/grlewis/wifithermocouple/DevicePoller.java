@@ -0,0 +1,188 @@
+package net.grlewis.wifithermocouple;
+
+import android.util.Log;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.reactivex.Maybe;
+import io.reactivex.Observable;
+import io.reactivex.Scheduler;
+import io.reactivex.Single;
+import io.reactivex.schedulers.Schedulers;
+
+import static net.grlewis.wifithermocouple.Constants.DEBUG;
+
+/*
+ * Periodic polling stage for a device reading (replaces Observable.interval(...).flatMapSingle(...)).
+ *
+ * interval + flatMapSingle subscribes to a new request on every tick no matter how many are still
+ * outstanding, so a slow device collects a pile of concurrent requests whose responses come back
+ * in any order; and one failed request errors the whole stream (the old retry(3L) then restarted it).
+ * Here each tick:
+ *     --is skipped if maxInFlight requests from earlier ticks are still outstanding
+ *     --gets its own retry budget (the request is resubscribed, never the tick stream)
+ *     --must finish (retries included) within the tick deadline, or its result is dropped
+ *     --is dropped if a reading from a later-sent request has already been emitted
+ * Ticks come every period, or after whatever delay an IntervalPolicy asks for (see AdaptivePollInterval).
+ * Failures are counted and logged but never terminate the stream.
+ *
+ * Readings keep the send/receive times recorded by OkHttp (see DeviceReading), so consumers
+ * should stamp history with those rather than the time they got around to handling it.
+ *
+ * usage: new DevicePoller<>( "Temp", tempFReader, 5L, SECONDS ).poll().subscribe( reading -> ... )
+ *
+ */
+
+class DevicePoller<T extends DeviceReading> {
+
+    private static final String TAG = DevicePoller.class.getSimpleName();
+
+    private final String name;
+    private final Single<T> request;      // e.g. WiFiCommunicator.tempFReader
+    private final long periodNanos;
+    private long tickDeadlineNanos;       // defaults to one period, so ticks can't overlap more than maxInFlight
+    private int maxInFlight;
+    private int retriesPerTick;
+    private Scheduler scheduler;          // for ticks and deadlines
+    private IntervalPolicy intervalPolicy;  // null means a fixed period
+
+    // counters (shared by all subscriptions to poll())
+    private final AtomicLong ticks;
+    private final AtomicLong skipped;     // tick came while maxInFlight requests were outstanding
+    private final AtomicLong timedOut;    // missed the tick deadline
+    private final AtomicLong failed;      // ran out of retries
+    private final AtomicLong outOfOrder;  // arrived after a reading from a later request
+    private final AtomicLong emitted;
+
+
+    // supplies the time to wait before each tick, for polling at a varying rate
+    interface IntervalPolicy {
+        long nextIntervalMillis( );
+    }
+
+
+    // constructor
+    DevicePoller( String name, Single<T> request, long period, TimeUnit unit ) {
+        if( period <= 0L ) throw new IllegalArgumentException( "period must be positive" );
+        this.name = name;
+        this.request = request;
+        this.periodNanos = unit.toNanos( period );
+        tickDeadlineNanos = periodNanos;
+        maxInFlight = Constants.POLL_MAX_IN_FLIGHT;
+        retriesPerTick = Constants.POLL_RETRIES_PER_TICK;
+        scheduler = Schedulers.computation();
+        ticks = new AtomicLong( );
+        skipped = new AtomicLong( );
+        timedOut = new AtomicLong( );
+        failed = new AtomicLong( );
+        outOfOrder = new AtomicLong( );
+        emitted = new AtomicLong( );
+    }
+
+
+    // setters return the poller so you can chain (call before poll())
+    DevicePoller<T> setMaxInFlight( int maxInFlight ) {
+        if( maxInFlight < 1 ) throw new IllegalArgumentException( "maxInFlight must be at least 1" );
+        this.maxInFlight = maxInFlight;
+        return this;
+    }
+
+    DevicePoller<T> setTickDeadline( long deadline, TimeUnit unit ) {
+        if( deadline <= 0L ) throw new IllegalArgumentException( "deadline must be positive" );
+        tickDeadlineNanos = unit.toNanos( deadline );
+        return this;
+    }
+
+    DevicePoller<T> setRetriesPerTick( int retries ) {
+        retriesPerTick = Math.max( 0, retries );
+        return this;
+    }
+
+    DevicePoller<T> setScheduler( Scheduler scheduler ) {  // e.g. a TestScheduler
+        this.scheduler = scheduler;
+        return this;
+    }
+
+    DevicePoller<T> setIntervalPolicy( IntervalPolicy policy ) {  // replaces the fixed period
+        intervalPolicy = policy;
+        return this;
+    }
+
+
+    // each subscription polls independently, with its own in-flight count and ordering
+    Observable<T> poll( ) {
+        return Observable.defer( ( ) -> {
+            AtomicInteger inFlight = new AtomicInteger( );
+            AtomicLong newestSentAt = new AtomicLong( Long.MIN_VALUE );
+            return ticks()
+                    .flatMapMaybe( tick -> pollOnce( inFlight, newestSentAt ) );
+        } );
+    }
+
+    // the tick source: first tick after one period (or the policy's first interval)
+    private Observable<Long> ticks( ) {
+        IntervalPolicy policy = intervalPolicy;
+        if( policy == null ) return Observable.interval( periodNanos, TimeUnit.NANOSECONDS, scheduler );
+        return Observable.defer( ( ) -> Observable.timer( policy.nextIntervalMillis(), TimeUnit.MILLISECONDS, scheduler ) )
+                .repeat();  // each delay is asked for when the previous tick fires
+    }
+
+    // one tick's request, or nothing if it was skipped, failed, late or out of order
+    private Maybe<T> pollOnce( AtomicInteger inFlight, AtomicLong newestSentAt ) {
+        ticks.incrementAndGet();
+        if( inFlight.incrementAndGet() > maxInFlight ) {
+            inFlight.decrementAndGet();
+            skipped.incrementAndGet();
+            if( DEBUG ) Log.d( TAG, name + ": tick skipped, " + maxInFlight + " request(s) still outstanding" );
+            return Maybe.empty();
+        }
+        return request
+                .retry( retriesPerTick )
+                .timeout( tickDeadlineNanos, TimeUnit.NANOSECONDS, scheduler )  // disposing the request cancels its call
+                .doFinally( inFlight::decrementAndGet )
+                .toMaybe()
+                .onErrorResumeNext( error -> {
+                    if( error instanceof TimeoutException ) timedOut.incrementAndGet();
+                    else failed.incrementAndGet();
+                    if( DEBUG ) Log.d( TAG, name + ": tick dropped: " + error );
+                    return Maybe.empty();
+                } )
+                .filter( reading -> {
+                    if( isNewest( reading, newestSentAt ) ) {
+                        emitted.incrementAndGet();
+                        return true;
+                    }
+                    outOfOrder.incrementAndGet();
+                    if( DEBUG ) Log.d( TAG, name + ": out-of-order reading dropped (request " + reading.requestUUID + ")" );
+                    return false;
+                } );
+    }
+
+    // true if no reading from a later-sent request has been emitted
+    private static boolean isNewest( DeviceReading reading, AtomicLong newestSentAt ) {
+        while( true ) {
+            long newest = newestSentAt.get();
+            if( reading.sentAtMillis < newest ) return false;
+            if( newestSentAt.compareAndSet( newest, reading.sentAtMillis ) ) return true;
+        }
+    }
+
+
+    // diagnostics
+    long getTickCount( ) { return ticks.get(); }
+    long getSkippedCount( ) { return skipped.get(); }
+    long getTimedOutCount( ) { return timedOut.get(); }
+    long getFailedCount( ) { return failed.get(); }
+    long getOutOfOrderCount( ) { return outOfOrder.get(); }
+    long getEmittedCount( ) { return emitted.get(); }
+    String getName( ) { return name; }
+
+    @Override
+    public String toString( ) {
+        return name + " poller: " + emitted.get() + "/" + ticks.get() + " ticks emitted, " + skipped.get() + " skipped, "
+                + timedOut.get() + " timed out, " + failed.get() + " failed, " + outOfOrder.get() + " out of order";
+    }
+}
@@ -0,0 +1,21 @@
+package net.grlewis.wifithermocouple;
+
+import java.util.UUID;
+
+// Base of the typed results decoded by DeviceResponseCodec: what request produced it and when
+// (times are OkHttp's System.currentTimeMillis() stamps for sending the request and receiving the response headers)
+abstract class DeviceReading {
+    
+    final UUID requestUUID;
+    final long sentAtMillis;
+    final long receivedAtMillis;
+    
+    DeviceReading( UUID requestUUID, long sentAtMillis, long receivedAtMillis ) {
+        this.requestUUID = requestUUID;
+        this.sentAtMillis = sentAtMillis;
+        this.receivedAtMillis = receivedAtMillis;
+    }
+    
+    long getRoundTripMillis( ) { return receivedAtMillis - sentAtMillis; }
+    
+}
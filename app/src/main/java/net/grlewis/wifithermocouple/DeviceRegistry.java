@@ -0,0 +1,75 @@
+package net.grlewis.wifithermocouple;
+
+import android.os.Looper;
+import android.util.Log;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static net.grlewis.wifithermocouple.Constants.DEBUG;
+
+/*
+ * The smokers the app is running, by name. Held by ThermocoupleApp; the first one added is the
+ * primary device the UI shows (ThermocoupleApp.wifiCommunicator etc. point at its pieces).
+ *
+ * Devices can be added and removed at any time; while the service has started the registry,
+ * new devices start right away and removed ones are stopped.
+ *
+ */
+
+class DeviceRegistry {
+    
+    private static final String TAG = DeviceRegistry.class.getSimpleName();
+    
+    // all guarded by 'this'
+    private final Map<String, SmokerDevice> devices = new LinkedHashMap<>( );  // in the order added
+    private Looper pidLooper;  // non-null while started
+    private File logDir;       // where started devices keep their cook logs (null: no logs)
+    
+    
+    // add a device (its name must be unique)
+    synchronized SmokerDevice add( DeviceEndpoint endpoint ) {
+        if( devices.containsKey( endpoint.name ) )
+            throw new IllegalArgumentException( "already have a device named " + endpoint.name );
+        SmokerDevice device = new SmokerDevice( endpoint );
+        devices.put( endpoint.name, device );
+        if( pidLooper != null ) device.start( pidLooper, logDir );
+        if( DEBUG ) Log.d( TAG, "added " + endpoint + "; " + devices.size() + " device(s)" );
+        return device;
+    }
+    
+    // stop and forget a device; returns false if there wasn't one by that name
+    synchronized boolean remove( String name ) {
+        SmokerDevice device = devices.remove( name );
+        if( device == null ) return false;
+        device.stop();
+        if( DEBUG ) Log.d( TAG, "removed " + device.endpoint + "; " + devices.size() + " device(s)" );
+        return true;
+    }
+    
+    synchronized SmokerDevice get( String name ) { return devices.get( name ); }
+    
+    synchronized SmokerDevice getPrimary( ) {  // null if empty
+        return devices.isEmpty()? null : devices.values().iterator().next();
+    }
+    
+    synchronized List<SmokerDevice> getAll( ) { return new ArrayList<>( devices.values() ); }
+    
+    synchronized int size( ) { return devices.size(); }
+    
+    
+    // called by the service: start every device, and any added later, with PID loops on this Looper
+    synchronized void startAll( Looper looper, File logDir ) {
+        pidLooper = looper;
+        this.logDir = logDir;
+        for( SmokerDevice device : devices.values() ) device.start( looper, logDir );
+    }
+    
+    synchronized void stopAll( ) {
+        pidLooper = null;
+        for( SmokerDevice device : devices.values() ) device.stop();
+    }
+}
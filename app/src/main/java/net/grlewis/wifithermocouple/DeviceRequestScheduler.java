@@ -0,0 +1,274 @@
+package net.grlewis.wifithermocouple;
+
+import android.util.Log;
+
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.reactivex.Scheduler;
+import io.reactivex.Single;
+import io.reactivex.SingleEmitter;
+import io.reactivex.SingleObserver;
+import io.reactivex.disposables.Disposable;
+import io.reactivex.schedulers.Schedulers;
+
+import static net.grlewis.wifithermocouple.Constants.DEBUG;
+
+/*
+ * Device-side dispatch layer that every request to the thermocouple box goes through.
+ *
+ * The ESP firmware only services one socket at a time ("Socket closed" errors when it's overloaded),
+ * so instead of letting each AsyncJSONGetter/AsyncHTTPRequester fire at will, their Singles are
+ * queued here by RequestClass and released:
+ *     --highest priority first (fan control, then temperature, then watchdog, then analog)
+ *     --no more than maxInFlight at a time
+ *     --only when the token bucket has a token (fan control is exempt so it can't be starved)
+ *     --not at all if the request sat in the queue past its class deadline (fails with TimeoutException)
+ *
+ * The whole Single (queue wait + HTTP round trip) is also bounded by the class deadline.
+ * A subscriber that retries just goes back into the queue.
+ *
+ * usage: scheduler.schedule( RequestClass.TEMPERATURE, tempFGetter.get() ).subscribe( ... )
+ *
+ */
+
+class DeviceRequestScheduler {
+
+    private static final String TAG = DeviceRequestScheduler.class.getSimpleName();
+
+    // in priority order (ordinal is the priority, lowest value is served first)
+    enum RequestClass {
+        FAN_CONTROL( Constants.FAN_CONTROL_TIMEOUT_SECS * 1000L, false ),
+        TEMPERATURE( Constants.TEMP_UPDATE_SECONDS * 1000L, true ),
+        WATCHDOG( Constants.WATCHDOG_REQUEST_DEADLINE_SECS * 1000L, true ),
+        ANALOG( Constants.ANALOG_IN_UPDATE_SECS * 1000L, true );
+
+        final long deadlineMillis;   // max time from enqueue to response
+        final boolean rateLimited;   // does it have to wait for a token?
+
+        RequestClass( long deadlineMillis, boolean rateLimited ) {
+            this.deadlineMillis = deadlineMillis;
+            this.rateLimited = rateLimited;
+        }
+    }
+
+    private final String name;
+    private final int maxInFlight;
+    private final double bucketCapacity;     // max burst of requests
+    private final double tokensPerNano;      // refill rate
+    private final Scheduler timerScheduler;  // the clock, and wakes the dispatcher when waiting for a token
+
+    // all guarded by 'this'
+    private final PriorityQueue<PendingRequest<?>> pending;
+    private int inFlight;
+    private double tokens;
+    private long lastRefillNanos;
+    private long sequence;                   // keeps FIFO order within a class
+    private boolean wakeupScheduled;
+
+    // per-class counters (indexed by ordinal)
+    private final AtomicLong[] dispatched;
+    private final AtomicLong[] expired;
+
+
+    // a queued request: the source Single is not subscribed until it is dispatched
+    private final class PendingRequest<T> implements Comparable<PendingRequest<?>> {
+
+        final RequestClass requestClass;
+        final Single<T> source;
+        final SingleEmitter<T> emitter;
+        final long enqueuedNanos;
+        final long order;
+        volatile Disposable upstream;        // set when dispatched
+        boolean running;                     // guarded by scheduler lock
+        boolean finished;                    // guarded by scheduler lock
+
+        PendingRequest( RequestClass requestClass, Single<T> source, SingleEmitter<T> emitter, long order ) {
+            this.requestClass = requestClass;
+            this.source = source;
+            this.emitter = emitter;
+            this.enqueuedNanos = nowNanos();
+            this.order = order;
+        }
+
+        boolean isExpired( long nowNanos ) {
+            return nowNanos - enqueuedNanos > TimeUnit.MILLISECONDS.toNanos( requestClass.deadlineMillis );
+        }
+
+        // called outside the lock once the dispatcher has taken a slot for us
+        void start( ) {
+            source.subscribe( new SingleObserver<T>( ) {
+                @Override
+                public void onSubscribe( Disposable d ) {
+                    upstream = d;
+                    if( emitter.isDisposed() ) d.dispose();  // canceled while we were being dispatched
+                }
+                @Override
+                public void onSuccess( T t ) {
+                    finish( PendingRequest.this );
+                    emitter.onSuccess( t );
+                }
+                @Override
+                public void onError( Throwable e ) {
+                    finish( PendingRequest.this );
+                    emitter.tryOnError( e );
+                }
+            } );
+        }
+
+        // downstream disposed (or the deadline timeout fired)
+        void cancel( ) {
+            boolean wasRunning;
+            synchronized( DeviceRequestScheduler.this ) {
+                if( finished ) return;
+                wasRunning = running;
+                if( !wasRunning ) {
+                    pending.remove( this );
+                    finished = true;
+                }
+            }
+            if( wasRunning ) {
+                Disposable d = upstream;
+                if( d != null ) d.dispose();
+                finish( this );
+            }
+        }
+
+        @Override
+        public int compareTo( PendingRequest<?> other ) {
+            int byClass = requestClass.compareTo( other.requestClass );
+            return byClass != 0? byClass : Long.compare( order, other.order );
+        }
+    }  // PendingRequest
+
+
+    // constructor (timerScheduler is the clock for deadlines & the token bucket: tests pass a TestScheduler)
+    DeviceRequestScheduler( String deviceName, int maxInFlight, float requestsPerSecond, int burstSize,
+                            Scheduler timerScheduler ) {
+        if( maxInFlight < 1 ) throw new IllegalArgumentException( "maxInFlight must be at least 1" );
+        if( requestsPerSecond <= 0f ) throw new IllegalArgumentException( "requestsPerSecond must be positive" );
+        this.name = deviceName;
+        this.maxInFlight = maxInFlight;
+        this.bucketCapacity = Math.max( 1, burstSize );
+        this.tokensPerNano = requestsPerSecond / 1e9d;
+        this.timerScheduler = timerScheduler;
+        pending = new PriorityQueue<>( );
+        tokens = bucketCapacity;  // start full
+        lastRefillNanos = nowNanos();
+        int classes = RequestClass.values().length;
+        dispatched = new AtomicLong[classes];
+        expired = new AtomicLong[classes];
+        for( int i = 0; i < classes; i++ ) {
+            dispatched[i] = new AtomicLong( );
+            expired[i] = new AtomicLong( );
+        }
+        if( DEBUG ) Log.d( TAG, "created scheduler for " + deviceName + ": " + maxInFlight + " in flight, "
+                + requestsPerSecond + " req/sec, burst " + burstSize );
+    }
+
+    // constructor with the defaults for a single thermocouple box
+    DeviceRequestScheduler( String deviceName, int maxInFlight, float requestsPerSecond, int burstSize ) {
+        this( deviceName, maxInFlight, requestsPerSecond, burstSize, new MonotonicScheduler( Schedulers.computation() ) );
+    }
+
+    DeviceRequestScheduler( String deviceName ) {
+        this( deviceName, Constants.DEVICE_MAX_IN_FLIGHT, Constants.DEVICE_REQUESTS_PER_SEC, Constants.DEVICE_REQUEST_BURST );
+    }
+
+
+    // wrap a request Single so that subscribing to it queues the request instead of sending it immediately
+    <T> Single<T> schedule( RequestClass requestClass, Single<T> request ) {
+        return Single.<T>create( emitter -> {
+                    PendingRequest<T> pendingRequest;
+                    synchronized( this ) {
+                        pendingRequest = new PendingRequest<>( requestClass, request, emitter, sequence++ );
+                        pending.add( pendingRequest );
+                    }
+                    emitter.setCancellable( pendingRequest::cancel );
+                    drain();
+                } )
+                .timeout( requestClass.deadlineMillis, TimeUnit.MILLISECONDS, timerScheduler );
+    }
+
+
+    // release as many queued requests as the concurrency limit and token bucket allow
+    private void drain( ) {
+        while( true ) {
+            PendingRequest<?> next = null;
+            PendingRequest<?> stale = null;
+            synchronized( this ) {
+                if( inFlight >= maxInFlight || pending.isEmpty() ) return;
+                long now = nowNanos();
+                PendingRequest<?> head = pending.peek();
+                if( head.isExpired( now ) ) {  // drop it without using a slot or a token
+                    pending.poll();
+                    head.finished = true;
+                    stale = head;
+                } else {
+                    refill( now );
+                    if( head.requestClass.rateLimited && tokens < 1d ) {
+                        scheduleWakeup( (long) Math.ceil( (1d - tokens) / tokensPerNano ) );
+                        return;
+                    }
+                    pending.poll();
+                    if( head.requestClass.rateLimited ) tokens -= 1d;
+                    head.running = true;
+                    inFlight++;
+                    next = head;
+                }
+            }
+            if( stale != null ) {
+                expired[stale.requestClass.ordinal()].incrementAndGet();
+                stale.emitter.tryOnError( new TimeoutException( TAG + " (" + name + "): " + stale.requestClass
+                        + " request expired in queue" ) );
+                if( DEBUG ) Log.d( TAG, name + ": dropped stale " + stale.requestClass + " request" );
+            } else {
+                dispatched[next.requestClass.ordinal()].incrementAndGet();
+                next.start();
+            }
+        }
+    }
+
+    private long nowNanos( ) {
+        return timerScheduler.now( TimeUnit.NANOSECONDS );
+    }
+
+    private void refill( long nowNanos ) {  // call with lock held
+        tokens = Math.min( bucketCapacity, tokens + (nowNanos - lastRefillNanos) * tokensPerNano );
+        lastRefillNanos = nowNanos;
+    }
+
+    private void scheduleWakeup( long delayNanos ) {  // call with lock held
+        if( wakeupScheduled ) return;
+        wakeupScheduled = true;
+        timerScheduler.scheduleDirect( ( ) -> {
+            synchronized( this ) { wakeupScheduled = false; }
+            drain();
+        }, delayNanos, TimeUnit.NANOSECONDS );
+    }
+
+    // a dispatched request terminated or was canceled: free its slot and let the next one go
+    private void finish( PendingRequest<?> request ) {
+        synchronized( this ) {
+            if( request.finished ) return;
+            request.finished = true;
+            inFlight--;
+        }
+        drain();
+    }
+
+
+    // diagnostics
+    synchronized int getQueuedCount( ) { return pending.size(); }
+    synchronized int getInFlightCount( ) { return inFlight; }
+    long getDispatchedCount( RequestClass requestClass ) { return dispatched[requestClass.ordinal()].get(); }
+    long getExpiredCount( RequestClass requestClass ) { return expired[requestClass.ordinal()].get(); }
+    String getName( ) { return name; }
+
+    @Override
+    public String toString( ) {
+        return name;
+    }
+}
@@ -0,0 +1,335 @@
+package net.grlewis.wifithermocouple;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+
+import okio.BufferedSource;
+import okio.ByteString;
+
+/*
+ * Decoders for the device's JSON endpoints, for use with AsyncJSONGetter.getAs( decoder )
+ *
+ *     TEMP_READING    temperature/F, temperature/C   {"TempF":72.5}  (or "nan" when the thermocouple read fails)
+ *     WATCHDOG_STATUS time/watchdogstatus            {"Enabled":true,"Expired":false}
+ *     ANALOG_READING  analog/in                      {"AnalogIn":0.42}
+ *     DEVICE_INFO     info                           {"Model":"...","HWVersion":"0.9","SWVersion":"0.9"}
+ *     JSON_OBJECT     anything (the old way: whole body to a String, then a JSONObject with "RequestUUID" added)
+ *
+ * The typed decoders pull fields straight out of the okio BufferedSource: field names are matched in place against
+ * ByteStrings and numbers are parsed digit by digit into primitives, so a temperature poll allocates nothing but
+ * the TempReading itself (no body String, no JSONObject, no boxed Double/Float).
+ *
+ * Only handles what the firmware sends: one flat object per response. Unknown fields (including nested ones) are skipped.
+ *
+ */
+
+final class DeviceResponseCodec {
+
+    // field names used by the firmware
+    static final ByteString TEMP_F_FIELD     = ByteString.encodeUtf8( "TempF" );
+    static final ByteString TEMP_C_FIELD     = ByteString.encodeUtf8( "TempC" );
+    static final ByteString WD_ENABLED_FIELD = ByteString.encodeUtf8( "Enabled" );
+    static final ByteString WD_EXPIRED_FIELD = ByteString.encodeUtf8( "Expired" );
+    static final ByteString ANALOG_IN_FIELD  = ByteString.encodeUtf8( "AnalogIn" );
+    static final ByteString MODEL_FIELD      = ByteString.encodeUtf8( "Model" );
+    static final ByteString HW_VERSION_FIELD = ByteString.encodeUtf8( "HWVersion" );
+    static final ByteString SW_VERSION_FIELD = ByteString.encodeUtf8( "SWVersion" );
+
+    private static final ByteString[] TEMP_FIELDS     = { TEMP_F_FIELD, TEMP_C_FIELD };
+    private static final ByteString[] WATCHDOG_FIELDS = { WD_ENABLED_FIELD, WD_EXPIRED_FIELD };
+    private static final ByteString[] ANALOG_FIELDS   = { ANALOG_IN_FIELD };
+    private static final ByteString[] INFO_FIELDS     = { MODEL_FIELD, HW_VERSION_FIELD, SW_VERSION_FIELD };
+
+    private static final ByteString VALUE_DELIMITERS = ByteString.encodeUtf8( ",}] \t\r\n" );
+    private static final ByteString STRING_DELIMITERS = ByteString.encodeUtf8( "\"\\" );
+
+    static final int END_OF_OBJECT = -2;  // returned by nextField()
+    static final int UNKNOWN_FIELD = -1;
+
+    private static final double[] POWERS_OF_TEN = {  // exactly representable, so scaling by them rounds correctly
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22 };
+
+    private DeviceResponseCodec( ) { }  // no instances
+
+
+    // DECODERS (stateless lambdas, so each is a single shared instance)
+
+    static final ResponseDecoder<TempReading> TEMP_READING = ( body, response, requestUUID ) -> {
+        float temp = Float.NaN;
+        beginObject( body );
+        int field;
+        while( (field = nextField( body, TEMP_FIELDS )) != END_OF_OBJECT ) {
+            if( field == UNKNOWN_FIELD ) skipValue( body );
+            else temp = readFloat( body );
+        }
+        return new TempReading( temp, requestUUID, response.sentRequestAtMillis(), response.receivedResponseAtMillis() );
+    };
+
+    static final ResponseDecoder<WatchdogStatus> WATCHDOG_STATUS = ( body, response, requestUUID ) -> {
+        boolean enabled = false;
+        boolean expired = false;
+        beginObject( body );
+        int field;
+        while( (field = nextField( body, WATCHDOG_FIELDS )) != END_OF_OBJECT ) {
+            switch( field ) {
+                case 0: enabled = readBoolean( body ); break;
+                case 1: expired = readBoolean( body ); break;
+                default: skipValue( body );
+            }
+        }
+        return new WatchdogStatus( enabled, expired, requestUUID,
+                response.sentRequestAtMillis(), response.receivedResponseAtMillis() );
+    };
+
+    static final ResponseDecoder<AnalogReading> ANALOG_READING = ( body, response, requestUUID ) -> {
+        float volts = Float.NaN;
+        beginObject( body );
+        int field;
+        while( (field = nextField( body, ANALOG_FIELDS )) != END_OF_OBJECT ) {
+            if( field == UNKNOWN_FIELD ) skipValue( body );
+            else volts = readFloat( body );
+        }
+        return new AnalogReading( volts, requestUUID, response.sentRequestAtMillis(), response.receivedResponseAtMillis() );
+    };
+
+    static final ResponseDecoder<DeviceInfo> DEVICE_INFO = ( body, response, requestUUID ) -> {
+        String model = null;
+        String hwVersion = null;
+        String swVersion = null;
+        beginObject( body );
+        int field;
+        while( (field = nextField( body, INFO_FIELDS )) != END_OF_OBJECT ) {
+            switch( field ) {
+                case 0: model = readString( body ); break;
+                case 1: hwVersion = readString( body ); break;
+                case 2: swVersion = readString( body ); break;
+                default: skipValue( body );
+            }
+        }
+        return new DeviceInfo( model, hwVersion, swVersion, requestUUID,
+                response.sentRequestAtMillis(), response.receivedResponseAtMillis() );
+    };
+
+    // what AsyncJSONGetter.get() has always emitted
+    static final ResponseDecoder<JSONObject> JSON_OBJECT = ( body, response, requestUUID ) -> {
+        JSONObject returnedJSON = new JSONObject( body.readUtf8( ) );
+        returnedJSON.put( "RequestUUID", requestUUID.toString() );  // add the request UUID
+        return returnedJSON;
+    };
+
+
+    // STREAMING PRIMITIVES
+
+    static void beginObject( BufferedSource source ) throws IOException, JSONException {
+        skipWhitespace( source );
+        if( peek( source ) != '{' ) throw new JSONException( "Expected '{' at start of device response" );
+        source.skip( 1 );
+    }
+
+    // consume the next field name and its colon, returning the index of the name in fields[],
+    // UNKNOWN_FIELD if it isn't there (caller should skipValue()), or END_OF_OBJECT after consuming the closing brace
+    static int nextField( BufferedSource source, ByteString[] fields ) throws IOException, JSONException {
+        skipWhitespace( source );
+        byte b = peek( source );
+        if( b == ',' ) {
+            source.skip( 1 );
+            skipWhitespace( source );
+            b = peek( source );
+        }
+        if( b == '}' ) {
+            source.skip( 1 );
+            return END_OF_OBJECT;
+        }
+        if( b != '"' ) throw new JSONException( "Expected a field name in device response" );
+        source.skip( 1 );
+        long nameLength = source.indexOf( (byte) '"' );
+        if( nameLength < 0 ) throw new JSONException( "Unterminated field name in device response" );
+        int match = UNKNOWN_FIELD;
+        for( int i = 0; i < fields.length; i++ ) {
+            if( fields[i].size() == nameLength && source.rangeEquals( 0, fields[i] ) ) {
+                match = i;
+                break;
+            }
+        }
+        source.skip( nameLength + 1 );  // name and closing quote
+        skipWhitespace( source );
+        if( peek( source ) != ':' ) throw new JSONException( "Expected ':' after field name in device response" );
+        source.skip( 1 );
+        return match;
+    }
+
+    // a JSON number (optionally quoted); nan/inf as sent by the firmware come back as NaN/Infinity
+    static float readFloat( BufferedSource source ) throws IOException, JSONException {
+        skipWhitespace( source );
+        boolean quoted = peek( source ) == '"';
+        if( quoted ) source.skip( 1 );
+        boolean negative = false;
+        byte b = peek( source );
+        if( b == '-' || b == '+' ) {
+            negative = b == '-';
+            source.skip( 1 );
+            b = peek( source );
+        }
+        float result;
+        if( b == 'n' || b == 'N' ) {
+            skipLiteral( source );
+            result = Float.NaN;
+        } else if( b == 'i' || b == 'I' ) {
+            skipLiteral( source );
+            result = Float.POSITIVE_INFINITY;
+        } else {
+            long mantissa = 0L;
+            int significantDigits = 0;
+            int exponent = 0;
+            boolean sawDigit = false;
+            while( source.request( 1 ) && isDigit( b = source.buffer().getByte( 0 ) ) ) {  // integer part
+                if( significantDigits < 18 ) {
+                    mantissa = mantissa * 10 + (b - '0');
+                    if( mantissa != 0 ) significantDigits++;
+                } else {
+                    exponent++;  // too many digits to matter
+                }
+                sawDigit = true;
+                source.skip( 1 );
+            }
+            if( source.request( 1 ) && source.buffer().getByte( 0 ) == '.' ) {  // fraction
+                source.skip( 1 );
+                while( source.request( 1 ) && isDigit( b = source.buffer().getByte( 0 ) ) ) {
+                    if( significantDigits < 18 ) {
+                        mantissa = mantissa * 10 + (b - '0');
+                        if( mantissa != 0 ) significantDigits++;
+                        exponent--;
+                    }
+                    sawDigit = true;
+                    source.skip( 1 );
+                }
+            }
+            if( !sawDigit ) throw new JSONException( "Expected a number in device response" );
+            if( source.request( 1 ) && ((b = source.buffer().getByte( 0 )) == 'e' || b == 'E') ) {  // exponent
+                source.skip( 1 );
+                boolean negativeExponent = false;
+                b = peek( source );
+                if( b == '-' || b == '+' ) {
+                    negativeExponent = b == '-';
+                    source.skip( 1 );
+                }
+                int explicitExponent = 0;
+                while( source.request( 1 ) && isDigit( b = source.buffer().getByte( 0 ) ) ) {
+                    if( explicitExponent < 1000 ) explicitExponent = explicitExponent * 10 + (b - '0');
+                    source.skip( 1 );
+                }
+                exponent += negativeExponent? -explicitExponent : explicitExponent;
+            }
+            result = (float) scale( mantissa, exponent );
+        }
+        if( quoted ) {
+            if( peek( source ) != '"' ) throw new JSONException( "Unterminated quoted number in device response" );
+            source.skip( 1 );
+        }
+        return negative? -result : result;
+    }
+
+    // true/false, or a number that is nonzero for true
+    static boolean readBoolean( BufferedSource source ) throws IOException, JSONException {
+        skipWhitespace( source );
+        byte b = peek( source );
+        if( b == 't' || b == 'f' ) {
+            skipLiteral( source );
+            return b == 't';
+        }
+        return readFloat( source ) != 0f;
+    }
+
+    // a quoted string (no escape handling), or the text of a bare value; null for JSON null
+    static String readString( BufferedSource source ) throws IOException, JSONException {
+        skipWhitespace( source );
+        byte b = peek( source );
+        if( b == '"' ) {
+            source.skip( 1 );
+            long length = source.indexOf( (byte) '"' );
+            if( length < 0 ) throw new JSONException( "Unterminated string in device response" );
+            String value = source.readUtf8( length );
+            source.skip( 1 );
+            return value;
+        }
+        long length = source.indexOfElement( VALUE_DELIMITERS );
+        if( length < 0 ) throw new JSONException( "Unterminated value in device response" );
+        String value = source.readUtf8( length );
+        return "null".equals( value )? null : value;
+    }
+
+    // skip over any value, including nested objects and arrays
+    static void skipValue( BufferedSource source ) throws IOException, JSONException {
+        skipWhitespace( source );
+        byte b = peek( source );
+        if( b == '"' ) {
+            source.skip( 1 );
+            skipRestOfString( source );
+        } else if( b == '{' || b == '[' ) {
+            source.skip( 1 );
+            int depth = 1;
+            while( depth > 0 ) {
+                b = source.readByte( );
+                if( b == '"' ) skipRestOfString( source );
+                else if( b == '{' || b == '[' ) depth++;
+                else if( b == '}' || b == ']' ) depth--;
+            }
+        } else {
+            long length = source.indexOfElement( VALUE_DELIMITERS );
+            if( length < 0 ) throw new JSONException( "Unterminated value in device response" );
+            source.skip( length );
+        }
+    }
+
+
+    private static void skipRestOfString( BufferedSource source ) throws IOException, JSONException {
+        while( true ) {
+            long index = source.indexOfElement( STRING_DELIMITERS );
+            if( index < 0 ) throw new JSONException( "Unterminated string in device response" );
+            if( source.buffer().getByte( index ) == '\\' ) {
+                source.skip( index + 2 );  // the backslash and whatever it escapes
+            } else {
+                source.skip( index + 1 );
+                return;
+            }
+        }
+    }
+
+    private static void skipLiteral( BufferedSource source ) throws IOException {  // true, false, null, nan, inf...
+        while( source.request( 1 ) ) {
+            byte b = source.buffer().getByte( 0 );
+            if( (b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z') ) source.skip( 1 );
+            else return;
+        }
+    }
+
+    private static void skipWhitespace( BufferedSource source ) throws IOException {
+        while( source.request( 1 ) ) {
+            byte b = source.buffer().getByte( 0 );
+            if( b == ' ' || b == '\n' || b == '\r' || b == '\t' ) source.skip( 1 );
+            else return;
+        }
+    }
+
+    private static byte peek( BufferedSource source ) throws IOException {
+        source.require( 1 );  // EOFException if the body ended early
+        return source.buffer().getByte( 0 );
+    }
+
+    private static boolean isDigit( byte b ) {
+        return b >= '0' && b <= '9';
+    }
+
+    private static double scale( long mantissa, int exponent ) {
+        if( mantissa == 0L ) return 0d;
+        if( exponent == 0 ) return mantissa;
+        if( exponent > 0 ) {
+            return exponent < POWERS_OF_TEN.length? mantissa * POWERS_OF_TEN[exponent] : mantissa * Math.pow( 10d, exponent );
+        }
+        return -exponent < POWERS_OF_TEN.length? mantissa / POWERS_OF_TEN[-exponent] : mantissa / Math.pow( 10d, -exponent );
+    }
+
+}
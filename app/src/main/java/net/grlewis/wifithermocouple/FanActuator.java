@@ -0,0 +1,25 @@
+package net.grlewis.wifithermocouple;
+
+import io.reactivex.Completable;
+
+// What BBQController needs from the thing that drives the fan: WiFiCommunicator for a real box,
+// or something that sets a SmokerPlantModel's duty directly for a simulated cook.
+interface FanActuator {
+    
+    Completable setFan( boolean on );        // completes once the fan is switched
+    
+    default void prepare( ) { }              // a command is due in PREWARM_LEAD_MILLIS (e.g. open a connection)
+    
+    default void outputChanged( boolean on, long atMillis ) { }  // the fan actually switched (setFan() succeeded with a new state);
+                                                                  // atMillis is on the controller's Scheduler clock
+    
+    // the device's own timer: fan on for percent% of every cycleSecs (until setFan() is used again)
+    default boolean supportsDutyCycle( ) { return false; }
+    
+    default Completable setDutyCycle( int percent, int cycleSecs ) {
+        return Completable.error( new UnsupportedOperationException( "no duty cycle control" ) );
+    }
+    
+    // stop the device's timer, so fan/on & fan/off alone decide the fan (nothing to do if there's no timer)
+    default Completable disableDutyCycle( ) { return Completable.complete(); }
+}
@@ -0,0 +1,267 @@
+package net.grlewis.wifithermocouple;
+
+import java.util.Comparator;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+
+/*
+ * Offline PID tuning: searches gain, the three coefficients, minimum output and period for the set
+ * that best controls a smoker, scoring each candidate on a simulated cook.
+ *
+ * The smoker is a SmokerPlantModel fitted to a recorded cook (PlantFitter), and the cook copies the
+ * trace: same starting temperature, setpoint and length, plus a lid opening (lidDropDeg at lidOpenFraction
+ * of the way through) so a set that only handles the warm-up doesn't win. The simulation is the
+ * PID loop's own arithmetic (PidKernel) and time-proportioning (fan on for pct% of each period, not at
+ * all below minOutPct, never off above 100 - minOutPct), sampled every SAMPLE_SECS.
+ *
+ * Cost (lower is better), with adjustable Weights:
+ *     overshoot        degrees above the setpoint, worst after first reaching it (incl. after the lid)
+ *     settling         minutes until the pit stays within SETTLE_BAND_DEG of the setpoint
+ *     fan switches     per hour (wear, and a network round trip each)
+ *     mean |error|     integrated absolute error after first reaching the setpoint, per second
+ *
+ * Search: a round of random candidates within Bounds, then rounds sampling around the best so far with
+ * the range halved each round. Every round is a parallel stream over the common fork/join pool (all cores);
+ * each candidate's randomness comes from its own SplittableRandom, so results don't depend on scheduling.
+ *
+ * usage:
+ *     PlantFitter.Fit plant = new PlantFitter( trace, 70d ).fit();
+ *     GainOptimizer.Report report = GainOptimizer.forTrace( trace, plant ).optimize( currentTuning, 2000, 6, 1L );
+ *     report.best.tuning.applyTo( pidState );   // or .toJson()
+ *
+ * to run it on a recorded trace from the command line, see GainOptimizerTool (test classpath).
+ *
+ */
+
+class GainOptimizer {
+
+    static final double SAMPLE_SECS = 1d;          // how often the simulated pit is "polled"
+    static final float SETTLE_BAND_DEG = 5f;
+
+
+    // how much each cost term counts
+    static final class Weights {
+        final double perDegOvershoot;
+        final double perMinuteSettling;
+        final double perFanSwitchPerHour;
+        final double perDegMeanError;
+
+        Weights( double perDegOvershoot, double perMinuteSettling, double perFanSwitchPerHour, double perDegMeanError ) {
+            this.perDegOvershoot = perDegOvershoot;
+            this.perMinuteSettling = perMinuteSettling;
+            this.perFanSwitchPerHour = perFanSwitchPerHour;
+            this.perDegMeanError = perDegMeanError;
+        }
+
+        static final Weights DEFAULT = new Weights( 1d, 0.1d, 0.01d, 2d );
+    }
+
+
+    // the search space
+    static final class Bounds {
+        final PidTuning min;
+        final PidTuning max;
+
+        Bounds( PidTuning min, PidTuning max ) {
+            this.min = min;
+            this.max = max;
+        }
+
+        static final Bounds DEFAULT = new Bounds( new PidTuning( 0.5f, 0.5f, 0f, 0f, 0f, 5f ),
+                new PidTuning( 2f, 30f, 5f, 60f, 20f, 30f ) );
+    }
+
+
+    // one candidate's simulated cook
+    static final class Score {
+        final PidTuning tuning;
+        final double cost;
+        final float overshootDeg;
+        final double settlingSecs;     // the whole cook if it never settled
+        final long fanSwitches;
+        final float meanAbsErrorDeg;
+
+        Score( PidTuning tuning, double cost, float overshootDeg, double settlingSecs, long fanSwitches, float meanAbsErrorDeg ) {
+            this.tuning = tuning;
+            this.cost = cost;
+            this.overshootDeg = overshootDeg;
+            this.settlingSecs = settlingSecs;
+            this.fanSwitches = fanSwitches;
+            this.meanAbsErrorDeg = meanAbsErrorDeg;
+        }
+
+        @Override
+        public String toString( ) {
+            return "cost " + (float) cost + ": overshoot " + overshootDeg + " deg, settled in " + (float) ( settlingSecs / 60d )
+                    + " min, " + fanSwitches + " fan switches, mean |error| " + meanAbsErrorDeg + " deg; " + tuning;
+        }
+    }
+
+
+    // the result of a search
+    static final class Report {
+        final Score baseline;          // the starting tuning
+        final Score best;
+        final long evaluated;
+        final long elapsedNanos;
+
+        Report( Score baseline, Score best, long evaluated, long elapsedNanos ) {
+            this.baseline = baseline;
+            this.best = best;
+            this.evaluated = evaluated;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        double candidatesPerSecond( ) {
+            return elapsedNanos == 0L? 0d : evaluated * 1e9d / elapsedNanos;
+        }
+
+        @Override
+        public String toString( ) {
+            return "GainOptimizer: " + evaluated + " candidates in " + TimeUnit.NANOSECONDS.toMillis( elapsedNanos ) + " ms ("
+                    + Math.round( candidatesPerSecond() ) + "/s on " + Runtime.getRuntime().availableProcessors()
+                    + " cores)\n  baseline " + baseline + "\n  best     " + best;
+        }
+    }
+
+
+    private final PlantFitter.Fit plant;
+    private final float startTemp;
+    private final float setPoint;
+    private final double durationSecs;
+    private double lidOpenFraction = 2d / 3d;
+    private double lidDropDeg = 40d;
+    private Weights weights = Weights.DEFAULT;
+    private Bounds bounds = Bounds.DEFAULT;
+
+
+    // constructor
+    GainOptimizer( PlantFitter.Fit plant, float startTemp, float setPoint, double durationSecs ) {
+        if( Float.isNaN( setPoint ) ) throw new IllegalArgumentException( "no setpoint" );
+        this.plant = plant;
+        this.startTemp = startTemp;
+        this.setPoint = setPoint;
+        this.durationSecs = durationSecs;
+    }
+
+    // the cook a trace recorded, on the plant fitted to it
+    static GainOptimizer forTrace( CookTrace trace, PlantFitter.Fit plant ) {
+        return new GainOptimizer( plant, trace.getTemp( 0 ), trace.getFinalSetPoint(), trace.getDurationSecs() );
+    }
+
+
+    // setters return the optimizer so you can chain
+    GainOptimizer setWeights( Weights weights ) {
+        this.weights = weights;
+        return this;
+    }
+
+    GainOptimizer setBounds( Bounds bounds ) {
+        this.bounds = bounds;
+        return this;
+    }
+
+    // no lid opening if drop is 0
+    GainOptimizer setLidOpening( double fractionOfCook, double dropDeg ) {
+        lidOpenFraction = fractionOfCook;
+        lidDropDeg = dropDeg;
+        return this;
+    }
+
+
+    Report optimize( PidTuning start, int candidatesPerRound, int rounds, long seed ) {
+        long startNanos = System.nanoTime();
+        Score baseline = evaluate( start );
+        Score best = baseline;
+        double spread = 1d;  // fraction of the bounds sampled around the best
+        for( int round = 0; round < rounds; round++ ) {
+            final PidTuning center = best.tuning;
+            final double range = spread;
+            final long roundSeed = seed * 1000003L + round;
+            Score roundBest = IntStream.range( 0, candidatesPerRound ).parallel()
+                    .mapToObj( i -> evaluate( sample( center, range, new SplittableRandom( roundSeed * 7919L + i ) ) ) )
+                    .min( Comparator.comparingDouble( score -> score.cost ) )
+                    .get();
+            if( roundBest.cost < best.cost ) best = roundBest;
+            spread /= 2d;  // the first round covered everything; each one after it half the range of the last
+        }
+        return new Report( baseline, best, 1L + (long) candidatesPerRound * rounds, System.nanoTime() - startNanos );
+    }
+
+    // uniform in the bounds (range 1), or within +/- range of the bounds' width around center
+    private PidTuning sample( PidTuning center, double range, SplittableRandom random ) {
+        return new PidTuning(
+                pick( center.gain, bounds.min.gain, bounds.max.gain, range, random ),
+                pick( center.propCoeff, bounds.min.propCoeff, bounds.max.propCoeff, range, random ),
+                pick( center.intCoeff, bounds.min.intCoeff, bounds.max.intCoeff, range, random ),
+                pick( center.diffCoeff, bounds.min.diffCoeff, bounds.max.diffCoeff, range, random ),
+                pick( center.minOutPct, bounds.min.minOutPct, bounds.max.minOutPct, range, random ),
+                pick( center.periodSecs, bounds.min.periodSecs, bounds.max.periodSecs, range, random ) );
+    }
+
+    private static float pick( float center, float min, float max, double range, SplittableRandom random ) {
+        if( range >= 1d ) return (float) ( min + ( max - min ) * random.nextDouble() );
+        double value = center + ( max - min ) * range * ( 2d * random.nextDouble() - 1d );
+        return (float) Math.max( min, Math.min( max, value ) );
+    }
+
+
+    // one simulated cook (what BBQController's loop would do with this tuning)
+    Score evaluate( PidTuning tuning ) {
+        SmokerPlantModel model = plant.newModel();
+        model.reset( startTemp );
+        long periodNanos = Math.max( 1L, Math.round( tuning.periodSecs * 1e9d ) );
+        PidKernel kernel = new PidKernel( tuning.gain, tuning.propCoeff, tuning.intCoeff, tuning.diffCoeff, periodNanos )
+                .setSetPoint( setPoint ).primeSample( startTemp );
+
+        double lidAt = lidDropDeg > 0d? durationSecs * lidOpenFraction : Double.MAX_VALUE;
+        double nextLoopAt = 0d, fanOffAt = 0d;
+        boolean fanOn = false, reached = false;
+        long switches = 0L;
+        float overshoot = 0f, temp = startTemp;
+        double lastOutsideBand = 0d, absErrorSum = 0d, reachedSecs = 0d;
+        for( double t = 0d; t < durationSecs; t += SAMPLE_SECS ) {
+            if( t >= nextLoopAt ) {  // a PID iteration: decide this period's on-time
+                float pct = kernel.step( temp, periodNanos );
+                double periodSecs = tuning.periodSecs;
+                if( pct < tuning.minOutPct ) fanOffAt = t;
+                else if( pct >= 100f - tuning.minOutPct ) fanOffAt = t + periodSecs;
+                else fanOffAt = t + periodSecs * pct / 100f;
+                nextLoopAt = t + periodSecs;
+            }
+            boolean on = t < fanOffAt;
+            if( on != fanOn ) {
+                fanOn = on;
+                switches++;
+                model.setFanDuty( on? 1f : 0f );
+            }
+            if( t >= lidAt ) {
+                model.openLid( lidDropDeg );
+                lidAt = Double.MAX_VALUE;
+            }
+            model.step( SAMPLE_SECS );
+            temp = model.getTemp();
+
+            float error = temp - setPoint;
+            if( !reached && error >= 0f ) {
+                reached = true;
+                reachedSecs = t;
+            }
+            if( reached ) {
+                overshoot = Math.max( overshoot, error );
+                absErrorSum += Math.abs( error ) * SAMPLE_SECS;
+            }
+            if( Math.abs( error ) > SETTLE_BAND_DEG ) lastOutsideBand = t + SAMPLE_SECS;
+        }
+
+        double settlingSecs = reached? lastOutsideBand : durationSecs;
+        float meanAbsError = reached? (float) ( absErrorSum / Math.max( SAMPLE_SECS, durationSecs - reachedSecs ) ) : Float.MAX_VALUE;
+        double hours = durationSecs / 3600d;
+        double cost = weights.perDegOvershoot * overshoot
+                + weights.perMinuteSettling * settlingSecs / 60d
+                + weights.perFanSwitchPerHour * switches / hours
+                + ( reached? weights.perDegMeanError * meanAbsError : 1e6d );
+        return new Score( tuning, cost, overshoot, settlingSecs, switches, meanAbsError );
+    }
+}
@@ -37,7 +37,9 @@ import io.reactivex.disposables.CompositeDisposable;
 import io.reactivex.disposables.Disposable;
 import io.reactivex.schedulers.Schedulers;
 
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static net.grlewis.wifithermocouple.Constants.DEBUG;
+import static net.grlewis.wifithermocouple.Constants.UI_UPDATE_CONFLATE_MILLIS;
 
 import com.androidplot.xy.*;
 
@@ -65,6 +67,7 @@ public class GraphActivity extends AppCompatActivity implements ServiceConnectio
     Disposable tempUpdateDisp;
     Disposable tempSliderDisp;
     Disposable pidParameterChangesDisp;   // Service impl
+    long shownPidVersion = -1L;           // version of the PIDState snapshot on screen (so a resubscribe doesn't redraw it)
     Disposable graphDataUpdateDisp;       // relay of graphing data
     Disposable serviceConnectionDisp;
     
@@ -232,13 +235,12 @@ public class GraphActivity extends AppCompatActivity implements ServiceConnectio
         
         // handle clicks on the temperature update button (manual update) TODO: so far only affects UI, not PID
         tempUpdateDisp = tempUpdateObservable.subscribe(
-                click -> appInstance.wifiCommunicator.tempFGetter.get()
-                        .map( tempJSON -> (float) tempJSON.getDouble( "TempF" ) )  // NEW
+                click -> appInstance.wifiCommunicator.tempFReader
                         .retry( 2 )  // NEW: get a bad reading occasionally
                         .observeOn( AndroidSchedulers.mainThread() )
                         .subscribe(
-                                tempFloat -> {
-                                    updateTempButton.setText( "LAST READING: " + tempFloat + "°F" );
+                                reading -> {
+                                    updateTempButton.setText( "LAST READING: " + reading.temp + "°F" );
                                     if( DEBUG ) Log.d( TAG, "Temp manually updated successfully" );
                                 },
                                 tempErr -> {
@@ -327,16 +329,19 @@ public class GraphActivity extends AppCompatActivity implements ServiceConnectio
         
         // This updates the UI except for the (NEW) temp history graph and perhaps other stuff  TODO: move?
         // note should probably take effect in onStart() because app is visible, if not interactable
-        pidParameterChangesDisp = appInstance.pidState.pidStatePublisher
+        pidParameterChangesDisp = appInstance.pidState.conflatedUpdates( UI_UPDATE_CONFLATE_MILLIS, MILLISECONDS )  // one redraw per burst
                 .observeOn( AndroidSchedulers.mainThread() )  // don't forget!
+                .filter( updatedParams -> updatedParams.isNewerThan( shownPidVersion ) )
                 .subscribe(  // receive updated parameters & redraw UI
                         updatedParams -> {
+                            shownPidVersion = updatedParams.version;
                             updateTempButton.setText( "Current Temperature: " + updatedParams.currentVariableValue + "°F" );
                             togglePIDButton.setText( "PID enabled: " + updatedParams.enabled
                                     + (updatedParams.intClamped? " (clamped)" : "") );
                             toggleFanButton.setText( "PID output on: " + updatedParams.outputOn );
-                            setTempButton.setText( "Current Setpoint: " + updatedParams.setPoint + "°F" );
-                            if( DEBUG ) Log.d( TAG, "pidStatePublisher updated parameters" );
+                            setTempButton.setText( "Current Setpoint: "
+                                    + ( updatedParams.hasSetPoint()? updatedParams.setPoint + "°F" : "not set" ) );
+                            if( DEBUG ) Log.d( TAG, "pidState updated parameters to version " + updatedParams.version );
                         }
                 );
         onStopDisp.add( pidParameterChangesDisp );  // dispose in onStop()
@@ -0,0 +1,37 @@
+package net.grlewis.wifithermocouple;
+
+import java.util.concurrent.TimeUnit;
+
+import io.reactivex.Scheduler;
+
+/*
+ * A Scheduler whose now() is System.nanoTime() rather than the wall clock, wrapped around one that
+ * does the actual scheduling (the PID Looper's). Scheduler.now() defaults to System.currentTimeMillis(),
+ * which jumps when the user or the network changes the time: a step back would stall the PID loop's
+ * fixed-rate timeline (and the fan) for as long as the step, and a step forward would hand the
+ * integrator a huge dt. Delays are unaffected (Handler.postDelayed() is on uptimeMillis()).
+ *
+ * usage:
+ *     Scheduler pidScheduler = new MonotonicScheduler( AndroidSchedulers.from( looper ) );
+ *     Scheduler timerScheduler = new MonotonicScheduler( Schedulers.computation() );  // DeviceRequestScheduler
+ *
+ */
+
+class MonotonicScheduler extends Scheduler {
+
+    private final Scheduler delegate;
+
+    MonotonicScheduler( Scheduler delegate ) {
+        this.delegate = delegate;
+    }
+
+    @Override
+    public long now( TimeUnit unit ) {
+        return unit.convert( System.nanoTime(), TimeUnit.NANOSECONDS );
+    }
+
+    @Override
+    public Worker createWorker( ) {
+        return delegate.createWorker();  // (callers only ask the Scheduler for the time, or scheduleDirect())
+    }
+}
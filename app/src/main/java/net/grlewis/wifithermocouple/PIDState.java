@@ -1,13 +1,22 @@
 package net.grlewis.wifithermocouple;
 
 // Class to store current PID applicationState and to use for a library of states
-// We're using objects so the null state means "undefined"
+// The getters use objects so the null state means "undefined" (NaN in the snapshots)
+// Changes are made in change sets (edit() ... commit()): each commit swaps in a new immutable Parameters
+// snapshot (primitives, with a version number & timestamp) with a compare-and-set and publishes it
+// exactly once, so observers never see half a change set or a value changing under them
 
 import android.util.Log;
 
 import java.io.Serializable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
+import io.reactivex.Observable;
+import io.reactivex.Scheduler;
+import io.reactivex.schedulers.Schedulers;
 import io.reactivex.subjects.BehaviorSubject;
+import io.reactivex.subjects.Subject;
 
 import static net.grlewis.wifithermocouple.Constants.*;
 
@@ -15,32 +24,37 @@ class PIDState implements Cloneable, Serializable {
     
     private final static String TAG = PIDState.class.getSimpleName();
     
-    private Parameters parameters;
-    BehaviorSubject<Parameters> pidStatePublisher;
-    private boolean publishChanges;
-    private Float previousAnalogIn;
+    // the current snapshot (change sets are copy-on-write through an Editor)
+    private final AtomicReference<Parameters> parameters;
+    private final Subject<Parameters> pidStatePublisher;  // every committed snapshot, oldest first
+    private final Object publishLock = new Object( );
+    private long lastPublishedVersion;                    // guarded by publishLock
     
-    class Parameters implements Cloneable, Serializable {
+    // immutable snapshot of every parameter, in primitives (NaN means "undefined" for a float)
+    static final class Parameters implements Serializable {
         
-         Float setPoint;
-         Float currentVariableValue;
-        private Float previousVariableValue;
-        private Float gain;
-        private Float propCoeff;
-        private Float intCoeff;
-        private Float diffCoeff;
-         Boolean intClamped;         // is the integrator term clamped?
-        private Float currentPctg;   // last value of % on time for each period
-        private Float intAccum;      // the accumulated integral term
-        private Float periodSecs;    // seconds for loop repeat interval
-         Boolean enabled;            // is the PID enabled?
-        private Boolean reset;       // has it been reset?
-         Boolean outputOn;           // is the fan, heater, whatever currently on?
-        private Float minOutPct;     // the minimum controlled output percentage that will cause turnon (or minimum diff from 100% that will turnoff)
-        
-        private Float analogInVolts; // 0.0-1.0 (-1 means not set)
+        final long version;                // 0 for the initial values, then +1 per commit
+        final long capturedAtMillis;       // when it was committed
+        final float setPoint;
+        final float currentVariableValue;
+        final float previousVariableValue;
+        final float gain;
+        final float propCoeff;
+        final float intCoeff;
+        final float diffCoeff;
+        final boolean intClamped;          // is the integrator term clamped?
+        final float currentPctg;           // last value of % on time for each period
+        final float intAccum;              // the accumulated integral term
+        final float periodSecs;            // seconds for loop repeat interval
+        final boolean enabled;             // is the PID enabled?
+        final boolean reset;               // has it been reset?
+        final boolean outputOn;            // is the fan, heater, whatever currently on?
+        final float minOutPct;             // the minimum controlled output percentage that will cause turnon (or minimum diff from 100% that will turnoff)
+        final float analogInVolts;         // 0.0-1.0 (-1 means not set)
         
         Parameters() {  // constructor to set initial values
+            version = 0L;
+            capturedAtMillis = System.currentTimeMillis();
             setPoint = DEFAULT_SETPOINT;  // can't run if we haven't defined this
             currentVariableValue = 0f;
             previousVariableValue = 0f;
@@ -60,207 +74,242 @@ class PIDState implements Cloneable, Serializable {
             analogInVolts = -1f;
         }
         
-        @Override  // don't have to implement because all contents are immutable
-        public Parameters clone() throws CloneNotSupportedException {
-            return (Parameters) super.clone();
+        // constructor for the next version: the previous snapshot with an Editor's changes applied
+        private Parameters( Parameters previous, Editor changes, long capturedAtMillis ) {
+            version = previous.version + 1;
+            this.capturedAtMillis = capturedAtMillis;
+            int changed = changes.changed;
+            setPoint = ( changed & Editor.SET_POINT ) != 0? changes.setPoint : previous.setPoint;
+            currentVariableValue = ( changed & Editor.CURRENT ) != 0? changes.currentVariableValue : previous.currentVariableValue;
+            previousVariableValue = ( changed & Editor.PREVIOUS ) != 0? changes.previousVariableValue
+                    : changes.previousFromCurrent? previous.currentVariableValue  // (as it was before this change set)
+                    : previous.previousVariableValue;
+            gain = ( changed & Editor.GAIN ) != 0? changes.gain : previous.gain;
+            propCoeff = ( changed & Editor.PROP ) != 0? changes.propCoeff : previous.propCoeff;
+            intCoeff = ( changed & Editor.INT ) != 0? changes.intCoeff : previous.intCoeff;
+            diffCoeff = ( changed & Editor.DIFF ) != 0? changes.diffCoeff : previous.diffCoeff;
+            intClamped = ( changed & Editor.CLAMPED ) != 0? changes.intClamped : previous.intClamped;
+            currentPctg = ( changed & Editor.PCTG ) != 0? changes.currentPctg : previous.currentPctg;
+            intAccum = ( changed & Editor.ACCUM ) != 0? changes.intAccum : previous.intAccum;
+            periodSecs = ( changed & Editor.PERIOD ) != 0? changes.periodSecs : previous.periodSecs;
+            enabled = ( changed & Editor.ENABLED ) != 0? changes.enabled : previous.enabled;
+            reset = ( changed & Editor.RESET ) != 0? changes.reset : previous.reset;
+            outputOn = ( changed & Editor.OUTPUT_ON ) != 0? changes.outputOn : previous.outputOn;
+            minOutPct = ( changed & Editor.MIN_OUT ) != 0? changes.minOutPct : previous.minOutPct;
+            analogInVolts = ( changed & Editor.ANALOG ) != 0? changes.analogInVolts : previous.analogInVolts;
+        }
+        
+        boolean hasSetPoint( ) { return !Float.isNaN( setPoint ); }
+        boolean isNewerThan( long seenVersion ) { return version > seenVersion; }
+        
+        @Override
+        public String toString( ) {
+            return "PIDState v" + version + " at " + capturedAtMillis + ": setpoint " + setPoint + ", temp "
+                    + currentVariableValue + ", output " + currentPctg + "%" + ( enabled? "" : " (disabled)" )
+                    + ( intClamped? " (clamped)" : "" );
         }
     }  // class Parameters
     
     
+    // a change set: call any of the setters, then commit() to apply them all at once with one notification
+    // usage: pidState.edit().setEnabled( true ).setIntAccum( 0f ).commit();
+    // (a null Float means "undefined" and is stored as NaN)
+    class Editor {
+        
+        static final int SET_POINT = 1, CURRENT = 1 << 1, PREVIOUS = 1 << 2, GAIN = 1 << 3, PROP = 1 << 4,
+                INT = 1 << 5, DIFF = 1 << 6, CLAMPED = 1 << 7, PCTG = 1 << 8, ACCUM = 1 << 9, PERIOD = 1 << 10,
+                ENABLED = 1 << 11, RESET = 1 << 12, OUTPUT_ON = 1 << 13, MIN_OUT = 1 << 14, ANALOG = 1 << 15;
+        
+        private int changed;  // which of the below are set
+        private float setPoint, currentVariableValue, previousVariableValue, gain, propCoeff, intCoeff, diffCoeff,
+                currentPctg, intAccum, periodSecs, minOutPct, analogInVolts;
+        private boolean intClamped, enabled, reset, outputOn;
+        private boolean previousFromCurrent;  // previousVariableValue = currentVariableValue as of the commit
+        
+        Editor setSetPoint( Float value ) { setPoint = orNaN( value ); changed |= SET_POINT; return this; }
+        Editor setCurrentVariableValue( float value ) { currentVariableValue = value; changed |= CURRENT; return this; }
+        Editor setPreviousVariableValue( float value ) { previousVariableValue = value; changed |= PREVIOUS; return this; }
+        Editor updatePreviousVariableValue( ) { previousFromCurrent = true; return this; }
+        Editor setGain( float value ) { gain = value; changed |= GAIN; return this; }
+        Editor setPropCoeff( float value ) { propCoeff = value; changed |= PROP; return this; }
+        Editor setIntCoeff( float value ) { intCoeff = value; changed |= INT; return this; }
+        Editor setDiffCoeff( float value ) { diffCoeff = value; changed |= DIFF; return this; }
+        Editor setIntClamped( boolean value ) { intClamped = value; changed |= CLAMPED; return this; }
+        Editor setCurrentPctg( float value ) { currentPctg = value; changed |= PCTG; return this; }
+        Editor setIntAccum( float value ) { intAccum = value; changed |= ACCUM; return this; }
+        Editor setPeriodSecs( Float value ) { periodSecs = orNaN( value ); changed |= PERIOD; return this; }
+        Editor setEnabled( boolean value ) { enabled = value; changed |= ENABLED; return this; }
+        Editor setReset( boolean value ) { reset = value; changed |= RESET; return this; }
+        Editor setOutputOn( boolean value ) { outputOn = value; changed |= OUTPUT_ON; return this; }
+        Editor setMinOutPctg( Float value ) { minOutPct = orNaN( value ); changed |= MIN_OUT; return this; }
+        Editor setAnalogInVolts( float value ) { analogInVolts = value; changed |= ANALOG; return this; }
+        
+        // apply every change atomically (retrying against concurrent commits) and publish the result once
+        Parameters commit( ) {
+            long now = System.currentTimeMillis();
+            Parameters current, next;
+            do {
+                current = parameters.get();
+                next = new Parameters( current, this, now );
+            } while( !parameters.compareAndSet( current, next ) );
+            publish( next );
+            return next;
+        }
+    }  // class Editor
+    
+    
     
     // constructor
     PIDState() {
-        parameters = new Parameters();
-        pidStatePublisher = BehaviorSubject.createDefault( parameters );
-        publishChanges = true;  // by default, publish changes
+        this( new Parameters() );
+    }
+    
+    // constructor starting from a given snapshot (e.g. one saved in a library of states)
+    PIDState( Parameters initial ) {
+        parameters = new AtomicReference<>( initial );
+        lastPublishedVersion = initial.version;
+        pidStatePublisher = BehaviorSubject.createDefault( initial ).toSerialized();  // commits come from several threads
         if( DEBUG ) Log.d( TAG, "exiting constructor" );
     }
     
     
-    // GETTERS & SETTERS
+    // start a change set
+    Editor edit( ) {
+        return new Editor( );
+    }
+    
+    // the latest committed snapshot
+    Parameters snapshot( ) {
+        return parameters.get();
+    }
     
-    // publishing control (not part of PIDController interface)
-    public boolean publishingChanges( ) {
-        return publishChanges;
+    // every commit, starting with the current snapshot
+    Observable<Parameters> updates( ) {
+        return pidStatePublisher;
     }
-    public void setPublishChanges( boolean publishChanges ) {  // called from BBQController
-        this.publishChanges = publishChanges;
+    
+    // only snapshots newer than one already seen (e.g. when a UI resubscribes)
+    Observable<Parameters> updatesAfter( long seenVersion ) {
+        return pidStatePublisher.filter( snapshot -> snapshot.isNewerThan( seenVersion ) );
+    }
+    
+    // commits conflated for a UI: at most one per interval, always ending with the latest
+    Observable<Parameters> conflatedUpdates( long interval, TimeUnit unit, Scheduler scheduler ) {
+        return pidStatePublisher.throttleLatest( interval, unit, scheduler, true );
     }
     
-    // not in interface, called from PID Control Loop
-    void updatePreviousVariableValue( ) {  // sets it equal to CurrentVariableValue (FIXME: avoiding a crash?)
-        this.parameters.previousVariableValue = this.parameters.currentVariableValue;
-        //pidStatePublisher.onNext( parameters );  // TODO: do we need this?
+    Observable<Parameters> conflatedUpdates( long interval, TimeUnit unit ) {
+        return conflatedUpdates( interval, unit, Schedulers.computation() );
+    }
+    
+    // the CAS is lock-free, but two committers can reach here out of order: never publish a snapshot older than one already sent
+    private void publish( Parameters next ) {
+        synchronized( publishLock ) {
+            if( next.version <= lastPublishedVersion ) return;  // superseded before it could be sent
+            lastPublishedVersion = next.version;
+            pidStatePublisher.onNext( next );
+        }
+    }
+    
+    private static float orNaN( Float value ) { return value == null? Float.NaN : value; }
+    private static Float orNull( float value ) { return Float.isNaN( value )? null : value; }
+    
+    
+    // GETTERS & SETTERS
+    // (each single setter is its own change set; use edit() to change several things with one notification)
+    // Float getters return null for "undefined"
+    
+    // not in interface: the results of one PID loop iteration (from PidKernel), published once
+    void recordIteration( float intAccum, boolean intClamped, float currentPctg ) {
+        edit().setIntAccum( intAccum )
+                .setIntClamped( intClamped )
+                .setCurrentPctg( currentPctg )
+                .updatePreviousVariableValue()
+                .commit();
+    }
+    
+    
+    // not in interface: load a tuning (e.g. GainOptimizer's winner) as one change set
+    Parameters load( PidTuning tuning ) {
+        return tuning.applyTo( this );
     }
     
     
     // Methods handling calls forwarded from BBQController implementation of PIDController
     
     // The PID setpoint
-    Float getSetPoint( ) {
-        return parameters.setPoint;
-    }       // called from BBQController
-    void set( Float setPoint ) {                               // called from BBQController
-        this.parameters.setPoint = setPoint;
-        pidStatePublisher.onNext( parameters );
-    }
+    Float getSetPoint( ) { return orNull( parameters.get().setPoint ); }        // called from BBQController
+    void set( Float setPoint ) { edit().setSetPoint( setPoint ).commit(); }     // called from BBQController
     
     // current value of the controlled variable (i.e., temperature)
-    Float getCurrentVariableValue( ) { return parameters.currentVariableValue; }    // called from BBQController
-    void setCurrentVariableValue( Float currentVariableValue ) {          // called from BBQController
-        this.parameters.currentVariableValue = currentVariableValue;
-        pidStatePublisher.onNext( parameters );
+    Float getCurrentVariableValue( ) { return orNull( parameters.get().currentVariableValue ); }  // called from BBQController
+    void setCurrentVariableValue( Float currentVariableValue ) {                                // called from BBQController
+        edit().setCurrentVariableValue( orNaN( currentVariableValue ) ).commit();
     }
     
     // previous value of the controlled variable (updated on each iteration)
-    Float getPreviousVariableValue( ) {                               // called from BBQController
-        return parameters.previousVariableValue;
+    Float getPreviousVariableValue( ) { return orNull( parameters.get().previousVariableValue ); }  // called from BBQController
+    void setPreviousVariableValue( Float previousVariableValue ) {                                // called from BBQController
+        edit().setPreviousVariableValue( orNaN( previousVariableValue ) ).commit();
     }
-    void setPreviousVariableValue( Float previousVariableValue ) {    // called from BBQController
-        this.parameters.previousVariableValue = previousVariableValue;
-        pidStatePublisher.onNext( parameters );
-    }
-   
     
     // overall gain of PID
-    Float getGain( ) {
-        return parameters.gain;
-    }          // called from BBQController
-    void setGain( Float gain ) {                          // called from BBQController
-        this.parameters.gain = gain;
-        pidStatePublisher.onNext( parameters );
-    }
+    Float getGain( ) { return orNull( parameters.get().gain ); }                // called from BBQController
+    void setGain( Float gain ) { edit().setGain( orNaN( gain ) ).commit(); }    // called from BBQController
     
     // coefficient of the proportional term
-    Float getPropCoeff( ) {
-        return parameters.propCoeff;
-    }    // called from BBQController
-    void setPropCoeff( Float propCoeff ) {                    // called from BBQController
-        this.parameters.propCoeff = propCoeff;
-        pidStatePublisher.onNext( parameters );
-    }
+    Float getPropCoeff( ) { return orNull( parameters.get().propCoeff ); }      // called from BBQController
+    void setPropCoeff( Float propCoeff ) { edit().setPropCoeff( orNaN( propCoeff ) ).commit(); }
     
     // coefficient of the integral term
-    Float getIntCoeff( ) {
-        return parameters.intCoeff;
-    }      // called from BBQController
-    void setIntCoeff( Float intCoeff ) {                      // called from BBQController
-        this.parameters.intCoeff = intCoeff;
-        pidStatePublisher.onNext( parameters );
-    }
+    Float getIntCoeff( ) { return orNull( parameters.get().intCoeff ); }        // called from BBQController
+    void setIntCoeff( Float intCoeff ) { edit().setIntCoeff( orNaN( intCoeff ) ).commit(); }
     
     // coefficient of the differential term
-    Float getDiffCoeff( ) {
-        return parameters.diffCoeff;
-    }    // called from BBQController
-    void setDiffCoeff( Float diffCoeff ) {                    // called from BBQController
-        this.parameters.diffCoeff = diffCoeff;
-        pidStatePublisher.onNext( parameters );
-    }
+    Float getDiffCoeff( ) { return orNull( parameters.get().diffCoeff ); }      // called from BBQController
+    void setDiffCoeff( Float diffCoeff ) { edit().setDiffCoeff( orNaN( diffCoeff ) ).commit(); }
     
     // whether the integrator is currently clamped
-    Boolean intIsClamped( ) {
-        return parameters.intClamped;
-    }       // called from BBQController
-    void setIntClamped( Boolean intClamped ) {                      // called from BBQController
-        this.parameters.intClamped = intClamped;
-        pidStatePublisher.onNext( parameters );
-    }
+    Boolean intIsClamped( ) { return parameters.get().intClamped; }             // called from BBQController
+    void setIntClamped( Boolean intClamped ) { edit().setIntClamped( intClamped ).commit(); }
     
     // most recent % of "full on" of the controlled device
-    Float getCurrentPctg( ) {
-        return parameters.currentPctg;
-    }
-    void setCurrentPctg( Float currentPctg ) {
-        this.parameters.currentPctg = currentPctg;
-        pidStatePublisher.onNext( parameters );
-    }
+    Float getCurrentPctg( ) { return orNull( parameters.get().currentPctg ); }
+    void setCurrentPctg( Float currentPctg ) { edit().setCurrentPctg( orNaN( currentPctg ) ).commit(); }
     
     // current value of the accumulated integral term
-    Float getIntAccum( ) {
-        return parameters.intAccum;
-    }
-    void setIntAccum( Float intAccum ) {                      // called from BBQController
-        this.parameters.intAccum = intAccum;
-        pidStatePublisher.onNext( parameters );
-    }
+    Float getIntAccum( ) { return orNull( parameters.get().intAccum ); }
+    void setIntAccum( Float intAccum ) { edit().setIntAccum( orNaN( intAccum ) ).commit(); }  // called from BBQController
     
     // current repeat interval in seconds
-    Float getPeriodSecs( ) {
-        return parameters.periodSecs;
-    }  // called from BBQController
-    void setPeriodSecs( Float periodSecs ) {                  // called from BBQController
-        this.parameters.periodSecs = periodSecs;
-        pidStatePublisher.onNext( parameters );
-    }
+    Float getPeriodSecs( ) { return orNull( parameters.get().periodSecs ); }    // called from BBQController
+    void setPeriodSecs( Float periodSecs ) { edit().setPeriodSecs( periodSecs ).commit(); }
     
     // whether PID operation is enabled
-    Boolean isEnabled( ) { return parameters.enabled; }          // called from BBQController
-    void setEnabled( Boolean enabled ) {  // TODO: shut heat off when disabling     // called from BBQController
-        this.parameters.enabled = enabled;
-        pidStatePublisher.onNext( parameters );
-    }
+    Boolean isEnabled( ) { return parameters.get().enabled; }                   // called from BBQController
+    void setEnabled( Boolean enabled ) { edit().setEnabled( enabled ).commit(); }  // TODO: shut heat off when disabling
     
     // reset controller
-    Boolean isReset( ) {
-        return parameters.reset;
-    }              // called from BBQController
-    void setReset( Boolean reset ) {                             // called from BBQController
-        this.parameters.reset = reset;
-        pidStatePublisher.onNext( parameters );
-    }
+    Boolean isReset( ) { return parameters.get().reset; }                       // called from BBQController
+    void setReset( Boolean reset ) { edit().setReset( reset ).commit(); }       // called from BBQController
     
     // whether the output device (fan, heater, etc.) is currently on or off
-    Boolean outputIsOn( ) { return parameters.outputOn; }       // called from BBQController
-    void setOutputOn( Boolean outOn ) {                         // called from BBQController
-        this.parameters.outputOn = outOn;
-        pidStatePublisher.onNext( parameters );
-    }
+    Boolean outputIsOn( ) { return parameters.get().outputOn; }                 // called from BBQController
+    void setOutputOn( Boolean outOn ) { edit().setOutputOn( outOn ).commit(); } // called from BBQController
     
-    Float getMinOutPctg( ) { return parameters.minOutPct; }     // called from BBQController
-    void setMinOutPctg( Float minOutPct ) {                     // called from BBQController
-        this.parameters.minOutPct = minOutPct;
-        pidStatePublisher.onNext( parameters );
-    }
+    Float getMinOutPctg( ) { return orNull( parameters.get().minOutPct ); }     // called from BBQController
+    void setMinOutPctg( Float minOutPct ) { edit().setMinOutPctg( minOutPct ).commit(); }
     
-    Float getAnalogInVolts( ) { return parameters.analogInVolts; }
+    Float getAnalogInVolts( ) { return orNull( parameters.get().analogInVolts ); }
     void setAnalogInVolts( Float analogVolts ) {
-        this.parameters.analogInVolts = analogVolts;
-        if( !analogVolts.equals( previousAnalogIn ) ) {  // only publish if value changed
-            pidStatePublisher.onNext( parameters );
-            previousAnalogIn = analogVolts;
-        }
+        if( analogVolts != parameters.get().analogInVolts )  // only publish if value changed
+            edit().setAnalogInVolts( analogVolts ).commit();
     }
     
     
+    // an independent PIDState starting from this one's current snapshot (snapshots are immutable, so sharing it is safe)
     @Override
-    // If all you do is implement Cloneable, only subclasses and members of the same package
-    // will be able to invoke clone() on the object. To enable any class in any package
-    // to access the clone() method, you have to override it and declare it public
-    // So this whole thing (except 'implements Cloneable') may be unnecessary.
-    // (one source indicated this method should return Object (cast to PIDState))
-    public PIDState clone( ) throws CloneNotSupportedException {
-        PIDState theClone = (PIDState) super.clone();  // Object.clone() returns an Object
-
-//  Since boxed primitives are immutable, this apparently is not necessary:
-//        theClone.setPoint = Float.valueOf( setPoint );  // just copying references? will we get NPE?
-//        theClone.currentVariableValue = Float.valueOf( currentVariableValue );
-//        theClone.previousVariableValue = Float.valueOf( previousVariableValue );
-//        theClone.gain = Float.valueOf( gain );
-//        theClone.propCoeff = Float.valueOf( propCoeff );
-//        theClone.intCoeff = Float.valueOf( intCoeff );
-//        theClone.diffCoeff = Float.valueOf( diffCoeff );
-//        theClone.intClamped = Boolean.valueOf( intClamped );
-//        theClone.currentPctg = Float.valueOf( currentPctg ) ;
-//        theClone.intAccum = Float.valueOf( intAccum );
-//        theClone.periodSecs = Float.valueOf( periodSecs );
-//        theClone.enabled = Boolean.valueOf( enabled );
-//        theClone.reset = Boolean.valueOf( reset );
-//        theClone.outputOn = Boolean.valueOf( outputOn );
-//        theClone.minOutPct = Float.valueOf( minOutPct );
-//
-//        theClone.analogInVolts = Float.valueOf( analogInVolts );
-        
-        return theClone;
+    public PIDState clone( ) {
+        return new PIDState( parameters.get() );
     }
 }
@@ -0,0 +1,146 @@
+package net.grlewis.wifithermocouple;
+
+/*
+ * The PID arithmetic, on primitives only: no boxing, no publishing, no allocation in step().
+ * BBQController feeds it one temperature sample per loop iteration and mirrors the results into PIDState.
+ *
+ * Same algorithm the PID loop has always used (NI's sign convention: error = setpoint - sample):
+ *     P = Kp * error
+ *     I = I + Ki * error * dt/period      (skipped while clamped)
+ *     D = Kd * ( sample - previous ) * period/dt
+ *     output = gain * ( P + I - D ), limited to 0..100%
+ * Coefficients are "per nominal period", so with dt == period (the usual case) this is exactly the
+ * old loop; a late or early iteration is scaled rather than over- or under-integrating.
+ *
+ * Anti-windup is the old intClamped logic (conditional integration): if the output saturated and the
+ * integral has the same sign as the error, the integral is frozen for the next step.
+ *
+ * Not thread-safe: use it from the PID loop's thread (setters from elsewhere go through BBQController,
+ * which is synchronized).
+ *
+ */
+
+class PidKernel {
+
+    static final float MIN_OUTPUT = 0f;
+    static final float MAX_OUTPUT = 100f;
+
+    // parameters
+    private float setPoint = Float.NaN;    // NaN = not set (output is 0)
+    private float gain;
+    private float propCoeff;
+    private float intCoeff;
+    private float diffCoeff;
+    private long periodNanos;
+
+    // state
+    private float intAccum;
+    private boolean clamped;
+    private float previousSample = Float.NaN;  // NaN until the first sample (no derivative kick)
+
+    // results of the last step, for logging & publishing
+    private float error;
+    private float proportionalTerm;
+    private float integralTerm;
+    private float differentialTerm;
+    private float output;
+
+
+    // constructor
+    PidKernel( float gain, float propCoeff, float intCoeff, float diffCoeff, long periodNanos ) {
+        setGains( gain, propCoeff, intCoeff, diffCoeff );
+        setPeriodNanos( periodNanos );
+        clamped = true;  // like PIDState: start with no integration until the output comes off the stops
+    }
+
+
+    // setters return the kernel so you can chain
+    PidKernel setGains( float gain, float propCoeff, float intCoeff, float diffCoeff ) {
+        this.gain = gain;
+        this.propCoeff = propCoeff;
+        this.intCoeff = intCoeff;
+        this.diffCoeff = diffCoeff;
+        return this;
+    }
+
+    PidKernel setPeriodNanos( long periodNanos ) {
+        if( periodNanos <= 0L ) throw new IllegalArgumentException( "period must be positive" );
+        this.periodNanos = periodNanos;
+        return this;
+    }
+
+    PidKernel setSetPoint( float setPoint ) {
+        this.setPoint = setPoint;
+        return this;
+    }
+
+    PidKernel setClamped( boolean clamped ) {
+        this.clamped = clamped;
+        return this;
+    }
+
+    // clear the integrator (a new setpoint, start, reset)
+    PidKernel reset( boolean startClamped ) {
+        intAccum = 0f;
+        clamped = startClamped;
+        return this;
+    }
+
+    // preload the integrator (bumpless transfer: start from the output that was already holding)
+    PidKernel setIntAccum( float intAccum ) {
+        this.intAccum = intAccum;
+        clamped = false;
+        return this;
+    }
+
+    // the sample the next derivative is taken from (so the first step after a start doesn't kick)
+    PidKernel primeSample( float sample ) {
+        previousSample = sample;
+        return this;
+    }
+
+
+    // one iteration; returns the output % (0..100)
+    float step( float sample, long dtNanos ) {
+        if( Float.isNaN( setPoint ) || Float.isNaN( sample ) ) {  // nothing sensible to do: hold the state, output off
+            error = proportionalTerm = differentialTerm = 0f;
+            integralTerm = intAccum;
+            output = MIN_OUTPUT;
+            return output;
+        }
+        float dtRatio = dtNanos <= 0L? 1f : (float) dtNanos / periodNanos;
+
+        error = setPoint - sample;
+        proportionalTerm = error * propCoeff;
+        integralTerm = intAccum;
+        if( !clamped ) integralTerm += error * intCoeff * dtRatio;
+        intAccum = integralTerm;
+        differentialTerm = Float.isNaN( previousSample )? 0f : ( sample - previousSample ) * diffCoeff / dtRatio;
+        previousSample = sample;
+
+        float raw = gain * ( proportionalTerm + integralTerm - differentialTerm );
+
+        // clamped if output is out of range and the integral term and error have the same sign
+        clamped = ( raw > MAX_OUTPUT || raw < MIN_OUTPUT ) && ( integralTerm * error > 0f );
+        output = raw < MIN_OUTPUT? MIN_OUTPUT : raw > MAX_OUTPUT? MAX_OUTPUT : raw;
+        return output;
+    }
+
+
+    float getSetPoint( ) { return setPoint; }
+    float getIntAccum( ) { return intAccum; }
+    boolean isClamped( ) { return clamped; }
+    float getPreviousSample( ) { return previousSample; }
+    float getError( ) { return error; }
+    float getProportionalTerm( ) { return proportionalTerm; }
+    float getIntegralTerm( ) { return integralTerm; }
+    float getDifferentialTerm( ) { return differentialTerm; }
+    float getOutput( ) { return output; }
+    long getPeriodNanos( ) { return periodNanos; }
+
+    @Override
+    public String toString( ) {
+        return "PidKernel: setpoint " + setPoint + ", error " + error + ", P " + proportionalTerm + ", I " + integralTerm
+                + ", D " + differentialTerm + ", output " + output + ( clamped? " (clamped)" : "" );
+    }
+}
@@ -0,0 +1,75 @@
+package net.grlewis.wifithermocouple;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/*
+ * One set of PID tuning parameters: the part of a PIDState that a tuner chooses (gain, coefficients,
+ * minimum output and period) and nothing about the current run.
+ *
+ * GainOptimizer searches over these and exports the winner as JSON; applyTo() loads one into a
+ * PIDState as a single change set (one notification, and the loop picks it up on its next iteration).
+ *
+ *     {"gain":1.0,"propCoeff":5.0,"intCoeff":1.0,"diffCoeff":5.0,"minOutPct":5.0,"periodSecs":10.0}
+ *
+ */
+
+final class PidTuning {
+
+    final float gain;
+    final float propCoeff;
+    final float intCoeff;
+    final float diffCoeff;
+    final float minOutPct;
+    final float periodSecs;
+
+    PidTuning( float gain, float propCoeff, float intCoeff, float diffCoeff, float minOutPct, float periodSecs ) {
+        this.gain = gain;
+        this.propCoeff = propCoeff;
+        this.intCoeff = intCoeff;
+        this.diffCoeff = diffCoeff;
+        this.minOutPct = minOutPct;
+        this.periodSecs = periodSecs;
+    }
+
+    // the tuning part of a PIDState snapshot
+    static PidTuning from( PIDState.Parameters parameters ) {
+        return new PidTuning( parameters.gain, parameters.propCoeff, parameters.intCoeff, parameters.diffCoeff,
+                parameters.minOutPct, parameters.periodSecs );
+    }
+
+    // load into a PIDState in one commit
+    PIDState.Parameters applyTo( PIDState pidState ) {
+        return pidState.edit()
+                .setGain( gain )
+                .setPropCoeff( propCoeff )
+                .setIntCoeff( intCoeff )
+                .setDiffCoeff( diffCoeff )
+                .setMinOutPctg( minOutPct )
+                .setPeriodSecs( periodSecs )
+                .commit();
+    }
+
+
+    JSONObject toJson( ) throws JSONException {
+        return new JSONObject( )
+                .put( "gain", gain )
+                .put( "propCoeff", propCoeff )
+                .put( "intCoeff", intCoeff )
+                .put( "diffCoeff", diffCoeff )
+                .put( "minOutPct", minOutPct )
+                .put( "periodSecs", periodSecs );
+    }
+
+    static PidTuning fromJson( JSONObject json ) throws JSONException {
+        return new PidTuning( (float) json.getDouble( "gain" ), (float) json.getDouble( "propCoeff" ),
+                (float) json.getDouble( "intCoeff" ), (float) json.getDouble( "diffCoeff" ),
+                (float) json.getDouble( "minOutPct" ), (float) json.getDouble( "periodSecs" ) );
+    }
+
+    @Override
+    public String toString( ) {
+        return "PidTuning: gain " + gain + ", P " + propCoeff + ", I " + intCoeff + ", D " + diffCoeff
+                + ", min out " + minOutPct + "%, period " + periodSecs + " s";
+    }
+}
@@ -0,0 +1,164 @@
+package net.grlewis.wifithermocouple;
+
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+
+/*
+ * Fits a SmokerPlantModel to a recorded cook: finds the model constants for which replaying the
+ * trace's fan output through the model best reproduces its temperatures (least squares).
+ *
+ * Fitted: passiveRise, fanRise, the pit and fire time constants and the dead time. Ambient is given
+ * (it only trades off against passiveRise unless the pit starts cold or the lid is opened).
+ *
+ * A coarse grid (3 values of each, around SmokerPlantModel's defaults) picks the STARTS best starting
+ * points, then a pattern search refines each: try each constant scaled up and down by a step, move to
+ * the best improvement, halve the step when nothing improves. The grid and the refinements run in
+ * parallel on the common fork/join pool.
+ *
+ */
+
+class PlantFitter {
+
+    private static final int PARAMS = 5;                        // passiveRise, fanRise, pitTau, fireTau, deadTime
+    private static final double[] DEFAULTS = { 80d, 225d, 600d, 90d, 20d };
+    private static final double[] GRID_SCALES = { 0.6d, 1d, 1.6d };
+    private static final double START_STEP = 0.25d;             // fractional change per pattern move
+    private static final double MIN_STEP = 0.002d;
+    private static final int MAX_MOVES = 400;
+    private static final int STARTS = 8;                        // grid points refined (in parallel)
+
+
+    // fitted constants and how well they replay the trace
+    static final class Fit {
+        final double ambient;
+        final double passiveRise;
+        final double fanRise;
+        final double pitTauSecs;
+        final double fireTauSecs;
+        final double deadTimeSecs;
+        final double rmsError;       // degrees
+
+        private Fit( double ambient, double[] p, double rmsError ) {
+            this.ambient = ambient;
+            passiveRise = p[0];
+            fanRise = p[1];
+            pitTauSecs = p[2];
+            fireTauSecs = p[3];
+            deadTimeSecs = p[4];
+            this.rmsError = rmsError;
+        }
+
+        // a fresh model with these constants (models are stateful, so one per simulation)
+        SmokerPlantModel newModel( ) {
+            return new SmokerPlantModel( ambient, passiveRise, fanRise, pitTauSecs, fireTauSecs, deadTimeSecs );
+        }
+
+        @Override
+        public String toString( ) {
+            return "PlantFitter.Fit: ambient " + (float) ambient + ", passive +" + (float) passiveRise + ", fan +" + (float) fanRise
+                    + ", pit tau " + (float) pitTauSecs + " s, fire tau " + (float) fireTauSecs + " s, dead time "
+                    + (float) deadTimeSecs + " s; rms error " + (float) rmsError + " deg";
+        }
+    }
+
+
+    private final CookTrace trace;
+    private final double ambient;
+    private final AtomicInteger evaluations = new AtomicInteger( );
+
+
+    // constructor
+    PlantFitter( CookTrace trace, double ambient ) {
+        if( trace.size() < 2 ) throw new IllegalArgumentException( "trace too short to fit" );
+        this.trace = trace;
+        this.ambient = ambient;
+    }
+
+
+    Fit fit( ) {
+        // coarse grid: every combination of the scales, costed in parallel
+        int gridSize = (int) Math.pow( GRID_SCALES.length, PARAMS );
+        double[] gridCosts = IntStream.range( 0, gridSize ).parallel()
+                .mapToDouble( i -> cost( gridPoint( i ) ) )
+                .toArray();
+        evaluations.addAndGet( gridSize );
+
+        // pattern search from the best few (the fire lag and dead time can trade off into a local minimum)
+        double[] best = IntStream.range( 0, gridSize ).boxed()
+                .sorted( Comparator.comparingDouble( i -> gridCosts[i] ) )
+                .limit( STARTS )
+                .parallel()
+                .map( i -> refine( gridPoint( i ) ) )
+                .min( Comparator.comparingDouble( this::cost ) )
+                .get();
+        return new Fit( ambient, best, Math.sqrt( cost( best ) ) );
+    }
+
+    private double[] refine( double[] start ) {
+        double[] best = start;
+        double bestCost = cost( best );
+        double step = START_STEP;
+        for( int move = 0; move < MAX_MOVES && step > MIN_STEP; move++ ) {
+            double[] bestNeighbour = null;
+            double bestNeighbourCost = bestCost;
+            for( int i = 0; i < 2 * PARAMS; i++ ) {
+                double[] candidate = neighbour( best, i / 2, i % 2 == 0, step );
+                double candidateCost = cost( candidate );
+                if( candidateCost < bestNeighbourCost ) {
+                    bestNeighbour = candidate;
+                    bestNeighbourCost = candidateCost;
+                }
+            }
+            evaluations.addAndGet( 2 * PARAMS );
+            if( bestNeighbour != null ) {
+                best = bestNeighbour;
+                bestCost = bestNeighbourCost;
+            } else {
+                step /= 2d;
+            }
+        }
+        return best;
+    }
+
+    int getEvaluationCount( ) { return evaluations.get(); }
+
+
+    private double[] gridPoint( int index ) {
+        double[] p = new double[PARAMS];
+        for( int i = 0; i < PARAMS; i++ ) {
+            p[i] = DEFAULTS[i] * GRID_SCALES[index % GRID_SCALES.length];
+            index /= GRID_SCALES.length;
+        }
+        return p;
+    }
+
+    // scaled up or down by step; the dead time by whole seconds (the model keeps it in 1 s slots)
+    private static double[] neighbour( double[] p, int param, boolean up, double step ) {
+        double[] q = p.clone();
+        if( param == PARAMS - 1 ) q[param] += ( up? 1d : -1d ) * Math.max( 1d, Math.round( q[param] * step ) );
+        else q[param] *= up? 1d + step : 1d / ( 1d + step );
+        return q;
+    }
+
+    // mean squared error replaying the trace's fan output through a model with these constants
+    private double cost( double[] p ) {
+        if( p[0] < 0d || p[1] <= 0d || p[2] <= 0d || p[3] <= 0d || p[4] < 0d ) return Double.MAX_VALUE;
+        SmokerPlantModel model = new SmokerPlantModel( ambient, p[0], p[1], p[2], p[3], p[4] );
+        // start with the fire where it would hold the first temperature (a cold pit: out)
+        model.setFanDuty( (float) ( ( trace.getTemp( 0 ) - ambient - p[0] ) / p[1] ) );
+        model.reset( trace.getTemp( 0 ) );
+        double sum = 0d;
+        int n = 0;
+        for( int i = 1; i < trace.size(); i++ ) {
+            model.setFanDuty( trace.getFanDuty( i - 1 ) );
+            model.step( ( trace.getMillis( i ) - trace.getMillis( i - 1 ) ) / 1000d );
+            float recorded = trace.getTemp( i );
+            if( Float.isNaN( recorded ) ) continue;  // a bad reading in the trace
+            double error = recorded - model.getTemp();
+            sum += error * error;
+            n++;
+        }
+        return n == 0? Double.MAX_VALUE : sum / n;
+    }
+}
@@ -0,0 +1,206 @@
+package net.grlewis.wifithermocouple;
+
+import static net.grlewis.wifithermocouple.Constants.AUTOTUNE_CYCLES;
+import static net.grlewis.wifithermocouple.Constants.AUTOTUNE_HYSTERESIS_DEG;
+import static net.grlewis.wifithermocouple.Constants.AUTOTUNE_TIMEOUT_MINS;
+
+/*
+ * Relay (Astrom-Hagglund) auto-tuning: find PID coefficients for a smoker by experiment.
+ *
+ * Instead of PID, the fan is switched fully on when the pit falls hysteresis below the setpoint and off
+ * when it rises hysteresis above it. The pit then oscillates around the setpoint with a period and
+ * amplitude that say how fast and how strongly it responds:
+ *     ultimate period    Tu = time from one switch-off to the next (averaged)
+ *     ultimate gain      Ku = 4d / ( pi * sqrt( a^2 - h^2 ) )    % output per degree
+ * where d is the relay's half-swing (50%), a the oscillation's half-amplitude (peak to trough / 2) and
+ * h the hysteresis. The first cycle is discarded (the pit is usually coming up from cold) and the
+ * next AUTOTUNE_CYCLES are averaged.
+ *
+ * Ziegler-Nichols style rules turn Ku & Tu into Kc, Ti, Td; for PidKernel's per-period coefficients
+ * with loop period T (and the controller's overall gain g):
+ *     propCoeff = Kc / g,    intCoeff = Kc * T / Ti / g,    diffCoeff = Kc * Td / T / g
+ *
+ * It also measures the mean fan duty over the measured cycles: what it takes to hold the setpoint,
+ * which BBQController preloads into the integrator so the PID takes over without a bump.
+ *
+ * Not thread-safe; BBQController feeds it from its (synchronized) setCurrentVariableValue().
+ *
+ * usage:
+ *     RelayAutoTuner tuner = new RelayAutoTuner( 225f );
+ *     for each temperature sample:
+ *         boolean fanOn = tuner.sample( temp, nowMillis );
+ *         if( tuner.isFinished() ) { Result result = tuner.getResult(); ... }  // null if it failed
+ *
+ */
+
+class RelayAutoTuner {
+
+    private static final float RELAY_HALF_SWING_PCT = 50f;  // output swings 0% <-> 100%
+
+    // tuning rules: Kc = kc * Ku, Ti = ti * Tu, Td = td * Tu
+    enum Rule {
+        CLASSIC( 0.6f, 0.5f, 0.125f ),        // Ziegler-Nichols: quarter-amplitude decay (overshoots)
+        SOME_OVERSHOOT( 0.33f, 0.5f, 0.33f ),
+        NO_OVERSHOOT( 0.2f, 0.5f, 0.33f );    // gentle; what a long cook usually wants
+
+        final float kc, ti, td;
+
+        Rule( float kc, float ti, float td ) {
+            this.kc = kc;
+            this.ti = ti;
+            this.td = td;
+        }
+    }
+
+
+    // what the experiment found
+    static final class Result {
+        final float ultimateGain;        // Ku, % per degree
+        final float ultimatePeriodSecs;  // Tu
+        final float amplitudeDeg;        // a (half of peak to trough)
+        final float meanDutyPct;         // average fan output that held the setpoint
+
+        Result( float ultimateGain, float ultimatePeriodSecs, float amplitudeDeg, float meanDutyPct ) {
+            this.ultimateGain = ultimateGain;
+            this.ultimatePeriodSecs = ultimatePeriodSecs;
+            this.amplitudeDeg = amplitudeDeg;
+            this.meanDutyPct = meanDutyPct;
+        }
+
+        // PidKernel coefficients for a loop period and overall gain
+        float propCoeff( Rule rule, float gain ) {
+            return rule.kc * ultimateGain / gain;
+        }
+        float intCoeff( Rule rule, float gain, float periodSecs ) {
+            return rule.kc * ultimateGain * periodSecs / ( rule.ti * ultimatePeriodSecs ) / gain;
+        }
+        float diffCoeff( Rule rule, float gain, float periodSecs ) {
+            return rule.kc * ultimateGain * rule.td * ultimatePeriodSecs / periodSecs / gain;
+        }
+
+        @Override
+        public String toString( ) {
+            return "Ku " + ultimateGain + " %/deg, Tu " + ultimatePeriodSecs + " s, amplitude " + amplitudeDeg
+                    + " deg, mean duty " + meanDutyPct + "%";
+        }
+    }
+
+
+    private final float setPoint;
+    private final float hysteresis;
+    private final int cyclesToMeasure;
+    private final long timeoutMillis;
+
+    private long startMillis = -1L;    // -1 = no sample yet
+    private boolean relayOn;
+    private long lastSwitchOffMillis = -1L;
+    private long lastSwitchOnMillis;
+    private long onMillisThisCycle;
+    private float peak = -Float.MAX_VALUE;     // highest since the last switch-off (the off phase)
+    private float trough = Float.MAX_VALUE;    // lowest since the last switch-on (the on phase)
+    private float lastPeak = Float.NaN;        // from the previous off phase
+    private int cyclesSeen;                    // complete switch-off to switch-off cycles
+
+    private double periodSum, amplitudeSum, dutySum;
+    private int cyclesMeasured;
+
+    private boolean finished;
+    private Result result;                     // null until finished, and if it failed
+    private String failure;
+
+
+    // constructor
+    RelayAutoTuner( float setPoint, float hysteresis, int cyclesToMeasure, long timeoutMillis ) {
+        if( cyclesToMeasure < 1 ) throw new IllegalArgumentException( "need at least one cycle" );
+        this.setPoint = setPoint;
+        this.hysteresis = hysteresis;
+        this.cyclesToMeasure = cyclesToMeasure;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    // constructor with the defaults from Constants
+    RelayAutoTuner( float setPoint ) {
+        this( setPoint, AUTOTUNE_HYSTERESIS_DEG, AUTOTUNE_CYCLES, AUTOTUNE_TIMEOUT_MINS * 60000L );
+    }
+
+
+    // feed one temperature sample; returns whether the fan should be on (always off once finished)
+    boolean sample( float temp, long atMillis ) {
+        if( finished ) return false;
+        if( Float.isNaN( temp ) ) return relayOn;  // bad reading: leave the fan as it is
+        if( startMillis < 0L ) {
+            startMillis = atMillis;
+            relayOn = temp < setPoint;
+            lastSwitchOnMillis = atMillis;
+        }
+        if( atMillis - startMillis > timeoutMillis ) {
+            fail( "no steady oscillation after " + ( atMillis - startMillis ) / 60000L + " minutes" );
+            return false;
+        }
+
+        if( relayOn ) {
+            trough = Math.min( trough, temp );  // still falling for a while after switch-on (dead time)
+            if( temp > setPoint + hysteresis ) switchOff( atMillis );
+        } else {
+            peak = Math.max( peak, temp );      // still rising for a while after switch-off
+            if( temp < setPoint - hysteresis ) switchOn( atMillis );
+        }
+        return relayOn;
+    }
+
+    private void switchOn( long atMillis ) {
+        relayOn = true;
+        lastSwitchOnMillis = atMillis;
+        lastPeak = peak;
+        trough = Float.MAX_VALUE;
+    }
+
+    private void switchOff( long atMillis ) {
+        relayOn = false;
+        onMillisThisCycle = atMillis - lastSwitchOnMillis;
+        if( lastSwitchOffMillis >= 0L && !Float.isNaN( lastPeak ) ) {  // a full off phase + on phase since the last one
+            cyclesSeen++;
+            if( cyclesSeen > 1 ) {  // the first is the startup transient
+                long periodMillis = atMillis - lastSwitchOffMillis;
+                periodSum += periodMillis / 1000d;
+                amplitudeSum += ( lastPeak - trough ) / 2d;
+                dutySum += 100d * onMillisThisCycle / periodMillis;
+                cyclesMeasured++;
+            }
+        }
+        lastSwitchOffMillis = atMillis;
+        peak = -Float.MAX_VALUE;
+        if( cyclesMeasured >= cyclesToMeasure ) finish();
+    }
+
+    private void finish( ) {
+        float amplitude = (float) ( amplitudeSum / cyclesMeasured );
+        if( amplitude <= hysteresis ) {  // the relay can't be seen through the hysteresis
+            fail( "oscillation amplitude " + amplitude + " not above hysteresis " + hysteresis );
+            return;
+        }
+        float ultimateGain = (float) ( 4d * RELAY_HALF_SWING_PCT
+                / ( Math.PI * Math.sqrt( (double) amplitude * amplitude - (double) hysteresis * hysteresis ) ) );
+        result = new Result( ultimateGain, (float) ( periodSum / cyclesMeasured ), amplitude, (float) ( dutySum / cyclesMeasured ) );
+        finished = true;
+    }
+
+    private void fail( String why ) {
+        failure = why;
+        finished = true;
+    }
+
+
+    boolean isFinished( ) { return finished; }
+    Result getResult( ) { return result; }      // null if it failed or hasn't finished
+    String getFailure( ) { return failure; }    // null unless it failed
+    boolean isRelayOn( ) { return relayOn; }
+    int getCyclesMeasured( ) { return cyclesMeasured; }
+    float getSetPoint( ) { return setPoint; }
+
+    @Override
+    public String toString( ) {
+        return "RelayAutoTuner: setpoint " + setPoint + ", " + cyclesMeasured + "/" + cyclesToMeasure + " cycles"
+                + ( result != null? "; " + result : failure != null? "; failed: " + failure : "" );
+    }
+}
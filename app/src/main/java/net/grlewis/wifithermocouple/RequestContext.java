@@ -0,0 +1,71 @@
+package net.grlewis.wifithermocouple;
+
+import android.util.Log;
+
+import java.net.URL;
+import java.util.UUID;
+
+import io.reactivex.functions.Cancellable;
+import okhttp3.Call;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+
+import static net.grlewis.wifithermocouple.Constants.DEBUG;
+
+/*
+ * Everything that belongs to one subscription to an AsyncJSONGetter or AsyncHTTPRequester: its own
+ * OkHttp Call (tagged with its request UUID), the URL it was made for, its cancel hook and its timing.
+ *
+ * The getters are long-lived and subscribed to repeatedly, often with subscriptions overlapping (a poll
+ * still waiting while the next one starts, a retry, a second caller); keeping this per subscription
+ * rather than in the getter means disposing one can't cancel another's call, and log lines and errors
+ * carry the UUID of the request they're about.
+ *
+ * usage (in a SingleOnSubscribe):
+ *     RequestContext context = new RequestContext( client, uuid, url, "JSON" );
+ *     emitter.setCancellable( context );
+ *     context.call.enqueue( callback );  // which calls context.finished() first
+ *
+ */
+
+class RequestContext implements Cancellable {
+
+    private static final String TAG = RequestContext.class.getSimpleName();
+
+    final UUID uuid;
+    final URL url;
+    final Call call;
+    final long startNanos;
+    private final String kind;       // "JSON" or "HTTP", for the log
+    private volatile long endNanos;  // 0 until a response or failure comes back
+
+
+    // constructor
+    RequestContext( OkHttpClient client, UUID requestID, URL requestURL, String kind ) {
+        uuid = requestID;
+        url = requestURL;
+        this.kind = kind;
+        call = client.newCall( new Request.Builder( )
+                .url( requestURL )
+                .tag( UUID.class, requestID )
+                .build( ) );
+        startNanos = System.nanoTime();
+    }
+
+
+    void finished( ) { endNanos = System.nanoTime(); }
+
+    long getElapsedMillis( ) {
+        long end = endNanos;
+        return ( (end == 0L? System.nanoTime() : end) - startNanos ) / 1_000_000L;
+    }
+
+    @Override  // called when this subscription is disposed (including after it terminates)
+    public void cancel( ) {
+        if( endNanos == 0L && !call.isCanceled() ) {  // only abandon a call that's still outstanding
+            call.cancel();
+            if( DEBUG ) Log.d( TAG, ".cancel() called for " + kind + " request ID " + uuid.toString()
+                    + " to URL " + url.toString() + " after " + getElapsedMillis() + " ms" );
+        }
+    }
+}
@@ -0,0 +1,250 @@
+package net.grlewis.wifithermocouple;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import io.reactivex.Observable;
+import io.reactivex.Scheduler;
+import io.reactivex.schedulers.Schedulers;
+
+/*
+ * Latency histograms and outcome counts for every device request, by request class.
+ *
+ * The class is the UUID range the request was tagged with by its SerialUUIDSupplier (0x1000 watchdog
+ * enable ... 0x9000 pre-warmer; see Constants), so e.g. temperature reads and fan commands are kept
+ * apart without any changes to the requesters. Untagged requests land in class 0.
+ *
+ * ConnectionTimingListener feeds it the phases of each finished call:
+ *     DNS, CONNECT     only for calls that had to open a connection
+ *     SEND             request headers (and body) written
+ *     FIRST_BYTE       request written -> response headers received
+ *     TOTAL            call start -> response body closed (or failure)
+ * and whether the call failed, timed out (socket timeout) or was cancelled (usually a deadline expiring
+ * in DevicePoller or DeviceRequestScheduler).
+ *
+ * Memory is fixed: each histogram is an AtomicLongArray of log-scale buckets (8 per power of 2, so
+ * percentiles are within ~12%) covering 1 us to ~67 s; recording is lock-free and allocation-free.
+ *
+ * snapshot() takes a consistent-enough copy with p50/p95/p99 per phase; snapshots( period, unit )
+ * emits one periodically for the UI, a log, or a test.
+ *
+ */
+
+class RequestMetrics {
+
+    enum Phase { DNS, CONNECT, SEND, FIRST_BYTE, TOTAL }
+
+    private static final int CLASSES = 16;  // upper half 0x0000-0xF000, by its top hex digit
+    private static final String[] CLASS_NAMES = { "Other", "Watchdog Enable", "Watchdog Feed", "Temperature",
+            "Temp Update", "Fan Control", "Watchdog Status", "Analog Read", "Device Info", "Prewarm" };
+
+
+    // log-bucketed histogram of microsecond values in fixed memory
+    static final class LatencyHistogram {
+
+        private static final int SUB_BITS = 3;                   // 8 buckets per power of 2
+        private static final int SUB_COUNT = 1 << SUB_BITS;
+        private static final int MAX_EXPONENT = 26;              // 2^26 us = 67 s; anything longer goes in the top bucket
+        static final int BUCKETS = ( MAX_EXPONENT - SUB_BITS + 2 ) * SUB_COUNT;
+
+        private final AtomicLongArray counts = new AtomicLongArray( BUCKETS );
+        private final AtomicLong total = new AtomicLong( );
+        private final AtomicLong max = new AtomicLong( );
+
+        static int bucketOf( long micros ) {
+            if( micros < SUB_COUNT ) return micros < 0L? 0 : (int) micros;  // exact below 8 us
+            int exponent = 63 - Long.numberOfLeadingZeros( micros );
+            if( exponent > MAX_EXPONENT ) return BUCKETS - 1;
+            int sub = (int) ( micros >>> ( exponent - SUB_BITS ) ) & ( SUB_COUNT - 1 );
+            return ( exponent - SUB_BITS + 1 ) * SUB_COUNT + sub;
+        }
+
+        // the middle of a bucket's range, which is what a percentile reports
+        static long valueOf( int bucket ) {
+            if( bucket < SUB_COUNT ) return bucket;
+            int exponent = bucket / SUB_COUNT + SUB_BITS - 1;
+            long low = ( 1L << exponent ) + ( (long) ( bucket % SUB_COUNT ) << ( exponent - SUB_BITS ) );
+            return low + ( ( 1L << ( exponent - SUB_BITS ) ) >> 1 );
+        }
+
+        void record( long micros ) {
+            counts.incrementAndGet( bucketOf( micros ) );
+            total.incrementAndGet();
+            max.accumulateAndGet( micros, Math::max );
+        }
+
+        long getCount( ) { return total.get(); }
+        long getMaxMicros( ) { return max.get(); }
+
+        // fraction 0..1; 0 if nothing recorded
+        long percentileMicros( double fraction ) {
+            long n = total.get();
+            if( n == 0L ) return 0L;
+            long rank = Math.max( 1L, (long) Math.ceil( fraction * n ) );
+            long seen = 0L;
+            for( int bucket = 0; bucket < BUCKETS; bucket++ ) {
+                seen += counts.get( bucket );
+                if( seen >= rank ) return Math.min( valueOf( bucket ), max.get() );
+            }
+            return max.get();  // a record() landed between reading total and the buckets
+        }
+
+        void clear( ) {
+            for( int bucket = 0; bucket < BUCKETS; bucket++ ) counts.set( bucket, 0L );
+            total.set( 0L );
+            max.set( 0L );
+        }
+    }
+
+
+    // everything for one request class
+    private static final class ClassMetrics {
+        final LatencyHistogram[] phases = new LatencyHistogram[Phase.values().length];
+        final AtomicLong calls = new AtomicLong( );
+        final AtomicLong failures = new AtomicLong( );   // all failures, including the two below
+        final AtomicLong timeouts = new AtomicLong( );
+        final AtomicLong cancels = new AtomicLong( );
+
+        ClassMetrics( ) {
+            for( int i = 0; i < phases.length; i++ ) phases[i] = new LatencyHistogram( );
+        }
+    }
+
+
+    // immutable copy of one class's numbers (times in microseconds)
+    static final class ClassSnapshot {
+        final int classIndex;            // top hex digit of the UUID upper half (3 = 0x3000 temperature)
+        final String name;
+        final long calls, failures, timeouts, cancels;
+        final long[] p50 = new long[Phase.values().length];
+        final long[] p95 = new long[Phase.values().length];
+        final long[] p99 = new long[Phase.values().length];
+        final long[] max = new long[Phase.values().length];
+        final long[] samples = new long[Phase.values().length];
+
+        private ClassSnapshot( int classIndex, ClassMetrics metrics ) {
+            this.classIndex = classIndex;
+            name = classIndex < CLASS_NAMES.length? CLASS_NAMES[classIndex] : String.format( "0x%X000", classIndex );
+            calls = metrics.calls.get();
+            failures = metrics.failures.get();
+            timeouts = metrics.timeouts.get();
+            cancels = metrics.cancels.get();
+            for( Phase phase : Phase.values() ) {
+                LatencyHistogram histogram = metrics.phases[phase.ordinal()];
+                p50[phase.ordinal()] = histogram.percentileMicros( 0.50d );
+                p95[phase.ordinal()] = histogram.percentileMicros( 0.95d );
+                p99[phase.ordinal()] = histogram.percentileMicros( 0.99d );
+                max[phase.ordinal()] = histogram.getMaxMicros();
+                samples[phase.ordinal()] = histogram.getCount();
+            }
+        }
+
+        float getErrorRate( ) { return calls == 0L? 0f : (float) failures / calls; }
+        long p50Millis( Phase phase ) { return p50[phase.ordinal()] / 1000L; }
+        long p95Millis( Phase phase ) { return p95[phase.ordinal()] / 1000L; }
+        long p99Millis( Phase phase ) { return p99[phase.ordinal()] / 1000L; }
+
+        @Override
+        public String toString( ) {
+            StringBuilder builder = new StringBuilder( name ).append( ": " ).append( calls ).append( " calls, " )
+                    .append( failures ).append( " failed (" ).append( timeouts ).append( " timeouts, " )
+                    .append( cancels ).append( " cancelled)" );
+            for( Phase phase : Phase.values() ) {
+                if( samples[phase.ordinal()] == 0L ) continue;
+                builder.append( "; " ).append( phase ).append( " p50/95/99 " ).append( p50[phase.ordinal()] / 1000f )
+                        .append( '/' ).append( p95[phase.ordinal()] / 1000f ).append( '/' )
+                        .append( p99[phase.ordinal()] / 1000f ).append( " ms" );
+            }
+            return builder.toString();
+        }
+    }
+
+
+    // all classes that have seen any calls, at one moment
+    static final class Snapshot {
+        final long takenAtMillis;
+        final List<ClassSnapshot> classes;
+
+        private Snapshot( long takenAtMillis, List<ClassSnapshot> classes ) {
+            this.takenAtMillis = takenAtMillis;
+            this.classes = Collections.unmodifiableList( classes );
+        }
+
+        // null if that class hasn't been used
+        ClassSnapshot forClass( long upperHalf ) {
+            int index = classIndexOf( upperHalf );
+            for( ClassSnapshot snapshot : classes ) if( snapshot.classIndex == index ) return snapshot;
+            return null;
+        }
+
+        @Override
+        public String toString( ) {
+            return "RequestMetrics at " + takenAtMillis + ": " + classes;
+        }
+    }
+
+
+    private final ClassMetrics[] classes;
+
+
+    // constructor
+    RequestMetrics( ) {
+        classes = new ClassMetrics[CLASSES];
+        for( int i = 0; i < CLASSES; i++ ) classes[i] = new ClassMetrics( );
+    }
+
+
+    private static int classIndexOf( long upperHalf ) {
+        return upperHalf < 0L || upperHalf > 0xFFFFL? 0 : (int) ( upperHalf >>> 12 );
+    }
+
+    private ClassMetrics classOf( UUID tag ) {
+        return classes[tag == null? 0 : classIndexOf( tag.getMostSignificantBits() )];
+    }
+
+
+    // called by ConnectionTimingListener when a call finishes; phases not reached are negative
+    void record( UUID tag, long[] phaseNanos, boolean failed, boolean timedOut, boolean cancelled ) {
+        ClassMetrics metrics = classOf( tag );
+        metrics.calls.incrementAndGet();
+        if( failed ) metrics.failures.incrementAndGet();
+        if( timedOut ) metrics.timeouts.incrementAndGet();
+        if( cancelled ) metrics.cancels.incrementAndGet();
+        for( int i = 0; i < phaseNanos.length; i++ ) {
+            if( phaseNanos[i] >= 0L ) metrics.phases[i].record( phaseNanos[i] / 1000L );
+        }
+    }
+
+
+    Snapshot snapshot( ) {
+        List<ClassSnapshot> used = new ArrayList<>( );
+        for( int i = 0; i < CLASSES; i++ ) {
+            if( classes[i].calls.get() > 0L ) used.add( new ClassSnapshot( i, classes[i] ) );
+        }
+        return new Snapshot( System.currentTimeMillis(), used );
+    }
+
+    // a snapshot every period, starting after the first
+    Observable<Snapshot> snapshots( long period, TimeUnit unit, Scheduler scheduler ) {
+        return Observable.interval( period, unit, scheduler ).map( tick -> snapshot() );
+    }
+
+    Observable<Snapshot> snapshots( long period, TimeUnit unit ) {
+        return snapshots( period, unit, Schedulers.computation() );
+    }
+
+    void reset( ) {
+        for( ClassMetrics metrics : classes ) {
+            for( LatencyHistogram histogram : metrics.phases ) histogram.clear();
+            metrics.calls.set( 0L );
+            metrics.failures.set( 0L );
+            metrics.timeouts.set( 0L );
+            metrics.cancels.set( 0L );
+        }
+    }
+}
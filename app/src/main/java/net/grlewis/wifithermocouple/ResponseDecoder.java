@@ -0,0 +1,17 @@
+package net.grlewis.wifithermocouple;
+
+import org.json.JSONException;
+
+import java.io.IOException;
+import java.util.UUID;
+
+import okhttp3.Response;
+import okio.BufferedSource;
+
+// Turns the body of a successful JSON response into a value for AsyncJSONGetter to emit
+// (see DeviceResponseCodec for the ones we use; the Response is passed for its timestamps and headers)
+interface ResponseDecoder<T> {
+    
+    T decode( BufferedSource body, Response response, UUID requestUUID ) throws IOException, JSONException;
+    
+}
@@ -0,0 +1,177 @@
+package net.grlewis.wifithermocouple;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.jakewharton.rxrelay2.BehaviorRelay;
+
+import java.io.File;
+import java.io.IOException;
+
+import io.reactivex.disposables.CompositeDisposable;
+
+import static net.grlewis.wifithermocouple.Constants.COOKLOG_NEW_COOK_GAP_MINS;
+import static net.grlewis.wifithermocouple.Constants.DEBUG;
+import static net.grlewis.wifithermocouple.Constants.HISTORY_BUFFER_SIZE;
+
+/*
+ * Everything that belongs to one smoker: its endpoint, communicator (with its own request scheduler
+ * and pollers), PID state and controller, temperature filter, history (raw and filtered) and its
+ * rollups for long cooks, and the CookLog that makes the history survive a service restart.
+ *
+ * Devices don't share anything that can block: each has its own DeviceRequestScheduler, so a slow
+ * or dead box only ever queues its own requests, and its own PID Handler, so start()/stop() flushing
+ * callbacks can't touch another device's loop. The only shared pieces are WiFiCommunicator's
+ * OkHttpClient (asynchronous calls, one connection pool) and the service's PID thread, whose
+ * loop runnables never wait on the network.
+ *
+ * Created and started by DeviceRegistry.
+ *
+ */
+
+class SmokerDevice {
+    
+    private static final String TAG = SmokerDevice.class.getSimpleName();
+    
+    final DeviceEndpoint endpoint;
+    final PIDState pidState;
+    final WiFiCommunicator wifiCommunicator;
+    private volatile BBQController bbqController;  // replaced by start() with one running on the PID thread
+    
+    final TempFilter tempFilter;                    // between the thermocouple and the controller
+    final TempHistoryBuffer history;                // raw & filtered temps, duty %, setpoint; written only by onReading()
+    final BehaviorRelay<TempHistoryBuffer> tempHistRelay;  // the history, each time a reading is added
+    final TempRollups rollups;                      // 1, 5 and 15 minute min/max/mean/last of the filtered temp
+    private volatile CookLog cookLog;              // non-null while started with a log directory
+    
+    private final CompositeDisposable running;
+    private Handler pidHandler;                    // non-null while started; guarded by 'this'
+    
+    
+    // constructor
+    SmokerDevice( DeviceEndpoint endpoint ) {
+        this.endpoint = endpoint;
+        pidState = new PIDState( );
+        wifiCommunicator = new WiFiCommunicator( endpoint, pidState );
+        bbqController = new BBQController( pidState, wifiCommunicator, new Handler( Looper.getMainLooper() ) );
+        tempFilter = TempFilter.standard( TempFilter.Smoother.KALMAN );
+        history = new TempHistoryBuffer( HISTORY_BUFFER_SIZE, true );  // 12 hours at 5 s
+        tempHistRelay = BehaviorRelay.create();
+        rollups = new TempRollups( );
+        running = new CompositeDisposable( );
+    }
+    
+    
+    // start watchdog maintenance, temperature updates and the PID loop (on a Handler of its own on pidLooper),
+    // logging the cook in logDir (null: don't)
+    synchronized void start( Looper pidLooper, File logDir ) {
+        if( pidHandler != null ) return;  // already running
+        if( logDir != null ) openCookLog( logDir );
+        pidHandler = new Handler( pidLooper );
+        bbqController = new BBQController( pidState, wifiCommunicator, pidHandler );
+        
+        running.add( wifiCommunicator.watchDogMaintainObservable.subscribe() );
+        running.add( wifiCommunicator.tempFUpdater  // emits a TempReading every 1-20 seconds, depending on activity (failed ticks are skipped)
+                .subscribe(
+                        this::onReading,
+                        tempErr -> { if( DEBUG ) Log.d( TAG, "****** Error updating " + endpoint.name + " temp: "
+                                + tempErr.getMessage() + " ******" ); }
+                ) );
+        
+        pidHandler.removeCallbacksAndMessages( null );  // cancel any pending loop run (flush everything)
+        pidHandler.postDelayed( bbqController.pidLoopRunnable, 2000L );  // give it a couple seconds
+        if( DEBUG ) Log.d( TAG, "started " + endpoint );
+    }
+    
+    // stop polling and the PID loop (turns the fan off)
+    synchronized void stop( ) {
+        if( pidHandler == null ) return;
+        running.clear();  // kill all the subscriptions (disposing the watchdog maintainer disables the watchdog)
+        bbqController.stop();
+        pidHandler.removeCallbacksAndMessages( null );
+        pidHandler = null;
+        closeCookLog();
+        if( DEBUG ) Log.d( TAG, "stopped " + endpoint );
+    }
+    
+    // reopen this device's log; if it's the cook still going (written recently) and the history is empty
+    // (a new process), refill the history and rollups from it, otherwise archive it and start a new cook
+    // with an empty history and rollups (called before the temperature subscription, their only writer)
+    private void openCookLog( File logDir ) {
+        File file = new File( logDir, "cook-" + endpoint.name.replaceAll( "[^A-Za-z0-9_-]", "_" ) + ".log" );
+        try {
+            CookLog log = CookLog.open( file );
+            long idleMillis = System.currentTimeMillis() - log.getLastMillis();
+            if( log.size() > 0L && idleMillis > COOKLOG_NEW_COOK_GAP_MINS * 60000L ) {
+                log.startNewCook();  // (archives the old one)
+                history.clear();
+                rollups.clear();
+                tempHistRelay.accept( history );
+            } else if( history.getSequence() == 0L ) {
+                long began = System.nanoTime();
+                int recovered = log.recoverInto( history, rollups );
+                tempHistRelay.accept( history );
+                if( DEBUG ) Log.d( TAG, endpoint.name + ": recovered " + recovered + " readings in "
+                        + ( System.nanoTime() - began ) / 1000000L + " ms from " + log );
+            }
+            cookLog = log;
+        } catch( IOException e ) {
+            if( DEBUG ) Log.d( TAG, endpoint.name + ": no cook log (" + file + "): " + e.getMessage() );
+        }
+    }
+    
+    private void closeCookLog( ) {
+        CookLog log = cookLog;
+        cookLog = null;
+        if( log == null ) return;
+        try {
+            log.close();
+        } catch( IOException e ) {
+            if( DEBUG ) Log.d( TAG, endpoint.name + ": error closing " + log + ": " + e.getMessage() );
+        }
+    }
+    
+    synchronized boolean isStarted( ) { return pidHandler != null; }
+    
+    // append to the cook log (the PID terms are as of the controller's last evaluation)
+    private void logReading( TempReading reading, float filtered, Float duty, Float setPoint ) {
+        CookLog log = cookLog;
+        if( log == null ) return;
+        PidKernel kernel = bbqController.pidKernel;
+        Boolean fanOn = pidState.outputIsOn();
+        try {
+            log.append( reading.receivedAtMillis, reading.temp, filtered, setPoint == null? Float.NaN : setPoint,
+                    duty == null? Float.NaN : duty, fanOn != null && fanOn,
+                    kernel.getProportionalTerm(), kernel.getIntegralTerm(), kernel.getDifferentialTerm() );
+        } catch( IOException e ) {  // (e.g. storage full) keep cooking without it
+            if( DEBUG ) Log.d( TAG, endpoint.name + ": cook log failed, no longer logging: " + e.getMessage() );
+            closeCookLog();
+        }
+    }
+    
+    // a temperature reading: into the history raw and filtered, and to the controller filtered (if it survives the filter)
+    private void onReading( TempReading reading ) {
+        float filtered = tempFilter.filter( reading.temp, reading.receivedAtMillis );  // stays a primitive
+        Float duty = pidState.getCurrentPctg();
+        Float setPoint = pidState.getSetPoint();
+        history.add( reading.receivedAtMillis, reading.temp, filtered,  // when the device answered
+                duty == null? Float.NaN : duty, setPoint == null? Float.NaN : setPoint );
+        rollups.add( reading.receivedAtMillis, filtered );  // (skips NaN)
+        tempHistRelay.accept( history );  // relay the new history
+        logReading( reading, filtered, duty, setPoint );
+        if( Float.isNaN( filtered ) ) {  // NaN or implausible: the controller keeps the last good value
+            if( DEBUG ) Log.d( TAG, endpoint.name + ": reading " + reading.temp + " dropped; " + tempFilter );
+            return;
+        }
+        if( DEBUG ) Log.d( TAG, endpoint.name + ": new temp value relayed: " + reading.temp + " -> " + filtered + "; " + history );
+        bbqController.onSample( filtered, reading.receivedAtMillis );
+    }
+    
+    BBQController getBBQController( ) { return bbqController; }
+    
+    @Override
+    public String toString( ) {
+        return "SmokerDevice " + endpoint;
+    }
+}
@@ -0,0 +1,114 @@
+package net.grlewis.wifithermocouple;
+
+import java.util.Arrays;
+
+/*
+ * Simple thermal model of a smoker with a blower fan, for testing and tuning without a fire.
+ *
+ * The fire's heat output follows the fan duty cycle through a first-order lag (the coals take a while
+ * to respond to more air), delayed by a short dead time (air has to get through the firebox);
+ * the pit then approaches its equilibrium temperature through a second, slower lag:
+ *
+ *     fire'  = ( duty(t - deadTime) - fire ) / fireTau
+ *     temp'  = ( ambient + passiveRise + fanRise * fire - temp ) / pitTau
+ *
+ * so with the fan off the pit settles at ambient + passiveRise and with it full on at
+ * ambient + passiveRise + fanRise. openLid() knocks the pit temperature down instantly.
+ *
+ * Allocation-free after construction and deterministic (no noise, no clock): the caller decides
+ * how much time passes with step(). Synchronized, so a fake device can serve it from several threads.
+ *
+ */
+
+class SmokerPlantModel {
+
+    private static final double DEAD_TIME_RESOLUTION_SECS = 1d;  // the fan history is kept in slots this long
+
+    private final double ambient;
+    private final double passiveRise;     // degrees above ambient with the fan off
+    private final double fanRise;         // additional degrees with the fan on 100%
+    private final double pitTauSecs;
+    private final double fireTauSecs;
+
+    private final float[] dutyHistory;    // ring of past duty cycles, one per DEAD_TIME_RESOLUTION_SECS
+    private int historyIndex;
+    private double slotElapsedSecs;
+
+    private float duty;                   // 0..1 as commanded now
+    private double fire;                  // 0..1 lagged heat output
+    private double temp;
+    private double elapsedSecs;
+
+
+    // constructor
+    SmokerPlantModel( double ambient, double passiveRise, double fanRise, double pitTauSecs, double fireTauSecs,
+                      double deadTimeSecs ) {
+        if( pitTauSecs <= 0d || fireTauSecs <= 0d ) throw new IllegalArgumentException( "time constants must be positive" );
+        this.ambient = ambient;
+        this.passiveRise = passiveRise;
+        this.fanRise = fanRise;
+        this.pitTauSecs = pitTauSecs;
+        this.fireTauSecs = fireTauSecs;
+        dutyHistory = new float[Math.max( 1, (int) Math.round( deadTimeSecs / DEAD_TIME_RESOLUTION_SECS ) )];
+        temp = ambient;
+    }
+
+    // constructor with values roughly like a kettle grill with a blower (passive 150, full fan 375)
+    SmokerPlantModel( ) {
+        this( 70d, 80d, 225d, 600d, 90d, 20d );
+    }
+
+
+    // set the fan duty cycle (0..1; on/off control is just 0 or 1)
+    synchronized void setFanDuty( float duty ) {
+        this.duty = duty < 0f? 0f : duty > 1f? 1f : duty;
+    }
+    synchronized float getFanDuty( ) { return duty; }
+
+    // start from a given pit temperature with the fire in equilibrium with the current duty
+    synchronized void reset( double pitTemp ) {
+        temp = pitTemp;
+        fire = duty;
+        Arrays.fill( dutyHistory, duty );
+        slotElapsedSecs = 0d;
+        elapsedSecs = 0d;
+    }
+
+    // sudden drop in pit temperature
+    synchronized void openLid( double drop ) {
+        temp -= drop;
+        if( temp < ambient ) temp = ambient;
+    }
+
+
+    // advance the model; any step size is OK (it's integrated in sub-steps of at most a second)
+    synchronized void step( double dtSecs ) {
+        while( dtSecs > 0d ) {
+            double h = Math.min( dtSecs, DEAD_TIME_RESOLUTION_SECS - slotElapsedSecs );
+            double delayedDuty = dutyHistory[historyIndex];  // the oldest slot
+            fire += ( delayedDuty - fire ) * ( 1d - Math.exp( -h / fireTauSecs ) );
+            double equilibrium = ambient + passiveRise + fanRise * fire;
+            temp += ( equilibrium - temp ) * ( 1d - Math.exp( -h / pitTauSecs ) );
+            slotElapsedSecs += h;
+            elapsedSecs += h;
+            dtSecs -= h;
+            if( slotElapsedSecs >= DEAD_TIME_RESOLUTION_SECS ) {  // record this slot's duty, drop the oldest
+                slotElapsedSecs = 0d;
+                dutyHistory[historyIndex] = duty;
+                historyIndex = ( historyIndex + 1 ) % dutyHistory.length;
+            }
+        }
+    }
+
+
+    synchronized float getTemp( ) { return (float) temp; }
+    synchronized double getElapsedSecs( ) { return elapsedSecs; }
+    double getAmbient( ) { return ambient; }
+    double getMaxTemp( ) { return ambient + passiveRise + fanRise; }
+
+    @Override
+    public synchronized String toString( ) {
+        return "SmokerPlantModel: " + (float) temp + " deg at " + (float) elapsedSecs + " s, fan " + duty
+                + ", fire " + (float) fire;
+    }
+}
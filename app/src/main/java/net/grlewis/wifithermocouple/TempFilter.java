@@ -0,0 +1,248 @@
+package net.grlewis.wifithermocouple;
+
+import static net.grlewis.wifithermocouple.Constants.FILTER_JUMP_CONFIRM_SAMPLES;
+import static net.grlewis.wifithermocouple.Constants.FILTER_KALMAN_MEASUREMENT_VAR;
+import static net.grlewis.wifithermocouple.Constants.FILTER_KALMAN_PROCESS_VAR;
+import static net.grlewis.wifithermocouple.Constants.FILTER_MAX_JUMP_DEG;
+import static net.grlewis.wifithermocouple.Constants.FILTER_MAX_SLEW_DEG_PER_SEC;
+import static net.grlewis.wifithermocouple.Constants.FILTER_MEDIAN_SAMPLES;
+import static net.grlewis.wifithermocouple.Constants.FILTER_TAU_SECS;
+
+/*
+ * Cleans up thermocouple readings on their way from the device to the controller: a chain of stages,
+ * each taking a value and its timestamp and returning the value to pass on, or NaN to drop the reading.
+ *
+ * The standard chain:
+ *     NaN               firmware "nan" readings never get past the first stage
+ *     JumpReject        a reading implausibly far from the last good one (more than maxJumpDeg plus
+ *                       maxSlewDegPerSec for the time since) is dropped, unless confirmSamples in a row
+ *                       are (then the pit really did change, e.g. the lid was opened)
+ *     Median            median of the last N good readings: a one-sample spike never comes out
+ *     Ema or Kalman     smoothing, by time constant or as a 1-D random walk with measurement noise
+ * so the PID derivative term stops reacting to single-sample noise.
+ *
+ * Allocation-free after construction: stages keep their state in primitives and fixed arrays.
+ * Not thread-safe except through filter() and the getters (SmokerDevice feeds it from one subscription).
+ *
+ * usage:
+ *     TempFilter filter = TempFilter.standard( TempFilter.Smoother.KALMAN );
+ *     float temp = filter.filter( reading.temp, reading.receivedAtMillis );
+ *     if( !Float.isNaN( temp ) ) controller.onSample( temp, reading.receivedAtMillis );
+ *
+ */
+
+class TempFilter {
+
+    // one step of the chain
+    interface Stage {
+        float apply( float value, long atMillis );  // NaN = drop this reading
+        void reset( );
+    }
+
+    enum Smoother { NONE, EMA, KALMAN }
+
+
+    private Stage[] stages = new Stage[0];
+
+    // counters (guarded by 'this')
+    private long samples;
+    private long nanReadings;
+    private long rejected;               // dropped by a stage (not counting NaN readings)
+    private float lastRaw = Float.NaN;
+    private float lastFiltered = Float.NaN;
+
+
+    // the usual chain, with the constants from Constants
+    static TempFilter standard( Smoother smoother ) {
+        TempFilter filter = new TempFilter( )
+                .add( new JumpReject( FILTER_MAX_JUMP_DEG, FILTER_MAX_SLEW_DEG_PER_SEC, FILTER_JUMP_CONFIRM_SAMPLES ) )
+                .add( new Median( FILTER_MEDIAN_SAMPLES ) );
+        if( smoother == Smoother.EMA ) filter.add( new Ema( FILTER_TAU_SECS ) );
+        else if( smoother == Smoother.KALMAN ) filter.add( new Kalman( FILTER_KALMAN_PROCESS_VAR, FILTER_KALMAN_MEASUREMENT_VAR ) );
+        return filter;
+    }
+
+
+    // append a stage (returns the filter so you can chain)
+    synchronized TempFilter add( Stage stage ) {
+        Stage[] longer = new Stage[stages.length + 1];
+        System.arraycopy( stages, 0, longer, 0, stages.length );
+        longer[stages.length] = stage;
+        stages = longer;
+        return this;
+    }
+
+    // a raw reading; returns the filtered value, or NaN if the reading was dropped
+    synchronized float filter( float raw, long atMillis ) {
+        samples++;
+        lastRaw = raw;
+        if( Float.isNaN( raw ) ) {
+            nanReadings++;
+            return Float.NaN;
+        }
+        float value = raw;
+        for( Stage stage : stages ) {
+            value = stage.apply( value, atMillis );
+            if( Float.isNaN( value ) ) {
+                rejected++;
+                return Float.NaN;
+            }
+        }
+        lastFiltered = value;
+        return value;
+    }
+
+    // start over (e.g. a different probe)
+    synchronized void reset( ) {
+        for( Stage stage : stages ) stage.reset();
+        lastRaw = lastFiltered = Float.NaN;
+    }
+
+    synchronized long getSampleCount( ) { return samples; }
+    synchronized long getNanCount( ) { return nanReadings; }
+    synchronized long getRejectedCount( ) { return rejected; }
+    synchronized float getLastRaw( ) { return lastRaw; }
+    synchronized float getLastFiltered( ) { return lastFiltered; }  // NaN until a reading gets through
+
+    @Override
+    public synchronized String toString( ) {
+        return "TempFilter: " + samples + " readings, " + nanReadings + " NaN, " + rejected + " rejected; last "
+                + lastRaw + " -> " + lastFiltered;
+    }
+
+
+    // STAGES
+
+    // drops a reading too far from the last good one, unless enough in a row are
+    static final class JumpReject implements Stage {
+        private final float maxJumpDeg;
+        private final float maxSlewDegPerSec;
+        private final int confirmSamples;
+        private float lastGood = Float.NaN;
+        private long lastGoodMillis;
+        private int inARow;           // consecutive rejections
+
+        JumpReject( float maxJumpDeg, float maxSlewDegPerSec, int confirmSamples ) {
+            this.maxJumpDeg = maxJumpDeg;
+            this.maxSlewDegPerSec = maxSlewDegPerSec;
+            this.confirmSamples = confirmSamples;
+        }
+
+        @Override
+        public float apply( float value, long atMillis ) {
+            if( !Float.isNaN( lastGood ) ) {
+                float limit = maxJumpDeg + maxSlewDegPerSec * Math.max( 0L, atMillis - lastGoodMillis ) / 1000f;
+                if( Math.abs( value - lastGood ) > limit && ++inARow < confirmSamples ) return Float.NaN;
+            }
+            inARow = 0;
+            lastGood = value;
+            lastGoodMillis = atMillis;
+            return value;
+        }
+
+        @Override
+        public void reset( ) {
+            lastGood = Float.NaN;
+            inARow = 0;
+        }
+    }
+
+    // median of the last n values (fewer until it has n)
+    static final class Median implements Stage {
+        private final float[] window;
+        private final float[] sorted;  // scratch
+        private int count;
+        private int next;
+
+        Median( int n ) {
+            if( n < 1 ) throw new IllegalArgumentException( "need at least 1 sample" );
+            window = new float[n];
+            sorted = new float[n];
+        }
+
+        @Override
+        public float apply( float value, long atMillis ) {
+            window[next] = value;
+            next = ( next + 1 ) % window.length;
+            if( count < window.length ) count++;
+            for( int i = 0; i < count; i++ ) {  // insertion sort: n is tiny
+                float v = window[i];
+                int j = i;
+                while( j > 0 && sorted[j - 1] > v ) {
+                    sorted[j] = sorted[j - 1];
+                    j--;
+                }
+                sorted[j] = v;
+            }
+            return count % 2 == 1? sorted[count / 2] : ( sorted[count / 2 - 1] + sorted[count / 2] ) / 2f;
+        }
+
+        @Override
+        public void reset( ) {
+            count = next = 0;
+        }
+    }
+
+    // exponential moving average with a time constant (so irregular poll intervals weigh correctly)
+    static final class Ema implements Stage {
+        private final float tauSecs;
+        private float average = Float.NaN;
+        private long lastMillis;
+
+        Ema( float tauSecs ) {
+            this.tauSecs = tauSecs;
+        }
+
+        @Override
+        public float apply( float value, long atMillis ) {
+            if( Float.isNaN( average ) ) {
+                average = value;
+            } else {
+                float alpha = 1f - (float) Math.exp( -Math.max( 0L, atMillis - lastMillis ) / 1000d / tauSecs );
+                average += alpha * ( value - average );
+            }
+            lastMillis = atMillis;
+            return average;
+        }
+
+        @Override
+        public void reset( ) {
+            average = Float.NaN;
+        }
+    }
+
+    // 1-D Kalman filter: the pit temperature is a random walk (processVar deg^2 per second) seen through
+    // measurement noise (measurementVar deg^2)
+    static final class Kalman implements Stage {
+        private final float processVar;
+        private final float measurementVar;
+        private float estimate = Float.NaN;
+        private float variance;
+        private long lastMillis;
+
+        Kalman( float processVarPerSec, float measurementVar ) {
+            this.processVar = processVarPerSec;
+            this.measurementVar = measurementVar;
+        }
+
+        @Override
+        public float apply( float value, long atMillis ) {
+            if( Float.isNaN( estimate ) ) {
+                estimate = value;
+                variance = measurementVar;
+            } else {
+                variance += processVar * Math.max( 0L, atMillis - lastMillis ) / 1000f;  // predict
+                float gain = variance / ( variance + measurementVar );                 // update
+                estimate += gain * ( value - estimate );
+                variance *= 1f - gain;
+            }
+            lastMillis = atMillis;
+            return estimate;
+        }
+
+        @Override
+        public void reset( ) {
+            estimate = Float.NaN;
+        }
+    }
+}
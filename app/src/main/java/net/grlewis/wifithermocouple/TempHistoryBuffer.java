@@ -0,0 +1,165 @@
+package net.grlewis.wifithermocouple;
+
+/*
+ * Fixed-capacity temperature history in primitive columns: a ring of long[] timestamps and float[]
+ * raw and filtered temperatures, plus (optionally) the PID duty % and setpoint at the time.
+ * Replaces ArrayBlockingQueue<Pair<Date, Float>>: no Date, Pair or Float per sample, no lock, and
+ * capacity for a whole cook (HISTORY_BUFFER_SIZE) rather than an hour.
+ *
+ * One writer (the device's temperature subscription), any number of readers:
+ *     --add() writes the slot and then bumps the volatile sequence (the total ever added), so
+ *       everything below the sequence a reader sees is complete
+ *     --readers copy what they want and check the sequence again: if the writer lapped the oldest
+ *       slot they copied in the meantime, they copy again (a seqlock, validated by the sequence)
+ *     --and there are SLACK slots more than the readable capacity, so a writer adding a sample every
+ *       second or so can't get round to a slot while a copy of it is in progress (without a load fence,
+ *       which Java 8 / API 21 doesn't have, the recheck alone can't strictly promise that)
+ * Readers bring their own Snapshot (reused), so reading doesn't allocate either.
+ *
+ * The sequence doubles as a bookmark: readSince( seq, snapshot ) copies only what's been added after seq.
+ * clear() (a new cook) doesn't reset it, so bookmarks stay valid: it steps it past one unused slot and
+ * hides everything before, so a reader whose bookmark is from before the clear gets a gap and starts over.
+ *
+ * usage:
+ *     TempHistoryBuffer history = new TempHistoryBuffer( HISTORY_BUFFER_SIZE, true );
+ *     history.add( reading.receivedAtMillis, reading.temp, filtered, dutyPct, setPoint );  // writer
+ *     TempHistoryBuffer.Snapshot points = history.newSnapshot();                          // reader
+ *     long seen = history.readSince( 0L, points );  // everything it has; later: history.readSince( seen, points )
+ *
+ */
+
+class TempHistoryBuffer {
+
+    static final int SLACK = 64;                 // unreadable slots between the writer and the oldest readable one
+    private static final int MAX_RETRIES = 8;
+
+    private final int capacity;                  // readable
+    private final int slots;                     // capacity + SLACK
+    private final long[] millis;
+    private final float[] raw;
+    private final float[] temp;                  // filtered (NaN: the filter dropped the reading)
+    private final float[] dutyPct;               // null without control columns
+    private final float[] setPoint;              // null without control columns
+    private volatile long sequence;              // samples ever added; slot of sample n is n % slots
+    private volatile long clearedAt;             // the sequence at the last clear(): nothing before it is readable
+
+
+    // a reader's copy: oldest first, in arrays it owns (allocated once, capacity long)
+    static final class Snapshot {
+        final long[] millis;
+        final float[] raw;
+        final float[] temp;
+        final float[] dutyPct;                   // null if the buffer has no control columns
+        final float[] setPoint;
+        int size;
+        long firstSequence;                      // sequence number of the first sample copied
+        boolean gap;                             // true if samples after the 'since' it was read with had already been overwritten (or cleared)
+
+        private Snapshot( int capacity, boolean controlColumns ) {
+            millis = new long[capacity];
+            raw = new float[capacity];
+            temp = new float[capacity];
+            dutyPct = controlColumns? new float[capacity] : null;
+            setPoint = controlColumns? new float[capacity] : null;
+        }
+    }
+
+
+    // constructor
+    TempHistoryBuffer( int capacity, boolean controlColumns ) {
+        if( capacity < 1 ) throw new IllegalArgumentException( "capacity must be positive" );
+        this.capacity = capacity;
+        slots = capacity + SLACK;
+        millis = new long[slots];
+        raw = new float[slots];
+        temp = new float[slots];
+        dutyPct = controlColumns? new float[slots] : null;
+        setPoint = controlColumns? new float[slots] : null;
+    }
+
+
+    // WRITER (one thread only)
+
+    void add( long atMillis, float rawTemp, float filteredTemp ) {
+        add( atMillis, rawTemp, filteredTemp, Float.NaN, Float.NaN );
+    }
+
+    void add( long atMillis, float rawTemp, float filteredTemp, float duty, float setPointTemp ) {
+        long n = sequence;
+        int slot = (int) ( n % slots );
+        millis[slot] = atMillis;
+        raw[slot] = rawTemp;
+        temp[slot] = filteredTemp;
+        if( dutyPct != null ) {
+            dutyPct[slot] = duty;
+            setPoint[slot] = setPointTemp;
+        }
+        sequence = n + 1L;  // publishes the slot
+    }
+
+    // empty it (the same writer thread, or before it starts)
+    void clear( ) {
+        long n = sequence + 1L;  // (skip a slot: every bookmark from before is now behind clearedAt)
+        clearedAt = n;
+        sequence = n;
+    }
+
+
+    // READERS
+
+    Snapshot newSnapshot( ) {
+        return new Snapshot( capacity, dutyPct != null );
+    }
+
+    // copy the samples added after sequence 'since' (at most the last capacity of them) into the snapshot,
+    // oldest first; returns the sequence to pass next time
+    long readSince( long since, Snapshot into ) {
+        for( int attempt = 0; ; attempt++ ) {
+            long end = sequence;
+            long start = Math.max( Math.max( since, end - capacity ), clearedAt );
+            int count = (int) Math.max( 0L, end - start );
+            for( int i = 0; i < count; i++ ) {
+                int slot = (int) ( ( start + i ) % slots );
+                into.millis[i] = millis[slot];
+                into.raw[i] = raw[slot];
+                into.temp[i] = temp[slot];
+                if( into.dutyPct != null && dutyPct != null ) {
+                    into.dutyPct[i] = dutyPct[slot];
+                    into.setPoint[i] = setPoint[slot];
+                }
+            }
+            if( sequence - start < slots || attempt >= MAX_RETRIES ) {  // the writer can't have reached the oldest one copied
+                into.size = count;
+                into.firstSequence = start;
+                into.gap = start > since;
+                return end;
+            }
+        }
+    }
+
+    // the whole readable history
+    long read( Snapshot into ) {
+        return readSince( 0L, into );
+    }
+
+    long getSequence( ) { return sequence; }
+    int capacity( ) { return capacity; }
+    int size( ) { return (int) Math.min( sequence - clearedAt, capacity ); }
+    boolean hasControlColumns( ) { return dutyPct != null; }
+
+    // the newest sample's timestamp and filtered temperature (0 and NaN if empty)
+    long getLastMillis( ) {
+        long n = sequence;
+        return n == clearedAt? 0L : millis[(int) ( ( n - 1L ) % slots )];
+    }
+    float getLastTemp( ) {
+        long n = sequence;
+        return n == clearedAt? Float.NaN : temp[(int) ( ( n - 1L ) % slots )];
+    }
+
+    @Override
+    public String toString( ) {
+        return "TempHistoryBuffer: " + size() + " of " + capacity + " samples (" + sequence + " added), last "
+                + getLastTemp() + " at " + getLastMillis();
+    }
+}
@@ -3,59 +3,86 @@ package net.grlewis.wifithermocouple;
 import android.graphics.Canvas;
 import android.os.SystemClock;
 import android.util.Log;
-import android.util.Pair;
 
 import com.androidplot.Plot;
 import com.androidplot.PlotListener;
 import com.androidplot.xy.XYSeries;
 
-import java.util.Date;
-import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import static net.grlewis.wifithermocouple.Constants.DEBUG;
-import static net.grlewis.wifithermocouple.Constants.HISTORY_BUFFER_SIZE;
-import static net.grlewis.wifithermocouple.Constants.TEMP_UPDATE_SECONDS;
 
 // implementation of XYSeries and PlotListener interfaces for AndroidPlot
+// keeps its own ring of the points it plots and takes only the new ones from the device's TempHistoryBuffer
+// on each update (its sequence number is the bookmark), so an update costs O(new points), not O(history)
 
 class TempPlotSeries implements XYSeries, PlotListener {
     
     private final static String TAG = TempPlotSeries.class.getSimpleName();
     
-    private Pair<Date, Float>[] plotArray;
+    // the plotted points: a ring the size of the history, oldest at 'first' (allocated by the first update)
+    private long[] millis = new long[0];
+    private float[] temps = new float[0];
+    private int first;
+    private int size;
     
-    public TempPlotSeries( ) {  // constructor may solve crash of null array
-        plotArray = new Pair[0];
+    private TempHistoryBuffer source;             // the history we're following
+    private long seen;                            // its sequence number we're up to
+    private TempHistoryBuffer.Snapshot delta;     // what's new since then (reused)
+    private long pointsRead;                      // total copied from the history, for checking it stays incremental
+    
+    public TempPlotSeries( ) {
     }
     
-    void updatePlotData( ArrayBlockingQueue<Pair<Date, Float>> dataQueue ) throws InterruptedException {
+    void updatePlotData( TempHistoryBuffer history ) throws InterruptedException {
+        if( history != source ) {  // first update, or another device: start over
+            source = history;
+            seen = 0L;
+            delta = history.newSnapshot();
+            synchronized ( this ) {
+                millis = new long[history.capacity()];
+                temps = new float[history.capacity()];
+                first = size = 0;
+            }
+        }
+        seen = history.readSince( seen, delta );  // just the new points (outside the lock: the plot keeps drawing)
+        pointsRead += delta.size;
         synchronized ( this ) {
-            if( DEBUG ) Log.d( TAG, "updatePlotData entered with dataQueue size " + dataQueue.size() );
+            if( DEBUG ) Log.d( TAG, "updatePlotData entered with " + delta.size + " new points from " + history );
             //wait();       // don't update data until we're notified that current plot is done (& we can get lock) FIXME: elimination of wait/notify fixes app freeze
-            plotArray = dataQueue.toArray( new Pair[0] );
-            if( DEBUG ) Log.d( TAG, "updatePlotData run with " + plotArray.length + " data points" );
+            if( delta.gap ) first = size = 0;  // we fell behind by a whole history: what we have isn't contiguous with it
+            for( int i = 0; i < delta.size; i++ ) {  // append, evicting the oldest when full
+                int slot = ( first + size ) % millis.length;
+                millis[slot] = delta.millis[i];
+                temps[slot] = delta.temp[i];
+                if( size < millis.length ) size++;
+                else first = ( first + 1 ) % millis.length;
+            }
+            if( DEBUG ) Log.d( TAG, "updatePlotData run with " + size + " data points" );
             //notifyAll();  // release lock & let other threads know they can continue
         }
     }
     
+    long getPointsRead( ) { return pointsRead; }
+    
     // XYSeries implementation
-    // note it's only the draw routines that will call these methods, and drawing is locked out while updating data
-    // so shouldn't need any extra synchronization
+    // note it's only the draw routines that will call these methods; they're synchronized because an update
+    // appends to the same arrays (uncontended except for the moment an update is appending)
     
     @Override
-    public int size( ) {
-        return plotArray.length;
+    public synchronized int size( ) {
+        return size;
     }
     
     @Override
-    public Number getX( int index ) {
-        return (index - HISTORY_BUFFER_SIZE) / (60/TEMP_UPDATE_SECONDS);  // e.g., -60 minutes at left edge of graph, -1/12 min at right
+    public synchronized Number getX( int index ) {  // minutes before the newest point (polls aren't evenly spaced any more)
+        return ( millis[( first + index ) % millis.length] - millis[( first + size - 1 ) % millis.length] ) / 60000f;
     }
     
     @Override
-    public Number getY( int index ) {
-        return plotArray[index].second;  // the temp value
+    public synchronized Number getY( int index ) {
+        float temp = temps[( first + index ) % temps.length];  // the filtered temp value
+        return Float.isNaN( temp )? null : temp;  // (a reading the filter dropped: a gap)
     }
     
     @Override
@@ -0,0 +1,21 @@
+package net.grlewis.wifithermocouple;
+
+import java.util.UUID;
+
+// temperature/F (or temperature/C) decoded straight into a primitive (NaN if the firmware said "nan")
+final class TempReading extends DeviceReading {
+    
+    final float temp;
+    
+    TempReading( float temp, UUID requestUUID, long sentAtMillis, long receivedAtMillis ) {
+        super( requestUUID, sentAtMillis, receivedAtMillis );
+        this.temp = temp;
+    }
+    
+    boolean isValid( ) { return !Float.isNaN( temp ); }
+    
+    @Override
+    public String toString( ) {
+        return "TempReading " + temp + " (request " + requestUUID + ")";
+    }
+}
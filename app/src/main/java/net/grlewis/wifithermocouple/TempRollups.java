@@ -0,0 +1,199 @@
+package net.grlewis.wifithermocouple;
+
+import static net.grlewis.wifithermocouple.Constants.ROLLUP_BUCKETS;
+import static net.grlewis.wifithermocouple.Constants.ROLLUP_TIER_MINUTES;
+
+/*
+ * Coarser tiers of the temperature history for long cooks: one per ROLLUP_TIER_MINUTES (1, 5 and
+ * 15 minutes), each a ring of ROLLUP_BUCKETS buckets holding the min, max, mean and last filtered
+ * temperature of the readings that fell in it. The raw (5 s) tier is the TempHistoryBuffer itself.
+ * With 1440 buckets a tier the 1-minute tier covers a day and the 15-minute one over two weeks, in
+ * ~140 KB all told however long the cook goes on.
+ *
+ * add() is O(1): each tier folds the reading into its open bucket, and when a reading lands in a later
+ * bucket the open one is closed into the ring (evicting the oldest when full). Buckets are aligned to
+ * the epoch, so the tiers line up with each other and with the clock; a bucket with no readings in
+ * it (the device was off) is simply not there. Dropped readings (NaN) don't count.
+ *
+ * Written by the device's temperature subscription and read by the UI, far less often than either
+ * the history or the log: the methods are synchronized.
+ *
+ * usage:
+ *     TempRollups rollups = new TempRollups( );
+ *     rollups.add( reading.receivedAtMillis, filtered );
+ *     TempRollups.Series series = rollups.newSeries();
+ *     rollups.read( rollups.tierFor( 14 * 3600000L, 500 ), series );  // 14 hours in at most ~500 points
+ *
+ */
+
+class TempRollups {
+
+    // a reader's copy of one tier, oldest first (the last bucket may still be open)
+    static final class Series {
+        final long[] startMillis;
+        final float[] min;
+        final float[] max;
+        final float[] mean;
+        final float[] last;
+        final int[] count;                       // readings in the bucket
+        int size;
+        long bucketMillis;                       // width of the tier read
+
+        private Series( int capacity ) {
+            startMillis = new long[capacity];
+            min = new float[capacity];
+            max = new float[capacity];
+            mean = new float[capacity];
+            last = new float[capacity];
+            count = new int[capacity];
+        }
+    }
+
+    // one resolution: a ring of closed buckets plus the open one
+    private static final class Tier {
+        final long bucketMillis;
+        final long[] startMillis;
+        final float[] min;
+        final float[] max;
+        final double[] sum;
+        final float[] last;
+        final int[] count;
+        int first;                               // oldest closed bucket
+        int size;                                // closed buckets
+        long openStart = Long.MIN_VALUE;         // the open bucket (none yet)
+        float openMin, openMax, openLast;
+        double openSum;
+        int openCount;
+
+        Tier( long bucketMillis, int buckets ) {
+            this.bucketMillis = bucketMillis;
+            startMillis = new long[buckets];
+            min = new float[buckets];
+            max = new float[buckets];
+            sum = new double[buckets];
+            last = new float[buckets];
+            count = new int[buckets];
+        }
+
+        void add( long atMillis, float temp ) {
+            long offset = atMillis % bucketMillis;  // (Math.floorMod() is API 24)
+            long start = atMillis - ( offset < 0L? offset + bucketMillis : offset );
+            if( start > openStart ) {  // (a reading from earlier, the clock having gone back, joins the open bucket)
+                close();
+                openStart = start;
+            }
+            if( openCount == 0 ) {
+                openMin = openMax = temp;
+                openSum = 0d;
+            } else {
+                if( temp < openMin ) openMin = temp;
+                if( temp > openMax ) openMax = temp;
+            }
+            openSum += temp;
+            openLast = temp;
+            openCount++;
+        }
+
+        // into the ring, evicting the oldest if it's full
+        private void close( ) {
+            if( openCount == 0 ) return;
+            int slot = ( first + size ) % startMillis.length;
+            startMillis[slot] = openStart;
+            min[slot] = openMin;
+            max[slot] = openMax;
+            sum[slot] = openSum;
+            last[slot] = openLast;
+            count[slot] = openCount;
+            if( size < startMillis.length ) size++;
+            else first = ( first + 1 ) % startMillis.length;
+            openCount = 0;
+        }
+
+        int buckets( ) { return size + ( openCount > 0? 1 : 0 ); }
+    }
+
+    private final Tier[] tiers;
+    private long samples;
+
+
+    // constructor
+    TempRollups( ) {
+        this( ROLLUP_TIER_MINUTES, ROLLUP_BUCKETS );
+    }
+
+    TempRollups( int[] tierMinutes, int buckets ) {
+        tiers = new Tier[tierMinutes.length];
+        for( int t = 0; t < tiers.length; t++ ) tiers[t] = new Tier( tierMinutes[t] * 60000L, buckets );
+    }
+
+
+    // WRITER
+
+    synchronized void add( long atMillis, float temp ) {
+        if( Float.isNaN( temp ) ) return;
+        for( Tier tier : tiers ) tier.add( atMillis, temp );
+        samples++;
+    }
+
+    synchronized void clear( ) {
+        for( Tier tier : tiers ) {
+            tier.first = tier.size = tier.openCount = 0;
+            tier.openStart = Long.MIN_VALUE;
+        }
+        samples = 0L;
+    }
+
+
+    // READERS
+
+    Series newSeries( ) {
+        return new Series( tiers.length == 0? 0 : tiers[0].startMillis.length + 1 );
+    }
+
+    // copy a tier's buckets (0 = the finest), the open one last
+    synchronized void read( int tier, Series into ) {
+        Tier source = tiers[tier];
+        int n = 0;
+        for( int i = 0; i < source.size; i++, n++ ) {
+            int slot = ( source.first + i ) % source.startMillis.length;
+            into.startMillis[n] = source.startMillis[slot];
+            into.min[n] = source.min[slot];
+            into.max[n] = source.max[slot];
+            into.mean[n] = (float) ( source.sum[slot] / source.count[slot] );
+            into.last[n] = source.last[slot];
+            into.count[n] = source.count[slot];
+        }
+        if( source.openCount > 0 ) {
+            into.startMillis[n] = source.openStart;
+            into.min[n] = source.openMin;
+            into.max[n] = source.openMax;
+            into.mean[n] = (float) ( source.openSum / source.openCount );
+            into.last[n] = source.openLast;
+            into.count[n] = source.openCount;
+            n++;
+        }
+        into.size = n;
+        into.bucketMillis = source.bucketMillis;
+    }
+
+    // the finest tier that shows spanMillis in at most maxPoints buckets (the coarsest if none does)
+    int tierFor( long spanMillis, int maxPoints ) {
+        for( int t = 0; t < tiers.length; t++ ) {
+            if( spanMillis / tiers[t].bucketMillis <= maxPoints ) return t;
+        }
+        return tiers.length - 1;
+    }
+
+    int tierCount( ) { return tiers.length; }
+    long getBucketMillis( int tier ) { return tiers[tier].bucketMillis; }
+    synchronized int size( int tier ) { return tiers[tier].buckets(); }
+    synchronized long getSampleCount( ) { return samples; }
+
+    @Override
+    public synchronized String toString( ) {
+        StringBuilder builder = new StringBuilder( "TempRollups: " + samples + " samples;" );
+        for( Tier tier : tiers ) builder.append( ' ' ).append( tier.buckets() ).append( " x " )
+                .append( tier.bucketMillis / 60000L ).append( " min" );
+        return builder.toString();
+    }
+}
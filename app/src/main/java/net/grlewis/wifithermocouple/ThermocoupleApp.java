@@ -29,10 +29,11 @@ public class ThermocoupleApp extends Application {
     private static ThermocoupleApp sAppInstance;  // the Singleton instance of this Application
     
     // Application Globals (instance variables of the Singleton)
-    WiFiCommunicator wifiCommunicator;
+    DeviceRegistry devices;               // every smoker we're running
+    WiFiCommunicator wifiCommunicator;    // these three belong to the primary device (the one the UI shows)
     ApplicationState applicationState;
     PIDState pidState;
-    BBQController bbqController;
+    BBQController bbqController;          // replaced when the service starts the devices
     ThermocoupleService thermocoupleService;  // set by ThermocoupleService onCreate() calling appInstance.setServiceRef( this )
     GraphActivity graphActivity;
     ComponentName serviceComponentName;
@@ -62,10 +63,12 @@ public class ThermocoupleApp extends Application {
         // do initialization in this instance method (with instance members, not static)
         if( DEBUG ) Log.d( TAG, "App initialize() entered");
     
-        wifiCommunicator = new WiFiCommunicator();  // TODO: is this right?  NEW: moved ahead of starting service
+        devices = new DeviceRegistry();  // more can be added at runtime with devices.add( new DeviceEndpoint( name, rootURL ) )
+        SmokerDevice primary = devices.add( DeviceEndpoint.defaultDevice() );  // NEW: moved ahead of starting service
+        wifiCommunicator = primary.wifiCommunicator;
         applicationState = new ApplicationState();  // TODO: need? (maybe if we engage controller's internal DC etc.)
-        pidState = new PIDState();
-        bbqController = new BBQController();
+        pidState = primary.pidState;
+        bbqController = primary.getBBQController();
         
         // start Service (not usable until onServiceConnected() callback
         startThermoServiceIntent = new Intent( getApplicationContext(), ThermocoupleService.class );
@@ -11,15 +11,12 @@ import android.os.Looper;
 import android.os.PowerManager;
 import android.support.v4.app.NotificationCompat;
 import android.util.Log;
-import android.util.Pair;
 
 import com.jakewharton.rxrelay2.BehaviorRelay;
 
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.util.Date;
-import java.util.concurrent.ArrayBlockingQueue;
 
 import io.reactivex.SingleEmitter;
 import io.reactivex.disposables.CompositeDisposable;
@@ -28,7 +25,6 @@ import io.reactivex.functions.Cancellable;
 
 import static android.support.v4.app.NotificationCompat.CATEGORY_SERVICE;
 import static net.grlewis.wifithermocouple.Constants.DEBUG;
-import static net.grlewis.wifithermocouple.Constants.HISTORY_BUFFER_SIZE;
 import static net.grlewis.wifithermocouple.Constants.SERVICE_NOTIFICATION_ID;
 
 
@@ -52,8 +48,6 @@ public class ThermocoupleService extends Service {
     
     ThermocoupleApp appInstance;
     
-    Disposable tempUpdateDisp;
-    Disposable watchdogMaintainDisp;  // NEW: to enable, feed, and disable watchdog
     CompositeDisposable serviceCompositeDisp;
     
     Notification runningNotification;
@@ -63,8 +57,7 @@ public class ThermocoupleService extends Service {
     Looper pidLooper;
     Handler pidHandler;
     
-    private ArrayBlockingQueue<Pair<Date, Float>> timestampedHistory;
-    BehaviorRelay<ArrayBlockingQueue<Pair<Date, Float>>> tempHistRelay;
+    BehaviorRelay<TempHistoryBuffer> tempHistRelay;  // the primary device's history
     
     private IBinder thermoBinder;
     
@@ -119,10 +112,9 @@ public class ThermocoupleService extends Service {
         pidLooper = pidHandlerThread.getLooper();
         pidHandler = new Handler( pidLooper );
         //pidHandler = Handler.createAsync( pidLooper );  // API 28 (no VBL sync)
-        appInstance.bbqController = new BBQController( pidHandler );  // bbqController.pidLoopRunnable should be created
+        // each device makes its own Handler on pidLooper when started (see SmokerDevice)
         
-        timestampedHistory = new ArrayBlockingQueue<>( HISTORY_BUFFER_SIZE );  // 720
-        tempHistRelay = BehaviorRelay.create();
+        tempHistRelay = appInstance.devices.getPrimary().tempHistRelay;
         
         thermoBinder = new LocalBinder();
         
@@ -158,37 +150,16 @@ public class ThermocoupleService extends Service {
         startForeground( SERVICE_NOTIFICATION_ID, runningNotification );   // NEW need to cancel on destroy
         if( DEBUG ) Log.d( TAG, "returned from startForeground()");  // now prints
         
+        // start watchdog maintenance, temperature updates and the PID loop for every device, logging each
+        // cook to app storage (after a restart, the cook still in progress is recovered from its log)
+        appInstance.devices.startAll( pidLooper, getFilesDir() );
+        appInstance.bbqController = appInstance.devices.getPrimary().getBBQController();  // the one on the PID thread
+        if( DEBUG ) Log.d( TAG, "started " + appInstance.devices.size() + " device(s)" );
+        
         if( intent != null ) {  // this is an initial start, not a restart after killing  // TODO: keep?
             
-            if( DEBUG ) Log.d( TAG, "about to subscribe to watchdogMaintainObservable" );
-            watchdogMaintainDisp = appInstance.wifiCommunicator.watchDogMaintainObservable.subscribe();  // this is working
-            if( watchdogMaintainDisp != null ) serviceCompositeDisp.add( watchdogMaintainDisp );  // TODO: remove if?
-            
-            // now start temperature updates
-            if( DEBUG ) Log.d( TAG, "about to subscribe to tempFUpdater" );  // prints
-            tempUpdateDisp = appInstance.wifiCommunicator.tempFUpdater  // emits JSON temp every 5 seconds
-                    .retry( 3L)
-                    .map( jsonTemp -> (float) jsonTemp.getDouble( "TempF" ) )
-                    //.startWith( 999F )  // causes logging but zaps UI; probably has to do with plot rendering?
-                    .doOnNext( temp -> {
-                        while( timestampedHistory.remainingCapacity() < 1 ) timestampedHistory.poll();  // make space in the queue if needed, discarding oldest
-                        timestampedHistory.add( new Pair<>( new Date( ), temp ) );  // TODO: make it an ImmutableTriple with %DC?
-                        tempHistRelay.accept( timestampedHistory );  // relay the new history FIXME: this kills UI if data exists
-                        if( DEBUG ) Log.d( TAG, "new temp value relayed: " + temp + "; queue size: " + timestampedHistory.size() );
-                    })
-                    .subscribe(
-                            // TODO: add smoothing?
-                            temp -> {
-                                if( DEBUG ) Log.d( TAG, "got onNext temp value from tempFUpdater");
-                                appInstance.bbqController.setCurrentVariableValue( temp );
-                            },
-                            tempErr -> { if( DEBUG ) Log.d( TAG, "****** Error updating temp: " + tempErr.getMessage() + " ******"); }
-                    );
-            serviceCompositeDisp.add( tempUpdateDisp );
-            
-            // start the BBQ Controller loop (we think it's fixed to not change UI and run all the time)
-            pidHandler.removeCallbacksAndMessages( null );  // cancel any pending loop run (flush everything)
-            pidHandler.postDelayed( appInstance.bbqController.pidLoopRunnable, 2000L );  // give it a couple seconds TODO: reduce?
+            if( DEBUG ) serviceCompositeDisp.add( WiFiCommunicator.metricsUpdater
+                    .subscribe( snapshot -> Log.d( TAG, snapshot.toString() ) ) );  // request latency percentiles
             
         } else {  // this is a restart
             if( DEBUG ) Log.d( TAG, "Apparently system is restarting the service" );  // TODO: more?
@@ -200,7 +171,7 @@ public class ThermocoupleService extends Service {
     @Override
     public void onDestroy( ) {
         serviceCompositeDisp.clear();   //  kill all the subscriptions
-        appInstance.bbqController.stop();  // remove callbacks etc.
+        appInstance.devices.stopAll();  // each device stops its subscriptions and PID loop (fan off)
         stopForeground( true );  // remove the Notification
         wakeLock.release();
         stopSelf();  // NEW
@@ -38,10 +38,6 @@ These cause all registered observers (in Started/Resumed state) to call their .o
 import android.arch.lifecycle.LiveData;
 import android.arch.lifecycle.MutableLiveData;
 import android.arch.lifecycle.ViewModel;
-import android.util.Pair;
-
-import java.util.Date;
-import java.util.concurrent.ArrayBlockingQueue;
 
 import static net.grlewis.wifithermocouple.Constants.DEFAULT_DUTY_CYCLE_PCT;
 import static net.grlewis.wifithermocouple.Constants.DEFAULT_PID_ENABLE_STATE;
@@ -65,7 +61,7 @@ import static net.grlewis.wifithermocouple.Constants.TEMP_UPDATE_SECONDS;
 
 public class UIStateModel extends ViewModel {
     
-    private final static int HISTORY_BUFFER_SIZE = 60/TEMP_UPDATE_SECONDS * HISTORY_MINUTES;  // should == 720
+    private final static int HISTORY_BUFFER_SIZE = 60/TEMP_UPDATE_SECONDS * HISTORY_MINUTES;  // should == 8640
 
     
 /*
@@ -87,7 +83,7 @@ public class UIStateModel extends ViewModel {
         private Boolean heaterOn;
         private Float dutyCyclePct;
         private Boolean clamped;
-        private ArrayBlockingQueue<Pair<Date, Float>> timestampedHistory;
+        private TempHistoryBuffer timestampedHistory;
         
         UIState() {
             setpoint = Constants.DEFAULT_SETPOINT;
@@ -96,7 +92,7 @@ public class UIStateModel extends ViewModel {
             heaterOn = false;  // seems pretty safe
             dutyCyclePct = DEFAULT_DUTY_CYCLE_PCT;  // normally 0
             clamped = false;
-            timestampedHistory = new ArrayBlockingQueue<>( HISTORY_BUFFER_SIZE );
+            timestampedHistory = new TempHistoryBuffer( HISTORY_BUFFER_SIZE, false );
         }
     
         // setters that cause a live UI update (we hope)
@@ -127,15 +123,12 @@ public class UIStateModel extends ViewModel {
             currentUIState.clamped = clamped;
             uiLiveData.postValue( currentUIState );            // TODO: trigger the live update(?)
         }
-        // Adds a value to the history queue, returning the updated number of values in the queue
-        public int addHistoryValue( Pair<Date,Float> value ) {
+        // Adds a value to the history buffer (the oldest drops off when it's full), returning the updated number of values in it
+        public int addHistoryValue( long atMillis, float temp ) {
             if( currentUIState.timestampedHistory == null ) {
-                currentUIState.timestampedHistory = new ArrayBlockingQueue<>( HISTORY_BUFFER_SIZE );
-            }
-            while( currentUIState.timestampedHistory.remainingCapacity() < 1 ) {  // if queue is full
-                currentUIState.timestampedHistory.poll();                         // discard items until it isn't
+                currentUIState.timestampedHistory = new TempHistoryBuffer( HISTORY_BUFFER_SIZE, false );
             }
-            currentUIState.timestampedHistory.add( value );
+            currentUIState.timestampedHistory.add( atMillis, temp, temp );
             uiLiveData.postValue( currentUIState );            // TODO: trigger the live update(?)
             return currentUIState.timestampedHistory.size();  // TODO: probably let LiveData handle updating?
         }
@@ -156,9 +149,9 @@ public class UIStateModel extends ViewModel {
     
     
     
-    public ArrayBlockingQueue<Pair<Date,Float>> getTimestampedHistory() {
+    public TempHistoryBuffer getTimestampedHistory() {
         if( currentUIState.timestampedHistory == null ) {
-            currentUIState.timestampedHistory = new ArrayBlockingQueue<>( HISTORY_BUFFER_SIZE );
+            currentUIState.timestampedHistory = new TempHistoryBuffer( HISTORY_BUFFER_SIZE, false );
         }
         return currentUIState.timestampedHistory;
     }
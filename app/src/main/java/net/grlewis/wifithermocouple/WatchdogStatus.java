@@ -0,0 +1,21 @@
+package net.grlewis.wifithermocouple;
+
+import java.util.UUID;
+
+// time/watchdogstatus: whether the device's watchdog timer is enabled and whether it has expired
+final class WatchdogStatus extends DeviceReading {
+    
+    final boolean enabled;
+    final boolean expired;
+    
+    WatchdogStatus( boolean enabled, boolean expired, UUID requestUUID, long sentAtMillis, long receivedAtMillis ) {
+        super( requestUUID, sentAtMillis, receivedAtMillis );
+        this.enabled = enabled;
+        this.expired = expired;
+    }
+    
+    @Override
+    public String toString( ) {
+        return "WatchdogStatus enabled: " + enabled + ", expired: " + expired + " (request " + requestUUID + ")";
+    }
+}
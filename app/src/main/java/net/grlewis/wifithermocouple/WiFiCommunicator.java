@@ -3,57 +3,61 @@ package net.grlewis.wifithermocouple;
 import android.annotation.TargetApi;
 import android.arch.core.util.Function;
 import android.util.Log;
-import android.util.Pair;
 import android.widget.Toast;
 
-import org.json.JSONObject;
 
 import java.net.URL;
-import java.util.Date;
+import java.util.ArrayList;
 import java.util.UUID;
-import java.util.concurrent.ArrayBlockingQueue;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 
+import io.reactivex.Completable;
 import io.reactivex.Observable;
 import io.reactivex.Single;
 import io.reactivex.android.schedulers.AndroidSchedulers;
 import io.reactivex.functions.Consumer;
 import io.reactivex.subjects.PublishSubject;
+import okhttp3.Dns;
 import okhttp3.OkHttpClient;
 import okhttp3.Response;
 
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static java.util.concurrent.TimeUnit.SECONDS;
+import static net.grlewis.wifithermocouple.DeviceRequestScheduler.RequestClass.ANALOG;
+import static net.grlewis.wifithermocouple.DeviceRequestScheduler.RequestClass.FAN_CONTROL;
+import static net.grlewis.wifithermocouple.DeviceRequestScheduler.RequestClass.TEMPERATURE;
+import static net.grlewis.wifithermocouple.DeviceRequestScheduler.RequestClass.WATCHDOG;
 import static net.grlewis.wifithermocouple.Constants.ANALOG_IN_UPDATE_SECS;
 import static net.grlewis.wifithermocouple.Constants.ANALOG_READ_UPPER_HALF;
 import static net.grlewis.wifithermocouple.Constants.DEBUG;
-import static net.grlewis.wifithermocouple.Constants.DISABLE_WD_URL;
-import static net.grlewis.wifithermocouple.Constants.ENABLE_WD_URL;
+import static net.grlewis.wifithermocouple.Constants.DEVICE_INFO_UPPER_HALF;
+import static net.grlewis.wifithermocouple.Constants.DNS_REFRESH_SECS;
+import static net.grlewis.wifithermocouple.Constants.FAN_DC_REFRESH_SECS;
 import static net.grlewis.wifithermocouple.Constants.FAN_CONTROL_TIMEOUT_SECS;
 import static net.grlewis.wifithermocouple.Constants.FAN_CONTROL_UPPER_HALF;
-import static net.grlewis.wifithermocouple.Constants.FAN_OFF_URL;
-import static net.grlewis.wifithermocouple.Constants.FAN_ON_URL;
-import static net.grlewis.wifithermocouple.Constants.READ_ANALOG_URL;
-import static net.grlewis.wifithermocouple.Constants.RESET_WD_URL;
-import static net.grlewis.wifithermocouple.Constants.TEMP_F_URL;
+import static net.grlewis.wifithermocouple.Constants.METRICS_PUBLISH_SECS;
+import static net.grlewis.wifithermocouple.Constants.TEMP_FRESHNESS_MILLIS;
 import static net.grlewis.wifithermocouple.Constants.TEMP_GET_UPPER_HALF;
 import static net.grlewis.wifithermocouple.Constants.TEMP_UPDATE_SECONDS;
 import static net.grlewis.wifithermocouple.Constants.WATCHDOG_CHECK_SECONDS;
 import static net.grlewis.wifithermocouple.Constants.WATCHDOG_ENABLE_UPPER_HALF;
 import static net.grlewis.wifithermocouple.Constants.WATCHDOG_FEED_UPPER_HALF;
+import static net.grlewis.wifithermocouple.Constants.WATCHDOG_REQUEST_DEADLINE_SECS;
 import static net.grlewis.wifithermocouple.Constants.WATCHDOG_STATUS_UPPER_HALF;
-import static net.grlewis.wifithermocouple.Constants.WD_STATUS_URL;
 
-class WiFiCommunicator {  // should probably be a Singleton (it is: see ThermocoupleApp)
+class WiFiCommunicator implements FanActuator {  // one per device (see DeviceRegistry); they all share the OkHttpClient below
     
     // if we ever have multiple instances of this class, they will share these:
     private final static String TAG = WiFiCommunicator.class.getSimpleName();
-    private final static OkHttpClient client;
+    private final static OkHttpClient client;       // one connection pool & dispatcher for every device
     private final static OkHttpClient eagerClient;  // 5 sec?
+    final static CachingDns dns;                    // device addresses, refreshed in the background
+    final static ConnectionTimingListener connectionTiming;  // connect & first-byte latencies per device
+    final static RequestMetrics requestMetrics;     // latency histograms & error counts per request class (UUID range)
+    final static Observable<RequestMetrics.Snapshot> metricsUpdater;  // p50/p95/p99 etc. every METRICS_PUBLISH_SECS
     private final static ThermocoupleApp appInstance;
     
-    // buffer for 1 hour of temp history  TODO: move?
-    private ArrayBlockingQueue<Float> tempHistoryBuffer;  // (use .toArray() to get the whole thing for graphing)
-    private ArrayBlockingQueue<Pair<Date,Float>> timestampedHistory;  // with timestamp
-    
     private UIStateModel uiStateModel;
     
     private Function<URL,UUID> watchdogEnableUUIDSupplier;
@@ -63,24 +67,49 @@ class WiFiCommunicator {  // should probably be a Singleton (it is: see Thermoco
     private Function<URL,UUID> fanControlUUIDSupplier;
     private Function<URL,UUID> watchdogStatusUUIDSupplier;
     private Function<URL,UUID> analogReadUUIDSupplier;
+    private Function<URL,UUID> infoUUIDSupplier;
+    
+    final DeviceEndpoint endpoint;             // which box this talks to
+    private final PIDState pidState;           // that box's controller state
+    
+    // every request to the device is queued through this, with fan control taking priority
+    final DeviceRequestScheduler deviceScheduler;
+    
+    // BBQController has this open a connection just before each fan command
+    final ConnectionPrewarmer prewarmer;
     
     
     // NEW organization
     AsyncJSONGetter tempFGetter;               // Single that fetches a JSON tempF value
-    Observable<JSONObject> tempFUpdater;       // combines periodic values into an Observable
+    Single<TempReading> tempFReader;           // typed version that decodes straight to a primitive
+    DevicePoller<TempReading> tempFPoller;     // polls tempFReader without overlapping or out-of-order readings
+    AdaptivePollInterval tempPollInterval;     // decides how often tempFPoller polls (1-20 s)
+    Observable<TempReading> tempFUpdater;      // combines periodic values into an Observable
     AsyncJSONGetter watchdogStatusGetter;      // Single that fetches a JSON watchdog status report (enabled, expired)
+    Single<WatchdogStatus> watchdogStatusReader;
     AsyncJSONGetter analogReader;              // Single that fetches a JSON report of control setting (0.0-1.0V)
-    Observable<JSONObject> analogInUpdater;
+    Single<AnalogReading> analogInReader;
+    DevicePoller<AnalogReading> analogInPoller;
+    Observable<AnalogReading> analogInUpdater;
+    AsyncJSONGetter infoGetter;                // Single that fetches the device's model & versions
+    Single<DeviceInfo> deviceInfoReader;
     
     AsyncHTTPRequester watchdogEnabler;
     AsyncHTTPRequester watchdogDisabler;
     AsyncHTTPRequester watchdogFeeder;
     Observable<Response> watchdogFeedObservable;
-    Observable<JSONObject> watchdogStatusUpdater;
+    DevicePoller<WatchdogStatus> watchdogStatusPoller;
+    Observable<WatchdogStatus> watchdogStatusUpdater;
     
     AsyncHTTPRequester fanTurnon;
     AsyncHTTPRequester fanTurnoff;
     
+    // the device's duty-cycle timer as we last set it (so only what changed is sent); -1 = unknown
+    private int sentCycleSecs = -1;
+    private boolean dutyCycleEnabled;
+    private long dutyCycleSyncedMillis;        // when cycle length & enable were last sent
+    private final AtomicLong fanRequests;      // every fan HTTP request sent (including retries)
+    
     // enable watchdog timer (dispose to disable)
     Observable<Response> enableWatchdogObservable;
     PublishSubject<Response> enableAndResetWatchdogSubject;  // subscribe to enable watchdog & start resetting, dispose to disable/stop
@@ -92,7 +121,14 @@ class WiFiCommunicator {  // should probably be a Singleton (it is: see Thermoco
         
         appInstance = ThermocoupleApp.getSoleInstance();
         
+        dns = new CachingDns( Dns.SYSTEM, DNS_REFRESH_SECS, SECONDS );
+        requestMetrics = new RequestMetrics( );
+        connectionTiming = new ConnectionTimingListener( requestMetrics );
+        metricsUpdater = requestMetrics.snapshots( METRICS_PUBLISH_SECS, SECONDS ).share();
+        
         client = new OkHttpClient.Builder()                 // recommended to have only one
+                .dns( dns )
+                .eventListenerFactory( connectionTiming.factory )
                 .retryOnConnectionFailure( true )           // this supposedly defaults true but trying it to fix "Socket closed" errors
                 //.connectTimeout( 10L, TimeUnit.SECONDS )  // the default is said to be 10 seconds
                 .build();
@@ -104,7 +140,10 @@ class WiFiCommunicator {  // should probably be a Singleton (it is: see Thermoco
     
     
     // constructor
-    WiFiCommunicator() {
+    WiFiCommunicator( DeviceEndpoint endpoint, PIDState pidState ) {
+        
+        this.endpoint = endpoint;
+        this.pidState = pidState;
         
         // providers of custom UUIDs for JSON and HTTP requests (passed the URL, which we ignore and return serialized UUIDs)
         tempGetUUIDSupplier = new SerialUUIDSupplier( TEMP_GET_UPPER_HALF, "Temp Getter" );                             // 0x3000
@@ -113,19 +152,37 @@ class WiFiCommunicator {  // should probably be a Singleton (it is: see Thermoco
         watchdogFeedUUIDSupplier = new SerialUUIDSupplier( WATCHDOG_FEED_UPPER_HALF, "Watchdog Feeder" );               // 0x2000
         analogReadUUIDSupplier = new SerialUUIDSupplier( ANALOG_READ_UPPER_HALF, "Analog Reader" );                     // 0x7000
         fanControlUUIDSupplier = new SerialUUIDSupplier( FAN_CONTROL_UPPER_HALF, "Fan Controller" );                    // 0x5000
+        infoUUIDSupplier = new SerialUUIDSupplier( DEVICE_INFO_UPPER_HALF, "Info Getter" );                             // 0x8000
+        
+        deviceScheduler = new DeviceRequestScheduler( endpoint.name );
         
         // GraphActivity also uses this in onStart() to get initial reading and onResume() to manually update current temp
-        tempFGetter = new AsyncJSONGetter( TEMP_F_URL, client, tempGetUUIDSupplier );
-        tempFUpdater = Observable.interval( TEMP_UPDATE_SECONDS, SECONDS )  // currently 5 seconds
-                .flatMapSingle( getTempFNow -> tempFGetter.get( ) );  // combines outputs of Singles into an Observable stream
+        // the service poller and the manual update button share calls and readings less than TEMP_FRESHNESS_MILLIS old
+        tempFGetter = new AsyncJSONGetter( endpoint.tempFURL, client, tempGetUUIDSupplier )
+                .schedule( deviceScheduler, TEMPERATURE )
+                .setSingleFlight( true )
+                .setFreshnessWindow( TEMP_FRESHNESS_MILLIS, MILLISECONDS );
+        tempFReader = tempFGetter.getAs( DeviceResponseCodec.TEMP_READING );
+        tempPollInterval = new AdaptivePollInterval( );
+        tempFPoller = new DevicePoller<>( "Temp", tempFReader, TEMP_UPDATE_SECONDS, SECONDS )  // deadline stays 5 seconds
+                .setIntervalPolicy( tempPollInterval );
+        tempFUpdater = tempFPoller.poll()  // errors are handled per tick, so this doesn't terminate
+                .doOnNext( reading -> tempPollInterval.recordReading( reading.temp, reading.receivedAtMillis,
+                        pidState.getSetPoint() ) );
         
-        watchdogStatusGetter = new AsyncJSONGetter( WD_STATUS_URL, client, watchdogStatusUUIDSupplier );
-        watchdogStatusUpdater = Observable.interval( WATCHDOG_CHECK_SECONDS, SECONDS )
-                .flatMapSingle( checkWatchdogNow -> watchdogStatusGetter.get( ) );
+        watchdogStatusGetter = new AsyncJSONGetter( endpoint.wdStatusURL, client, watchdogStatusUUIDSupplier )
+                .schedule( deviceScheduler, WATCHDOG );
+        watchdogStatusReader = watchdogStatusGetter.getAs( DeviceResponseCodec.WATCHDOG_STATUS );
+        watchdogStatusPoller = new DevicePoller<>( "Watchdog Status", watchdogStatusReader, WATCHDOG_CHECK_SECONDS, SECONDS )
+                .setTickDeadline( WATCHDOG_REQUEST_DEADLINE_SECS, SECONDS );  // no need to wait a whole minute
+        watchdogStatusUpdater = watchdogStatusPoller.poll();
         
-        watchdogEnabler = new AsyncHTTPRequester( ENABLE_WD_URL, client, watchdogEnableUUIDSupplier );
-        watchdogDisabler = new AsyncHTTPRequester( DISABLE_WD_URL, client, watchdogEnableUUIDSupplier );  // same supplier
-        watchdogFeeder = new AsyncHTTPRequester( RESET_WD_URL, client, watchdogFeedUUIDSupplier );
+        watchdogEnabler = new AsyncHTTPRequester( endpoint.enableWdURL, client, watchdogEnableUUIDSupplier )
+                .schedule( deviceScheduler, WATCHDOG );
+        watchdogDisabler = new AsyncHTTPRequester( endpoint.disableWdURL, client, watchdogEnableUUIDSupplier )  // same supplier
+                .schedule( deviceScheduler, WATCHDOG );
+        watchdogFeeder = new AsyncHTTPRequester( endpoint.resetWdURL, client, watchdogFeedUUIDSupplier )
+                .schedule( deviceScheduler, WATCHDOG );
     
         watchDogMaintainObservable = Observable.interval( WATCHDOG_CHECK_SECONDS, SECONDS )
                 .doOnSubscribe( disposable -> watchdogEnabler.request().retry( 2L ).subscribe( ) )
@@ -136,14 +193,28 @@ class WiFiCommunicator {  // should probably be a Singleton (it is: see Thermoco
                 })
                 .doOnDispose( () -> watchdogDisabler.request().retry( 2L ).subscribe( ) );
     
-        analogReader = new AsyncJSONGetter( READ_ANALOG_URL, client, analogReadUUIDSupplier );
-        analogInUpdater = Observable.interval( ANALOG_IN_UPDATE_SECS, SECONDS )
-                .flatMapSingle( tick -> analogReader.get( ) );
+        analogReader = new AsyncJSONGetter( endpoint.readAnalogURL, client, analogReadUUIDSupplier )
+                .schedule( deviceScheduler, ANALOG );
+        analogInReader = analogReader.getAs( DeviceResponseCodec.ANALOG_READING );
+        analogInPoller = new DevicePoller<>( "Analog In", analogInReader, ANALOG_IN_UPDATE_SECS, SECONDS )
+                .setRetriesPerTick( 0 );  // next tick is only a second away
+        analogInUpdater = analogInPoller.poll();
+        
+        infoGetter = new AsyncJSONGetter( endpoint.getInfoURL, client, infoUUIDSupplier )
+                .schedule( deviceScheduler, WATCHDOG );  // housekeeping, same priority as watchdog
+        deviceInfoReader = infoGetter.getAs( DeviceResponseCodec.DEVICE_INFO );
         
-        fanTurnon = new AsyncHTTPRequester( FAN_ON_URL, client, fanControlUUIDSupplier );
-        fanTurnoff = new AsyncHTTPRequester( FAN_OFF_URL, client, fanControlUUIDSupplier );
+        fanRequests = new AtomicLong( );
+        fanTurnon = new AsyncHTTPRequester( endpoint.fanOnURL, client, fanControlUUIDSupplier )
+                .schedule( deviceScheduler, FAN_CONTROL );
+        fanTurnoff = new AsyncHTTPRequester( endpoint.fanOffURL, client, fanControlUUIDSupplier )
+                .schedule( deviceScheduler, FAN_CONTROL );
         
-        if( DEBUG ) Log.d( TAG, "exiting constructor" );
+        prewarmer = new ConnectionPrewarmer( endpoint, client, connectionTiming.statsFor( endpoint.getHostAndPort() ),
+                deviceScheduler );                                                                              // 0x9000
+        dns.prefetch( endpoint.getHost() );  // resolve now, off the main thread
+        
+        if( DEBUG ) Log.d( TAG, "exiting constructor for " + endpoint );
     
     }
     
@@ -160,17 +231,89 @@ class WiFiCommunicator {  // should probably be a Singleton (it is: see Thermoco
     Single<Response> fanControlWithWarning( boolean fanState ) {
         return fanController( fanState )
                 .request()
+                .doOnSubscribe( attempt -> fanRequests.incrementAndGet() )
                 .retry( 2 )  // new
+                .doOnSuccess( response -> forgetDutyCycle() )  // (they may or may not stop the device's timer: resend it all next time)
                 .observeOn( AndroidSchedulers.mainThread() )  // must use UI thread to show a Toast
                 .doOnError(
                         fanError -> {
-                            Toast.makeText( appInstance, "Error controlling fan: " + fanError.getMessage(),
+                            Toast.makeText( appInstance, "Error controlling " + endpoint.name + " fan: " + fanError.getMessage(),
                                     Toast.LENGTH_SHORT ).show();
                         }
                 );
     }
     
     
+    // FanActuator, for BBQController
+    @Override
+    public Completable setFan( boolean on ) {
+        return fanControlWithWarning( on ).ignoreElement();
+    }
+    
+    @Override
+    public void prepare( ) { prewarmer.prewarm(); }  // fan command coming: have a connection ready
+    
+    @Override
+    public void outputChanged( boolean on, long atMillis ) {
+        // poll temp faster while the pit responds (stamped on the wall clock, like the readings it's compared
+        // with; atMillis is the PID loop's monotonic clock)
+        tempPollInterval.outputToggled( System.currentTimeMillis() );
+    }
+    
+    @Override
+    public boolean supportsDutyCycle( ) { return true; }
+    
+    // fan/?dc= every time (BBQController only calls when the % changes); fan/?cl= and fan/dcenable only when
+    // they aren't already in effect (or haven't been confirmed for FAN_DC_REFRESH_SECS)
+    @Override
+    public Completable setDutyCycle( int percent, int cycleSecs ) {
+        return Completable.defer( ( ) -> {
+            List<Completable> commands = new ArrayList<>( 3 );
+            boolean resync;
+            synchronized( this ) {
+                resync = System.currentTimeMillis() - dutyCycleSyncedMillis > FAN_DC_REFRESH_SECS * 1000L;
+                if( resync || cycleSecs != sentCycleSecs ) commands.add( dutyCycleCommand( endpoint.fanSetClURL, cycleSecs ) );
+                commands.add( dutyCycleCommand( endpoint.fanSetDcURL, percent ) );
+                if( resync || !dutyCycleEnabled ) commands.add( dutyCycleCommand( endpoint.fanEnableDcURL, -1 ) );
+            }
+            return Completable.concat( commands )
+                    .doOnComplete( ( ) -> {
+                        synchronized( this ) {
+                            sentCycleSecs = cycleSecs;
+                            dutyCycleEnabled = true;
+                            if( resync || commands.size() == 3 ) dutyCycleSyncedMillis = System.currentTimeMillis();
+                        }
+                    } )
+                    .doOnError( dcError -> forgetDutyCycle() );  // don't know what stuck: send everything next time
+        } );
+    }
+    
+    // fan/dcdisable: whether fan/on & fan/off stop the device's timer isn't confirmed for the firmware, so
+    // BBQController sends this whenever it stops using the timer
+    @Override
+    public Completable disableDutyCycle( ) {
+        return Completable.defer( ( ) -> dutyCycleCommand( endpoint.fanDisableDcURL, -1 ) )
+                .doOnComplete( this::forgetDutyCycle );
+    }
+    
+    // one duty-cycle request (value appended to the URL unless negative)
+    private Completable dutyCycleCommand( URL url, int value ) throws java.net.MalformedURLException {
+        return new AsyncHTTPRequester( value < 0? url : new URL( url.toString() + value ), client, fanControlUUIDSupplier )
+                .schedule( deviceScheduler, FAN_CONTROL )
+                .request()
+                .doOnSubscribe( attempt -> fanRequests.incrementAndGet() )
+                .retry( 2 )
+                .ignoreElement();
+    }
+    
+    private synchronized void forgetDutyCycle( ) {
+        sentCycleSecs = -1;
+        dutyCycleEnabled = false;
+        dutyCycleSyncedMillis = 0L;
+    }
+    
+    long getFanRequestCount( ) { return fanRequests.get(); }
+    
     
     // Version that allows passing an error handling Consumer (with an accept() method that returns no result)
     // TODO: needs updating if we want to use it
@@ -178,12 +321,13 @@ class WiFiCommunicator {  // should probably be a Singleton (it is: see Thermoco
     Single<Response> fanControlWithWarning( boolean fanState, Consumer<Throwable> errorHandler ) {
         URL fanURL;
         if( fanState ) {
-            fanURL = FAN_ON_URL;
+            fanURL = endpoint.fanOnURL;
         } else {
-            fanURL = FAN_OFF_URL;
+            fanURL = endpoint.fanOffURL;
         }
-        appInstance.pidState.setOutputOn( fanState );
+        pidState.setOutputOn( fanState );
         return new AsyncHTTPRequester( fanURL, eagerClient, fanControlUUIDSupplier )  // generate serialized UUIDs
+                .schedule( deviceScheduler, FAN_CONTROL )
                 .request()
                 .doOnError(
                         errorHandler::accept  // custom error handler TODO: "Consumer" requires API 24 (Android 7)
@@ -0,0 +1,98 @@
+package net.grlewis.wifithermocouple;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test for AdaptivePollInterval: drives the policy through a synthetic 12-hour cook
+ * (warm-up, long steady state, three lid openings) and compares the request count with fixed 5 s polling.
+ */
+public class AdaptivePollIntervalTest {
+
+    private static final float SETPOINT = 225f;
+    private static final long HOUR = 3600000L;
+    private static final long[] LID_OPENINGS = { 3 * HOUR, 6 * HOUR, 9 * HOUR };
+
+    // pit temperature at time t: 40-minute warm-up from 70, then steady with a little wobble;
+    // each lid opening drops it 50 degrees and it recovers with a 4-minute time constant
+    private static float pitTemp( long t ) {
+        float temp = t < 40 * 60000L? 70f + ( SETPOINT - 70f ) * t / ( 40 * 60000f )
+                : SETPOINT + 0.5f * (float) Math.sin( t / 90000d );
+        for( long opened : LID_OPENINGS ) {
+            if( t >= opened ) temp -= 50f * (float) Math.exp( -( t - opened ) / 240000d );
+        }
+        return temp;
+    }
+
+    @Test
+    public void twelveHourCookUsesFarFewerRequestsThanFixedRate( ) {
+        AdaptivePollInterval policy = new AdaptivePollInterval( );
+        long t = 0L;
+        long maxGap = 0L;
+        long fastAfterLid = 0L;  // polls in the 5 minutes after an opening
+        while( t < 12 * HOUR ) {
+            long interval = policy.nextIntervalMillis();
+            maxGap = Math.max( maxGap, interval );
+            t += interval;
+            policy.recordReading( pitTemp( t ), t, SETPOINT );
+            for( long opened : LID_OPENINGS ) if( t > opened && t - opened < 5 * 60000L ) fastAfterLid++;
+        }
+        long fixedRateRequests = 12 * HOUR / 5000L;  // 8640
+        long adaptiveRequests = policy.getSampleCount();
+        System.out.println( "12 h cook: " + adaptiveRequests + " adaptive requests vs " + fixedRateRequests
+                + " at a fixed 5 s; " + policy.getEffectiveSamplesPerMinute() + " samples/min, "
+                + fastAfterLid + " polls in the 5 min after lid openings" );
+
+        assertTrue( "should cut requests by at least 3x", adaptiveRequests * 3 < fixedRateRequests );
+        assertTrue( "density floor is 3 samples/min", maxGap <= 20000L );
+        assertTrue( "lid recovery should be sampled faster than every 5 s", fastAfterLid > 3 * 60 );
+    }
+
+    @Test
+    public void steadyStateBacksOffGraduallyToTheDensityCap( ) {
+        AdaptivePollInterval policy = new AdaptivePollInterval( );
+        long t = 0L;
+        long previous = 1000L;  // starts fast
+        for( int i = 0; i < 20; i++ ) {
+            long interval = policy.nextIntervalMillis();
+            assertTrue( interval <= (long) ( previous * 1.5 ) );
+            previous = interval;
+            t += interval;
+            policy.recordReading( SETPOINT, t, SETPOINT );
+        }
+        assertEquals( 20000L, policy.getCurrentIntervalMillis() );
+    }
+
+    @Test
+    public void fanSwitchAfterQuietSpellPollsFastButRoutineCyclingDoesNot( ) {
+        AdaptivePollInterval policy = new AdaptivePollInterval( );
+        long t = 0L;
+        for( int i = 0; i < 20; i++ ) {
+            t += policy.nextIntervalMillis();
+            policy.recordReading( SETPOINT, t, SETPOINT );
+        }
+        policy.outputToggled( t );         // first switch after a long quiet spell
+        assertEquals( 1000L, policy.nextIntervalMillis() );
+
+        t += 30000L;                       // past the hold time
+        policy.recordReading( SETPOINT, t, SETPOINT );
+        policy.outputToggled( t - 5000L ); // on/off again within a PID period: routine
+        assertTrue( policy.nextIntervalMillis() > 1000L );
+    }
+
+    @Test
+    public void largeErrorAlonePollsAboutAsOftenAsTheOldFixedRate( ) {
+        AdaptivePollInterval policy = new AdaptivePollInterval( );
+        long t = 0L;
+        for( int i = 0; i < 20; i++ ) {
+            t += policy.nextIntervalMillis();
+            policy.recordReading( 150f, t, null );  // no setpoint: error doesn't count
+        }
+        assertEquals( 20000L, policy.getCurrentIntervalMillis() );
+
+        policy.recordReading( 150f, t + 1000L, SETPOINT );  // flat but 75 degrees low
+        long interval = policy.nextIntervalMillis();
+        assertTrue( interval > 1000L && interval < 6000L );
+    }
+}
@@ -0,0 +1,103 @@
+package net.grlewis.wifithermocouple;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import io.reactivex.observers.TestObserver;
+import okhttp3.OkHttpClient;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test for AsyncJSONGetter's opt-in request sharing against the stand-in device:
+ * concurrent subscribers coalesce onto one call, a value is served from the freshness window
+ * only until it expires, and a failed call is never cached.
+ */
+public class AsyncJSONGetterTest {
+
+    private static final long WINDOW_MILLIS = 500L;
+
+    private FakeThermocoupleDevice device;
+    private AsyncJSONGetter getter;
+
+    @Before
+    public void setUp( ) throws Exception {
+        device = new FakeThermocoupleDevice( ).setLatencyMillis( 100L ).start();
+        OkHttpClient client = new OkHttpClient.Builder( ).readTimeout( 2L, TimeUnit.SECONDS )
+                .retryOnConnectionFailure( false ).build();  // so a dropped connection is one request
+        getter = new AsyncJSONGetter( device.url( "temperature/F" ), client, new SerialUUIDSupplier( 0x3000L, "Test" ) );
+    }
+
+    @After
+    public void tearDown( ) {
+        device.stop();
+    }
+
+    private List<TestObserver<TempReading>> subscribe( int subscribers ) {
+        List<TestObserver<TempReading>> observers = new ArrayList<>( );
+        for( int i = 0; i < subscribers; i++ ) observers.add( getter.getAs( DeviceResponseCodec.TEMP_READING ).test() );
+        return observers;
+    }
+
+    @Test
+    public void concurrentSubscribersShareOneCall( ) throws Exception {
+        getter.setSingleFlight( true );
+        List<TestObserver<TempReading>> observers = subscribe( 5 );  // all while the first is in flight
+        TempReading first = null;
+        for( TestObserver<TempReading> observer : observers ) {
+            observer.await( 2L, TimeUnit.SECONDS );
+            observer.assertValueCount( 1 );
+            if( first == null ) first = observer.values().get( 0 );
+            assertSame( first, observer.values().get( 0 ) );
+        }
+        assertEquals( 1L, device.getRequestCount() );
+        assertEquals( 1L, getter.getCacheMissCount() );
+        assertEquals( 4L, getter.getCoalescedCount() );
+        assertEquals( 0L, getter.getCacheHitCount() );
+
+        subscribe( 1 ).get( 0 ).await( 2L, TimeUnit.SECONDS );  // once it's done the next one is a new call
+        assertEquals( 2L, device.getRequestCount() );
+        assertEquals( 2L, getter.getCacheMissCount() );
+    }
+
+    @Test
+    public void freshValuesExpireAfterTheWindow( ) throws Exception {
+        getter.setFreshnessWindow( WINDOW_MILLIS, TimeUnit.MILLISECONDS );
+        TempReading fetched = getter.getAs( DeviceResponseCodec.TEMP_READING ).blockingGet();
+        assertSame( fetched, getter.getAs( DeviceResponseCodec.TEMP_READING ).blockingGet() );  // within the window
+        assertEquals( 1L, device.getRequestCount() );
+        assertEquals( 1L, getter.getCacheHitCount() );
+
+        Thread.sleep( WINDOW_MILLIS + 50L );
+        assertNotSame( fetched, getter.getAs( DeviceResponseCodec.TEMP_READING ).blockingGet() );
+        assertEquals( 2L, device.getRequestCount() );
+        assertEquals( 1L, getter.getCacheHitCount() );
+        assertEquals( 2L, getter.getCacheMissCount() );
+    }
+
+    @Test
+    public void errorsAreNotCached( ) throws Exception {
+        getter.setSingleFlight( true ).setFreshnessWindow( WINDOW_MILLIS, TimeUnit.MILLISECONDS );
+        device.setDropRate( 1d );  // "Socket closed"
+        List<TestObserver<TempReading>> observers = subscribe( 2 );
+        for( TestObserver<TempReading> observer : observers ) {
+            observer.await( 2L, TimeUnit.SECONDS );
+            observer.assertError( IOException.class );  // both get the shared call's failure
+        }
+        assertEquals( 1L, device.getRequestCount() );
+        assertEquals( 1L, getter.getCoalescedCount() );
+
+        device.setDropRate( 0d );  // well within the window: the failure must not be served again
+        TempReading reading = getter.getAs( DeviceResponseCodec.TEMP_READING ).blockingGet();
+        assertEquals( 225f, reading.temp, 0.5f );
+        assertEquals( 2L, device.getRequestCount() );
+        assertEquals( 0L, getter.getCacheHitCount() );
+        assertEquals( 2L, getter.getCacheMissCount() );
+    }
+}
@@ -0,0 +1,77 @@
+package net.grlewis.wifithermocouple;
+
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.reactivex.schedulers.TestScheduler;
+import okhttp3.Dns;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test for CachingDns with a counting upstream resolver: one blocking lookup per host,
+ * background refreshes once stale, and the old address kept when a refresh fails.
+ */
+public class CachingDnsTest {
+
+    private final AtomicInteger lookups = new AtomicInteger( );
+    private volatile boolean failing;
+    private volatile byte lastOctet = 10;
+
+    private final Dns upstream = hostname -> {
+        lookups.incrementAndGet();
+        if( failing ) throw new UnknownHostException( hostname );
+        return Collections.singletonList( InetAddress.getByAddress( hostname, new byte[]{ (byte) 192, (byte) 168, 1, lastOctet } ) );
+    };
+
+    @Test
+    public void onlyTheFirstLookupWaitsOnTheResolver( ) throws Exception {
+        CachingDns dns = new CachingDns( upstream, 60L, TimeUnit.SECONDS, new TestScheduler( ) );
+        for( int i = 0; i < 10; i++ ) dns.lookup( "wifitempsensor.lan" );
+        assertEquals( 1, lookups.get() );
+        assertEquals( 1L, dns.getMissCount() );
+        assertEquals( 9L, dns.getHitCount() );
+    }
+
+    @Test
+    public void staleEntryIsRefreshedInTheBackground( ) throws Exception {
+        TestScheduler refresher = new TestScheduler( );
+        CachingDns dns = new CachingDns( upstream, 0L, TimeUnit.SECONDS, refresher );  // always stale
+        dns.lookup( "wifitempsensor.lan" );
+        lastOctet = 20;  // the box got a new lease
+
+        List<InetAddress> answer = dns.lookup( "wifitempsensor.lan" );
+        dns.lookup( "wifitempsensor.lan" );  // refresh already pending: not queued again
+        assertEquals( 10, answer.get( 0 ).getAddress()[3] );  // old address served without waiting
+        assertEquals( 1, lookups.get() );
+
+        refresher.triggerActions();
+        assertEquals( 2, lookups.get() );
+        assertEquals( 1L, dns.getRefreshCount() );
+        assertEquals( 20, dns.lookup( "wifitempsensor.lan" ).get( 0 ).getAddress()[3] );
+    }
+
+    @Test
+    public void failedRefreshKeepsTheOldAddress( ) throws Exception {
+        TestScheduler refresher = new TestScheduler( );
+        CachingDns dns = new CachingDns( upstream, 0L, TimeUnit.SECONDS, refresher );
+        dns.lookup( "wifitempsensor.lan" );
+        failing = true;
+
+        dns.lookup( "wifitempsensor.lan" );
+        refresher.triggerActions();
+        assertEquals( 1L, dns.getRefreshFailureCount() );
+        assertEquals( 10, dns.lookup( "wifitempsensor.lan" ).get( 0 ).getAddress()[3] );
+
+        try {
+            dns.lookup( "unknown.lan" );  // nothing cached to fall back on
+            fail( "expected UnknownHostException" );
+        } catch( UnknownHostException expected ) { }
+    }
+}
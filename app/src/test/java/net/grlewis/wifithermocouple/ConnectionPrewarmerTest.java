@@ -0,0 +1,112 @@
+package net.grlewis.wifithermocouple;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.OkHttpClient;
+import okhttp3.Response;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test for ConnectionPrewarmer against the stand-in device with keep-alive on and a
+ * 150 ms connection setup cost: fan commands after a warm-up should skip that cost, and warm-ups
+ * should only be sent when no live connection has been used recently, and never to a device that
+ * closes every connection.
+ * Prints the ConnectionTimingListener numbers for comparison.
+ */
+public class ConnectionPrewarmerTest {
+
+    private static final long SETUP_MILLIS = 150L;
+    private static final int ROUNDS = 5;
+
+    private final List<FakeThermocoupleDevice> devices = new ArrayList<>( );
+
+    @After
+    public void tearDown( ) {
+        for( FakeThermocoupleDevice device : devices ) device.stop();
+    }
+
+    // a fresh device (new port, so nothing pooled) and a communicator for it
+    private WiFiCommunicator freshCommunicator( boolean keepAlive ) throws Exception {
+        FakeThermocoupleDevice device = new FakeThermocoupleDevice( ).setLatencyMillis( 10L )
+                .setConnectionSetupMillis( SETUP_MILLIS ).setKeepAlive( keepAlive ).start();
+        devices.add( device );
+        return new WiFiCommunicator( new DeviceEndpoint( "device " + devices.size(), device.url( "" ).toString() ),
+                new PIDState( ) );
+    }
+
+    private static long timedFanCommandMillis( WiFiCommunicator communicator ) {
+        long start = System.nanoTime();
+        try( Response response = communicator.fanController( true ).request().blockingGet() ) {
+            assertEquals( 200, response.code() );
+        }
+        return TimeUnit.NANOSECONDS.toMillis( System.nanoTime() - start );
+    }
+
+    private static void awaitWarm( WiFiCommunicator communicator ) throws InterruptedException {
+        ConnectionTimingListener.Stats stats =
+                WiFiCommunicator.connectionTiming.statsFor( communicator.endpoint.getHostAndPort() );
+        for( int i = 0; i < 100 && !stats.usedWithin( TimeUnit.SECONDS.toNanos( 1L ) ); i++ ) Thread.sleep( 10L );
+        Thread.sleep( 20L );  // let the response be closed & the connection returned to the pool
+    }
+
+    // as if the connection had sat idle past PREWARM_IDLE_MILLIS and been dropped
+    private static void goneIdle( WiFiCommunicator communicator ) throws Exception {
+        Field client = WiFiCommunicator.class.getDeclaredField( "client" );
+        client.setAccessible( true );
+        Thread.sleep( 20L );  // let the last response's connection be returned to the pool
+        ( (OkHttpClient) client.get( null ) ).connectionPool().evictAll();
+        WiFiCommunicator.connectionTiming.statsFor( communicator.endpoint.getHostAndPort() ).lastKeepAliveNanos
+                .set( System.nanoTime() - TimeUnit.MILLISECONDS.toNanos( Constants.PREWARM_IDLE_MILLIS ) );
+    }
+
+    @Test
+    public void warmedFanCommandsSkipTheConnectionSetup( ) throws Exception {
+        long coldTotal = 0L, warmTotal = 0L;
+        ConnectionTimingListener.Stats coldStats = null, warmStats = null;
+        for( int i = 0; i < ROUNDS; i++ ) {
+            WiFiCommunicator cold = freshCommunicator( true );
+            coldTotal += timedFanCommandMillis( cold );
+            coldStats = WiFiCommunicator.connectionTiming.statsFor( cold.endpoint.getHostAndPort() );
+
+            WiFiCommunicator warm = freshCommunicator( true );
+            timedFanCommandMillis( warm );  // seen to keep connections alive
+            goneIdle( warm );
+            warm.prewarmer.prewarm();  // as the PID loop does PREWARM_LEAD_MILLIS ahead
+            awaitWarm( warm );
+            warmTotal += timedFanCommandMillis( warm );
+            warmStats = WiFiCommunicator.connectionTiming.statsFor( warm.endpoint.getHostAndPort() );
+            assertEquals( 1L, warmStats.reusedConnections.get() );  // new, warm-up new, then reused
+        }
+        System.out.println( "fan command: cold " + coldTotal / ROUNDS + " ms, pre-warmed " + warmTotal / ROUNDS + " ms" );
+        System.out.println( "  cold device:   " + coldStats );
+        System.out.println( "  warmed device: " + warmStats );
+        assertTrue( "pre-warming should save most of the setup cost", coldTotal - warmTotal > ROUNDS * SETUP_MILLIS / 2 );
+    }
+
+    @Test
+    public void warmUpIsSkippedWhileTheConnectionIsFresh( ) throws Exception {
+        WiFiCommunicator communicator = freshCommunicator( true );
+        timedFanCommandMillis( communicator );
+        communicator.prewarmer.prewarm();
+        communicator.prewarmer.prewarm();
+        assertEquals( 2L, communicator.prewarmer.getRequestedCount() );
+        assertEquals( 0L, communicator.prewarmer.getSentCount() );
+    }
+
+    @Test
+    public void closedConnectionsAreNeverPrewarmed( ) throws Exception {
+        WiFiCommunicator communicator = freshCommunicator( false );  // "Connection: close" like the firmware
+        communicator.prewarmer.prewarm();                             // nothing seen yet
+        timedFanCommandMillis( communicator );
+        communicator.prewarmer.prewarm();
+        assertEquals( 2L, communicator.prewarmer.getRequestedCount() );
+        assertEquals( 0L, communicator.prewarmer.getSentCount() );
+    }
+}
@@ -0,0 +1,115 @@
+package net.grlewis.wifithermocouple;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test for CookLog: records written across several chunks all come back after reopening
+ * (closed or not), a history is refilled from the tail and rollups from the whole log, a torn last
+ * record is ignored and written over, and a new cook archives the old log and keeps it as .prev.
+ */
+public class CookLogTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder( );
+
+    private static void append( CookLog log, int n ) throws IOException {
+        log.append( 1000000L + n * 5000L, 200f + n % 50, 201f + n % 50, 225f, n % 100, n % 2 == 0,
+                n * 0.1f, -n * 0.01f, 0.5f );
+    }
+
+    // reopen a log just to count its records, and close it again (an open log holds its file and a chunk mapped)
+    private static void assertRecords( long expected, File file ) throws IOException {
+        try( CookLog log = CookLog.open( file ) ) {
+            assertEquals( expected, log.size() );
+        }
+    }
+
+    @Test
+    public void recoversAfterReopening( ) throws IOException {
+        File file = new File( folder.getRoot(), "cook-test.log" );
+        int count = 2 * Constants.COOKLOG_CHUNK_RECORDS + 3000;
+        CookLog log = CookLog.open( file );
+        for( int n = 0; n < count; n++ ) append( log, n );
+        log.sync();
+
+        CookLog reopened = CookLog.open( file );  // as if the process died: never closed
+        assertEquals( count, reopened.size() );
+        CookLog.Record record = new CookLog.Record( );
+        assertTrue( reopened.read( 12345L, record ) );
+        assertEquals( 1000000L + 12345L * 5000L, record.millis );
+        assertEquals( 201f + 12345 % 50, record.filtered, 0f );
+        assertEquals( 1234.5f, record.p, 1e-3f );
+        assertFalse( record.fanOn );
+        assertFalse( reopened.read( count, record ) );
+
+        TempHistoryBuffer history = new TempHistoryBuffer( Constants.HISTORY_BUFFER_SIZE, true );
+        TempRollups rollups = new TempRollups( );
+        long began = System.nanoTime();
+        assertEquals( Constants.HISTORY_BUFFER_SIZE, reopened.recoverInto( history, rollups ) );
+        System.out.println( "recovered " + history.size() + " of " + count + " records in "
+                + ( System.nanoTime() - began ) / 1000000L + " ms" );
+        assertEquals( reopened.getLastMillis(), history.getLastMillis() );
+        assertEquals( 201f + ( count - 1 ) % 50, history.getLastTemp(), 0f );
+        assertEquals( count, rollups.getSampleCount() );  // the rollups from the whole log
+
+        append( reopened, count );  // carries on where it left off
+        reopened.close();
+        log.close();
+        reopened = CookLog.open( file );
+        assertEquals( count + 1L, reopened.size() );
+        reopened.close();
+    }
+
+    @Test
+    public void ignoresATornRecord( ) throws IOException {
+        File file = new File( folder.getRoot(), "cook-torn.log" );
+        CookLog log = CookLog.open( file );
+        for( int n = 0; n < 100; n++ ) append( log, n );
+        log.close();
+
+        try( RandomAccessFile raf = new RandomAccessFile( file, "rw" ) ) {  // the last one only partly written
+            raf.seek( CookLog.HEADER_BYTES + 99L * CookLog.RECORD_BYTES + 12L );
+            raf.writeInt( 0x12345678 );
+        }
+        log = CookLog.open( file );
+        assertEquals( 99L, log.size() );
+        append( log, 500 );
+        CookLog.Record record = new CookLog.Record( );
+        assertTrue( log.read( 99L, record ) );
+        assertEquals( 1000000L + 500 * 5000L, record.millis );
+        log.close();
+        assertRecords( 100L, file );
+    }
+
+    @Test
+    public void newCookKeepsThePrevious( ) throws IOException {
+        File file = new File( folder.getRoot(), "cook-new.log" );
+        CookLog log = CookLog.open( file );
+        for( int n = 0; n < 10; n++ ) append( log, n );
+        log.startNewCook();
+        assertEquals( 0L, log.size() );
+        append( log, 10 );
+        log.close();
+        assertRecords( 1L, file );
+        assertRecords( 10L, new File( file.getPath() + ".prev" ) );
+
+        File archive = new File( folder.getRoot(), "cook-new-" + 1000000L + ".cka" );  // named for its first reading
+        CookArchive.Reader reader = CookArchive.Reader.open( archive );
+        assertEquals( 10L, reader.getPointCount() );
+        reader.close();
+
+        log = CookLog.open( file );
+        log.startNewCook();  // archived too, before it replaces .prev
+        log.close();
+        assertRecords( 1L, new File( file.getPath() + ".prev" ) );
+        assertEquals( 2, folder.getRoot().list( ( dir, name ) -> name.endsWith( ".cka" ) ).length );
+    }
+}
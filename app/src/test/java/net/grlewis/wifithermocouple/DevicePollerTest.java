@@ -0,0 +1,119 @@
+package net.grlewis.wifithermocouple;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.reactivex.Single;
+import io.reactivex.observers.TestObserver;
+import io.reactivex.schedulers.TestScheduler;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test for DevicePoller in virtual time: a slow device mustn't pile up requests,
+ * late or out-of-order readings are dropped, and failures don't end the stream.
+ */
+public class DevicePollerTest {
+
+    private TestScheduler scheduler;
+    private Deque<Long> delays;        // response delay (ms) for each successive request; -1 = fail
+    private AtomicInteger subscribes;  // requests actually sent
+    private Single<TempReading> request;
+
+    @Before
+    public void setUp( ) {
+        scheduler = new TestScheduler( );
+        delays = new ArrayDeque<>( );
+        subscribes = new AtomicInteger( );
+        request = Single.defer( ( ) -> {
+            int n = subscribes.incrementAndGet();
+            long sentAt = scheduler.now( MILLISECONDS );
+            long delay = delays.isEmpty()? 100L : delays.poll();
+            if( delay < 0L ) return Single.error( new IOException( "Socket closed" ) );
+            return Single.just( new TempReading( 200f + n, new UUID( 0x3000L, n ), sentAt, sentAt + delay ) )
+                    .delay( delay, MILLISECONDS, scheduler );
+        } );
+    }
+
+    private DevicePoller<TempReading> poller( ) {
+        return new DevicePoller<>( "Test", request, 5L, SECONDS ).setScheduler( scheduler );
+    }
+
+    @Test
+    public void slowDeviceSkipsTicksInsteadOfStackingRequests( ) {
+        delays.add( 12000L );  // first request (sent at 5 s) doesn't answer until 17 s
+        DevicePoller<TempReading> poller = poller( ).setTickDeadline( 20L, SECONDS );
+        TestObserver<TempReading> readings = poller.poll().test();
+
+        scheduler.advanceTimeBy( 15L, SECONDS );  // ticks at 5, 10, 15
+        assertEquals( 1, subscribes.get() );
+        assertEquals( 2, poller.getSkippedCount() );
+
+        scheduler.advanceTimeBy( 6L, SECONDS );   // slow answer at 17, next request at 20
+        readings.assertValueCount( 2 );
+        assertEquals( 2, subscribes.get() );
+        readings.assertNotTerminated();
+    }
+
+    @Test
+    public void readingOvertakenByLaterRequestIsDropped( ) {
+        delays.add( 12000L );
+        DevicePoller<TempReading> poller = poller( ).setMaxInFlight( 2 ).setTickDeadline( 20L, SECONDS );
+        TestObserver<TempReading> readings = poller.poll().test();
+
+        scheduler.advanceTimeBy( 18L, SECONDS );  // requests at 10 and 15 answer before the one sent at 5
+        readings.assertValueCount( 2 );
+        assertEquals( 1, poller.getOutOfOrderCount() );
+        assertEquals( 0, poller.getSkippedCount() );
+        readings.assertNotTerminated();
+    }
+
+    @Test
+    public void tickDeadlineDropsLateResponse( ) {
+        delays.add( 6000L );
+        DevicePoller<TempReading> poller = poller( );  // deadline defaults to the 5 s period
+        TestObserver<TempReading> readings = poller.poll().test();
+
+        scheduler.advanceTimeBy( 11L, SECONDS );
+        assertEquals( 1, poller.getTimedOutCount() );
+        readings.assertValueCount( 1 );
+        assertEquals( 202f, readings.values().get( 0 ).temp, 0f );
+        readings.assertNotTerminated();
+    }
+
+    @Test
+    public void failuresAreRetriedWithinTheTickAndNeverEndTheStream( ) {
+        delays.add( -1L );
+        delays.add( -1L );
+        delays.add( -1L );
+        DevicePoller<TempReading> poller = poller( ).setRetriesPerTick( 1 );
+        TestObserver<TempReading> readings = poller.poll().test();
+
+        scheduler.advanceTimeBy( 5L, SECONDS );   // try + 1 retry both fail
+        assertEquals( 1, poller.getFailedCount() );
+        readings.assertNoValues();
+
+        scheduler.advanceTimeBy( 5200L, MILLISECONDS );  // one more failure, then success
+        readings.assertValueCount( 1 );
+        assertEquals( 4, subscribes.get() );
+        readings.assertNotTerminated();
+    }
+
+    @Test
+    public void readingsKeepDeviceTimestamps( ) {
+        TestObserver<TempReading> readings = poller( ).poll().test();
+        scheduler.advanceTimeBy( 5L, SECONDS );
+        scheduler.advanceTimeBy( 1L, SECONDS );
+        TempReading reading = readings.values().get( 0 );
+        assertEquals( 5000L, reading.sentAtMillis );
+        assertEquals( 5100L, reading.receivedAtMillis );
+    }
+}
@@ -0,0 +1,98 @@
+package net.grlewis.wifithermocouple;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import io.reactivex.Single;
+import io.reactivex.observers.TestObserver;
+import io.reactivex.schedulers.TestScheduler;
+import io.reactivex.subjects.SingleSubject;
+
+import static net.grlewis.wifithermocouple.DeviceRequestScheduler.RequestClass.*;
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test for DeviceRequestScheduler on a TestScheduler's clock: queued requests go out
+ * highest class first (FIFO within a class), fan control isn't held back by the token bucket that
+ * paces everything else, and a request past its class deadline fails with a TimeoutException
+ * whether it's still queued or already on the wire (freeing its slot either way).
+ */
+public class DeviceRequestSchedulerTest {
+
+    private final TestScheduler clock = new TestScheduler( );
+
+    // a request that records when it's actually sent
+    private static Single<String> request( List<String> sent, String label ) {
+        return Single.fromCallable( ( ) -> {
+            sent.add( label );
+            return label;
+        } );
+    }
+
+    @Test
+    public void highestClassGoesFirst( ) {
+        DeviceRequestScheduler scheduler = new DeviceRequestScheduler( "test", 1, 100f, 100, clock );
+        SingleSubject<String> busy = SingleSubject.create();  // holds the only slot
+        TestObserver<String> first = scheduler.schedule( TEMPERATURE, busy ).test();
+        List<String> sent = new ArrayList<>( );
+        scheduler.schedule( ANALOG, request( sent, "analog" ) ).test();
+        scheduler.schedule( TEMPERATURE, request( sent, "temp 1" ) ).test();
+        scheduler.schedule( WATCHDOG, request( sent, "watchdog" ) ).test();
+        scheduler.schedule( TEMPERATURE, request( sent, "temp 2" ) ).test();
+        scheduler.schedule( FAN_CONTROL, request( sent, "fan" ) ).test();
+        assertTrue( sent.isEmpty() );
+        assertEquals( 5, scheduler.getQueuedCount() );
+
+        busy.onSuccess( "busy" );
+        first.assertValue( "busy" );
+        assertEquals( 0, scheduler.getQueuedCount() );
+        assertEquals( 0, scheduler.getInFlightCount() );
+        assertEquals( "[fan, temp 1, temp 2, watchdog, analog]", sent.toString() );
+    }
+
+    @Test
+    public void fanControlBypassesTheRateLimit( ) {
+        DeviceRequestScheduler scheduler = new DeviceRequestScheduler( "test", 4, 1f, 1, clock );  // one token
+        List<String> sent = new ArrayList<>( );
+        scheduler.schedule( TEMPERATURE, request( sent, "temp 1" ) ).test().assertValue( "temp 1" );
+        TestObserver<String> paced = scheduler.schedule( TEMPERATURE, request( sent, "temp 2" ) ).test();
+        TestObserver<String> fan = scheduler.schedule( FAN_CONTROL, request( sent, "fan" ) ).test();
+        fan.assertValue( "fan" );  // at once, though temp 2 is still waiting for a token
+        paced.assertNoValues();
+        assertEquals( "[temp 1, fan]", sent.toString() );
+
+        clock.advanceTimeBy( 999L, TimeUnit.MILLISECONDS );
+        paced.assertNoValues();
+        clock.advanceTimeBy( 1L, TimeUnit.MILLISECONDS );  // the token's refilled
+        paced.assertValue( "temp 2" );
+        assertEquals( 2L, scheduler.getDispatchedCount( TEMPERATURE ) );
+        assertEquals( 1L, scheduler.getDispatchedCount( FAN_CONTROL ) );
+    }
+
+    @Test
+    public void deadlinesExpireQueuedAndRunningRequests( ) {
+        DeviceRequestScheduler scheduler = new DeviceRequestScheduler( "test", 1, 100f, 100, clock );
+        SingleSubject<String> hung = SingleSubject.create();  // the device never answers
+        TestObserver<String> fan = scheduler.schedule( FAN_CONTROL, hung ).test();
+        List<String> sent = new ArrayList<>( );
+        TestObserver<String> analog = scheduler.schedule( ANALOG, request( sent, "analog" ) ).test();
+        TestObserver<String> watchdog = scheduler.schedule( WATCHDOG, request( sent, "watchdog" ) ).test();
+
+        clock.advanceTimeBy( ANALOG.deadlineMillis, TimeUnit.MILLISECONDS );  // still queued behind the fan
+        analog.assertError( TimeoutException.class );
+        assertEquals( 1, scheduler.getQueuedCount() );
+        assertTrue( sent.isEmpty() );
+
+        clock.advanceTimeBy( FAN_CONTROL.deadlineMillis - ANALOG.deadlineMillis, TimeUnit.MILLISECONDS );
+        fan.assertError( TimeoutException.class );
+        assertFalse( hung.hasObservers() );   // the hung request was canceled...
+        watchdog.assertValue( "watchdog" );   // ...and its slot went to the next one
+        assertEquals( "[watchdog]", sent.toString() );
+        assertEquals( 0, scheduler.getInFlightCount() );
+        assertEquals( 0L, scheduler.getDispatchedCount( ANALOG ) );
+    }
+}
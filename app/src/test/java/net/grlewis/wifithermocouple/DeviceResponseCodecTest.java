@@ -0,0 +1,119 @@
+package net.grlewis.wifithermocouple;
+
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.UUID;
+
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+import okio.Buffer;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test for the streaming decoders, including a per-poll allocation comparison
+ * of TEMP_READING against the old string -> JSONObject -> getDouble() -> Float path.
+ */
+public class DeviceResponseCodecTest {
+    
+    private static final String TEMP_JSON = "{\"TempF\":225.75}";
+    private static final int POLLS = 20000;
+    
+    private Response response;
+    private UUID requestUUID;
+    private volatile Object sink;  // keeps the JIT from discarding decoded values
+    
+    @Before
+    public void setUp( ) {
+        response = new Response.Builder( )
+                .request( new Request.Builder( ).url( "http://wifitempsensor.lan/temperature/F" ).build( ) )
+                .protocol( Protocol.HTTP_1_1 )
+                .code( 200 )
+                .message( "OK" )
+                .sentRequestAtMillis( 1000L )
+                .receivedResponseAtMillis( 1042L )
+                .build( );
+        requestUUID = new UUID( 0x3000L, 1L );
+    }
+    
+    private static Buffer body( String json ) {
+        return new Buffer( ).writeUtf8( json );
+    }
+    
+    @Test
+    public void decodesTemperature( ) throws Exception {
+        TempReading reading = DeviceResponseCodec.TEMP_READING.decode( body( TEMP_JSON ), response, requestUUID );
+        assertEquals( 225.75f, reading.temp, 0f );
+        assertEquals( requestUUID, reading.requestUUID );
+        assertEquals( 42L, reading.getRoundTripMillis( ) );
+        
+        reading = DeviceResponseCodec.TEMP_READING.decode( body( " { \"TempC\" : -1.5e1 } " ), response, requestUUID );
+        assertEquals( -15f, reading.temp, 0f );
+    }
+    
+    @Test
+    public void decodesFirmwareNanAsNaN( ) throws Exception {
+        assertTrue( Float.isNaN( DeviceResponseCodec.TEMP_READING.decode( body( "{\"TempF\":nan}" ), response, requestUUID ).temp ) );
+        assertFalse( DeviceResponseCodec.TEMP_READING.decode( body( "{\"TempF\":\"nan\"}" ), response, requestUUID ).isValid( ) );
+    }
+    
+    @Test
+    public void decodesOtherEndpointsAndSkipsUnknownFields( ) throws Exception {
+        WatchdogStatus status = DeviceResponseCodec.WATCHDOG_STATUS.decode(
+                body( "{\"Enabled\":true,\"Remaining\":{\"secs\":[1,2]},\"Expired\":0}" ), response, requestUUID );
+        assertTrue( status.enabled );
+        assertFalse( status.expired );
+        
+        AnalogReading analog = DeviceResponseCodec.ANALOG_READING.decode(
+                body( "{\"Note\":\"a \\\"quoted\\\" note\",\"AnalogIn\":0.42}" ), response, requestUUID );
+        assertEquals( 0.42f, analog.volts, 1e-6f );
+        
+        DeviceInfo info = DeviceResponseCodec.DEVICE_INFO.decode(
+                body( "{\"Model\":\"ESP8266\",\"HWVersion\":0.9,\"SWVersion\":\"0.7\"}" ), response, requestUUID );
+        assertEquals( "ESP8266", info.model );
+        assertEquals( "0.9", info.hwVersion );
+        assertEquals( "0.7", info.swVersion );
+    }
+    
+    @Test( expected = org.json.JSONException.class )
+    public void rejectsNonObject( ) throws Exception {
+        DeviceResponseCodec.TEMP_READING.decode( body( "[225.75]" ), response, requestUUID );
+    }
+    
+    @Test
+    public void typedTemperatureAllocatesLessThanJSONObjectRoundTrip( ) throws Exception {
+        com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean( );
+        long threadId = Thread.currentThread( ).getId( );
+        Buffer buffer = new Buffer( );
+        
+        for( int pass = 0; pass < 2; pass++ ) {  // first pass is JIT warm-up
+            long start = threadBean.getThreadAllocatedBytes( threadId );
+            for( int i = 0; i < POLLS; i++ ) {
+                buffer.writeUtf8( TEMP_JSON );
+                JSONObject json = DeviceResponseCodec.JSON_OBJECT.decode( buffer, response, requestUUID );
+                Float temp = (float) json.getDouble( "TempF" );  // what the old consumers did
+                sink = temp;
+            }
+            long legacyBytes = threadBean.getThreadAllocatedBytes( threadId ) - start;
+            
+            start = threadBean.getThreadAllocatedBytes( threadId );
+            for( int i = 0; i < POLLS; i++ ) {
+                buffer.writeUtf8( TEMP_JSON );
+                sink = DeviceResponseCodec.TEMP_READING.decode( buffer, response, requestUUID );
+            }
+            long typedBytes = threadBean.getThreadAllocatedBytes( threadId ) - start;
+            
+            if( pass == 1 ) {
+                System.out.println( "bytes allocated per temperature poll: JSONObject " + legacyBytes / POLLS
+                        + ", TEMP_READING " + typedBytes / POLLS + " (" + System.getProperty( "java.vm.name" )
+                        + " " + System.getProperty( "java.version" ) + "; the JSONObject figure depends on the JVM)" );
+                assertTrue( typedBytes * 4 < legacyBytes );
+                assertTrue( typedBytes / POLLS <= 64 );  // just the TempReading
+            }
+        }
+    }
+}
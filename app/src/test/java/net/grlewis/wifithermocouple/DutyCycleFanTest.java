@@ -0,0 +1,129 @@
+package net.grlewis.wifithermocouple;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import io.reactivex.Completable;
+import io.reactivex.schedulers.TestScheduler;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test for fan actuation through the device's duty-cycle timer: requests per hour against
+ * on/off time-proportioning (simulated 12 h cooks), only changed settings sent to a fake device, and
+ * the fallback to on/off when the device won't take them, with the device's timer explicitly stopped
+ * whenever the controller stops using it.
+ */
+public class DutyCycleFanTest {
+
+    // fan requests per hour over a 12 h cook at 225
+    private static float requestsPerHour( boolean deviceDutyCycle, float p, float i, float d ) {
+        SimulatedCook cook = new SimulatedCook( new SmokerPlantModel( ), 1000L, deviceDutyCycle )
+                .setGains( 1f, p, i, d ).setSetPoint( 225f ).start();
+        assertEquals( deviceDutyCycle? BBQController.FanMode.DEVICE_DUTY_CYCLE : BBQController.FanMode.ON_OFF,
+                cook.getController().getFanMode() );
+        cook.run( 12L, TimeUnit.HOURS );
+        assertTrue( "should hold the setpoint: " + cook, cook.getMeanAbsError() < 10f );
+        float perHour = cook.getFanCommands() / 12f;
+        // each duty-cycle command is one request, plus fan/?cl= & fan/dcenable again every FAN_DC_REFRESH_SECS
+        if( deviceDutyCycle ) perHour += 2f * 3600f / Constants.FAN_DC_REFRESH_SECS;
+        System.out.println( ( deviceDutyCycle? "duty cycle " : "on/off     " ) + perHour + " requests/h; " + cook );
+        return perHour;
+    }
+
+    @Test
+    public void dutyCycleCutsFanRequestsPerHour( ) {
+        // default coefficients (the PID output swings a lot every period)
+        float onOff = requestsPerHour( false, 5f, 1f, 5f );
+        float dutyCycle = requestsPerHour( true, 5f, 1f, 5f );
+        assertTrue( dutyCycle * 2.5f < onOff );
+        // coefficients like the auto-tuner finds for this smoker (steadier output, so fewer changes to send)
+        onOff = requestsPerHour( false, 1.75f, 0.09f, 22.4f );
+        dutyCycle = requestsPerHour( true, 1.75f, 0.09f, 22.4f );
+        assertTrue( dutyCycle * 4f < onOff );
+    }
+
+    @Test
+    public void sendsOnlyWhatChangedToTheDevice( ) throws Exception {
+        FakeThermocoupleDevice device = new FakeThermocoupleDevice( ).start();
+        try {
+            WiFiCommunicator communicator = new WiFiCommunicator( new DeviceEndpoint( "dc", device.url( "" ).toString() ),
+                    new PIDState( ) );
+            communicator.setDutyCycle( 30, 10 ).blockingAwait();  // first time: everything
+            assertEquals( 3L, communicator.getFanRequestCount() );
+            assertTrue( device.isDutyCycleEnabled() );
+            assertEquals( 30, device.getDutyCyclePercent() );
+            assertEquals( 10, device.getCycleLengthSecs() );
+
+            communicator.setDutyCycle( 45, 10 ).blockingAwait();  // just the new %
+            assertEquals( 4L, communicator.getFanRequestCount() );
+            assertEquals( 45, device.getDutyCyclePercent() );
+            assertEquals( 1L, device.getRequestCount( "fan/dcenable" ) );
+
+            communicator.disableDutyCycle().blockingAwait();      // fan/dcdisable...
+            assertFalse( device.isDutyCycleEnabled() );
+            assertEquals( 1L, device.getRequestCount( "fan/dcdisable" ) );
+            communicator.setDutyCycle( 45, 10 ).blockingAwait();  // ...so it has to be enabled again
+            assertTrue( device.isDutyCycleEnabled() );
+            assertEquals( 2L, device.getRequestCount( "fan/dcenable" ) );
+
+            communicator.setFan( true ).blockingAwait();          // on/off may not stop the timer: everything is resent
+            communicator.setDutyCycle( 45, 10 ).blockingAwait();
+            assertEquals( 3L, device.getRequestCount( "fan/dcenable" ) );
+        } finally {
+            device.stop();
+        }
+    }
+
+    @Test
+    public void fallsBackToOnOffWhenTheDeviceRefusesDutyCycles( ) {
+        TestScheduler scheduler = new TestScheduler( );
+        SmokerPlantModel plant = new SmokerPlantModel( );
+        int[] dutyCycleAttempts = { 0 };
+        int[] timerStops = { 0 };
+        boolean[] fanOn = { false };
+        FanActuator oldFirmware = new FanActuator( ) {
+            @Override
+            public Completable setFan( boolean on ) {
+                return Completable.fromAction( ( ) -> {
+                    fanOn[0] = on;
+                    plant.setFanDuty( on? 1f : 0f );
+                } );
+            }
+
+            @Override
+            public boolean supportsDutyCycle( ) { return true; }
+
+            @Override
+            public Completable disableDutyCycle( ) {
+                return Completable.fromAction( ( ) -> timerStops[0]++ );
+            }
+
+            @Override
+            public Completable setDutyCycle( int percent, int cycleSecs ) {
+                dutyCycleAttempts[0]++;
+                return Completable.error( new IOException( "HTTP 404" ) );
+            }
+        };
+        BBQController controller = new BBQController( new PIDState( ), oldFirmware, scheduler );
+        assertEquals( BBQController.FanMode.ON_OFF, controller.getFanMode() );  // the default, until the firmware's timer is confirmed
+        assertTrue( controller.setFanMode( BBQController.FanMode.DEVICE_DUTY_CYCLE ) );
+        controller.setCurrentVariableValue( plant.getTemp() );
+        controller.set( 225f );
+        controller.start();
+        scheduler.advanceTimeBy( 1L, TimeUnit.SECONDS );
+        assertEquals( 1f, plant.getFanDuty(), 0f );  // the first period still got its fan/on
+
+        scheduler.advanceTimeBy( 10L, TimeUnit.MINUTES );
+        assertEquals( BBQController.FanMode.ON_OFF, controller.getFanMode() );
+        assertEquals( Constants.FAN_DC_MAX_FAILURES, dutyCycleAttempts[0] );
+        assertEquals( Constants.FAN_DC_MAX_FAILURES, timerStops[0] );  // one fan/dcdisable per fallback
+
+        controller.stop();
+        scheduler.triggerActions();
+        assertEquals( Constants.FAN_DC_MAX_FAILURES + 1, timerStops[0] );
+        assertFalse( fanOn[0] );
+    }
+}
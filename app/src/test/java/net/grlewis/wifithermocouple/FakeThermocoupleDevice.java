@@ -0,0 +1,443 @@
+package net.grlewis.wifithermocouple;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Stand-in for the wifitempsensor.lan box, for tests and benchmarks without hardware.
+ *
+ * Serves every endpoint in Constants on localhost with the firmware's JSON shapes and a
+ * "Content-type: application/json" header (AsyncJSONGetter rejects anything else); the plain
+ * HTTP commands answer 200 with a short text body. Every response closes the connection, as the firmware does,
+ * unless keepAlive is set (to measure what connection reuse would buy; see ConnectionPrewarmer).
+ *
+ * Temperatures come from a SmokerPlantModel that the fan endpoints drive (on/off, or the duty cycle
+ * set by fan/?dc= once fan/dcenable is called). The model advances with wall-clock time multiplied
+ * by timeScale, so a test can watch a cook happen in seconds. An enabled watchdog that isn't fed
+ * within watchdogTimeoutSecs (model time) expires and turns the fan off, like the real one.
+ *
+ * Misbehavior, all adjustable while running:
+ *     latency + uniform jitter before each response
+ *     nanRate: fraction of temperature readings returned as "nan" (what the MAX31855 gives with a loose probe)
+ *     dropRate: fraction of connections closed without any response ("Socket closed")
+ *     singleConnection: handle one connection at a time, like the ESP8266 (others wait in the accept backlog)
+ *     connectionSetupMillis: extra delay before the first response on each new connection (the ESP8266's
+ *         slow accept; on localhost the TCP handshake itself costs nothing)
+ *     keepAlive: serve further requests on a connection until it's idle for KEEP_ALIVE_IDLE_MILLIS
+ *
+ * usage in a test:
+ *     FakeThermocoupleDevice device = new FakeThermocoupleDevice( ).setLatencyMillis( 50 ).start( );
+ *     URL tempF = device.url( "temperature/F" );
+ *     ...
+ *     device.stop( );
+ *
+ * from the command line (test classpath), runs until killed and prints its counters on exit:
+ *     java net.grlewis.wifithermocouple.FakeThermocoupleDevice --port 8080 --latency 40 --jitter 20 \
+ *          --nan 0.01 --drop 0.02 --single --timescale 10 --setup 150 --keepalive
+ *
+ */
+
+class FakeThermocoupleDevice {
+
+    private static final String JSON = "application/json";
+    private static final String TEXT = "text/plain";
+    private static final int KEEP_ALIVE_IDLE_MILLIS = 5000;
+
+    private final SmokerPlantModel plant;
+    private final Random random;
+
+    private volatile long latencyMillis;
+    private volatile long jitterMillis;
+    private volatile double nanRate;
+    private volatile double dropRate;
+    private volatile boolean singleConnection;
+    private volatile long connectionSetupMillis;
+    private volatile boolean keepAlive;  // set before start()
+    private volatile double timeScale = 1d;
+    private volatile double watchdogTimeoutSecs = 120d;
+
+    private ServerSocket serverSocket;
+    private ExecutorService workers;
+    private Thread acceptThread;
+
+    // device state, guarded by 'this'
+    private long lastAdvanceNanos;
+    private boolean fanOn;
+    private boolean dutyCycleEnabled;
+    private int dutyCyclePercent = 50;
+    private int cycleLengthSecs = 10;
+    private boolean blueLedOn;
+    private boolean watchdogEnabled;
+    private boolean watchdogExpired;
+    private double lastFeedSecs;          // model time of last watchdog feed
+    private float analogInVolts = 0.5f;
+
+    // counters
+    private final AtomicLong requests = new AtomicLong( );
+    private final AtomicLong connections = new AtomicLong( );
+    private final AtomicLong dropped = new AtomicLong( );
+    private final AtomicLong nans = new AtomicLong( );
+    private final AtomicInteger concurrent = new AtomicInteger( );
+    private final AtomicInteger maxConcurrent = new AtomicInteger( );
+    private final Map<String, AtomicLong> perEndpoint = new ConcurrentHashMap<>( );
+
+
+    // constructor
+    FakeThermocoupleDevice( SmokerPlantModel plant, long seed ) {
+        this.plant = plant;
+        this.random = new Random( seed );
+    }
+
+    // constructor with a default smoker already at 225
+    FakeThermocoupleDevice( ) {
+        this( new SmokerPlantModel( ), 42L );
+        plant.reset( 225d );
+    }
+
+
+    // setters return the device so you can chain
+    FakeThermocoupleDevice setLatencyMillis( long millis ) { latencyMillis = millis; return this; }
+    FakeThermocoupleDevice setJitterMillis( long millis ) { jitterMillis = millis; return this; }
+    FakeThermocoupleDevice setNanRate( double rate ) { nanRate = rate; return this; }
+    FakeThermocoupleDevice setDropRate( double rate ) { dropRate = rate; return this; }
+    FakeThermocoupleDevice setSingleConnection( boolean single ) { singleConnection = single; return this; }
+    FakeThermocoupleDevice setConnectionSetupMillis( long millis ) { connectionSetupMillis = millis; return this; }
+    FakeThermocoupleDevice setKeepAlive( boolean keep ) { keepAlive = keep; return this; }
+    FakeThermocoupleDevice setTimeScale( double scale ) { advancePlant(); timeScale = scale; return this; }
+    FakeThermocoupleDevice setWatchdogTimeoutSecs( double secs ) { watchdogTimeoutSecs = secs; return this; }
+    synchronized FakeThermocoupleDevice setAnalogInVolts( float volts ) { analogInVolts = volts; return this; }
+
+
+    // bind to a free localhost port and start serving
+    FakeThermocoupleDevice start( ) throws IOException {
+        return start( 0 );
+    }
+
+    synchronized FakeThermocoupleDevice start( int port ) throws IOException {
+        serverSocket = new ServerSocket( port, 50, InetAddress.getLoopbackAddress() );
+        workers = Executors.newCachedThreadPool( runnable -> {
+            Thread worker = new Thread( runnable, "FakeDevice worker" );
+            worker.setDaemon( true );
+            return worker;
+        } );
+        lastAdvanceNanos = System.nanoTime();
+        acceptThread = new Thread( this::acceptLoop, "FakeDevice accept" );
+        acceptThread.setDaemon( true );
+        acceptThread.start();
+        return this;
+    }
+
+    synchronized void stop( ) {
+        try {
+            if( serverSocket != null ) serverSocket.close();
+        } catch( IOException ignored ) { }
+        if( workers != null ) workers.shutdownNow();
+    }
+
+    int getPort( ) { return serverSocket.getLocalPort(); }
+
+    // e.g. url( "temperature/F" ) (same relative paths as Constants)
+    URL url( String path ) {
+        try {
+            return new URL( "http://127.0.0.1:" + getPort() + "/" + path );
+        } catch( IOException e ) {
+            throw new IllegalArgumentException( e );
+        }
+    }
+
+
+    private void acceptLoop( ) {
+        while( !serverSocket.isClosed() ) {
+            final Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch( IOException e ) {
+                return;  // closed
+            }
+            if( singleConnection ) {
+                handle( socket );  // the next connection waits in the backlog
+            } else {
+                try {
+                    workers.execute( ( ) -> handle( socket ) );
+                } catch( RuntimeException rejected ) {  // shutting down
+                    closeQuietly( socket );
+                }
+            }
+        }
+    }
+
+    private void handle( Socket socket ) {
+        int now = concurrent.incrementAndGet();
+        maxConcurrent.accumulateAndGet( now, Math::max );
+        connections.incrementAndGet();
+        try {
+            socket.setSoTimeout( keepAlive? KEEP_ALIVE_IDLE_MILLIS : 5000 );
+            BufferedReader in = new BufferedReader( new InputStreamReader( socket.getInputStream(), StandardCharsets.ISO_8859_1 ) );
+            boolean first = true;
+            do {
+                String requestLine = in.readLine();
+                if( requestLine == null ) return;
+                String header;
+                do { header = in.readLine(); } while( header != null && !header.isEmpty() );  // ignore headers
+                requests.incrementAndGet();
+
+                long delay = latencyMillis + ( jitterMillis > 0L? (long) ( nextDouble() * jitterMillis ) : 0L )
+                        + ( first? connectionSetupMillis : 0L );
+                first = false;
+                if( delay > 0L ) Thread.sleep( delay );
+                if( nextDouble() < dropRate ) {
+                    dropped.incrementAndGet();
+                    return;  // close without answering
+                }
+
+                String[] parts = requestLine.split( " " );
+                String target = parts.length > 1? parts[1] : "/";
+                String path = target;
+                String query = "";
+                int q = target.indexOf( '?' );
+                if( q >= 0 ) {
+                    path = target.substring( 0, q );
+                    query = target.substring( q + 1 );
+                }
+                if( path.startsWith( "/" ) ) path = path.substring( 1 );
+                respond( socket.getOutputStream(), path, query );
+            } while( keepAlive );
+        } catch( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+        } catch( IOException ignored ) {  // client went away
+        } finally {
+            concurrent.decrementAndGet();
+            closeQuietly( socket );
+        }
+    }
+
+    private void respond( OutputStream out, String path, String query ) throws IOException {
+        perEndpoint.computeIfAbsent( query.isEmpty()? path : path + "?" + query.replaceAll( "=.*", "=" ), key -> new AtomicLong( ) )
+                .incrementAndGet();
+        advancePlant();
+        synchronized( this ) {
+            switch( path ) {
+                case "temperature/F":
+                    write( out, 200, JSON, "{\"TempF\":" + temperature( false ) + "}" );
+                    return;
+                case "temperature/C":
+                    write( out, 200, JSON, "{\"TempC\":" + temperature( true ) + "}" );
+                    return;
+                case "fan/on":
+                    fanOn = true;
+                    dutyCycleEnabled = false;
+                    break;
+                case "fan/off":
+                    fanOn = false;
+                    dutyCycleEnabled = false;
+                    break;
+                case "fan/dc":
+                    write( out, 200, JSON, "{\"DutyCycle\":" + dutyCyclePercent + ",\"CycleLength\":" + cycleLengthSecs
+                            + ",\"DCEnabled\":" + dutyCycleEnabled + "}" );
+                    return;
+                case "fan/":
+                case "fan":
+                    if( query.startsWith( "dc=" ) ) {
+                        Integer dc = parseInt( query.substring( 3 ), 0, 100 );
+                        if( dc == null ) { write( out, 400, TEXT, "bad dc" ); return; }
+                        dutyCyclePercent = dc;
+                    } else if( query.startsWith( "cl=" ) ) {
+                        Integer cl = parseInt( query.substring( 3 ), 1, 3600 );
+                        if( cl == null ) { write( out, 400, TEXT, "bad cl" ); return; }
+                        cycleLengthSecs = cl;
+                    } else {
+                        write( out, 404, TEXT, "not found" );
+                        return;
+                    }
+                    break;
+                case "fan/dcenable":
+                    dutyCycleEnabled = true;
+                    break;
+                case "fan/dcdisable":
+                    dutyCycleEnabled = false;
+                    break;
+                case "blueled/on":
+                    blueLedOn = true;
+                    break;
+                case "blueled/off":
+                    blueLedOn = false;
+                    break;
+                case "time/CurrentSeconds":
+                    write( out, 200, JSON, "{\"CurrentSeconds\":" + (long) plant.getElapsedSecs() + "}" );
+                    return;
+                case "time/watchdogenable":
+                    watchdogEnabled = true;
+                    watchdogExpired = false;
+                    lastFeedSecs = plant.getElapsedSecs();
+                    break;
+                case "time/watchdogdisable":
+                    watchdogEnabled = false;
+                    watchdogExpired = false;
+                    break;
+                case "time/watchdogreset":
+                    lastFeedSecs = plant.getElapsedSecs();
+                    watchdogExpired = false;
+                    break;
+                case "time/watchdogstatus":
+                    write( out, 200, JSON, "{\"Enabled\":" + watchdogEnabled + ",\"Expired\":" + watchdogExpired + "}" );
+                    return;
+                case "analog/in":
+                    write( out, 200, JSON, "{\"AnalogIn\":" + analogInVolts + "}" );
+                    return;
+                case "info":
+                    write( out, 200, JSON, "{\"Model\":\"FakeThermocoupleDevice\",\"HWVersion\":\""
+                            + Constants.HARDWARE_VERSION + "\",\"SWVersion\":\"" + Constants.SOFTWARE_VERSION + "\"}" );
+                    return;
+                case "defaults":
+                    fanOn = false;
+                    dutyCycleEnabled = false;
+                    dutyCyclePercent = 50;
+                    cycleLengthSecs = 10;
+                    watchdogEnabled = false;
+                    watchdogExpired = false;
+                    break;
+                default:
+                    write( out, 404, TEXT, "not found: " + path );
+                    return;
+            }
+            applyFan();
+            write( out, 200, TEXT, path + ( query.isEmpty()? "" : "?" + query ) + " OK" );
+        }
+    }
+
+    private String temperature( boolean celsius ) {  // call with lock held
+        if( nextDouble() < nanRate ) {
+            nans.incrementAndGet();
+            return "nan";
+        }
+        float f = plant.getTemp();
+        return String.format( Locale.US, "%.2f", celsius? ( f - 32f ) * 5f / 9f : f );
+    }
+
+    // bring the model up to the current time, checking the watchdog on the way
+    private synchronized void advancePlant( ) {
+        long now = System.nanoTime();
+        double dt = ( now - lastAdvanceNanos ) / 1e9d * timeScale;
+        lastAdvanceNanos = now;
+        if( watchdogEnabled && !watchdogExpired && plant.getElapsedSecs() + dt - lastFeedSecs > watchdogTimeoutSecs ) {
+            double untilExpiry = Math.max( 0d, lastFeedSecs + watchdogTimeoutSecs - plant.getElapsedSecs() );
+            plant.step( untilExpiry );
+            dt -= untilExpiry;
+            watchdogExpired = true;
+            applyFan();
+        }
+        plant.step( dt );
+    }
+
+    private void applyFan( ) {  // call with lock held
+        if( watchdogExpired ) plant.setFanDuty( 0f );  // the safety cutoff
+        else if( dutyCycleEnabled ) plant.setFanDuty( dutyCyclePercent / 100f );  // the model sees the average
+        else plant.setFanDuty( fanOn? 1f : 0f );
+    }
+
+    private void write( OutputStream out, int code, String contentType, String body ) throws IOException {
+        byte[] bytes = body.getBytes( StandardCharsets.UTF_8 );
+        String head = "HTTP/1.1 " + code + ( code == 200? " OK" : code == 404? " Not Found" : " Bad Request" ) + "\r\n"
+                + "Content-type: " + contentType + "\r\n"
+                + "Content-Length: " + bytes.length + "\r\n"
+                + "Connection: " + ( keepAlive? "keep-alive" : "close" ) + "\r\n\r\n";
+        out.write( head.getBytes( StandardCharsets.ISO_8859_1 ) );
+        out.write( bytes );
+        out.flush();
+    }
+
+    private static Integer parseInt( String value, int min, int max ) {
+        try {
+            int parsed = Integer.parseInt( value.trim() );
+            return parsed < min || parsed > max? null : parsed;
+        } catch( NumberFormatException e ) {
+            return null;
+        }
+    }
+
+    private double nextDouble( ) {
+        synchronized( random ) { return random.nextDouble(); }
+    }
+
+    private static void closeQuietly( Socket socket ) {
+        try {
+            socket.close();
+        } catch( IOException ignored ) { }
+    }
+
+
+    // state and counters
+    SmokerPlantModel getPlant( ) { advancePlant(); return plant; }
+    synchronized boolean isFanOn( ) { return fanOn; }
+    synchronized boolean isDutyCycleEnabled( ) { return dutyCycleEnabled; }
+    synchronized int getDutyCyclePercent( ) { return dutyCyclePercent; }
+    synchronized int getCycleLengthSecs( ) { return cycleLengthSecs; }
+    synchronized boolean isBlueLedOn( ) { return blueLedOn; }
+    synchronized boolean isWatchdogEnabled( ) { return watchdogEnabled; }
+    synchronized boolean isWatchdogExpired( ) { advancePlant(); return watchdogExpired; }
+    long getRequestCount( ) { return requests.get(); }
+    long getConnectionCount( ) { return connections.get(); }
+    long getDroppedCount( ) { return dropped.get(); }
+    long getNanCount( ) { return nans.get(); }
+    int getMaxConcurrent( ) { return maxConcurrent.get(); }
+    long getRequestCount( String endpoint ) {  // e.g. "temperature/F" or "fan/?dc="
+        AtomicLong count = perEndpoint.get( endpoint );
+        return count == null? 0L : count.get();
+    }
+
+    @Override
+    public String toString( ) {
+        return "FakeThermocoupleDevice on port " + ( serverSocket == null? "-" : getPort() ) + ": " + requests.get()
+                + " requests on " + connections.get() + " connections, " + dropped.get() + " dropped, " + nans.get() + " nan, max " + maxConcurrent.get()
+                + " concurrent; " + perEndpoint + "; " + plant;
+    }
+
+
+    // run standalone for benchmarks (see header for options)
+    public static void main( String[] args ) throws IOException, InterruptedException {
+        FakeThermocoupleDevice device = new FakeThermocoupleDevice( );
+        int port = 8080;
+        for( int i = 0; i < args.length; i++ ) {
+            String arg = args[i];
+            try {
+                switch( arg ) {
+                    case "--port":      port = Integer.parseInt( args[++i] ); break;
+                    case "--latency":   device.setLatencyMillis( Long.parseLong( args[++i] ) ); break;
+                    case "--jitter":    device.setJitterMillis( Long.parseLong( args[++i] ) ); break;
+                    case "--nan":       device.setNanRate( Double.parseDouble( args[++i] ) ); break;
+                    case "--drop":      device.setDropRate( Double.parseDouble( args[++i] ) ); break;
+                    case "--single":    device.setSingleConnection( true ); break;
+                    case "--timescale": device.setTimeScale( Double.parseDouble( args[++i] ) ); break;
+                    case "--setup":     device.setConnectionSetupMillis( Long.parseLong( args[++i] ) ); break;
+                    case "--keepalive": device.setKeepAlive( true ); break;
+                    default:
+                        System.err.println( "unknown option " + arg );
+                        System.err.println( "options: --port n --latency ms --jitter ms --nan rate --drop rate --single --timescale x --setup ms --keepalive" );
+                        System.exit( 1 );
+                }
+            } catch( ArrayIndexOutOfBoundsException | NumberFormatException e ) {
+                System.err.println( "bad value for " + arg );
+                System.exit( 1 );
+            }
+        }
+        device.start( port );
+        Runtime.getRuntime().addShutdownHook( new Thread( ( ) -> System.out.println( device ) ) );
+        System.out.println( "fake thermocouple device serving " + device.url( "" ) + " (Ctrl-C to stop)" );
+        Thread.currentThread().join();  // until killed
+    }
+}
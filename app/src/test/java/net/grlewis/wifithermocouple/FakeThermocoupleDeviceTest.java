@@ -0,0 +1,122 @@
+package net.grlewis.wifithermocouple;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import io.reactivex.Single;
+import okhttp3.OkHttpClient;
+import okhttp3.Response;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test for the stand-in device, exercised through the real getters and requesters:
+ * JSON shapes, fan control driving the plant model, and each kind of misbehavior.
+ */
+public class FakeThermocoupleDeviceTest {
+
+    private FakeThermocoupleDevice device;
+    private OkHttpClient client;
+
+    @Before
+    public void setUp( ) throws Exception {
+        device = new FakeThermocoupleDevice( ).start();
+        client = new OkHttpClient.Builder( ).readTimeout( 2L, TimeUnit.SECONDS ).build();
+    }
+
+    @After
+    public void tearDown( ) {
+        device.stop();
+    }
+
+    private AsyncJSONGetter getter( String path ) {
+        return new AsyncJSONGetter( device.url( path ), client, new SerialUUIDSupplier( 0x3000L, "Test " + path ) );
+    }
+
+    private Response request( String path ) {
+        return new AsyncHTTPRequester( device.url( path ), client, new SerialUUIDSupplier( 0x5000L, "Test " + path ) )
+                .request().blockingGet();
+    }
+
+    @Test
+    public void servesEveryJsonEndpointInTheFirmwareShape( ) throws Exception {
+        TempReading tempF = getter( "temperature/F" ).getAs( DeviceResponseCodec.TEMP_READING ).blockingGet();
+        assertEquals( 225f, tempF.temp, 0.5f );
+        TempReading tempC = getter( "temperature/C" ).getAs( DeviceResponseCodec.TEMP_READING ).blockingGet();
+        assertEquals( 107.2f, tempC.temp, 0.5f );
+        WatchdogStatus status = getter( "time/watchdogstatus" ).getAs( DeviceResponseCodec.WATCHDOG_STATUS ).blockingGet();
+        assertFalse( status.enabled );
+        AnalogReading analog = getter( "analog/in" ).getAs( DeviceResponseCodec.ANALOG_READING ).blockingGet();
+        assertEquals( 0.5f, analog.volts, 0f );
+        DeviceInfo info = getter( "info" ).getAs( DeviceResponseCodec.DEVICE_INFO ).blockingGet();
+        assertEquals( "FakeThermocoupleDevice", info.model );
+        JSONObject dc = getter( "fan/dc" ).get().blockingGet();
+        assertEquals( 50, dc.getInt( "DutyCycle" ) );
+        JSONObject seconds = getter( "time/CurrentSeconds" ).get().blockingGet();
+        assertTrue( seconds.has( "CurrentSeconds" ) );
+    }
+
+    @Test
+    public void fanCommandsDriveThePlant( ) throws Exception {
+        assertEquals( 200, request( "fan/on" ).code() );
+        assertTrue( device.isFanOn() );
+        device.setTimeScale( 3600d );  // an hour per second
+        Thread.sleep( 500L );
+        float hot = getter( "temperature/F" ).getAs( DeviceResponseCodec.TEMP_READING ).blockingGet().temp;
+        assertTrue( "fan on should heat the pit: " + hot, hot > 300f );
+
+        assertEquals( 200, request( "fan/?dc=20" ).code() );
+        assertEquals( 200, request( "fan/?cl=15" ).code() );
+        assertEquals( 200, request( "fan/dcenable" ).code() );
+        assertEquals( 20, device.getDutyCyclePercent() );
+        assertEquals( 15, device.getCycleLengthSecs() );
+        assertEquals( 0.2f, device.getPlant().getFanDuty(), 0f );
+        assertEquals( 1L, device.getRequestCount( "fan/?dc=" ) );
+    }
+
+    @Test
+    public void unfedWatchdogTurnsTheFanOff( ) throws Exception {
+        device.setWatchdogTimeoutSecs( 60d ).setTimeScale( 600d );
+        request( "time/watchdogenable" );
+        request( "fan/on" );
+        Thread.sleep( 200L );  // 2 minutes of device time
+        WatchdogStatus status = getter( "time/watchdogstatus" ).getAs( DeviceResponseCodec.WATCHDOG_STATUS ).blockingGet();
+        assertTrue( status.enabled && status.expired );
+        assertEquals( 0f, device.getPlant().getFanDuty(), 0f );
+    }
+
+    @Test
+    public void nanReadingsDecodeAsInvalid( ) {
+        device.setNanRate( 1d );
+        TempReading reading = getter( "temperature/F" ).getAs( DeviceResponseCodec.TEMP_READING ).blockingGet();
+        assertFalse( reading.isValid() );
+        assertEquals( 1L, device.getNanCount() );
+    }
+
+    @Test
+    public void droppedConnectionFailsTheRequest( ) {
+        device.setDropRate( 1d );
+        AsyncJSONGetter tempGetter = getter( "temperature/F" );
+        try {
+            tempGetter.getAs( DeviceResponseCodec.TEMP_READING ).blockingGet();
+            fail( "expected the dropped connection to fail" );
+        } catch( RuntimeException expected ) {
+            assertEquals( 1, tempGetter.getFailureCount() );
+        }
+    }
+
+    @Test
+    public void singleConnectionModeSerializesRequests( ) {
+        device.setSingleConnection( true ).setLatencyMillis( 100L );
+        Single<TempReading> reader = getter( "temperature/F" ).getAs( DeviceResponseCodec.TEMP_READING );
+        long start = System.nanoTime();
+        Single.merge( reader, reader, reader, reader ).blockingLast();
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis( System.nanoTime() - start );
+        assertEquals( 1, device.getMaxConcurrent() );
+        assertTrue( "4 serialized requests at 100 ms each took " + elapsedMillis, elapsedMillis >= 400L );
+    }
+}
@@ -0,0 +1,80 @@
+package net.grlewis.wifithermocouple;
+
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test for offline tuning: fit a plant to a recorded trace, search the gains in parallel,
+ * and load the winner into a PIDState and a (simulated) BBQController.
+ */
+public class GainOptimizerTest {
+
+    // a "recorded" cook: the fan switched at random every few minutes, sampled every 5 s
+    private static CookTrace recordTrace( SmokerPlantModel smoker, float setPoint, long seconds ) {
+        Random random = new Random( 16L );
+        CookTrace trace = new CookTrace( );
+        float duty = 1f;
+        smoker.setFanDuty( duty );
+        for( long t = 0L; t <= seconds; t += 5L ) {
+            if( t % 300L == 0L && t > 0L ) duty = random.nextBoolean()? 1f : 0f;
+            trace.add( t * 1000L, smoker.getTemp(), duty, setPoint );
+            smoker.setFanDuty( duty );
+            smoker.step( 5d );
+        }
+        return trace;
+    }
+
+    @Test
+    public void fitsThePlantAndFindsABetterTuning( ) throws Exception {
+        SmokerPlantModel actual = new SmokerPlantModel( 65d, 95d, 260d, 700d, 110d, 25d );
+        CookTrace trace = recordTrace( actual, 250f, 6L * 3600L );
+
+        StringWriter csv = new StringWriter( );  // and through the file format
+        trace.writeCsv( csv );
+        trace = CookTrace.readCsv( new StringReader( csv.toString() ) );
+        assertEquals( 6L * 720L + 1L, trace.size() );
+
+        PlantFitter.Fit fit = new PlantFitter( trace, 65d ).fit();
+        System.out.println( fit );
+        assertTrue( fit.rmsError < 2d );
+        assertEquals( 260d, fit.fanRise, 26d );
+        assertEquals( 700d, fit.pitTauSecs, 70d );
+
+        PidTuning defaults = PidTuning.from( new PIDState( ).snapshot() );
+        GainOptimizer.Report report = GainOptimizer.forTrace( trace, fit ).optimize( defaults, 400, 5, 1L );
+        System.out.println( report );
+        assertEquals( 2001L, report.evaluated );
+        assertTrue( report.best.cost < report.baseline.cost );
+        assertTrue( report.candidatesPerSecond() > 0d );
+
+        // the winner, exported and loaded, on the real smoker under the real controller
+        PidTuning loaded = PidTuning.fromJson( new JSONObject( report.best.tuning.toJson().toString() ) );
+        assertEquals( report.best.tuning.propCoeff, loaded.propCoeff, 0f );
+        SimulatedCook tuned = new SimulatedCook( new SmokerPlantModel( 65d, 95d, 260d, 700d, 110d, 25d ) ).setSetPoint( 250f );
+        tuned.getPidState().load( loaded );
+        tuned.start().run( 6L, TimeUnit.HOURS );
+        SimulatedCook untuned = new SimulatedCook( new SmokerPlantModel( 65d, 95d, 260d, 700d, 110d, 25d ) ).setSetPoint( 250f )
+                .start().run( 6L, TimeUnit.HOURS );
+        System.out.println( "tuned   " + tuned + "\nuntuned " + untuned );
+        assertTrue( tuned.getMeanAbsError() < untuned.getMeanAbsError() );
+    }
+
+    @Test
+    public void loadingATuningIsOneChangeSet( ) {
+        PIDState pidState = new PIDState( );
+        long before = pidState.snapshot().version;
+        PIDState.Parameters after = pidState.load( new PidTuning( 1.5f, 4f, 0.2f, 12f, 8f, 15f ) );
+        assertEquals( before + 1L, after.version );
+        assertEquals( 1.5f, pidState.getGain(), 0f );
+        assertEquals( 12f, pidState.getDiffCoeff(), 0f );
+        assertEquals( 8f, pidState.getMinOutPctg(), 0f );
+        assertEquals( 15f, pidState.getPeriodSecs(), 0f );
+    }
+}
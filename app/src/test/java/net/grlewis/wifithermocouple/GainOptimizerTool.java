@@ -0,0 +1,40 @@
+package net.grlewis.wifithermocouple;
+
+import org.json.JSONException;
+
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+
+/*
+ * Command-line front end for GainOptimizer, kept out of the app: fits the plant to a recorded trace
+ * (a CSV, see CookTrace), searches, and prints the fit, the report and the winning set as JSON.
+ *
+ * from the command line (test classpath):
+ *     java net.grlewis.wifithermocouple.GainOptimizerTool cook.csv [ambient] [candidatesPerRound] [rounds]
+ *
+ */
+
+class GainOptimizerTool {
+
+    public static void main( String[] args ) throws IOException, JSONException {
+        if( args.length < 1 ) {
+            System.err.println( "usage: GainOptimizerTool trace.csv [ambient] [candidatesPerRound] [rounds]" );
+            return;
+        }
+        CookTrace trace;
+        try( Reader reader = new FileReader( args[0] ) ) {
+            trace = CookTrace.readCsv( reader );
+        }
+        double ambient = args.length > 1? Double.parseDouble( args[1] ) : trace.getTemp( 0 );
+        int perRound = args.length > 2? Integer.parseInt( args[2] ) : 2000;
+        int rounds = args.length > 3? Integer.parseInt( args[3] ) : 6;
+
+        PlantFitter.Fit plant = new PlantFitter( trace, ambient ).fit();
+        System.out.println( trace + "\n" + plant );
+        GainOptimizer.Report report = GainOptimizer.forTrace( trace, plant )
+                .optimize( PidTuning.from( new PIDState.Parameters( ) ), perRound, rounds, 1L );
+        System.out.println( report );
+        System.out.println( report.best.tuning.toJson() );
+    }
+}
@@ -0,0 +1,134 @@
+package net.grlewis.wifithermocouple;
+
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import io.reactivex.Completable;
+import io.reactivex.Scheduler;
+import io.reactivex.disposables.Disposable;
+import io.reactivex.schedulers.TestScheduler;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test for the PID loop's fixed-rate timeline: late runs (a scheduler that delivers
+ * every task late by a random amount) don't accumulate as drift, lateness is recorded, and an
+ * overrun is skipped or caught up according to the policy, and catching up doesn't add to the integral.
+ */
+public class LoopTimelineTest {
+
+    // delivers each task up to maxLateMillis late (or exactly extraLateMillis late, once, when set); its
+    // clock reads stepMillis off (a wall clock that was changed)
+    private static final class LateScheduler extends Scheduler {
+        final TestScheduler clock = new TestScheduler( );
+        final Random random = new Random( 18L );
+        final long maxLateMillis;
+        long extraLateMillis;
+        long stepMillis;
+
+        LateScheduler( long maxLateMillis ) { this.maxLateMillis = maxLateMillis; }
+
+        @Override
+        public long now( TimeUnit unit ) { return clock.now( unit ) + unit.convert( stepMillis, TimeUnit.MILLISECONDS ); }
+
+        @Override
+        public Worker createWorker( ) {
+            Worker worker = clock.createWorker();
+            return new Worker( ) {
+                @Override
+                public Disposable schedule( Runnable run, long delay, TimeUnit unit ) {
+                    long late = extraLateMillis > 0L? extraLateMillis : (long) ( random.nextDouble() * maxLateMillis );
+                    extraLateMillis = 0L;
+                    return worker.schedule( run, unit.toMillis( delay ) + late, TimeUnit.MILLISECONDS );
+                }
+                @Override
+                public void dispose( ) { worker.dispose(); }
+                @Override
+                public boolean isDisposed( ) { return worker.isDisposed(); }
+            };
+        }
+    }
+
+    private static BBQController controller( Scheduler scheduler ) {
+        FanActuator fan = on -> Completable.complete();
+        BBQController controller = new BBQController( new PIDState( ), fan, scheduler );
+        controller.setCurrentVariableValue( 200f );
+        controller.set( 225f );
+        return controller;
+    }
+
+    @Test
+    public void lateRunsDontDrift( ) {
+        LateScheduler scheduler = new LateScheduler( 3000L );  // up to 3 s late, every time
+        BBQController controller = controller( scheduler );
+        controller.start();
+        scheduler.clock.advanceTimeBy( 1L, TimeUnit.HOURS );
+
+        // 10 s period: 360 runs in the hour, less at most the one straddling the end (the old postDelayed loop
+        // drifted ~1.5 s per run and managed ~313)
+        assertTrue( "iterations " + controller.getIterationCount(), controller.getIterationCount() >= 359 );
+        assertEquals( 0L, controller.getMissedTickCount() );
+        RequestMetrics.LatencyHistogram lateness = controller.getLoopLateness();
+        System.out.println( controller.getIterationCount() + " iterations; lateness p50 " + lateness.percentileMicros( 0.5d ) / 1000L
+                + " ms, p99 " + lateness.percentileMicros( 0.99d ) / 1000L + " ms, max " + lateness.getMaxMicros() / 1000L + " ms" );
+        assertTrue( lateness.getMaxMicros() <= 3000000L );
+        assertTrue( lateness.percentileMicros( 0.5d ) > 500000L );
+    }
+
+    @Test
+    public void overrunIsSkippedOrCaughtUp( ) {
+        for( BBQController.OverrunPolicy policy : BBQController.OverrunPolicy.values() ) {
+            LateScheduler scheduler = new LateScheduler( 0L );
+            BBQController controller = controller( scheduler );
+            controller.setOverrunPolicy( policy );
+            controller.start();
+            scheduler.clock.advanceTimeBy( 65L, TimeUnit.SECONDS );  // runs at 0..60 s
+            assertEquals( 7, controller.getIterationCount() );
+            scheduler.extraLateMillis = 35000L;                      // the 70 s run schedules its successor first:
+            scheduler.clock.advanceTimeBy( 10L, TimeUnit.SECONDS );  // it's delivered at 80 + 35 = 115 s
+            scheduler.clock.advanceTimeBy( 45L, TimeUnit.SECONDS );  // to 125 s: 80, 90, 100, 110 were due by 115
+            if( policy == BBQController.OverrunPolicy.SKIP ) {
+                assertEquals( 3L, controller.getMissedTickCount() );     // 90, 100, 110 dropped; 120 on time
+                assertEquals( 10, controller.getIterationCount() );      // ..70, 115, 120
+            } else {
+                assertEquals( 0L, controller.getMissedTickCount() );     // 90, 100, 110 run back to back at 115
+                assertEquals( 13, controller.getIterationCount() );
+            }
+            assertTrue( controller.getLoopLateness().getMaxMicros() >= 35000000L );
+        }
+    }
+
+    @Test
+    public void clockGoingBackDoesntStallTheLoop( ) {
+        LateScheduler scheduler = new LateScheduler( 0L );
+        BBQController controller = controller( scheduler );
+        controller.start();
+        scheduler.clock.advanceTimeBy( 65L, TimeUnit.SECONDS );
+        scheduler.stepMillis = -3600000L;  // the time is set back an hour
+        scheduler.clock.advanceTimeBy( 60L, TimeUnit.SECONDS );
+        assertEquals( 13, controller.getIterationCount() );  // still every 10 s (re-anchored), not an hour from now
+    }
+
+    @Test
+    public void catchUpDoesntIntegrateTwice( ) {
+        float[] intAccum = new float[2];
+        for( BBQController.OverrunPolicy policy : BBQController.OverrunPolicy.values() ) {
+            LateScheduler scheduler = new LateScheduler( 0L );
+            BBQController controller = controller( scheduler );
+            controller.setCurrentVariableValue( 222f );  // 3 below: off the stops, so it integrates every run
+            controller.setOverrunPolicy( policy );
+            controller.start();
+            scheduler.clock.advanceTimeBy( 65L, TimeUnit.SECONDS );
+            scheduler.extraLateMillis = 35000L;  // the same overrun as above
+            scheduler.clock.advanceTimeBy( 55L, TimeUnit.SECONDS );  // to 120 s
+            assertFalse( controller.pidKernel.isClamped() );
+            intAccum[policy.ordinal()] = controller.pidKernel.getIntAccum();
+        }
+        // both integrated 12 periods (the first run gets a nominal one), however many runs that took
+        assertEquals( 12f * 3f * new PIDState( ).getIntCoeff(), intAccum[BBQController.OverrunPolicy.SKIP.ordinal()], 1e-3f );
+        assertEquals( intAccum[BBQController.OverrunPolicy.SKIP.ordinal()],
+                intAccum[BBQController.OverrunPolicy.CATCH_UP.ordinal()], 1e-3f );
+    }
+}
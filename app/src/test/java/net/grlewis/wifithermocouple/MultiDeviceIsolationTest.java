@@ -0,0 +1,68 @@
+package net.grlewis.wifithermocouple;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import io.reactivex.disposables.CompositeDisposable;
+import okhttp3.Response;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test: two communicators on the shared OkHttpClient, one pointed at a device that
+ * takes seconds to answer; the healthy device's readings and fan commands must not wait for it.
+ */
+public class MultiDeviceIsolationTest {
+
+    private FakeThermocoupleDevice healthyDevice;
+    private FakeThermocoupleDevice slowDevice;
+    private WiFiCommunicator healthy;
+    private WiFiCommunicator slow;
+    private CompositeDisposable pending;
+
+    @Before
+    public void setUp( ) throws Exception {
+        healthyDevice = new FakeThermocoupleDevice( ).setLatencyMillis( 20L ).start();
+        slowDevice = new FakeThermocoupleDevice( ).setLatencyMillis( 4000L ).setSingleConnection( true ).start();
+        healthy = new WiFiCommunicator( new DeviceEndpoint( "healthy", healthyDevice.url( "" ).toString() ), new PIDState( ) );
+        slow = new WiFiCommunicator( new DeviceEndpoint( "slow", slowDevice.url( "" ).toString() ), new PIDState( ) );
+        pending = new CompositeDisposable( );
+    }
+
+    @After
+    public void tearDown( ) {
+        pending.dispose();
+        healthyDevice.stop();
+        slowDevice.stop();
+    }
+
+    @Test
+    public void endpointsResolveAgainstTheirOwnRoot( ) {
+        assertEquals( healthyDevice.url( "temperature/F" ), healthy.endpoint.tempFURL );
+        assertEquals( slowDevice.url( "fan/?dc=" ), slow.endpoint.fanSetDcURL );
+        assertNotSame( healthy.deviceScheduler, slow.deviceScheduler );
+    }
+
+    @Test
+    public void slowDeviceDoesNotDelayTheOthers( ) {
+        for( int i = 0; i < 8; i++ ) {  // pile up requests on the slow box
+            pending.add( slow.tempFReader.subscribe( reading -> { }, error -> { } ) );
+            pending.add( slow.fanController( true ).request().subscribe( response -> { }, error -> { } ) );
+        }
+
+        long start = System.nanoTime();
+        for( int i = 0; i < 5; i++ ) {
+            assertTrue( healthy.tempFReader.blockingGet().isValid() );
+        }
+        Response fanResponse = healthy.fanController( true ).request().blockingGet();
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis( System.nanoTime() - start );
+
+        assertEquals( 200, fanResponse.code() );
+        assertTrue( healthyDevice.isFanOn() );
+        assertTrue( "healthy device took " + elapsedMillis + " ms", elapsedMillis < 2000L );
+        assertTrue( slow.deviceScheduler.getQueuedCount() + slow.deviceScheduler.getInFlightCount() > 0 );
+    }
+}
@@ -0,0 +1,110 @@
+package net.grlewis.wifithermocouple;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import io.reactivex.observers.TestObserver;
+import io.reactivex.schedulers.TestScheduler;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test for PIDState change sets and snapshots: one notification per commit, no lost
+ * updates when several threads commit at once, immutable versioned snapshots, and conflation for the UI.
+ */
+public class PIDStateTest {
+
+    @Test
+    public void changeSetPublishesOnceWithEveryField( ) {
+        PIDState state = new PIDState( );
+        TestObserver<PIDState.Parameters> updates = state.updates().test();
+        updates.assertValueCount( 1 );  // the current snapshot
+
+        state.edit().setEnabled( true ).setReset( false ).setIntClamped( true ).setIntAccum( 0f )
+                .setSetPoint( 225f ).commit();
+        updates.assertValueCount( 2 );
+        PIDState.Parameters published = updates.values().get( 1 );
+        assertTrue( published.enabled );
+        assertEquals( 225f, published.setPoint, 0f );
+        assertSame( published, state.snapshot() );
+        assertEquals( 1L, published.version );
+    }
+
+    @Test
+    public void snapshotsAreNotModifiedByLaterCommits( ) {
+        PIDState state = new PIDState( );
+        PIDState.Parameters before = state.snapshot();
+        state.setCurrentVariableValue( 180f );
+        state.edit().updatePreviousVariableValue().setCurrentVariableValue( 185f ).commit();
+        assertEquals( 0f, before.currentVariableValue, 0f );
+        assertEquals( 180f, state.getPreviousVariableValue(), 0f );
+        assertEquals( 185f, state.getCurrentVariableValue(), 0f );
+    }
+
+    @Test
+    public void concurrentCommitsAreNeitherLostNorPublishedOutOfOrder( ) throws Exception {
+        PIDState state = new PIDState( );
+        TestObserver<PIDState.Parameters> updates = state.updates().test();
+        final int threads = 4, commitsEach = 2000;
+        CountDownLatch go = new CountDownLatch( 1 );
+        Thread[] workers = new Thread[threads];
+        for( int t = 0; t < threads; t++ ) {
+            final boolean temps = t % 2 == 0;
+            workers[t] = new Thread( ( ) -> {
+                try { go.await(); } catch( InterruptedException e ) { return; }
+                for( int i = 0; i < commitsEach; i++ ) {
+                    if( temps ) state.edit().setCurrentVariableValue( (float) i ).updatePreviousVariableValue().commit();
+                    else state.edit().setIntAccum( (float) i ).setIntClamped( i % 2 == 0 ).commit();
+                }
+            } );
+            workers[t].start();
+        }
+        go.countDown();
+        for( Thread worker : workers ) worker.join();
+
+        assertEquals( threads * commitsEach, state.snapshot().version );  // every commit applied
+        List<PIDState.Parameters> published = updates.values();
+        for( int i = 1; i < published.size(); i++ )
+            assertTrue( published.get( i ).version > published.get( i - 1 ).version );
+        assertEquals( threads * commitsEach, published.get( published.size() - 1 ).version );  // the last one always arrives
+    }
+
+    @Test
+    public void snapshotsCarryVersionTimeAndUndefinedAsNaN( ) {
+        PIDState state = new PIDState( );
+        long before = System.currentTimeMillis();
+        PIDState.Parameters cleared = state.edit().setSetPoint( null ).commit();
+        assertFalse( cleared.hasSetPoint() );
+        assertNull( state.getSetPoint() );
+        assertTrue( cleared.capturedAtMillis >= before );
+
+        TestObserver<PIDState.Parameters> resubscribed = state.updatesAfter( cleared.version ).test();
+        resubscribed.assertNoValues();  // already seen
+        state.set( 225f );
+        resubscribed.assertValueCount( 1 );
+        assertEquals( cleared.version + 1, resubscribed.values().get( 0 ).version );
+    }
+
+    @Test
+    public void cloneIsIndependent( ) {
+        PIDState state = new PIDState( );
+        state.setGain( 2f );
+        PIDState copy = state.clone();
+        state.setGain( 3f );
+        assertEquals( 2f, copy.getGain(), 0f );
+    }
+
+    @Test
+    public void uiSeesBurstsConflated( ) {
+        PIDState state = new PIDState( );
+        TestScheduler clock = new TestScheduler( );
+        TestObserver<PIDState.Parameters> ui = state.conflatedUpdates( 250L, TimeUnit.MILLISECONDS, clock ).test();
+        for( int i = 0; i < 8; i++ ) state.setCurrentVariableValue( 200f + i );  // a burst of single-field commits
+        clock.advanceTimeBy( 250L, TimeUnit.MILLISECONDS );
+        ui.assertValueCount( 2 );  // the initial snapshot, then the latest of the burst
+        assertEquals( 207f, ui.values().get( 1 ).currentVariableValue, 0f );
+    }
+}
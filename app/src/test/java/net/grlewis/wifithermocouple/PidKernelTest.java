@@ -0,0 +1,92 @@
+package net.grlewis.wifithermocouple;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test for PidKernel: same numbers as the old boxed PID loop, anti-windup, and no
+ * allocation per step (measured with the JVM's per-thread allocation counter).
+ */
+public class PidKernelTest {
+
+    private static final long PERIOD_NANOS = 10000000000L;  // 10 s
+
+    @Test
+    public void matchesTheOldLoopArithmeticAtTheNominalPeriod( ) {
+        PidKernel kernel = new PidKernel( 1f, 5f, 1f, 5f, PERIOD_NANOS ).setSetPoint( 225f ).reset( true ).primeSample( 200f );
+        // the old PIDLoopRunnable, step by step
+        float intAccum = 0f, previous = 200f;
+        boolean clamped = true;
+        float[] samples = { 200f, 210f, 218f, 223f, 226f, 227f, 225f, 222f, 224f, 225f };
+        for( float sample : samples ) {
+            float error = 225f - sample;
+            float integral = intAccum + ( clamped? 0f : error * 1f );
+            intAccum = integral;
+            float out = 1f * ( error * 5f + integral - ( sample - previous ) * 5f );
+            previous = sample;
+            clamped = ( out > 100f || out < 0f ) && integral * error > 0f;
+            out = Math.max( 0f, Math.min( 100f, out ) );
+
+            assertEquals( out, kernel.step( sample, PERIOD_NANOS ), 1e-4f );
+            assertEquals( intAccum, kernel.getIntAccum(), 1e-4f );
+            assertEquals( clamped, kernel.isClamped() );
+        }
+    }
+
+    @Test
+    public void integratorFreezesWhileSaturatedAndUnwindsAfter( ) {
+        PidKernel kernel = new PidKernel( 1f, 5f, 1f, 0f, PERIOD_NANOS ).setSetPoint( 225f ).reset( false );
+        kernel.step( 100f, PERIOD_NANOS );  // huge error: integrates once, output pinned at 100
+        assertEquals( 100f, kernel.getOutput(), 0f );
+        assertTrue( kernel.isClamped() );
+        float frozen = kernel.getIntAccum();
+        for( int i = 0; i < 50; i++ ) kernel.step( 100f, PERIOD_NANOS );
+        assertEquals( frozen, kernel.getIntAccum(), 0f );  // no windup during a long warm-up
+
+        kernel.step( 250f, PERIOD_NANOS );  // overshoot brings the output back in range: integrating again
+        assertFalse( kernel.isClamped() );
+        kernel.step( 250f, PERIOD_NANOS );
+        assertEquals( frozen - 25f, kernel.getIntAccum(), 1e-4f );
+    }
+
+    @Test
+    public void lateStepScalesIntegralAndDerivative( ) {
+        PidKernel kernel = new PidKernel( 1f, 0f, 1f, 10f, PERIOD_NANOS ).setSetPoint( 225f ).reset( false ).primeSample( 220f );
+        kernel.step( 221f, 2 * PERIOD_NANOS );
+        assertEquals( 8f, kernel.getIntAccum(), 1e-4f );          // error 4 for two periods
+        assertEquals( 5f, kernel.getDifferentialTerm(), 1e-4f );  // 1 degree over two periods
+    }
+
+    @Test
+    public void unsetSetpointGivesNoOutput( ) {
+        PidKernel kernel = new PidKernel( 1f, 5f, 1f, 5f, PERIOD_NANOS );
+        assertEquals( 0f, kernel.step( 100f, PERIOD_NANOS ), 0f );
+        assertEquals( 0f, kernel.setSetPoint( 225f ).step( Float.NaN, PERIOD_NANOS ), 0f );
+    }
+
+    @Test
+    public void stepDoesNotAllocate( ) {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue( threads instanceof com.sun.management.ThreadMXBean );
+        com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threads;
+        Assume.assumeTrue( allocations.isThreadAllocatedMemorySupported() && allocations.isThreadAllocatedMemoryEnabled() );
+        long thread = Thread.currentThread().getId();
+
+        PidKernel kernel = new PidKernel( 1f, 5f, 1f, 5f, PERIOD_NANOS ).setSetPoint( 225f );
+        float sink = 0f;
+        for( int i = 0; i < 200000; i++ ) sink += kernel.step( 200f + ( i % 50 ), PERIOD_NANOS );  // warm up the JIT
+
+        final int steps = 1000000;
+        long before = allocations.getThreadAllocatedBytes( thread );
+        for( int i = 0; i < steps; i++ ) sink += kernel.step( 200f + ( i % 50 ), PERIOD_NANOS + ( i & 7 ) );
+        long allocated = allocations.getThreadAllocatedBytes( thread ) - before;
+
+        System.out.println( steps + " PID steps allocated " + allocated + " bytes (sink " + sink + ")" );
+        assertTrue( "allocated " + allocated + " bytes", allocated < 1024L );  // i.e. 0 per step (the counter call itself may allocate)
+    }
+}
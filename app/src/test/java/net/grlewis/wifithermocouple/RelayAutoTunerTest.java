@@ -0,0 +1,75 @@
+package net.grlewis.wifithermocouple;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test for auto-tuning: the relay experiment on a simulated smoker (in virtual time),
+ * the coefficients it applies, the handover to PID, and giving up when the pit can't oscillate.
+ */
+public class RelayAutoTunerTest {
+
+    @Test
+    public void tunesASimulatedSmokerAndHoldsWithoutABump( ) {
+        SimulatedCook cook = new SimulatedCook( new SmokerPlantModel( ) ).setSetPoint( 225f ).start();
+        BBQController controller = cook.getController();
+        assertTrue( controller.startAutoTune() );
+        assertTrue( controller.isAutoTuning() );
+
+        long seconds = 0L;
+        while( controller.isAutoTuning() && seconds < 5L * 3600L ) {  // a second at a time, to catch the handover
+            cook.run( 1L, TimeUnit.SECONDS );
+            seconds++;
+        }
+        RelayAutoTuner.Result result = controller.getAutoTuneResult();
+        System.out.println( "auto-tune took " + seconds / 60L + " min: " + result + "; coefficients P " + controller.getPropCoeff()
+                + " I " + controller.getIntCoeff() + " D " + controller.getDiffCoeff() );
+        assertFalse( controller.isAutoTuning() );
+        assertNotNull( result );
+        assertTrue( result.ultimateGain > 0f && result.ultimatePeriodSecs > 60f );
+        assertTrue( result.meanDutyPct > 0f && result.meanDutyPct < 100f );
+        float expectedProp = RelayAutoTuner.Rule.NO_OVERSHOOT.kc * result.ultimateGain;  // gain is 1
+        assertEquals( expectedProp, controller.getPropCoeff(), 1e-4f );
+        assertFalse( controller.isClamped() );
+        // the integrator was preloaded with the duty that held the setpoint (one PID step ago)
+        float error = 225f - controller.getCurrentVariableValue();
+        assertEquals( result.meanDutyPct, controller.getPropCoeff() * error + cook.getPidState().getIntAccum(),
+                Math.abs( controller.getIntCoeff() * error ) + 0.5f );
+
+        // after the handover the pit should stay near the setpoint rather than lurch away from it
+        float worst = 0f;
+        for( int i = 0; i < 60; i++ ) {
+            cook.run( 1L, TimeUnit.MINUTES );
+            worst = Math.max( worst, Math.abs( 225f - cook.getPlant().getTemp() ) );
+        }
+        System.out.println( "worst error in the hour after the handover " + worst + "; " + cook );
+        assertTrue( "bumped on handover: " + worst, worst < 15f );
+    }
+
+    @Test
+    public void givesUpAndKeepsTheOldCoefficientsIfThePitCantReachTheSetpoint( ) {
+        // full fan only gets to 70 + 80 + 100 = 250
+        SimulatedCook cook = new SimulatedCook( new SmokerPlantModel( 70d, 80d, 100d, 600d, 90d, 20d ) )
+                .setSetPoint( 300f ).start();
+        BBQController controller = cook.getController();
+        float prop = controller.getPropCoeff();
+        assertTrue( controller.startAutoTune() );
+        cook.run( Constants.AUTOTUNE_TIMEOUT_MINS + 10L, TimeUnit.MINUTES );
+        assertFalse( controller.isAutoTuning() );
+        assertNull( controller.getAutoTuneResult() );
+        assertEquals( prop, controller.getPropCoeff(), 0f );
+        assertTrue( controller.isRunning() );  // back under PID control
+    }
+
+    @Test
+    public void newSetpointCancelsTheExperiment( ) {
+        SimulatedCook cook = new SimulatedCook( new SmokerPlantModel( ) ).setSetPoint( 225f ).start();
+        assertTrue( cook.getController().startAutoTune() );
+        cook.run( 10L, TimeUnit.MINUTES );
+        cook.getController().set( 250f );
+        assertFalse( cook.getController().isAutoTuning() );
+    }
+}
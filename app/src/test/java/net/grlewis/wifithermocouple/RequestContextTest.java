@@ -0,0 +1,107 @@
+package net.grlewis.wifithermocouple;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import io.reactivex.observers.TestObserver;
+import okhttp3.OkHttpClient;
+import okhttp3.Response;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test for RequestContext, through the getters and requesters that use it: overlapping
+ * subscriptions to one AsyncJSONGetter or AsyncHTTPRequester each get their own call and UUID, so
+ * disposing one doesn't cancel the others, and every reading or error carries its own request's UUID.
+ */
+public class RequestContextTest {
+
+    private FakeThermocoupleDevice device;
+    private OkHttpClient client;
+    private final List<UUID> sentUUIDs = Collections.synchronizedList( new ArrayList<>( ) );
+
+    @Before
+    public void setUp( ) throws Exception {
+        device = new FakeThermocoupleDevice( ).setLatencyMillis( 200L ).start();  // long enough to overlap
+        client = new OkHttpClient.Builder( ).readTimeout( 2L, TimeUnit.SECONDS ).retryOnConnectionFailure( false )
+                .addInterceptor( chain -> {
+                    sentUUIDs.add( chain.request().tag( UUID.class ) );
+                    return chain.proceed( chain.request() );
+                } )
+                .build();
+    }
+
+    @After
+    public void tearDown( ) {
+        device.stop();
+    }
+
+    @Test
+    public void disposingOneGetDoesntCancelTheOthers( ) throws Exception {
+        AsyncJSONGetter getter = new AsyncJSONGetter( device.url( "temperature/F" ), client,
+                new SerialUUIDSupplier( 0x3000L, "Test" ) );
+        TestObserver<TempReading> abandoned = getter.getAs( DeviceResponseCodec.TEMP_READING ).test();
+        TestObserver<TempReading> second = getter.getAs( DeviceResponseCodec.TEMP_READING ).test();
+        TestObserver<TempReading> third = getter.getAs( DeviceResponseCodec.TEMP_READING ).test();
+        abandoned.dispose();
+
+        second.await( 2L, TimeUnit.SECONDS );
+        third.await( 2L, TimeUnit.SECONDS );
+        second.assertValueCount( 1 );
+        third.assertValueCount( 1 );
+        abandoned.assertNoValues().assertNoErrors();
+        UUID secondUUID = second.values().get( 0 ).requestUUID;
+        UUID thirdUUID = third.values().get( 0 ).requestUUID;
+        assertNotEquals( secondUUID, thirdUUID );
+        assertTrue( sentUUIDs.contains( secondUUID ) );
+        assertTrue( sentUUIDs.contains( thirdUUID ) );
+    }
+
+    @Test
+    public void disposingOneRequestDoesntCancelTheOthers( ) throws Exception {
+        AsyncHTTPRequester requester = new AsyncHTTPRequester( device.url( "fan/on" ), client,
+                new SerialUUIDSupplier( 0x5000L, "Test" ) );
+        TestObserver<Response> abandoned = requester.request().test();
+        TestObserver<Response> kept = requester.request().test();
+        abandoned.dispose();
+
+        kept.await( 2L, TimeUnit.SECONDS );
+        kept.assertValueCount( 1 );
+        abandoned.assertNoValues().assertNoErrors();
+        try( Response response = kept.values().get( 0 ) ) {
+            assertEquals( 200, response.code() );
+            assertEquals( requester.getRequestUUID(), response.request().tag( UUID.class ) );  // the last one issued
+        }
+    }
+
+    @Test
+    public void errorsCarryTheirOwnRequestUUID( ) throws Exception {
+        device.setDropRate( 1d );
+        AsyncJSONGetter getter = new AsyncJSONGetter( device.url( "temperature/F" ), client,
+                new SerialUUIDSupplier( 0x3000L, "Test" ) );
+        List<TestObserver<TempReading>> observers = new ArrayList<>( );
+        for( int i = 0; i < 3; i++ ) observers.add( getter.getAs( DeviceResponseCodec.TEMP_READING ).test() );
+
+        Set<UUID> reported = new HashSet<>( );
+        for( TestObserver<TempReading> observer : observers ) {
+            observer.await( 2L, TimeUnit.SECONDS );
+            observer.assertError( error -> {
+                for( UUID uuid : sentUUIDs ) {
+                    if( error.getMessage().contains( uuid.toString() ) ) reported.add( uuid );
+                }
+                return true;
+            } );
+        }
+        assertEquals( 3, sentUUIDs.size() );
+        assertEquals( new HashSet<>( sentUUIDs ), reported );  // each failure named a different request
+    }
+}
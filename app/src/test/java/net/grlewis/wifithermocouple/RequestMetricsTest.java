@@ -0,0 +1,87 @@
+package net.grlewis.wifithermocouple;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import io.reactivex.observers.TestObserver;
+import io.reactivex.schedulers.TestScheduler;
+import okhttp3.OkHttpClient;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test for RequestMetrics: histogram accuracy, and per-class percentiles, errors and
+ * timeouts recorded through ConnectionTimingListener for real calls to the stand-in device.
+ */
+public class RequestMetricsTest {
+
+    private FakeThermocoupleDevice device;
+    private RequestMetrics metrics;
+    private OkHttpClient client;
+
+    @Before
+    public void setUp( ) throws Exception {
+        device = new FakeThermocoupleDevice( ).setLatencyMillis( 30L ).start();
+        metrics = new RequestMetrics( );
+        client = new OkHttpClient.Builder( )
+                .readTimeout( 300L, TimeUnit.MILLISECONDS )
+                .eventListenerFactory( new ConnectionTimingListener( metrics ).factory )
+                .build();
+    }
+
+    @After
+    public void tearDown( ) {
+        device.stop();
+    }
+
+    @Test
+    public void histogramPercentilesAreWithinABucket( ) {
+        RequestMetrics.LatencyHistogram histogram = new RequestMetrics.LatencyHistogram( );
+        for( long micros = 1L; micros <= 100000L; micros++ ) histogram.record( micros );
+        assertEquals( 50000d, histogram.percentileMicros( 0.50d ), 50000d * 0.125d );
+        assertEquals( 95000d, histogram.percentileMicros( 0.95d ), 95000d * 0.125d );
+        assertEquals( 99000d, histogram.percentileMicros( 0.99d ), 99000d * 0.125d );
+        assertEquals( 100000L, histogram.getMaxMicros() );
+        assertEquals( 200, RequestMetrics.LatencyHistogram.BUCKETS );  // fixed memory, whatever is recorded
+        for( long micros = 0L; micros < 8L; micros++ )
+            assertEquals( micros, RequestMetrics.LatencyHistogram.valueOf( RequestMetrics.LatencyHistogram.bucketOf( micros ) ) );
+    }
+
+    @Test
+    public void requestClassesAreKeptApartAndPublished( ) {
+        AsyncJSONGetter temp = new AsyncJSONGetter( device.url( "temperature/F" ), client,
+                new SerialUUIDSupplier( Constants.TEMP_GET_UPPER_HALF, "Test Temp" ) );
+        AsyncHTTPRequester fan = new AsyncHTTPRequester( device.url( "fan/on" ), client,
+                new SerialUUIDSupplier( Constants.FAN_CONTROL_UPPER_HALF, "Test Fan" ) );
+        for( int i = 0; i < 10; i++ ) temp.get().blockingGet();
+        for( int i = 0; i < 3; i++ ) fan.request().blockingGet().close();
+
+        device.setLatencyMillis( 600L );  // past the read timeout
+        try {
+            fan.request().blockingGet();
+            fail( "expected a timeout" );
+        } catch( RuntimeException expected ) { }
+
+        TestScheduler clock = new TestScheduler( );
+        TestObserver<RequestMetrics.Snapshot> snapshots = metrics.snapshots( 1L, TimeUnit.SECONDS, clock ).test();
+        clock.advanceTimeBy( 1L, TimeUnit.SECONDS );
+        snapshots.assertValueCount( 1 );
+        RequestMetrics.Snapshot snapshot = snapshots.values().get( 0 );
+
+        RequestMetrics.ClassSnapshot temps = snapshot.forClass( Constants.TEMP_GET_UPPER_HALF );
+        assertEquals( 10L, temps.calls );
+        assertEquals( 0f, temps.getErrorRate(), 0f );
+        assertTrue( temps.p50Millis( RequestMetrics.Phase.FIRST_BYTE ) >= 25L );
+        assertTrue( temps.p99Millis( RequestMetrics.Phase.TOTAL ) >= temps.p50Millis( RequestMetrics.Phase.TOTAL ) );
+
+        RequestMetrics.ClassSnapshot fans = snapshot.forClass( Constants.FAN_CONTROL_UPPER_HALF );
+        assertEquals( 4L, fans.calls );
+        assertEquals( 1L, fans.failures );
+        assertEquals( 1L, fans.timeouts );
+        assertEquals( 0.25f, fans.getErrorRate(), 0f );
+        assertNull( snapshot.forClass( Constants.WATCHDOG_FEED_UPPER_HALF ) );
+    }
+}
@@ -0,0 +1,159 @@
+package net.grlewis.wifithermocouple;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import io.reactivex.Completable;
+import io.reactivex.schedulers.TestScheduler;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test for sample-triggered PID evaluation: the fan responds to a sample when it arrives
+ * rather than at the next loop run, dt comes from the sample timestamps, fan changes are rate-limited,
+ * and a simulated cook still holds its setpoint.
+ */
+public class SampleTriggerTest {
+
+    private final TestScheduler scheduler = new TestScheduler( );
+    private final List<long[]> fanCommands = new ArrayList<>( );  // { at millis, 1 = on / 0 = off }
+    private final List<Integer> dutyCycles = new ArrayList<>( );
+
+    private BBQController controller( BBQController.LoopTrigger trigger, boolean deviceDutyCycle ) {
+        FanActuator fan = new FanActuator( ) {
+            @Override
+            public Completable setFan( boolean on ) {
+                return Completable.fromAction( ( ) -> fanCommands.add( new long[] { scheduler.now( TimeUnit.MILLISECONDS ), on? 1L : 0L } ) );
+            }
+
+            @Override
+            public boolean supportsDutyCycle( ) { return deviceDutyCycle; }
+
+            @Override
+            public Completable setDutyCycle( int percent, int cycleSecs ) {
+                return Completable.fromAction( ( ) -> dutyCycles.add( percent ) );
+            }
+        };
+        BBQController controller = new BBQController( new PIDState( ), fan, scheduler );
+        if( deviceDutyCycle ) controller.setFanMode( BBQController.FanMode.DEVICE_DUTY_CYCLE );
+        controller.setLoopTrigger( trigger );
+        controller.setCurrentVariableValue( 260f );
+        controller.set( 225f );
+        return controller;
+    }
+
+    private void sample( BBQController controller, float temp ) {
+        controller.onSample( temp, scheduler.now( TimeUnit.MILLISECONDS ) );
+        scheduler.triggerActions();
+    }
+
+    // ms from a cold sample arriving phaseMillis into a loop period to the fan/on it calls for
+    private long fanOnLatency( BBQController.LoopTrigger trigger, long phaseMillis ) {
+        fanCommands.clear();
+        BBQController controller = controller( trigger, false );
+        controller.start();  // too hot: fan off
+        for( int s = 0; s < 3; s++ ) {  // a few periods at 260
+            sample( controller, 260f );
+            scheduler.advanceTimeBy( 10L, TimeUnit.SECONDS );
+        }
+        scheduler.advanceTimeBy( phaseMillis, TimeUnit.MILLISECONDS );
+        long dropAt = scheduler.now( TimeUnit.MILLISECONDS );
+        sample( controller, 150f );  // lid open
+        while( fanCommands.stream().noneMatch( c -> c[1] == 1L ) ) scheduler.advanceTimeBy( 100L, TimeUnit.MILLISECONDS );
+        long latency = fanCommands.stream().filter( c -> c[1] == 1L ).findFirst().get()[0] - dropAt;
+        controller.stop();
+        return latency;
+    }
+
+    @Test
+    public void sampleTriggerCutsControlLatency( ) {
+        long timerTotal = 0L, sampleTotal = 0L, timerMax = 0L, sampleMax = 0L;
+        for( long phase = 500L; phase < 10000L; phase += 1000L ) {
+            long timer = fanOnLatency( BBQController.LoopTrigger.TIMER, phase );
+            long sample = fanOnLatency( BBQController.LoopTrigger.SAMPLE, phase );
+            timerTotal += timer;
+            sampleTotal += sample;
+            timerMax = Math.max( timerMax, timer );
+            sampleMax = Math.max( sampleMax, sample );
+        }
+        System.out.println( "fan/on latency: timer mean " + timerTotal / 10L + " ms, max " + timerMax
+                + " ms; sample mean " + sampleTotal / 10L + " ms, max " + sampleMax + " ms" );
+        assertTrue( timerMax >= 9000L );  // waited for the next 10 s loop run
+        assertEquals( 0L, sampleMax );    // acted on the sample
+    }
+
+    @Test
+    public void dtComesFromSampleTimestamps( ) {
+        BBQController controller = controller( BBQController.LoopTrigger.SAMPLE, false );
+        controller.setPropCoeff( 1f );
+        controller.setIntCoeff( 1f );
+        controller.setDiffCoeff( 0f );
+        controller.setCurrentVariableValue( 220f );
+        controller.start();
+        scheduler.triggerActions();  // the loop's first run (starts clamped; the output isn't saturated, so unclamps)
+        assertFalse( controller.pidKernel.isClamped() );
+
+        // the device's timestamps, nothing to do with the scheduler's clock: gaps of 1, 3 and 0.5 s
+        long[] stamps = { 1000000L, 1001000L, 1004000L, 1004500L };
+        controller.onSample( 220f, stamps[0] );
+        scheduler.advanceTimeBy( 1L, TimeUnit.SECONDS );
+        float intAccum = controller.pidKernel.getIntAccum();
+        for( int i = 1; i < stamps.length; i++ ) {
+            controller.onSample( 220f, stamps[i] );
+            scheduler.advanceTimeBy( 1L, TimeUnit.SECONDS );
+            // error 5, Ki 1, per 10 s period
+            assertEquals( 5f * ( stamps[i] - stamps[i - 1] ) / 10000f, controller.pidKernel.getIntAccum() - intAccum, 1e-4f );
+            intAccum = controller.pidKernel.getIntAccum();
+        }
+        controller.onSample( 220f, stamps[2] );  // stale: ignored
+        scheduler.triggerActions();
+        assertEquals( intAccum, controller.pidKernel.getIntAccum(), 0f );
+        assertEquals( 4L, controller.getSampleEvaluationCount() );
+    }
+
+    @Test
+    public void fanChangesAreRateLimited( ) {
+        // on/off: a sample every 500 ms flipping between far too hot and far too cold
+        BBQController controller = controller( BBQController.LoopTrigger.SAMPLE, false );
+        controller.start();
+        for( int s = 0; s < 240; s++ ) {
+            sample( controller, s % 2 == 0? 150f : 300f );
+            scheduler.advanceTimeBy( 500L, TimeUnit.MILLISECONDS );
+        }
+        int switches = 0;
+        long lastSwitch = Long.MIN_VALUE / 2;
+        long lastOn = 0L;
+        for( long[] command : fanCommands ) {
+            if( command[1] == lastOn ) continue;  // (fan/on at the start of a period it was already on for)
+            assertTrue( "switched at " + command[0] + " after " + lastSwitch, command[0] - lastSwitch >= Constants.PID_SAMPLE_MIN_CHANGE_MILLIS
+                    || command[0] % 10000L == 0L );  // a period start is the loop's, as with the timer
+            lastSwitch = command[0];
+            lastOn = command[1];
+            switches++;
+        }
+        assertTrue( "switches " + switches, switches <= 2 * 120 / 5 );
+
+        // duty cycle: no more than one change per PID_SAMPLE_MIN_CHANGE_MILLIS
+        controller = controller( BBQController.LoopTrigger.SAMPLE, true );
+        controller.start();
+        for( int s = 0; s < 240; s++ ) {
+            sample( controller, s % 2 == 0? 150f : 300f );
+            scheduler.advanceTimeBy( 500L, TimeUnit.MILLISECONDS );
+        }
+        assertTrue( "duty cycles sent " + dutyCycles.size(), dutyCycles.size() <= 120 / 5 + 1 );
+    }
+
+    @Test
+    public void sampleTriggeredCookHoldsTheSetpoint( ) {
+        SimulatedCook cook = new SimulatedCook( new SmokerPlantModel( ), 2000L, false ).setSetPoint( 225f );
+        cook.getController().setLoopTrigger( BBQController.LoopTrigger.SAMPLE );
+        cook.start().run( 6L, TimeUnit.HOURS );
+        System.out.println( "sample-triggered: " + cook );
+        assertTrue( cook.isSettled() );
+        assertTrue( cook.toString(), cook.getMeanAbsError() < 10f );
+        assertTrue( cook.getController().getSampleEvaluationCount() > 6L * 3600L / 2L - 10L );
+    }
+}
@@ -0,0 +1,181 @@
+package net.grlewis.wifithermocouple;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import io.reactivex.Completable;
+import io.reactivex.Scheduler;
+import io.reactivex.schedulers.TestScheduler;
+
+/*
+ * A BBQController running a SmokerPlantModel in virtual time, for tests and tuning.
+ *
+ * The controller's loop, its delayed fan-off commands and a temperature "poll" every sampleMillis all run
+ * on one TestScheduler; run() advances it, so a 12-hour cook takes a few milliseconds of real time.
+ * The fan is a FanActuator that sets the model's duty to 0 or 1 immediately or, if the cook is
+ * built with deviceDutyCycle, also takes duty-cycle settings like the real box (the model sees the average).
+ * The "thermocouple" can add noise, spikes and NaN readings (setSensorNoise()), and the readings can go
+ * through a TempFilter on their way to the controller (setFilter(); without one only NaN readings are dropped);
+ * scoring always uses the model's true temperature.
+ *
+ * Scoring, from the first time the pit reaches the setpoint (settled) to the end:
+ *     overshoot        highest temperature above the setpoint
+ *     meanAbsError     average |setpoint - temp| over the samples after settling
+ *     fanSwitches      number of times the fan actually changed state
+ *
+ * usage:
+ *     SimulatedCook cook = new SimulatedCook( new SmokerPlantModel( ) ).setSetPoint( 225f ).start();
+ *     cook.run( 12L, TimeUnit.HOURS );
+ *     assertTrue( cook.getMeanAbsError() < 5f );
+ *
+ */
+
+class SimulatedCook {
+
+    private final TestScheduler scheduler = new TestScheduler( );
+    private final SmokerPlantModel plant;
+    private final PIDState pidState = new PIDState( );
+    private final BBQController controller;
+    private final long sampleMillis;
+
+    private float setPoint = Float.NaN;
+    private Random noise;              // null: exact readings
+    private float noiseStdDeg;
+    private float spikeChance;         // per reading: a +-40 degree spike, or (as often) NaN
+    private TempFilter filter;         // null: raw readings to the controller
+    private long fanSwitches;
+    private long fanCommands;          // setFan() and setDutyCycle() calls
+    private boolean settled;
+    private double secondsToSettle = Double.NaN;
+    private float overshoot;
+    private double absErrorSum;
+    private long settledSamples;
+
+
+    // constructor
+    SimulatedCook( SmokerPlantModel plant, long sampleMillis, boolean deviceDutyCycle ) {
+        this.plant = plant;
+        this.sampleMillis = sampleMillis;
+        FanActuator fan = new FanActuator( ) {
+            @Override
+            public Completable setFan( boolean on ) {
+                return Completable.fromAction( ( ) -> {
+                    fanCommands++;
+                    plant.setFanDuty( on? 1f : 0f );
+                } );
+            }
+
+            @Override
+            public void outputChanged( boolean on, long atMillis ) { fanSwitches++; }
+
+            @Override
+            public boolean supportsDutyCycle( ) { return deviceDutyCycle; }
+
+            @Override
+            public Completable setDutyCycle( int percent, int cycleSecs ) {
+                if( !deviceDutyCycle ) return FanActuator.super.setDutyCycle( percent, cycleSecs );
+                return Completable.fromAction( ( ) -> {
+                    fanCommands++;
+                    plant.setFanDuty( percent / 100f );
+                } );
+            }
+        };
+        controller = new BBQController( pidState, fan, scheduler );
+        if( deviceDutyCycle ) controller.setFanMode( BBQController.FanMode.DEVICE_DUTY_CYCLE );  // (opt-in)
+        controller.setCurrentVariableValue( plant.getTemp() );
+    }
+
+    // constructor sampling once a second, on/off fan
+    SimulatedCook( SmokerPlantModel plant ) {
+        this( plant, 1000L, false );
+    }
+
+
+    // setters return the cook so you can chain
+    SimulatedCook setSetPoint( float setPoint ) {
+        this.setPoint = setPoint;
+        controller.set( setPoint );
+        return this;
+    }
+
+    SimulatedCook setGains( float gain, float propCoeff, float intCoeff, float diffCoeff ) {
+        controller.setGain( gain );
+        controller.setPropCoeff( propCoeff );
+        controller.setIntCoeff( intCoeff );
+        controller.setDiffCoeff( diffCoeff );
+        return this;
+    }
+
+    SimulatedCook setSensorNoise( float stdDeg, float spikeChance, long seed ) {
+        noise = new Random( seed );
+        noiseStdDeg = stdDeg;
+        this.spikeChance = spikeChance;
+        return this;
+    }
+
+    SimulatedCook setFilter( TempFilter filter ) {
+        this.filter = filter;
+        return this;
+    }
+
+    SimulatedCook setPeriodMs( long periodMs ) {
+        controller.setPeriodMs( periodMs );
+        return this;
+    }
+
+    // start the controller and the temperature sampling
+    SimulatedCook start( ) {
+        controller.start();
+        Scheduler.Worker sampler = scheduler.createWorker();
+        sampler.schedulePeriodically( this::sample, sampleMillis, sampleMillis, TimeUnit.MILLISECONDS );
+        return this;
+    }
+
+    // advance virtual time (runs everything that comes due)
+    SimulatedCook run( long time, TimeUnit unit ) {
+        scheduler.advanceTimeBy( time, unit );
+        return this;
+    }
+
+    private void sample( ) {
+        plant.step( sampleMillis / 1000d );
+        float temp = plant.getTemp();
+        long now = scheduler.now( TimeUnit.MILLISECONDS );
+        float reading = temp;
+        if( noise != null ) {
+            reading += (float) noise.nextGaussian() * noiseStdDeg;
+            double spike = noise.nextDouble();
+            if( spike < spikeChance ) reading = Float.NaN;
+            else if( spike < 2d * spikeChance ) reading += noise.nextBoolean()? 40f : -40f;
+        }
+        if( filter != null ) reading = filter.filter( reading, now );
+        if( !Float.isNaN( reading ) ) controller.onSample( reading, now );  // (a NaN would null PIDState's current value)
+        if( !settled && temp >= setPoint ) {
+            settled = true;
+            secondsToSettle = plant.getElapsedSecs();
+        }
+        if( settled ) {
+            overshoot = Math.max( overshoot, temp - setPoint );
+            absErrorSum += Math.abs( setPoint - temp );
+            settledSamples++;
+        }
+    }
+
+
+    BBQController getController( ) { return controller; }
+    PIDState getPidState( ) { return pidState; }
+    SmokerPlantModel getPlant( ) { return plant; }
+    TestScheduler getScheduler( ) { return scheduler; }
+    boolean isSettled( ) { return settled; }
+    double getSecondsToSettle( ) { return secondsToSettle; }  // NaN if it never got there
+    float getOvershoot( ) { return overshoot; }
+    float getMeanAbsError( ) { return settledSamples == 0L? Float.NaN : (float) ( absErrorSum / settledSamples ); }
+    long getFanSwitches( ) { return fanSwitches; }
+    long getFanCommands( ) { return fanCommands; }
+
+    @Override
+    public String toString( ) {
+        return "SimulatedCook: settled in " + (float) secondsToSettle + " s, overshoot " + overshoot + ", mean |error| "
+                + getMeanAbsError() + ", " + fanSwitches + " fan switches, " + fanCommands + " fan commands; " + plant;
+    }
+}
@@ -0,0 +1,63 @@
+package net.grlewis.wifithermocouple;
+
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test: BBQController on a TestScheduler against a SmokerPlantModel. A full cook
+ * replays in milliseconds, so a thousand varied ones fit in an ordinary test run.
+ */
+public class SimulatedCookTest {
+
+    @Test
+    public void twelveHourCookHoldsTheSetpoint( ) {
+        long start = System.nanoTime();
+        SimulatedCook cook = new SimulatedCook( new SmokerPlantModel( ) ).setSetPoint( 225f ).start();
+        cook.run( 12L, TimeUnit.HOURS );
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis( System.nanoTime() - start );
+        System.out.println( "12 h cook in " + elapsedMillis + " ms: " + cook );
+
+        assertEquals( 12d * 3600d, cook.getPlant().getElapsedSecs(), 1d );
+        assertTrue( "never reached the setpoint: " + cook, cook.isSettled() );
+        assertTrue( "too slow to come up: " + cook, cook.getSecondsToSettle() < 3600d );
+        assertTrue( "doesn't hold the setpoint: " + cook, cook.getMeanAbsError() < 10f );
+        assertTrue( "fan never cycled: " + cook, cook.getFanSwitches() > 10L );
+        assertTrue( "virtual time should be fast: " + elapsedMillis + " ms", elapsedMillis < 5000L );
+    }
+
+    @Test
+    public void stopTurnsTheFanOffAndCancelsPendingCommands( ) {
+        SimulatedCook cook = new SimulatedCook( new SmokerPlantModel( ) ).setSetPoint( 225f ).start();
+        cook.run( 1L, TimeUnit.SECONDS );
+        assertEquals( 1f, cook.getPlant().getFanDuty(), 0f );  // cold pit: full on
+        cook.getController().stop();
+        cook.run( 1L, TimeUnit.HOURS );
+        assertEquals( 0f, cook.getPlant().getFanDuty(), 0f );
+        assertFalse( cook.getController().isRunning() );
+    }
+
+    @Test
+    public void thousandVariedCooks( ) {
+        Random random = new Random( 14L );
+        int cooks = 1000;
+        int settled = 0;
+        long start = System.nanoTime();
+        for( int i = 0; i < cooks; i++ ) {
+            SmokerPlantModel plant = new SmokerPlantModel( 40d + 50d * random.nextDouble(), 60d + 60d * random.nextDouble(),
+                    200d + 150d * random.nextDouble(), 300d + 600d * random.nextDouble(), 60d + 120d * random.nextDouble(),
+                    10d + 30d * random.nextDouble() );
+            SimulatedCook cook = new SimulatedCook( plant ).setSetPoint( 200f + 75f * random.nextFloat() ).start();
+            cook.run( 4L, TimeUnit.HOURS );
+            if( cook.isSettled() ) settled++;
+        }
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis( System.nanoTime() - start );
+        System.out.println( cooks + " 4 h cooks in " + elapsedMillis + " ms (" + (float) elapsedMillis / cooks + " ms each), "
+                + settled + " reached the setpoint" );
+        assertTrue( settled > cooks * 9 / 10 );
+        assertTrue( "virtual time should be fast: " + elapsedMillis + " ms", elapsedMillis < 60000L );
+    }
+}
@@ -0,0 +1,88 @@
+package net.grlewis.wifithermocouple;
+
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test for TempFilter: NaN readings and single-sample spikes never reach the output, a real
+ * step (lid opened) does, noise is smoothed, and a simulated cook with a noisy thermocouple sends the
+ * fan fewer changes with the filter than without.
+ */
+public class TempFilterTest {
+
+    @Test
+    public void dropsNanAndSpikes( ) {
+        TempFilter filter = TempFilter.standard( TempFilter.Smoother.NONE );
+        for( int i = 0; i < 20; i++ ) {
+            float raw = i == 7? Float.NaN : i == 12? 300f : i == 15? 226f + 14f : 225f;  // (240 is within the jump limit)
+            float out = filter.filter( raw, i * 2000L );
+            if( i == 7 || i == 12 ) assertTrue( Float.isNaN( out ) );
+            else assertEquals( "sample " + i, 225f, out, 0f );  // the median of 3 hides the 240 too
+        }
+        assertEquals( 1L, filter.getNanCount() );
+        assertEquals( 1L, filter.getRejectedCount() );
+    }
+
+    @Test
+    public void followsARealStep( ) {
+        TempFilter filter = TempFilter.standard( TempFilter.Smoother.NONE );
+        for( int i = 0; i < 10; i++ ) filter.filter( 225f, i * 1000L );
+        int passed = 0;
+        float out = Float.NaN;
+        for( int i = 10; i < 20 && !( out == 170f ); i++ ) {  // lid open: 55 degrees down and staying there
+            out = filter.filter( 170f, i * 1000L );
+            if( !Float.isNaN( out ) ) passed++;
+        }
+        assertEquals( 170f, out, 0f );
+        assertEquals( Constants.FILTER_JUMP_CONFIRM_SAMPLES - 1, filter.getRejectedCount() );
+        assertTrue( "took " + passed, passed <= 2 );  // confirmed, then through the median
+    }
+
+    @Test
+    public void smoothsNoise( ) {
+        for( TempFilter.Smoother smoother : new TempFilter.Smoother[] { TempFilter.Smoother.EMA, TempFilter.Smoother.KALMAN } ) {
+            TempFilter filter = TempFilter.standard( smoother );
+            Random random = new Random( 20L );
+            double sumSq = 0d;
+            int n = 0;
+            for( int i = 0; i < 2000; i++ ) {
+                float out = filter.filter( 225f + (float) random.nextGaussian() * 2f, i * 2000L );
+                if( i >= 50 ) {
+                    sumSq += ( out - 225f ) * ( out - 225f );
+                    n++;
+                }
+            }
+            double std = Math.sqrt( sumSq / n );
+            System.out.println( smoother + ": noise std 2.0 -> " + (float) std );
+            assertTrue( smoother + " std " + std, std < 1d );
+        }
+    }
+
+    private static SimulatedCook noisyCook( float p, float i, float d, TempFilter filter ) {
+        SimulatedCook cook = new SimulatedCook( new SmokerPlantModel( ), 2000L, true ).setGains( 1f, p, i, d )
+                .setSetPoint( 225f ).setSensorNoise( 1.5f, 0.01f, 20L );  // 1% spikes, 1% NaN
+        if( filter != null ) cook.setFilter( filter );
+        return cook.start().run( 6L, TimeUnit.HOURS );
+    }
+
+    @Test
+    public void filterCutsFanChatter( ) {
+        // default coefficients: fewer duty-cycle changes sent
+        SimulatedCook raw = noisyCook( 5f, 1f, 5f, null );
+        SimulatedCook filtered = noisyCook( 5f, 1f, 5f, TempFilter.standard( TempFilter.Smoother.KALMAN ) );
+        assertTrue( "fan commands " + filtered.getFanCommands() + " vs " + raw.getFanCommands(),
+                filtered.getFanCommands() < raw.getFanCommands() * 0.8f );
+        assertTrue( "mean |error| " + filtered.getMeanAbsError(), filtered.getMeanAbsError() < 10f );
+
+        // the auto-tuner's coefficients (a big derivative term): noise still moves the output every period,
+        // but the pit holds much closer to the setpoint
+        raw = noisyCook( 1.75f, 0.09f, 22.4f, null );
+        filtered = noisyCook( 1.75f, 0.09f, 22.4f, TempFilter.standard( TempFilter.Smoother.KALMAN ) );
+        assertTrue( "mean |error| " + filtered.getMeanAbsError() + " vs " + raw.getMeanAbsError(),
+                filtered.getMeanAbsError() < raw.getMeanAbsError() * 0.6f );
+    }
+}
@@ -0,0 +1,122 @@
+package net.grlewis.wifithermocouple;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test for TempHistoryBuffer: wrapping keeps the newest capacity samples in order, readSince()
+ * copies only what's new (and says when some was overwritten first), clear() empties it without
+ * invalidating readers' bookmarks, and readers running flat out
+ * against a writer never see a torn or out-of-order sample.
+ */
+public class TempHistoryBufferTest {
+
+    @Test
+    public void wrapsKeepingTheNewest( ) {
+        TempHistoryBuffer history = new TempHistoryBuffer( 100, true );
+        for( int i = 0; i < 1000; i++ ) history.add( i * 5000L, i, i + 0.5f, i % 100, 225f );
+        assertEquals( 100, history.size() );
+        assertEquals( 1000L, history.getSequence() );
+        assertEquals( 999.5f, history.getLastTemp(), 0f );
+
+        TempHistoryBuffer.Snapshot snapshot = history.newSnapshot();
+        assertEquals( 1000L, history.read( snapshot ) );
+        assertEquals( 100, snapshot.size );
+        assertEquals( 900L, snapshot.firstSequence );
+        for( int i = 0; i < snapshot.size; i++ ) {
+            assertEquals( ( 900L + i ) * 5000L, snapshot.millis[i] );
+            assertEquals( 900f + i, snapshot.raw[i], 0f );
+            assertEquals( 900.5f + i, snapshot.temp[i], 0f );
+            assertEquals( ( 900 + i ) % 100, snapshot.dutyPct[i], 0f );
+            assertEquals( 225f, snapshot.setPoint[i], 0f );
+        }
+    }
+
+    @Test
+    public void readsOnlyWhatsNew( ) {
+        TempHistoryBuffer history = new TempHistoryBuffer( 50, false );
+        assertFalse( history.hasControlColumns() );
+        TempHistoryBuffer.Snapshot snapshot = history.newSnapshot();
+        long seen = history.read( snapshot );
+        assertEquals( 0, snapshot.size );
+
+        for( int i = 0; i < 30; i++ ) history.add( i, i, i );
+        seen = history.readSince( seen, snapshot );
+        assertEquals( 30, snapshot.size );
+        assertFalse( snapshot.gap );
+
+        for( int i = 30; i < 37; i++ ) history.add( i, i, i );
+        seen = history.readSince( seen, snapshot );
+        assertEquals( 7, snapshot.size );
+        assertEquals( 30L, snapshot.millis[0] );
+        assertEquals( 37L, seen );
+
+        for( int i = 37; i < 137; i++ ) history.add( i, i, i );  // more than it holds
+        history.readSince( seen, snapshot );
+        assertTrue( snapshot.gap );
+        assertEquals( 50, snapshot.size );
+        assertEquals( 87L, snapshot.millis[0] );
+    }
+
+    @Test
+    public void clearKeepsBookmarksValid( ) {
+        TempHistoryBuffer history = new TempHistoryBuffer( 50, false );
+        TempHistoryBuffer.Snapshot snapshot = history.newSnapshot();
+        for( int i = 0; i < 30; i++ ) history.add( i, i, i );
+        long seen = history.read( snapshot );
+
+        history.clear();  // a new cook
+        assertEquals( 0, history.size() );
+        assertEquals( 0L, history.getLastMillis() );
+        assertTrue( history.getSequence() > seen );  // still counting up
+        history.read( snapshot );
+        assertEquals( 0, snapshot.size );
+
+        for( int i = 100; i < 105; i++ ) history.add( i, i, i );
+        long next = history.readSince( seen, snapshot );
+        assertTrue( snapshot.gap );  // what the reader had is from the old cook: start over
+        assertEquals( 5, snapshot.size );
+        assertEquals( 100L, snapshot.millis[0] );
+
+        history.add( 105, 105, 105 );
+        history.readSince( next, snapshot );
+        assertFalse( snapshot.gap );
+        assertEquals( 1, snapshot.size );
+        assertEquals( 6, history.size() );
+    }
+
+    @Test
+    public void readersNeverSeeTornSamples( ) throws InterruptedException {
+        TempHistoryBuffer history = new TempHistoryBuffer( 1000, true );
+        AtomicBoolean done = new AtomicBoolean( );
+        String[] failure = { null };
+        long[] reads = { 0L };
+        Thread reader = new Thread( ( ) -> {
+            TempHistoryBuffer.Snapshot snapshot = history.newSnapshot();
+            long seen = 0L;
+            long last = -1L;
+            while( !done.get() && failure[0] == null ) {
+                seen = history.readSince( seen, snapshot );
+                for( int i = 0; i < snapshot.size; i++ ) {
+                    long n = snapshot.millis[i];
+                    if( snapshot.raw[i] != (float) ( n % 1000L ) || snapshot.setPoint[i] != (float) ( n % 777L )
+                            || ( !snapshot.gap && i == 0 && last >= 0L && n != last + 1L ) || n <= last ) {
+                        failure[0] = "sample " + n + " after " + last + ": raw " + snapshot.raw[i];
+                        break;
+                    }
+                    last = n;
+                }
+                reads[0]++;
+            }
+        } );
+        reader.start();
+        for( long n = 0L; n < 5000000L; n++ ) history.add( n, n % 1000L, n, 0f, n % 777L );
+        done.set( true );
+        reader.join();
+        assertNull( failure[0] );
+        assertTrue( reads[0] > 0L );
+    }
+}
@@ -0,0 +1,55 @@
+package net.grlewis.wifithermocouple;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test for TempPlotSeries following a TempHistoryBuffer: after the first update each one
+ * reads only the points added since, the plotted window slides with the history, and falling a whole
+ * history behind or switching to another device's history starts over.
+ */
+public class TempPlotSeriesTest {
+
+    @Test
+    public void updatesReadOnlyNewPoints( ) throws InterruptedException {
+        TempHistoryBuffer history = new TempHistoryBuffer( Constants.HISTORY_BUFFER_SIZE, true );
+        for( int i = 0; i < Constants.HISTORY_BUFFER_SIZE; i++ ) history.add( i * 5000L, 200f, 200f + i % 50 );
+        TempPlotSeries series = new TempPlotSeries( );
+        series.updatePlotData( history );
+        assertEquals( Constants.HISTORY_BUFFER_SIZE, series.getPointsRead() );
+
+        for( int i = Constants.HISTORY_BUFFER_SIZE; i < Constants.HISTORY_BUFFER_SIZE + 100; i++ ) {
+            history.add( i * 5000L, 200f, i % 7 == 0? Float.NaN : 200f + i % 50 );
+            series.updatePlotData( history );
+        }
+        assertEquals( Constants.HISTORY_BUFFER_SIZE + 100L, series.getPointsRead() );  // one point per update
+        assertEquals( Constants.HISTORY_BUFFER_SIZE, series.size() );
+        int last = series.size() - 1;
+        assertEquals( 0f, series.getX( last ).floatValue(), 0f );
+        assertEquals( -( Constants.HISTORY_BUFFER_SIZE - 1 ) * 5f / 60f, series.getX( 0 ).floatValue(), 1e-3f );
+        int newest = Constants.HISTORY_BUFFER_SIZE + 99;
+        assertEquals( 200f + newest % 50, series.getY( last ).floatValue(), 0f );
+        assertNull( series.getY( last - newest % 7 ) );  // the dropped reading is a gap
+        assertEquals( 200f + 100 % 50, series.getY( 0 ).floatValue(), 0f );  // the oldest still in the history
+    }
+
+    @Test
+    public void startsOverWhenItCantFollow( ) throws InterruptedException {
+        TempHistoryBuffer history = new TempHistoryBuffer( 100, false );
+        TempPlotSeries series = new TempPlotSeries( );
+        for( int i = 0; i < 50; i++ ) history.add( i * 1000L, i, i );
+        series.updatePlotData( history );
+        for( int i = 50; i < 300; i++ ) history.add( i * 1000L, i, i );  // more than a whole history since
+        series.updatePlotData( history );
+        assertEquals( 100, series.size() );
+        assertEquals( 200f, series.getY( 0 ).floatValue(), 0f );
+        assertEquals( 299f, series.getY( 99 ).floatValue(), 0f );
+
+        TempHistoryBuffer other = new TempHistoryBuffer( 100, false );
+        for( int i = 0; i < 10; i++ ) other.add( i * 1000L, -i, -i );
+        series.updatePlotData( other );
+        assertEquals( 10, series.size() );
+        assertEquals( -9f, series.getY( 9 ).floatValue(), 0f );
+    }
+}
@@ -0,0 +1,77 @@
+package net.grlewis.wifithermocouple;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test for TempRollups: every bucket of a 14-hour cook holds exactly the min, max, mean and
+ * last of its readings, the tiers stay within their bucket count however long the cook runs, and a
+ * zoomed-out view picks a tier that fits.
+ */
+public class TempRollupsTest {
+
+    private static final long START = 1546300800000L + 2345L;  // not on a bucket boundary
+
+    @Test
+    public void bucketsMatchTheirReadings( ) {
+        TempRollups rollups = new TempRollups( );
+        int readings = 14 * 3600 / 5;
+        float[] temps = new float[readings];
+        Random random = new Random( 24L );
+        for( int i = 0; i < readings; i++ ) {
+            temps[i] = i % 97 == 0? Float.NaN : 225f + (float) random.nextGaussian() * 5f;
+            rollups.add( START + i * 5000L, temps[i] );
+        }
+        TempRollups.Series series = rollups.newSeries();
+        for( int tier = 0; tier < rollups.tierCount(); tier++ ) {
+            rollups.read( tier, series );
+            long width = rollups.getBucketMillis( tier );
+            int i = 0;
+            for( int b = 0; b < series.size; b++ ) {  // recompute each bucket by brute force
+                assertEquals( 0L, series.startMillis[b] % width );
+                float min = Float.MAX_VALUE, max = -Float.MAX_VALUE, last = Float.NaN;
+                double sum = 0d;
+                int count = 0;
+                for( ; i < readings && START + i * 5000L < series.startMillis[b] + width; i++ ) {
+                    if( Float.isNaN( temps[i] ) ) continue;
+                    min = Math.min( min, temps[i] );
+                    max = Math.max( max, temps[i] );
+                    sum += temps[i];
+                    last = temps[i];
+                    count++;
+                }
+                assertEquals( count, series.count[b] );
+                assertEquals( min, series.min[b], 0f );
+                assertEquals( max, series.max[b], 0f );
+                assertEquals( sum / count, series.mean[b], 1e-3f );
+                assertEquals( last, series.last[b], 0f );
+            }
+            assertEquals( readings, i );
+        }
+        assertEquals( 14 * 60, rollups.size( 0 ) );  // (the last one still open)
+        assertEquals( 14 * 4, rollups.size( 2 ) );
+    }
+
+    @Test
+    public void boundedHoweverLong( ) {
+        TempRollups rollups = new TempRollups( );
+        int readings = 20 * 24 * 3600 / 5;  // 20 days
+        long began = System.nanoTime();
+        for( int i = 0; i < readings; i++ ) rollups.add( START + i * 5000L, 225f + i % 13 );
+        long nanos = System.nanoTime() - began;
+        System.out.println( rollups + "; " + nanos / readings + " ns per reading" );
+        for( int tier = 0; tier < rollups.tierCount(); tier++ ) {
+            assertEquals( Constants.ROLLUP_BUCKETS + 1, rollups.size( tier ) );  // full, and the open one
+        }
+        TempRollups.Series series = rollups.newSeries();
+        rollups.read( 0, series );
+        assertEquals( 2345L + 55000L, START + ( readings - 1 ) * 5000L - series.startMillis[series.size - 1] );  // the open bucket
+
+        assertEquals( 0, rollups.tierFor( 3600000L, 500 ) );       // an hour: 60 one-minute buckets
+        assertEquals( 1, rollups.tierFor( 14 * 3600000L, 500 ) );  // 14 hours: 168 five-minute ones
+        assertEquals( 2, rollups.tierFor( 14 * 3600000L, 100 ) );  // or 56 fifteen-minute ones
+    }
+}